@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.common.counters;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * Immutable, memory efficient copy of a {@link TezCounters}, for counters which are kept long
+ * after they stop changing, like the ones of finished task attempts: the values of the counters
+ * in an array of longs, along with the ids of their {@link CounterDescriptor}s, sorted.
+ * {@link Aggregator} sums them up without going through {@link TezCounters}. Counters which
+ * did not get a descriptor, once there are too many of them, are kept in a {@link TezCounters}
+ * aside.
+ */
+@Private
+public final class CompactCounters {
+
+  public static final CompactCounters EMPTY = new CompactCounters(new int[0], new long[0], null);
+
+  private final int[] ids;
+  private final long[] values;
+  // Counters without a descriptor, null if there are none
+  private final TezCounters overflow;
+
+  private CompactCounters(int[] ids, long[] values, TezCounters overflow) {
+    this.ids = ids;
+    this.values = values;
+    this.overflow = overflow;
+  }
+
+  public static CompactCounters create(TezCounters counters) {
+    int size = counters.countCounters();
+    // Ids in the high bits and positions in the low bits, to sort both at once
+    long[] keys = new long[size];
+    long[] unsortedValues = new long[size];
+    int count = 0;
+    TezCounters overflow = null;
+    for (CounterGroup group : counters) {
+      for (TezCounter counter : group) {
+        CounterDescriptor descriptor = CounterDescriptor.get(group, counter);
+        if (descriptor == null) {
+          if (overflow == null) {
+            overflow = new TezCounters();
+          }
+          increment(overflow, group, counter, counter.getValue());
+          continue;
+        }
+        if (count == keys.length) {
+          // The counters changed after they were counted
+          keys = Arrays.copyOf(keys, count * 2 + 1);
+          unsortedValues = Arrays.copyOf(unsortedValues, keys.length);
+        }
+        keys[count] = ((long) descriptor.getId() << 32) | count;
+        unsortedValues[count] = counter.getValue();
+        count++;
+      }
+    }
+    Arrays.sort(keys, 0, count);
+    int[] ids = new int[count];
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = (int) (keys[i] >>> 32);
+      values[i] = unsortedValues[(int) keys[i]];
+    }
+    return new CompactCounters(ids, values, overflow);
+  }
+
+  /**
+   * @return the number of counters, including the ones without a descriptor
+   */
+  public int size() {
+    return ids.length + (overflow == null ? 0 : overflow.countCounters());
+  }
+
+  /**
+   * Add a value to a counter of a {@link TezCounters}, which is created with the names of the
+   * given one if it does not exist yet.
+   */
+  private static void increment(TezCounters target, CounterGroupBase<?> group,
+      TezCounter counter, long value) {
+    TezCounters single = new TezCounters();
+    single.addGroup(group.getName(), group.getDisplayName())
+        .addCounter(counter.getName(), counter.getDisplayName(), value);
+    target.incrAllCounters(single);
+  }
+
+  /**
+   * @return a new {@link TezCounters} with the same counters
+   */
+  public TezCounters toTezCounters() {
+    TezCounters counters = new TezCounters();
+    Map<String, CounterGroup> groups = new HashMap<String, CounterGroup>();
+    for (int i = 0; i < ids.length; i++) {
+      CounterDescriptor descriptor = CounterDescriptor.get(ids[i]);
+      CounterGroup group = groups.get(descriptor.getGroupName());
+      if (group == null) {
+        group = counters.addGroup(descriptor.getGroupName(), descriptor.getGroupDisplayName());
+        groups.put(descriptor.getGroupName(), group);
+      }
+      group.addCounter(descriptor.getName(), descriptor.getDisplayName(), values[i]);
+    }
+    if (overflow != null) {
+      counters.incrAllCounters(overflow);
+    }
+    return counters;
+  }
+
+  /**
+   * Sums counters up, by descriptor id. Not thread safe.
+   */
+  public static final class Aggregator {
+    private long[] sums = new long[0];
+    private final BitSet present = new BitSet();
+    // Counters without a descriptor, null if there are none
+    private TezCounters overflow;
+
+    public void add(CompactCounters counters) {
+      if (counters.overflow != null) {
+        getOverflow().incrAllCounters(counters.overflow);
+      }
+      if (counters.ids.length == 0) {
+        return;
+      }
+      ensureCapacity(counters.ids[counters.ids.length - 1] + 1);
+      for (int i = 0; i < counters.ids.length; i++) {
+        sums[counters.ids[i]] += counters.values[i];
+        present.set(counters.ids[i]);
+      }
+    }
+
+    /**
+     * Take back counters which were added before.
+     */
+    public void subtract(CompactCounters counters) {
+      if (counters.overflow != null) {
+        for (CounterGroup group : counters.overflow) {
+          for (TezCounter counter : group) {
+            increment(getOverflow(), group, counter, -counter.getValue());
+          }
+        }
+      }
+      if (counters.ids.length == 0) {
+        return;
+      }
+      ensureCapacity(counters.ids[counters.ids.length - 1] + 1);
+      for (int i = 0; i < counters.ids.length; i++) {
+        sums[counters.ids[i]] -= counters.values[i];
+      }
+    }
+
+    public void add(Aggregator other) {
+      if (other.overflow != null) {
+        getOverflow().incrAllCounters(other.overflow);
+      }
+      ensureCapacity(other.sums.length);
+      for (int id = other.present.nextSetBit(0); id >= 0; id = other.present.nextSetBit(id + 1)) {
+        sums[id] += other.sums[id];
+      }
+      present.or(other.present);
+    }
+
+    /**
+     * Take back the sums of another aggregator, which were added before.
+     */
+    public void subtract(Aggregator other) {
+      if (other.overflow != null) {
+        for (CounterGroup group : other.overflow) {
+          for (TezCounter counter : group) {
+            increment(getOverflow(), group, counter, -counter.getValue());
+          }
+        }
+      }
+      ensureCapacity(other.sums.length);
+      for (int id = other.present.nextSetBit(0); id >= 0; id = other.present.nextSetBit(id + 1)) {
+        sums[id] -= other.sums[id];
+      }
+    }
+
+    public void add(TezCounters counters) {
+      for (CounterGroup group : counters) {
+        for (TezCounter counter : group) {
+          CounterDescriptor descriptor = CounterDescriptor.get(group, counter);
+          if (descriptor == null) {
+            increment(getOverflow(), group, counter, counter.getValue());
+            continue;
+          }
+          int id = descriptor.getId();
+          ensureCapacity(id + 1);
+          sums[id] += counter.getValue();
+          present.set(id);
+        }
+      }
+    }
+
+    private TezCounters getOverflow() {
+      if (overflow == null) {
+        overflow = new TezCounters();
+      }
+      return overflow;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (sums.length < capacity) {
+        sums = Arrays.copyOf(sums, Math.max(capacity, sums.length * 2));
+      }
+    }
+
+    public CompactCounters toCompactCounters() {
+      int count = present.cardinality();
+      int[] ids = new int[count];
+      long[] values = new long[count];
+      int i = 0;
+      for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+        ids[i] = id;
+        values[i++] = sums[id];
+      }
+      TezCounters overflowCopy = null;
+      if (overflow != null) {
+        // The aggregator keeps adding to its own
+        overflowCopy = new TezCounters();
+        overflowCopy.incrAllCounters(overflow);
+      }
+      return new CompactCounters(ids, values, overflowCopy);
+    }
+
+    public TezCounters toTezCounters() {
+      return toCompactCounters().toTezCounters();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.common.counters;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The names of a counter, interned once per process, and the id it gets in
+ * {@link CompactCounters}. Ids are dense, starting from 0, in the order counters are first seen.
+ *
+ * Descriptors are never dropped, as compact counters of any DAG may refer to them. Their number
+ * is capped instead, since a long running session sees the counters of all of its DAGs, which
+ * may have names of their own. Counters seen once the cap is reached get no descriptor, and
+ * are kept as plain {@link TezCounters}.
+ */
+@Private
+public final class CounterDescriptor {
+
+  static final int DEFAULT_MAX_DESCRIPTORS = 16384;
+
+  private static final ConcurrentMap<String, ConcurrentMap<String, CounterDescriptor>>
+      DESCRIPTORS = new ConcurrentHashMap<String, ConcurrentMap<String, CounterDescriptor>>();
+  // Descriptors by id, replaced when full. Written under the class lock
+  private static volatile CounterDescriptor[] byId = new CounterDescriptor[256];
+  private static int count;
+  private static int maxDescriptors = DEFAULT_MAX_DESCRIPTORS;
+
+  private final int id;
+  private final String groupName;
+  private final String groupDisplayName;
+  private final String name;
+  private final String displayName;
+
+  private CounterDescriptor(int id, String groupName, String groupDisplayName, String name,
+      String displayName) {
+    this.id = id;
+    this.groupName = groupName;
+    this.groupDisplayName = groupDisplayName;
+    this.name = name;
+    this.displayName = displayName;
+  }
+
+  /**
+   * @return the descriptor of a counter of a group, created the first time. The display names
+   *         are the ones of the counter seen first. Null if the counter is new and there are
+   *         too many descriptors already.
+   */
+  public static CounterDescriptor get(CounterGroupBase<?> group, TezCounter counter) {
+    ConcurrentMap<String, CounterDescriptor> groupDescriptors = DESCRIPTORS.get(group.getName());
+    if (groupDescriptors != null) {
+      CounterDescriptor descriptor = groupDescriptors.get(counter.getName());
+      if (descriptor != null) {
+        return descriptor;
+      }
+    }
+    return create(group, counter);
+  }
+
+  private static synchronized CounterDescriptor create(CounterGroupBase<?> group,
+      TezCounter counter) {
+    ConcurrentMap<String, CounterDescriptor> groupDescriptors = DESCRIPTORS.get(group.getName());
+    CounterDescriptor descriptor =
+        groupDescriptors == null ? null : groupDescriptors.get(counter.getName());
+    if (descriptor == null) {
+      if (count >= maxDescriptors) {
+        return null;
+      }
+      if (groupDescriptors == null) {
+        groupDescriptors = new ConcurrentHashMap<String, CounterDescriptor>();
+        DESCRIPTORS.put(group.getName(), groupDescriptors);
+      }
+      descriptor = new CounterDescriptor(count, group.getName(), group.getDisplayName(),
+          counter.getName(), counter.getDisplayName());
+      CounterDescriptor[] current = byId;
+      if (count == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[count++] = descriptor;
+      byId = current;
+      // Published last: whoever finds the descriptor can look its id up
+      groupDescriptors.put(counter.getName(), descriptor);
+    }
+    return descriptor;
+  }
+
+  static CounterDescriptor get(int id) {
+    return byId[id];
+  }
+
+  @VisibleForTesting
+  static synchronized int getCount() {
+    return count;
+  }
+
+  @VisibleForTesting
+  static synchronized void setMaxDescriptors(int max) {
+    maxDescriptors = max;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getGroupName() {
+    return groupName;
+  }
+
+  public String getGroupDisplayName() {
+    return groupDisplayName;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  @Override
+  public String toString() {
+    return groupName + ":" + name;
+  }
+}
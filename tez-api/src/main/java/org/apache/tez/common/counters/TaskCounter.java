@@ -218,5 +218,61 @@ public enum TaskCounter {
    *
    * Represented in milliseconds
    */
-  LAST_EVENT_RECEIVED
+  LAST_EVENT_RECEIVED,
+
+  /**
+   * Wall time spent by all the fetchers of the adaptive fetcher pool. SHUFFLE_BYTES over this
+   * value gives the average throughput of a single fetcher.
+   *
+   * Represented in milliseconds
+   */
+  SHUFFLE_FETCH_TIME,
+
+  /**
+   * Highest number of concurrent fetchers run by the adaptive fetcher pool.
+   */
+  SHUFFLE_PEAK_FETCHERS,
+
+  /**
+   * Number of times the adaptive fetcher pool changed its number of concurrent fetchers.
+   */
+  SHUFFLE_FETCHER_POOL_RESIZES,
+
+  /**
+   * Number of source hosts which the adaptive fetcher pool throttled for being slow.
+   */
+  SHUFFLE_SLOW_HOSTS,
+
+  /**
+   * Highest number of bytes held by the shuffle memory pool, in slabs and in allocations made
+   * outside of them.
+   */
+  SHUFFLE_MEMORY_POOL_PEAK_CAPACITY,
+
+  /**
+   * Highest number of bytes of the shuffle memory pool in use by fetched inputs at once.
+   */
+  SHUFFLE_MEMORY_POOL_PEAK_USED,
+
+  /**
+   * Number of fetched inputs which were too large for the slabs of the shuffle memory pool, and
+   * were allocated on their own.
+   */
+  SHUFFLE_MEMORY_POOL_UNPOOLED_ALLOCATIONS,
+
+  /**
+   * Number of lookups of the task in the object registry which found an object.
+   */
+  OBJECT_REGISTRY_HITS,
+
+  /**
+   * Number of lookups of the task in the object registry which found no object.
+   */
+  OBJECT_REGISTRY_MISSES,
+
+  /**
+   * Number of weighted objects the task found evicted from the object registry, or evicted to
+   * make room for its own objects.
+   */
+  OBJECT_REGISTRY_EVICTIONS
 }
\ No newline at end of file
@@ -191,6 +191,16 @@ public class TezConfiguration extends Configuration {
   @Private
   public static final int TEZ_AM_CONCURRENT_DISPATCHER_CONCURRENCY_DEFAULT = 10;
 
+  /**
+   * Boolean value. Track the number of events and the time spent processing them by event type,
+   * and the peak queue depth of every dispatcher of the AM. These are published as DAG counters.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_AM_DISPATCHER_METRICS_ENABLED = TEZ_AM_PREFIX
+      + "dispatcher.metrics.enabled";
+  public static final boolean TEZ_AM_DISPATCHER_METRICS_ENABLED_DEFAULT = false;
+
   /**
    * Boolean value. Execution mode for the Tez application. True implies session mode. If the client
    * code is written according to best practices then the same code can execute in either mode based
@@ -526,6 +536,43 @@ public class TezConfiguration extends Configuration {
   public static final String TEZ_AM_LEGACY_SPECULATIVE_SLOWTASK_THRESHOLD =
                                      TEZ_AM_PREFIX + "legacy.speculative.slowtask.threshold";
 
+  /**
+   * String value. The class estimating the runtime of the tasks of a vertex, to find the ones
+   * worth speculating. Must implement
+   * org.apache.tez.dag.app.dag.speculation.legacy.TaskRuntimeEstimator and have a public
+   * constructor without arguments. Expert level setting.
+   */
+  @Unstable
+  @ConfigurationScope(Scope.VERTEX)
+  @ConfigurationProperty
+  public static final String TEZ_AM_SPECULATION_ESTIMATOR_CLASS =
+      TEZ_AM_PREFIX + "speculation.estimator.class";
+  public static final String TEZ_AM_SPECULATION_ESTIMATOR_CLASS_DEFAULT =
+      "org.apache.tez.dag.app.dag.speculation.legacy.LegacyTaskRuntimeEstimator";
+
+  /**
+   * Float value. With the QuantileTaskRuntimeEstimator, the quantile of the runtimes of the
+   * completed tasks, normalized by their input size, beyond which a task is considered slow.
+   */
+  @Unstable
+  @ConfigurationScope(Scope.VERTEX)
+  @ConfigurationProperty(type="float")
+  public static final String TEZ_AM_SPECULATION_QUANTILE =
+      TEZ_AM_PREFIX + "speculation.quantile";
+  public static final float TEZ_AM_SPECULATION_QUANTILE_DEFAULT = 0.9f;
+
+  /**
+   * Boolean value. Do not speculate more tasks of a vertex at once than there is room for in the
+   * resources available to its task scheduler, so that speculative attempts do not hold back the
+   * regular ones.
+   */
+  @Unstable
+  @ConfigurationScope(Scope.VERTEX)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_AM_SPECULATION_LIMIT_BY_HEADROOM =
+      TEZ_AM_PREFIX + "speculation.limit.by.headroom";
+  public static final boolean TEZ_AM_SPECULATION_LIMIT_BY_HEADROOM_DEFAULT = false;
+
   /**
    * Int value. Upper limit on the number of threads user to launch containers in the app
    * master. Expert level setting. 
@@ -730,6 +777,50 @@ public class TezConfiguration extends Configuration {
       + "get-task.sleep.interval-ms.max";
   public static final int TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX_DEFAULT = 200;
 
+  /**
+   * Float value. The fraction of the memory of a container set aside for objects cached in the
+   * {@link org.apache.tez.runtime.api.ObjectRegistry} with a weight. Tasks get the rest of the
+   * memory. Weighted objects are evicted to keep within this budget. 0 sets nothing aside, and
+   * leaves weighted objects unbounded like other objects.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="float")
+  public static final String TEZ_TASK_OBJECT_REGISTRY_MEMORY_FRACTION = TEZ_TASK_PREFIX
+      + "object-registry.memory.fraction";
+  public static final float TEZ_TASK_OBJECT_REGISTRY_MEMORY_FRACTION_DEFAULT = 0.0f;
+
+  /**
+   * Int value. The number of tasks a container runs at once. Each task gets its own share of the
+   * memory of the container, and heartbeats to the AM on its own. The AM assigns a task to a free
+   * slot of a running container on one of the requested hosts before it asks the scheduler for
+   * another container. A failed task still stops its container, and with it the tasks in the
+   * other slots. Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="integer")
+  public static final String TEZ_TASK_CONTAINER_SLOTS = TEZ_TASK_PREFIX + "container.slots";
+  public static final int TEZ_TASK_CONTAINER_SLOTS_DEFAULT = 1;
+
+  /**
+   * String value. The order in which weighted objects are evicted from the object registry.
+   * LRU evicts the least recently used object first, LFU the least frequently used one.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty
+  public static final String TEZ_TASK_OBJECT_REGISTRY_EVICTION_POLICY = TEZ_TASK_PREFIX
+      + "object-registry.eviction.policy";
+  public static final String TEZ_TASK_OBJECT_REGISTRY_EVICTION_POLICY_DEFAULT = "LRU";
+
+  /**
+   * Boolean value. Whether the object registry holds weighted objects through soft references,
+   * which lets the garbage collector release them under memory pressure.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_TASK_OBJECT_REGISTRY_SOFT_REFERENCES = TEZ_TASK_PREFIX
+      + "object-registry.soft-references";
+  public static final boolean TEZ_TASK_OBJECT_REGISTRY_SOFT_REFERENCES_DEFAULT = false;
+
   /**
    * Int value. The maximum heartbeat interval, in milliseconds, between the app master and tasks. 
    * Increasing this can help improve app master scalability for a large number of concurrent tasks.
@@ -753,6 +844,18 @@ public class TezConfiguration extends Configuration {
   public static final int TEZ_TASK_AM_HEARTBEAT_COUNTER_INTERVAL_MS_DEFAULT =
       4000;
 
+  /**
+   * Boolean value. Whether tasks send, in their heartbeats, only the counters which changed
+   * since the previous heartbeat and by how much, which the AM adds to the counters it has,
+   * instead of all the counters every time. The last update of a task still carries all of
+   * them. Improves AM scalability for tasks with many counters. Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS = TEZ_TASK_PREFIX
+      + "am.heartbeat.counter.deltas";
+  public static final boolean TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS_DEFAULT = false;
+
   /**
    * Int value. Maximum number of of events to fetch from the AM by the tasks in a single heartbeat.
    * Expert level setting. Expert level setting.
@@ -762,6 +865,18 @@ public class TezConfiguration extends Configuration {
   public static final String TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT = TEZ_TASK_PREFIX
       + "max-events-per-heartbeat";
   public static final int TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT = 500;
+
+  /**
+   * Boolean value. Whether tasks, and the AM in its responses, send the events of a heartbeat
+   * in a compact encoding, which writes the vertex names and the task attempts the events refer
+   * to once per heartbeat instead of once per event. Reduces the size of heartbeats and the
+   * CPU spent by the AM on them. Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING = TEZ_TASK_PREFIX
+      + "am.heartbeat.compact-encoding";
+  public static final boolean TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING_DEFAULT = false;
   
   /**
    * Int value. Maximum number of pending task events before a task will stop
@@ -1041,6 +1156,38 @@ public class TezConfiguration extends Configuration {
       TEZ_AM_PREFIX + "session.min.held-containers";
   public static final int TEZ_AM_SESSION_MIN_HELD_CONTAINERS_DEFAULT = 0;
 
+  /**
+   * Boolean value. Whether an idle session keeps a pool of warm containers for the next DAG,
+   * sized per resource profile from the demand of recent DAGs and how often DAGs arrive. Missing
+   * containers are requested ahead of the next DAG. Only active in session mode with container
+   * reuse enabled.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_AM_SESSION_WARM_POOL_ENABLED =
+      TEZ_AM_PREFIX + "session.warm-pool.enabled";
+  public static final boolean TEZ_AM_SESSION_WARM_POOL_ENABLED_DEFAULT = false;
+
+  /**
+   * Long value. The time, in milliseconds, within which the next DAG is expected to arrive for
+   * the warm pool to be sized for it. The longer DAGs take to arrive relative to this, the
+   * smaller the pool.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="long")
+  public static final String TEZ_AM_SESSION_WARM_POOL_HORIZON_MILLIS =
+      TEZ_AM_PREFIX + "session.warm-pool.horizon.millis";
+  public static final long TEZ_AM_SESSION_WARM_POOL_HORIZON_MILLIS_DEFAULT = 60000l;
+
+  /**
+   * Int value. The maximum number of warm containers held for any one resource profile.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="integer")
+  public static final String TEZ_AM_SESSION_WARM_POOL_MAX_CONTAINERS =
+      TEZ_AM_PREFIX + "session.warm-pool.max-containers";
+  public static final int TEZ_AM_SESSION_WARM_POOL_MAX_CONTAINERS_DEFAULT = 100;
+
   /**
    * Boolean value. Allow/disable logging for all dags in a session   
    */
@@ -1503,6 +1650,57 @@ public class TezConfiguration extends Configuration {
       TEZ_PREFIX + "dag.recovery.flush.interval.secs";
   public static final int DAG_RECOVERY_FLUSH_INTERVAL_SECS_DEFAULT = 30;
 
+  /**
+   * Boolean value. Write recovery events in batches, each batch flushed to the recovery log at
+   * once, instead of flushing based on {@link #DAG_RECOVERY_MAX_UNFLUSHED_EVENTS} and
+   * {@link #DAG_RECOVERY_FLUSH_INTERVAL_SECS}. A batch has all the events queued while the
+   * previous one was written, up to {@link #DAG_RECOVERY_MAX_UNFLUSHED_EVENTS} if positive.
+   * Events which have to be recovered immediately wait for their batch to be flushed.
+   * Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String DAG_RECOVERY_GROUP_COMMIT_ENABLED =
+      TEZ_PREFIX + "dag.recovery.group.commit.enabled";
+  public static final boolean DAG_RECOVERY_GROUP_COMMIT_ENABLED_DEFAULT = false;
+
+  /**
+   * Boolean value. Whether the app master writes checkpoints of the recovery events of the
+   * running DAG, every {@link #DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS} and when it stops. A
+   * checkpoint keeps only the events recovery makes use of, those recovered from the previous
+   * app masters included, so that the app masters after it read the checkpoint and the rest of
+   * the recovery log, instead of the recovery logs of all the previous app masters.
+   * Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String DAG_RECOVERY_CHECKPOINT_ENABLED =
+      TEZ_PREFIX + "dag.recovery.checkpoint.enabled";
+  public static final boolean DAG_RECOVERY_CHECKPOINT_ENABLED_DEFAULT = false;
+
+  /**
+   * Int value. Interval, in seconds, between recovery checkpoints of the running DAG, when
+   * {@link #DAG_RECOVERY_CHECKPOINT_ENABLED} is set. A checkpoint is written only if the DAG
+   * logged recovery events since the previous one.
+   * Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="integer")
+  public static final String DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS =
+      TEZ_PREFIX + "dag.recovery.checkpoint.interval.secs";
+  public static final int DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS_DEFAULT = 300;
+
+  /**
+   * Int value. Number of threads decoding the recovery events of a DAG when an app master
+   * recovers it. 1 decodes them in the thread reading the recovery logs.
+   * Expert level setting.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="integer")
+  public static final String DAG_RECOVERY_PARSE_THREADS =
+      TEZ_PREFIX + "dag.recovery.parse.threads";
+  public static final int DAG_RECOVERY_PARSE_THREADS_DEFAULT = 1;
+
   /**
    *  Boolean value. Enable local mode execution in Tez. Enables tasks to run in the same process as
    *  the app master. Primarily used for debugging.
@@ -1540,6 +1738,37 @@ public class TezConfiguration extends Configuration {
 
   public static final int TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS_DEFAULT = 1;
 
+  /**
+   * Boolean value. In local mode, keep the shuffle output of unordered edges in memory and hand
+   * it to the consuming tasks in the same process, instead of going through local disk. Outputs
+   * which do not fit in the limits below are written to disk as usual.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="boolean")
+  public static final String TEZ_LOCAL_MODE_SHUFFLE_BUFFER_ENABLED =
+      TEZ_PREFIX + "local.mode.shuffle-buffer.enabled";
+  public static final boolean TEZ_LOCAL_MODE_SHUFFLE_BUFFER_ENABLED_DEFAULT = false;
+
+  /**
+   * Long value. The total size of shuffle output kept in memory in local mode. Output of a DAG
+   * is released when the DAG completes.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="long")
+  public static final String TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_BYTES =
+      TEZ_PREFIX + "local.mode.shuffle-buffer.max-bytes";
+  public static final long TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_BYTES_DEFAULT = 256 * 1024 * 1024l;
+
+  /**
+   * Long value. The largest shuffle output of a single task output kept in memory in local mode.
+   */
+  @ConfigurationScope(Scope.AM)
+  @ConfigurationProperty(type="long")
+  public static final String TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_OUTPUT_BYTES =
+      TEZ_PREFIX + "local.mode.shuffle-buffer.max-output-bytes";
+  public static final long TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_OUTPUT_BYTES_DEFAULT =
+      32 * 1024 * 1024l;
+
   // ACLs related configuration
   // Format supports a comma-separated list of users and groups with the users and groups separated
   // by whitespace. e.g. "user1,user2 group1,group2"
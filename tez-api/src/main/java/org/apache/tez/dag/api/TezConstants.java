@@ -80,6 +80,7 @@ public class TezConstants {
   public static final String DAG_RECOVERY_DATA_DIR_NAME = "recovery";
   public static final String DAG_RECOVERY_SUMMARY_FILE_SUFFIX = "summary";
   public static final String DAG_RECOVERY_RECOVER_FILE_SUFFIX = ".recovery";
+  public static final String DAG_RECOVERY_CHECKPOINT_FILE_SUFFIX = ".checkpoint";
 
 
   // Configuration keys used internally and not set by the users
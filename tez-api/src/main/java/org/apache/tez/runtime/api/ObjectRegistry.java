@@ -29,7 +29,9 @@ import org.apache.hadoop.classification.InterfaceStability.Evolving;
  * an object to the cache with Vertex life-cycle then that object is in the
  * cache while the Vertex (to which the task belongs) is running. DAG life-cycle
  * is while the DAG (to which that task belongs) is running. Session life-cycle
- * is while the session (to which that task belongs) is running. <br>
+ * is while the session (to which that task belongs) is running. Objects cached
+ * with a weight may be evicted earlier, to bound the memory of the registry.
+ * <br>
  * This interface is not supposed to be implemented by users.
  */
 @Public
@@ -87,6 +89,55 @@ public interface ObjectRegistry {
    */  
   public Object cacheForSession(String key, Object value);
 
+  /**
+   * Insert or update object into the registry with Vertex life-cycle, along
+   * with its weight, typically its approximate size in bytes. Weighted objects
+   * count against the memory set aside for the registry in the container, and
+   * may be evicted before the end of their life-cycle to stay within it. A
+   * caller should therefore be prepared to re-create the object when
+   * {@link #get(String)} returns null.
+   *
+   * @param key
+   *          Key to identify the Object
+   * @param value
+   *          Object to be inserted
+   * @param weight
+   *          Weight of the Object, must be positive
+   * @return Previous Object associated with the key attached if present else
+   *         null.
+   */
+  public Object cacheForVertex(String key, Object value, long weight);
+
+  /**
+   * Insert or update object into the registry with DAG life-cycle, along with
+   * its weight. See {@link #cacheForVertex(String, Object, long)}.
+   *
+   * @param key
+   *          Key to identify the Object
+   * @param value
+   *          Object to be inserted
+   * @param weight
+   *          Weight of the Object, must be positive
+   * @return Previous Object associated with the key attached if present else
+   *         null.
+   */
+  public Object cacheForDAG(String key, Object value, long weight);
+
+  /**
+   * Insert or update object into the registry with Session life-cycle, along
+   * with its weight. See {@link #cacheForVertex(String, Object, long)}.
+   *
+   * @param key
+   *          Key to identify the Object
+   * @param value
+   *          Object to be inserted
+   * @param weight
+   *          Weight of the Object, must be positive
+   * @return Previous Object associated with the key attached if present else
+   *         null.
+   */
+  public Object cacheForSession(String key, Object value, long weight);
+
   /**
    * Return the object associated with the provided key
    * @param key Key to find object
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.common.counters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestCompactCounters {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestCompactCounters.class);
+
+  @Test(timeout = 5000)
+  public void testRoundTrip() {
+    TezCounters counters = createCounters(1);
+    CompactCounters compact = CompactCounters.create(counters);
+    assertEquals(counters.countCounters(), compact.size());
+    TezCounters actual = compact.toTezCounters();
+    assertEquals(counters, actual);
+    assertEquals("Group display", actual.getGroup("generic").getDisplayName());
+    assertEquals("Counter display",
+        actual.getGroup("generic").findCounter("records").getDisplayName());
+    // Counters without a value are kept
+    assertNotNull(actual.getGroup("generic").findCounter("zero", false));
+
+    assertEquals(0, CompactCounters.create(new TezCounters()).size());
+    assertEquals(new TezCounters(), CompactCounters.EMPTY.toTezCounters());
+  }
+
+  @Test(timeout = 5000)
+  public void testDescriptorsAreInterned() {
+    TezCounters counters = createCounters(1);
+    CounterGroup group = counters.getGroup("generic");
+    CounterDescriptor descriptor = CounterDescriptor.get(group, group.findCounter("records"));
+    TezCounters other = createCounters(2);
+    CounterGroup otherGroup = other.getGroup("generic");
+    assertSame(descriptor, CounterDescriptor.get(otherGroup, otherGroup.findCounter("records")));
+    assertSame(descriptor, CounterDescriptor.get(descriptor.getId()));
+  }
+
+  @Test(timeout = 5000)
+  public void testAggregation() {
+    CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+    TezCounters expected = new TezCounters();
+    for (int i = 1; i <= 10; i++) {
+      TezCounters counters = createCounters(i);
+      if (i % 2 == 0) {
+        // Counters only some of them have
+        counters.findCounter("other", "c" + i).setValue(i);
+        aggregator.add(counters);
+      } else {
+        aggregator.add(CompactCounters.create(counters));
+      }
+      expected.incrAllCounters(counters);
+    }
+    assertEquals(expected, aggregator.toTezCounters());
+    assertEquals(expected, aggregator.toCompactCounters().toTezCounters());
+    assertEquals(new TezCounters(), new CompactCounters.Aggregator().toTezCounters());
+  }
+
+  @Test(timeout = 5000)
+  public void testSubtractAndMerge() {
+    CompactCounters first = CompactCounters.create(createCounters(1));
+    CompactCounters second = CompactCounters.create(createCounters(2));
+    CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+    aggregator.add(first);
+    aggregator.add(second);
+    aggregator.subtract(first);
+    assertEquals(createCounters(2), aggregator.toTezCounters());
+
+    CompactCounters.Aggregator merged = new CompactCounters.Aggregator();
+    merged.add(first);
+    merged.add(aggregator);
+    TezCounters expected = createCounters(1);
+    expected.incrAllCounters(createCounters(2));
+    assertEquals(expected, merged.toTezCounters());
+
+    merged.subtract(aggregator);
+    assertEquals(createCounters(1), merged.toTezCounters());
+  }
+
+  @Test(timeout = 5000)
+  public void testCountersWithoutDescriptor() {
+    TezCounters counters = createCounters(1);
+    // Descriptors for the common counters exist before the cap is reached
+    CompactCounters.create(counters);
+    CounterDescriptor.setMaxDescriptors(CounterDescriptor.getCount());
+    try {
+      counters.findCounter("capped", "c1").setValue(5);
+      int count = CounterDescriptor.getCount();
+      CompactCounters compact = CompactCounters.create(counters);
+      assertEquals(count, CounterDescriptor.getCount());
+      assertEquals(counters.countCounters(), compact.size());
+      assertEquals(counters, compact.toTezCounters());
+
+      CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+      aggregator.add(compact);
+      aggregator.add(counters);
+      TezCounters expected = createCounters(1);
+      expected.findCounter("capped", "c1").setValue(5);
+      expected.incrAllCounters(counters);
+      assertEquals(expected, aggregator.toTezCounters());
+      assertEquals(expected, aggregator.toCompactCounters().toTezCounters());
+
+      aggregator.subtract(compact);
+      assertEquals(counters, aggregator.toTezCounters());
+    } finally {
+      CounterDescriptor.setMaxDescriptors(CounterDescriptor.DEFAULT_MAX_DESCRIPTORS);
+    }
+  }
+
+  /**
+   * Compares the heap used by the counters of 100k task attempts, kept as {@link TezCounters}
+   * and as {@link CompactCounters}, and the time it takes to sum them up.
+   */
+  @Ignore
+  @Test
+  public void testMemoryUsage() {
+    int attempts = 100000;
+    long baseline = usedMemory();
+    List<TezCounters> tezCounters = new ArrayList<TezCounters>(attempts);
+    for (int i = 0; i < attempts; i++) {
+      tezCounters.add(createCounters(i));
+    }
+    long tezCountersMemory = usedMemory() - baseline;
+
+    baseline = usedMemory();
+    List<CompactCounters> compactCounters = new ArrayList<CompactCounters>(attempts);
+    for (TezCounters counters : tezCounters) {
+      compactCounters.add(CompactCounters.create(counters));
+    }
+    long compactCountersMemory = usedMemory() - baseline;
+
+    long start = System.nanoTime();
+    TezCounters sum = new TezCounters();
+    for (TezCounters counters : tezCounters) {
+      sum.incrAllCounters(counters);
+    }
+    long tezCountersNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+    for (CompactCounters counters : compactCounters) {
+      aggregator.add(counters);
+    }
+    TezCounters compactSum = aggregator.toTezCounters();
+    long compactCountersNanos = System.nanoTime() - start;
+    assertEquals(sum, compactSum);
+
+    LOG.info("Counters of " + attempts + " attempts, " + tezCounters.get(0).countCounters()
+        + " counters each. TezCounters: " + (tezCountersMemory >> 20) + " MB, summed up in "
+        + (tezCountersNanos / 1000000) + " ms. CompactCounters: "
+        + (compactCountersMemory >> 20) + " MB, summed up in "
+        + (compactCountersNanos / 1000000) + " ms");
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // Counters like the ones of a task: framework, file system and generic ones
+  private TezCounters createCounters(int seed) {
+    TezCounters counters = new TezCounters();
+    for (TaskCounter counter : TaskCounter.values()) {
+      counters.findCounter(counter).setValue(seed + counter.ordinal());
+    }
+    counters.findCounter("file", FileSystemCounter.BYTES_READ).setValue(seed * 100);
+    counters.findCounter("hdfs", FileSystemCounter.BYTES_WRITTEN).setValue(seed * 200);
+    CounterGroup group = counters.addGroup("generic", "Group display");
+    group.addCounter("records", "Counter display", seed);
+    group.addCounter("zero", "zero", 0);
+    return counters;
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.api.UserPayload;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.ExecutionContext;
+import org.apache.tez.runtime.api.MemoryUpdateCallback;
+import org.apache.tez.runtime.api.ObjectRegistry;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.api.OutputStatisticsReporter;
+import org.apache.tez.runtime.api.TaskFailureType;
+
+/**
+ * A minimal, allocation free {@link OutputContext} used to drive the runtime library
+ * writers outside of a running task. Mocks are deliberately avoided since they record
+ * every invocation (e.g. notifyProgress per record) and would distort the measurements.
+ */
+public class BenchmarkOutputContext implements OutputContext {
+
+  private static final ApplicationId APP_ID = ApplicationId.newInstance(10000, 1);
+  private static final int SHUFFLE_PORT = 13562;
+
+  private final TezCounters counters = new TezCounters();
+  private final String uniqueIdentifier;
+  private final String[] workDirs;
+  private final long totalMemory;
+  private int numEventsSent = 0;
+
+  private final ExecutionContext executionContext = new ExecutionContext() {
+    @Override
+    public String getHostName() {
+      return "localhost";
+    }
+  };
+
+  private final OutputStatisticsReporter statisticsReporter = new OutputStatisticsReporter() {
+    @Override
+    public void reportDataSize(long size) {
+    }
+
+    @Override
+    public void reportItemsProcessed(long items) {
+    }
+  };
+
+  public BenchmarkOutputContext(String uniqueIdentifier, String[] workDirs, long totalMemory) {
+    this.uniqueIdentifier = uniqueIdentifier;
+    this.workDirs = workDirs;
+    this.totalMemory = totalMemory;
+  }
+
+  public int getNumEventsSent() {
+    return numEventsSent;
+  }
+
+  @Override
+  public String getDestinationVertexName() {
+    return "destinationVertex";
+  }
+
+  @Override
+  public int getOutputIndex() {
+    return 0;
+  }
+
+  @Override
+  public OutputStatisticsReporter getStatisticsReporter() {
+    return statisticsReporter;
+  }
+
+  @Override
+  public ApplicationId getApplicationId() {
+    return APP_ID;
+  }
+
+  @Override
+  public int getDAGAttemptNumber() {
+    return 1;
+  }
+
+  @Override
+  public int getTaskIndex() {
+    return 0;
+  }
+
+  @Override
+  public int getTaskAttemptNumber() {
+    return 0;
+  }
+
+  @Override
+  public String getDAGName() {
+    return "benchmarkDag";
+  }
+
+  @Override
+  public String getTaskVertexName() {
+    return "sourceVertex";
+  }
+
+  @Override
+  public int getTaskVertexIndex() {
+    return 0;
+  }
+
+  @Override
+  public int getDagIdentifier() {
+    return 1;
+  }
+
+  @Override
+  public TezCounters getCounters() {
+    return counters;
+  }
+
+  @Override
+  public void sendEvents(List<Event> events) {
+    numEventsSent += events.size();
+  }
+
+  @Override
+  public UserPayload getUserPayload() {
+    return UserPayload.create(null);
+  }
+
+  @Override
+  public String[] getWorkDirs() {
+    return workDirs;
+  }
+
+  @Override
+  public String getUniqueIdentifier() {
+    return uniqueIdentifier;
+  }
+
+  @Override
+  public ObjectRegistry getObjectRegistry() {
+    return null;
+  }
+
+  @Override
+  public void notifyProgress() {
+  }
+
+  @Override
+  public void fatalError(@Nullable Throwable exception, @Nullable String message) {
+    throw new RuntimeException(message, exception);
+  }
+
+  @Override
+  public void reportFailure(TaskFailureType taskFailureType, @Nullable Throwable exception,
+      @Nullable String message) {
+    throw new RuntimeException(message, exception);
+  }
+
+  @Override
+  public void killSelf(@Nullable Throwable exception, @Nullable String message) {
+    throw new RuntimeException(message, exception);
+  }
+
+  @Override
+  public ByteBuffer getServiceConsumerMetaData(String serviceName) {
+    return null;
+  }
+
+  @Override
+  public ByteBuffer getServiceProviderMetaData(String serviceName) {
+    ByteBuffer port = ByteBuffer.allocate(4);
+    port.putInt(0, SHUFFLE_PORT);
+    return port;
+  }
+
+  @Override
+  public void requestInitialMemory(long size, MemoryUpdateCallback callbackHandler) {
+    callbackHandler.memoryAssigned(Math.min(size, totalMemory));
+  }
+
+  @Override
+  public long getTotalMemoryAvailableToTask() {
+    return totalMemory;
+  }
+
+  @Override
+  public int getVertexParallelism() {
+    return 1;
+  }
+
+  @Override
+  public ExecutionContext getExecutionContext() {
+    return executionContext;
+  }
+
+  @Override
+  public ExecutorService createTezFrameworkExecutorService(int parallelism,
+      String threadNameFormat) {
+    return Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(threadNameFormat).build());
+  }
+}
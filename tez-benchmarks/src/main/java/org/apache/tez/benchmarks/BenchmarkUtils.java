@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.comparator.TezBytesComparator;
+import org.apache.tez.runtime.library.common.serializer.TezBytesWritableSerialization;
+import org.apache.tez.runtime.library.partitioner.HashPartitioner;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public final class BenchmarkUtils {
+
+  /** Codec names accepted by the <code>codec</code> benchmark parameter. */
+  public static final String CODEC_NONE = "none";
+  public static final String CODEC_DEFAULT = "default";
+
+  private BenchmarkUtils() {
+  }
+
+  /**
+   * Configuration for BytesWritable keys and values, serialized and compared the way Hive
+   * does it (TezBytesWritableSerialization / TezBytesComparator).
+   */
+  public static Configuration createConf(File workDir, String codec) {
+    Configuration conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.setStrings(TezRuntimeFrameworkConfigs.LOCAL_DIRS, workDir.getAbsolutePath());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_COMPARATOR_CLASS,
+        TezBytesComparator.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PARTITIONER_CLASS,
+        HashPartitioner.class.getName());
+    conf.set(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY,
+        TezBytesWritableSerialization.class.getName() + ","
+            + conf.get(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY));
+    if (CODEC_NONE.equals(codec)) {
+      conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, false);
+    } else {
+      conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, true);
+      conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS_CODEC, getCodecClass(codec).getName());
+    }
+    return conf;
+  }
+
+  /**
+   * @return the codec for the <code>codec</code> benchmark parameter, or null for
+   * {@link #CODEC_NONE}
+   */
+  public static CompressionCodec getCodec(Configuration conf, String codec) {
+    if (CODEC_NONE.equals(codec)) {
+      return null;
+    }
+    return ReflectionUtils.newInstance(getCodecClass(codec), conf);
+  }
+
+  private static Class<? extends CompressionCodec> getCodecClass(String codec) {
+    if (CODEC_DEFAULT.equals(codec)) {
+      return DefaultCodec.class;
+    }
+    try {
+      return Class.forName(codec).asSubclass(CompressionCodec.class);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalArgumentException("Unknown codec " + codec, e);
+    }
+  }
+
+  public static File createWorkDir(String name) throws IOException {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+        "tez-benchmarks-" + name + "-" + System.nanoTime());
+    if (!dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    return dir;
+  }
+
+  public static void deleteQuietly(File dir) {
+    FileUtils.deleteQuietly(dir);
+  }
+}
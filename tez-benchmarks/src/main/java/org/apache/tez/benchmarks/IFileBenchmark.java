@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.benchmarks.KVDataGenerator.SizeDistribution;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and deserialization cost of {@link IFile.Writer} / {@link IFile.Reader},
+ * isolated from disk I/O by writing to and reading from memory. Keys are written in sorted
+ * order, so a high <code>keyRepeatRatio</code> exercises the RLE path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class IFileBenchmark {
+
+  static final int NUM_RECORDS = 200000;
+
+  @Param({"16", "256"})
+  public int keySize;
+
+  @Param({"100"})
+  public int valueSize;
+
+  @Param({"FIXED", "UNIFORM", "SKEWED"})
+  public SizeDistribution sizeDistribution;
+
+  @Param({"0.0", "0.9"})
+  public double keyRepeatRatio;
+
+  @Param({"true", "false"})
+  public boolean rle;
+
+  @Param({BenchmarkUtils.CODEC_NONE, BenchmarkUtils.CODEC_DEFAULT})
+  public String codec;
+
+  private BytesWritable[] keys;
+  private BytesWritable[] values;
+  private long dataBytes;
+  private Configuration conf;
+  private CompressionCodec compressionCodec;
+  private File workDir;
+
+  private final DataOutputBuffer writeBuffer = new DataOutputBuffer();
+  private byte[] serialized;
+
+  private final DataInputBuffer keyBuffer = new DataInputBuffer();
+  private final DataInputBuffer valueBuffer = new DataInputBuffer();
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    keys = KVDataGenerator.sorted(
+        KVDataGenerator.generateKeys(NUM_RECORDS, keySize, sizeDistribution, keyRepeatRatio));
+    values = KVDataGenerator.generateValues(NUM_RECORDS, valueSize, sizeDistribution);
+    dataBytes = KVDataGenerator.totalBytes(keys, values);
+    workDir = BenchmarkUtils.createWorkDir("ifile");
+    conf = BenchmarkUtils.createConf(workDir, codec);
+    compressionCodec = BenchmarkUtils.getCodec(conf, codec);
+
+    writeFile();
+    serialized = new byte[writeBuffer.getLength()];
+    System.arraycopy(writeBuffer.getData(), 0, serialized, 0, serialized.length);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkUtils.deleteQuietly(workDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_RECORDS)
+  public long write(ThroughputCounters counters) throws IOException {
+    long length = writeFile();
+    counters.add(dataBytes);
+    return length;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_RECORDS)
+  public long read(ThroughputCounters counters) throws IOException {
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(serialized),
+        serialized.length, compressionCodec, null, null, false, 0, 64 * 1024);
+    long checksum = 0;
+    while (reader.nextRawKey(keyBuffer)) {
+      reader.nextRawValue(valueBuffer);
+      checksum += keyBuffer.getLength() + valueBuffer.getLength();
+    }
+    reader.close();
+    counters.add(dataBytes);
+    return checksum;
+  }
+
+  private long writeFile() throws IOException {
+    writeBuffer.reset();
+    FSDataOutputStream out = new FSDataOutputStream(writeBuffer, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, BytesWritable.class,
+        BytesWritable.class, compressionCodec, null, null, rle);
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      writer.append(keys[i], values[i]);
+    }
+    writer.close();
+    return writer.getCompressedLength();
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Generates deterministic key/value data sets for the benchmarks. Sizes follow one of
+ * the {@link SizeDistribution}s and a configurable fraction of the records reuse an
+ * already generated key, which makes the data RLE friendly once sorted.
+ */
+public final class KVDataGenerator {
+
+  public enum SizeDistribution {
+    /** Every record has exactly the mean size. */
+    FIXED,
+    /** Sizes are uniformly distributed in [1, 2 * mean]. */
+    UNIFORM,
+    /** Most records are small, a few are up to 16x the mean (long tail). */
+    SKEWED
+  }
+
+  private static final long SEED = 0x5eed7e2L;
+
+  private KVDataGenerator() {
+  }
+
+  /**
+   * Generate <code>numRecords</code> keys.
+   *
+   * @param numRecords  number of keys
+   * @param meanSize    mean key size in bytes
+   * @param distribution size distribution
+   * @param repeatRatio fraction of keys which repeat a previously generated key, in [0, 1)
+   * @return the generated keys, in random order
+   */
+  public static BytesWritable[] generateKeys(int numRecords, int meanSize,
+      SizeDistribution distribution, double repeatRatio) {
+    Preconditions.checkArgument(repeatRatio >= 0 && repeatRatio < 1,
+        "repeatRatio should be in [0, 1)");
+    Random random = new Random(SEED);
+    int numDistinct = Math.max(1, (int) (numRecords * (1 - repeatRatio)));
+    BytesWritable[] distinct = generate(random, numDistinct, meanSize, distribution);
+    BytesWritable[] keys = new BytesWritable[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      keys[i] = (i < numDistinct) ? distinct[i] : distinct[random.nextInt(numDistinct)];
+    }
+    return keys;
+  }
+
+  /**
+   * Generate <code>numRecords</code> values.
+   */
+  public static BytesWritable[] generateValues(int numRecords, int meanSize,
+      SizeDistribution distribution) {
+    return generate(new Random(SEED + 1), numRecords, meanSize, distribution);
+  }
+
+  /**
+   * Sort keys in place, grouping identical keys together as a sorter would.
+   */
+  public static BytesWritable[] sorted(BytesWritable[] keys) {
+    BytesWritable[] copy = Arrays.copyOf(keys, keys.length);
+    Arrays.sort(copy);
+    return copy;
+  }
+
+  /**
+   * @return total serialized payload of the given records (excluding framing)
+   */
+  public static long totalBytes(BytesWritable[] keys, BytesWritable[] values) {
+    long total = 0;
+    for (int i = 0; i < keys.length; i++) {
+      total += keys[i].getLength() + values[i].getLength();
+    }
+    return total;
+  }
+
+  private static BytesWritable[] generate(Random random, int count, int meanSize,
+      SizeDistribution distribution) {
+    BytesWritable[] data = new BytesWritable[count];
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[nextSize(random, meanSize, distribution)];
+      random.nextBytes(bytes);
+      data[i] = new BytesWritable(bytes);
+    }
+    return data;
+  }
+
+  private static int nextSize(Random random, int meanSize, SizeDistribution distribution) {
+    switch (distribution) {
+    case FIXED:
+      return meanSize;
+    case UNIFORM:
+      return 1 + random.nextInt(2 * meanSize);
+    case SKEWED:
+      // Exponential distribution with the given mean, capped to avoid pathological records
+      double size = -Math.log(1 - random.nextDouble()) * meanSize;
+      return (int) Math.max(1, Math.min(size, 16L * meanSize));
+    default:
+      throw new IllegalArgumentException("Unknown distribution " + distribution);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import com.google.common.base.Charsets;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.server.api.ApplicationInitializationContext;
+import org.apache.tez.auxservices.ShuffleHandler;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving cost of the {@link ShuffleHandler} aux service against a local stand-in fetcher
+ * over loopback. Map outputs are laid out in an NM local dir the way the runtime writes them.
+ * <ul>
+ *   <li><code>connection</code> opens a new connection per map output, its score is
+ *   connections/s.</li>
+ *   <li><code>keepAlive</code> fetches all map outputs in one request on a kept-alive
+ *   connection, its score is map outputs/s and the bytes counter gives the transfer rate.</li>
+ * </ul>
+ * Run with <code>-t</code> to put several concurrent fetchers on the handler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class ShuffleHandlerBenchmark {
+
+  static final int NUM_MAPS = 32;
+  static final int NUM_PARTITIONS = 4;
+
+  private static final String USER = "benchmark";
+  private static final String JOB_ID = "job_12345_0001";
+  private static final byte[] TOKEN_PASSWORD = "password".getBytes(Charsets.UTF_8);
+
+  /** Bytes per partition, every request fetches all partitions of a map output. */
+  @Param({"4096", "1048576"})
+  public int partitionSize;
+
+  private File workDir;
+  private ShuffleHandler shuffleHandler;
+  private String baseUrl;
+  private SecretKey jobTokenSecret;
+  private String[] mapIds;
+  private long mapOutputBytes;
+
+  @State(Scope.Thread)
+  public static class Fetcher {
+    final byte[] buffer = new byte[64 * 1024];
+    int nextMap;
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    workDir = BenchmarkUtils.createWorkDir("shuffle-handler");
+    ApplicationId appId = ApplicationId.newInstance(12345, 1);
+    mapIds = new String[NUM_MAPS];
+    Random random = new Random(NUM_MAPS);
+    for (int i = 0; i < NUM_MAPS; i++) {
+      mapIds[i] = "attempt_12345_1_m_" + i + "_0";
+      mapOutputBytes = writeMapOutput(new File(workDir, "usercache/" + USER + "/appcache/"
+          + appId + "/dag_1/output/" + mapIds[i]), random);
+    }
+
+    Configuration conf = new Configuration();
+    conf.set(YarnConfiguration.NM_LOCAL_DIRS, workDir.getAbsolutePath());
+    conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+    shuffleHandler = new ShuffleHandler();
+    shuffleHandler.init(conf);
+    shuffleHandler.start();
+
+    DataOutputBuffer tokenBuffer = new DataOutputBuffer();
+    new Token<JobTokenIdentifier>("identifier".getBytes(Charsets.UTF_8), TOKEN_PASSWORD,
+        new Text(USER), new Text("shuffleService")).write(tokenBuffer);
+    shuffleHandler.initializeApplication(new ApplicationInitializationContext(USER, appId,
+        ByteBuffer.wrap(tokenBuffer.getData(), 0, tokenBuffer.getLength())));
+    jobTokenSecret = JobTokenSecretManager.createSecretKey(TOKEN_PASSWORD);
+    baseUrl = "http://127.0.0.1:"
+        + shuffleHandler.getConfig().get(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY)
+        + "/mapOutput?job=" + JOB_ID + "&dag=1&reduce=0-" + (NUM_PARTITIONS - 1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (shuffleHandler != null) {
+      shuffleHandler.stop();
+    }
+    BenchmarkUtils.deleteQuietly(workDir);
+  }
+
+  @Benchmark
+  public long connection(Fetcher fetcher, ThroughputCounters counters) throws IOException {
+    String mapId = mapIds[fetcher.nextMap++ % NUM_MAPS];
+    long read = fetch(baseUrl + "&map=" + mapId, fetcher.buffer, mapOutputBytes);
+    counters.add(read);
+    return read;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_MAPS)
+  public long keepAlive(Fetcher fetcher, ThroughputCounters counters) throws IOException {
+    StringBuilder url = new StringBuilder(baseUrl).append("&keepAlive=true&map=");
+    for (int i = 0; i < NUM_MAPS; i++) {
+      url.append(i == 0 ? "" : ",").append(mapIds[i]);
+    }
+    long read = fetch(url.toString(), fetcher.buffer, NUM_MAPS * mapOutputBytes);
+    counters.add(read);
+    return read;
+  }
+
+  /**
+   * Does what the runtime Fetcher does on the wire: signs the URL with the job token,
+   * sends the shuffle version headers and drains the response.
+   */
+  private long fetch(String spec, byte[] buffer, long minBytes) throws IOException {
+    URL url = new URL(spec);
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    String msg = SecureShuffleUtils.buildMsgFrom(url);
+    conn.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+        SecureShuffleUtils.generateHash(msg.getBytes(Charsets.UTF_8), jobTokenSecret));
+    conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+        ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+        ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+    if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      throw new IOException("Fetch of " + spec + " failed with " + conn.getResponseCode());
+    }
+    long read = 0;
+    InputStream in = conn.getInputStream();
+    try {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        read += n;
+      }
+    } finally {
+      // Returns a kept-alive connection to the client's pool
+      in.close();
+    }
+    if (read < minBytes) {
+      throw new IOException("Short read of " + read + " bytes from " + spec);
+    }
+    return read;
+  }
+
+  private long writeMapOutput(File attemptDir, Random random) throws IOException {
+    if (!attemptDir.mkdirs()) {
+      throw new IOException("Unable to create " + attemptDir);
+    }
+    TezSpillRecord spillRecord = new TezSpillRecord(NUM_PARTITIONS);
+    byte[] data = new byte[partitionSize];
+    FileOutputStream out = new FileOutputStream(new File(attemptDir, "file.out"));
+    try {
+      for (int i = 0; i < NUM_PARTITIONS; i++) {
+        random.nextBytes(data);
+        out.write(data);
+        spillRecord.putIndex(new TezIndexRecord((long) i * partitionSize, partitionSize,
+            partitionSize), i);
+      }
+    } finally {
+      out.close();
+    }
+    spillRecord.writeToFile(new Path(new File(attemptDir, "file.out.index").getAbsolutePath()),
+        new Configuration());
+    return (long) NUM_PARTITIONS * partitionSize;
+  }
+}
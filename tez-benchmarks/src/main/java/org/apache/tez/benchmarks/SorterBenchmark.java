@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.tez.benchmarks.KVDataGenerator.SizeDistribution;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
+import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
+import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end sort + spill + final merge of a map output through {@link PipelinedSorter}
+ * and {@link DefaultSorter}. One operation is one record; run with <code>-prof gc</code>
+ * to get the allocation rate per record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class SorterBenchmark {
+
+  static final int NUM_RECORDS = 500000;
+
+  @Param({"PIPELINED", "LEGACY"})
+  public SorterImpl sorter;
+
+  @Param({"1", "50", "500"})
+  public int numPartitions;
+
+  @Param({"16"})
+  public int keySize;
+
+  @Param({"100"})
+  public int valueSize;
+
+  @Param({"FIXED", "SKEWED"})
+  public SizeDistribution sizeDistribution;
+
+  @Param({"0.0", "0.9"})
+  public double keyRepeatRatio;
+
+  @Param({BenchmarkUtils.CODEC_NONE, BenchmarkUtils.CODEC_DEFAULT})
+  public String codec;
+
+  /** Sort buffer, small enough relative to the data set to force multiple spills. */
+  @Param({"32"})
+  public int sortMb;
+
+  /** Normalized key prefixes in the PipelinedSorter metadata, ignored by the legacy sorter. */
+  @Param({"false", "true"})
+  public boolean normalizedKeys;
+
+  private BytesWritable[] keys;
+  private BytesWritable[] values;
+  private long dataBytes;
+  private File workDir;
+  private Configuration conf;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    keys = KVDataGenerator.generateKeys(NUM_RECORDS, keySize, sizeDistribution, keyRepeatRatio);
+    values = KVDataGenerator.generateValues(NUM_RECORDS, valueSize, sizeDistribution);
+    dataBytes = KVDataGenerator.totalBytes(keys, values);
+    workDir = BenchmarkUtils.createWorkDir("sorter");
+    conf = BenchmarkUtils.createConf(workDir, codec);
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_SORTER_CLASS, sorter.name());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, sortMb);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB,
+        Math.min(sortMb, TezRuntimeConfiguration
+            .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB_DEFAULT));
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT, true);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED,
+        normalizedKeys);
+  }
+
+  @TearDown(Level.Invocation)
+  public void cleanupOutput() throws IOException {
+    // Output files of a single invocation are only of interest to the sorter itself
+    BenchmarkUtils.deleteQuietly(workDir);
+    if (!workDir.mkdirs()) {
+      throw new IOException("Unable to create " + workDir);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    BenchmarkUtils.deleteQuietly(workDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_RECORDS)
+  public long sortAndMerge(ThroughputCounters counters) throws IOException {
+    long memory = (long) sortMb << 20;
+    BenchmarkOutputContext outputContext = new BenchmarkOutputContext(
+        UUID.randomUUID().toString(), new String[] {workDir.getAbsolutePath()}, memory);
+    ExternalSorter externalSorter = (sorter == SorterImpl.PIPELINED)
+        ? new PipelinedSorter(outputContext, conf, numPartitions, memory)
+        : new DefaultSorter(outputContext, conf, numPartitions, memory);
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      externalSorter.write(keys[i], values[i]);
+    }
+    externalSorter.flush();
+    externalSorter.close();
+    counters.add(dataBytes);
+    return externalSorter.getNumSpills();
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.Progressable;
+import org.apache.tez.benchmarks.KVDataGenerator.SizeDistribution;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.DiskSegment;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * k-way merge of sorted IFile segments through {@link TezMerger}, either from memory
+ * (as in the shuffle in-memory merge) or from local disk (as in the final merge of spills).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class TezMergerBenchmark {
+
+  static final int NUM_RECORDS = 500000;
+
+  public enum SegmentSource {
+    MEMORY, DISK
+  }
+
+  @Param({"10", "100"})
+  public int numSegments;
+
+  @Param({"100"})
+  public int mergeFactor;
+
+  @Param({"16"})
+  public int keySize;
+
+  @Param({"100"})
+  public int valueSize;
+
+  @Param({"FIXED", "SKEWED"})
+  public SizeDistribution sizeDistribution;
+
+  @Param({"0.0", "0.9"})
+  public double keyRepeatRatio;
+
+  @Param({BenchmarkUtils.CODEC_NONE, BenchmarkUtils.CODEC_DEFAULT})
+  public String codec;
+
+  @Param({"MEMORY", "DISK"})
+  public SegmentSource segmentSource;
+
+  private long dataBytes;
+  private Configuration conf;
+  private CompressionCodec compressionCodec;
+  private FileSystem localFs;
+  private File workDir;
+  private byte[][] segmentData;
+  private Path[] segmentFiles;
+  private RawComparator comparator;
+
+  private final TezCounters counters = new TezCounters();
+  private final TezCounter readsCounter = counters.findCounter("merge", "reads");
+  private final TezCounter writesCounter = counters.findCounter("merge", "writes");
+  private final TezCounter bytesReadCounter = counters.findCounter("merge", "bytesRead");
+
+  private final Progressable progressable = new Progressable() {
+    @Override
+    public void progress() {
+    }
+  };
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    workDir = BenchmarkUtils.createWorkDir("merger");
+    conf = BenchmarkUtils.createConf(workDir, codec);
+    compressionCodec = BenchmarkUtils.getCodec(conf, codec);
+    comparator = ConfigUtils.getIntermediateOutputKeyComparator(conf);
+    localFs = FileSystem.getLocal(conf).getRaw();
+
+    BytesWritable[] keys =
+        KVDataGenerator.generateKeys(NUM_RECORDS, keySize, sizeDistribution, keyRepeatRatio);
+    BytesWritable[] values = KVDataGenerator.generateValues(NUM_RECORDS, valueSize,
+        sizeDistribution);
+    dataBytes = KVDataGenerator.totalBytes(keys, values);
+
+    // Spread records round robin over the segments and sort each segment
+    int perSegment = (NUM_RECORDS + numSegments - 1) / numSegments;
+    segmentData = new byte[numSegments][];
+    segmentFiles = new Path[numSegments];
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    for (int s = 0; s < numSegments; s++) {
+      int from = s * perSegment;
+      int to = Math.min(NUM_RECORDS, from + perSegment);
+      BytesWritable[] segmentKeys = KVDataGenerator.sorted(Arrays.copyOfRange(keys, from, to));
+      buffer.reset();
+      FSDataOutputStream out = new FSDataOutputStream(buffer, null);
+      IFile.Writer writer = new IFile.Writer(conf, out, BytesWritable.class,
+          BytesWritable.class, compressionCodec, null, null, true);
+      for (int i = 0; i < segmentKeys.length; i++) {
+        writer.append(segmentKeys[i], values[from + i]);
+      }
+      writer.close();
+      segmentData[s] = Arrays.copyOf(buffer.getData(), buffer.getLength());
+
+      segmentFiles[s] = new Path(workDir.getAbsolutePath(), "segment_" + s + ".out");
+      FSDataOutputStream fileOut = localFs.create(segmentFiles[s], true);
+      fileOut.write(segmentData[s]);
+      fileOut.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkUtils.deleteQuietly(workDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_RECORDS)
+  public long merge(ThroughputCounters throughput) throws IOException, InterruptedException {
+    List<Segment> segments = new ArrayList<Segment>(numSegments);
+    for (int s = 0; s < numSegments; s++) {
+      if (segmentSource == SegmentSource.MEMORY) {
+        IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(segmentData[s]),
+            segmentData[s].length, compressionCodec, null, null, false, 0, 64 * 1024);
+        segments.add(new Segment(reader, null));
+      } else {
+        segments.add(new DiskSegment(localFs, segmentFiles[s], compressionCodec, false, 0,
+            64 * 1024, true));
+      }
+    }
+    TezRawKeyValueIterator iterator = TezMerger.merge(conf, localFs, BytesWritable.class,
+        BytesWritable.class, compressionCodec, segments, mergeFactor,
+        new Path(workDir.getAbsolutePath(), "tmp"), comparator, progressable,
+        numSegments > mergeFactor, false, readsCounter, writesCounter, bytesReadCounter, null);
+    long checksum = 0;
+    while (iterator.next()) {
+      checksum += iterator.getKey().getLength() + iterator.getValue().getLength();
+    }
+    iterator.close();
+    throughput.add(dataBytes);
+    return checksum;
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.tez.benchmarks.KVDataGenerator.SizeDistribution;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.writers.UnorderedPartitionedKVWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Partitioning, buffering and spilling of an unordered output through
+ * {@link UnorderedPartitionedKVWriter}, including the final merge of spills.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class UnorderedPartitionedKVWriterBenchmark {
+
+  static final int NUM_RECORDS = 500000;
+
+  @Param({"1", "50", "500"})
+  public int numPartitions;
+
+  @Param({"16"})
+  public int keySize;
+
+  @Param({"100"})
+  public int valueSize;
+
+  @Param({"FIXED", "SKEWED"})
+  public SizeDistribution sizeDistribution;
+
+  @Param({BenchmarkUtils.CODEC_NONE, BenchmarkUtils.CODEC_DEFAULT})
+  public String codec;
+
+  @Param({"32"})
+  public int bufferMb;
+
+  private BytesWritable[] keys;
+  private BytesWritable[] values;
+  private long dataBytes;
+  private File workDir;
+  private Configuration conf;
+
+  @Setup(Level.Trial)
+  public void setupTrial() throws IOException {
+    keys = KVDataGenerator.generateKeys(NUM_RECORDS, keySize, sizeDistribution, 0);
+    values = KVDataGenerator.generateValues(NUM_RECORDS, valueSize, sizeDistribution);
+    dataBytes = KVDataGenerator.totalBytes(keys, values);
+    workDir = BenchmarkUtils.createWorkDir("unordered");
+    conf = BenchmarkUtils.createConf(workDir, codec);
+    // Several buffers, so that spills overlap with writes as they do in real tasks
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES,
+        Math.max(1, bufferMb / 4) << 20);
+  }
+
+  @TearDown(Level.Invocation)
+  public void cleanupOutput() throws IOException {
+    BenchmarkUtils.deleteQuietly(workDir);
+    if (!workDir.mkdirs()) {
+      throw new IOException("Unable to create " + workDir);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    BenchmarkUtils.deleteQuietly(workDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_RECORDS)
+  public int writeAndClose(ThroughputCounters counters)
+      throws IOException, InterruptedException {
+    BenchmarkOutputContext outputContext = new BenchmarkOutputContext(
+        UUID.randomUUID().toString(), new String[] {workDir.getAbsolutePath()},
+        (long) bufferMb << 20);
+    UnorderedPartitionedKVWriter writer = new UnorderedPartitionedKVWriter(outputContext, conf,
+        numPartitions, (long) bufferMb << 20);
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      writer.write(keys[i], values[i]);
+    }
+    int numEvents = writer.close().size();
+    counters.add(dataBytes);
+    return numEvents;
+  }
+}
@@ -75,6 +75,7 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
       Maps.newHashMap();
   
   private boolean exitOnDispatchException = false;
+  private DispatcherMetrics metrics;
 
   public AsyncDispatcher(String name) {
     this(name, new LinkedBlockingQueue<Event>());
@@ -177,7 +178,13 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
     try{
       EventHandler handler = eventHandlers.get(type);
       if(handler != null) {
-        handler.handle(event);
+        if (metrics != null) {
+          long startTime = System.nanoTime();
+          handler.handle(event);
+          metrics.eventProcessed(event.getType(), System.nanoTime() - startTime);
+        } else {
+          handler.handle(event);
+        }
       } else {
         throw new Exception("No handler for registered for " + type);
       }
@@ -226,6 +233,20 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
     exitOnDispatchException = true;
   }
 
+  /**
+   * Gather statistics of the events in <code>metrics</code>, for this dispatcher and the ones
+   * it creates. To be called before any events are dispatched.
+   */
+  public void setMetrics(DispatcherMetrics metrics) {
+    this.metrics = metrics;
+    for (AsyncDispatcher dispatcher : eventDispatchers.values()) {
+      dispatcher.setMetrics(metrics);
+    }
+    for (AsyncDispatcherConcurrent dispatcher : concurrentEventDispatchers.values()) {
+      dispatcher.setMetrics(metrics);
+    }
+  }
+
   /**
    * Add an EventHandler for events handled inline on this dispatcher
    */
@@ -265,6 +286,9 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
     LOG.info(
           "Registering " + eventType + " for independent dispatch using: " + handler.getClass());
     AsyncDispatcher dispatcher = new AsyncDispatcher(dispatcherName);
+    if (metrics != null) {
+      dispatcher.setMetrics(metrics);
+    }
     dispatcher.register(eventType, handler);
     eventDispatchers.put(eventType, dispatcher);
     addIfService(dispatcher);
@@ -282,6 +306,9 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
     if (exitOnDispatchException) {
       dispatcher.enableExitOnDispatchException();
     }
+    if (metrics != null) {
+      dispatcher.setMetrics(metrics);
+    }
     dispatcher.register(eventType, handler);
     concurrentEventDispatchers.put(eventType, dispatcher);
     addIfService(dispatcher);
@@ -335,6 +362,9 @@ public class AsyncDispatcher extends CompositeService implements Dispatcher {
       
       /* all this method does is enqueue all the events onto the queue */
       int qSize = eventQueue.size();
+      if (metrics != null) {
+        metrics.queueDepth(name, qSize + 1);
+      }
       if (qSize !=0 && qSize %1000 == 0) {
         LOG.info("Size of event-queue is " + qSize);
       }
@@ -79,6 +79,7 @@ public class AsyncDispatcherConcurrent extends CompositeService implements Dispa
   protected final Map<Class<? extends Enum>, AsyncDispatcherConcurrent> eventDispatchers = 
       Maps.newHashMap();
   private boolean exitOnDispatchException = false;
+  private DispatcherMetrics metrics;
 
   AsyncDispatcherConcurrent(String name, int numThreads) {
     super(name);
@@ -187,7 +188,13 @@ public class AsyncDispatcherConcurrent extends CompositeService implements Dispa
     try{
       EventHandler handler = eventHandlers.get(type);
       if(handler != null) {
-        handler.handle(event);
+        if (metrics != null) {
+          long startTime = System.nanoTime();
+          handler.handle(event);
+          metrics.eventProcessed(event.getType(), System.nanoTime() - startTime);
+        } else {
+          handler.handle(event);
+        }
       } else {
         throw new Exception("No handler for registered for " + type);
       }
@@ -263,6 +270,7 @@ public class AsyncDispatcherConcurrent extends CompositeService implements Dispa
     LOG.info(
           "Registering " + eventType + " for independent dispatch using: " + handler.getClass());
     AsyncDispatcherConcurrent dispatcher = new AsyncDispatcherConcurrent(dispatcherName, numThreads);
+    dispatcher.setMetrics(metrics);
     dispatcher.register(eventType, handler);
     eventDispatchers.put(eventType, dispatcher);
     addIfService(dispatcher);
@@ -286,6 +294,10 @@ public class AsyncDispatcherConcurrent extends CompositeService implements Dispa
     this.exitOnDispatchException = true;
   }
 
+  void setMetrics(DispatcherMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   @Override
   public EventHandler getEventHandler() {
     return handlerInstance;
@@ -315,6 +327,9 @@ public class AsyncDispatcherConcurrent extends CompositeService implements Dispa
       LinkedBlockingQueue<Event> queue = eventQueues.get(index);
       /* all this method does is enqueue all the events onto the queue */
       int qSize = queue.size();
+      if (metrics != null) {
+        metrics.queueDepth(name, qSize + 1);
+      }
       if (qSize !=0 && qSize %1000 == 0) {
         LOG.info("Size of event-queue is " + qSize);
       }
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.tez.common.counters.TezCounters;
+
+/**
+ * Statistics of the events going through an {@link AsyncDispatcher} and the dispatchers it
+ * created: the number of events and the time spent processing them by event type, and the
+ * peak depth of the queue of each dispatcher. Shared by all the dispatcher threads.
+ */
+@Private
+public class DispatcherMetrics {
+
+  public static final String EVENT_COUNT_GROUP = "DispatcherEventCount";
+  public static final String EVENT_PROCESSING_MILLIS_GROUP = "DispatcherEventProcessingMillis";
+  public static final String PEAK_QUEUE_DEPTH_GROUP = "DispatcherPeakQueueDepth";
+
+  private final ConcurrentMap<Enum<?>, EventTypeStats> eventTypeStats =
+      new ConcurrentHashMap<Enum<?>, EventTypeStats>();
+  private final ConcurrentMap<String, AtomicLong> peakQueueDepths =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private static class EventTypeStats {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong processingNanos = new AtomicLong();
+  }
+
+  void eventProcessed(Enum<?> eventType, long processingNanos) {
+    EventTypeStats stats = eventTypeStats.get(eventType);
+    if (stats == null) {
+      EventTypeStats newStats = new EventTypeStats();
+      stats = eventTypeStats.putIfAbsent(eventType, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    stats.count.incrementAndGet();
+    stats.processingNanos.addAndGet(processingNanos);
+  }
+
+  void queueDepth(String dispatcherName, int depth) {
+    AtomicLong peak = peakQueueDepths.get(dispatcherName);
+    if (peak == null) {
+      AtomicLong newPeak = new AtomicLong();
+      peak = peakQueueDepths.putIfAbsent(dispatcherName, newPeak);
+      if (peak == null) {
+        peak = newPeak;
+      }
+    }
+    long current = peak.get();
+    while (depth > current && !peak.compareAndSet(current, depth)) {
+      current = peak.get();
+    }
+  }
+
+  /**
+   * Start over, e.g. when a new DAG starts running.
+   */
+  public void reset() {
+    eventTypeStats.clear();
+    peakQueueDepths.clear();
+  }
+
+  /**
+   * Set the statistics gathered since the last {@link #reset()} on <code>counters</code>.
+   */
+  public void updateCounters(TezCounters counters) {
+    for (Map.Entry<Enum<?>, EventTypeStats> entry : eventTypeStats.entrySet()) {
+      Enum<?> eventType = entry.getKey();
+      String name = eventType.getDeclaringClass().getSimpleName() + "." + eventType.name();
+      counters.findCounter(EVENT_COUNT_GROUP, name).setValue(entry.getValue().count.get());
+      counters.findCounter(EVENT_PROCESSING_MILLIS_GROUP, name).setValue(
+          TimeUnit.NANOSECONDS.toMillis(entry.getValue().processingNanos.get()));
+    }
+    for (Map.Entry<String, AtomicLong> entry : peakQueueDepths.entrySet()) {
+      counters.findCounter(PEAK_QUEUE_DEPTH_GROUP, entry.getKey()).setValue(
+          entry.getValue().get());
+    }
+  }
+}
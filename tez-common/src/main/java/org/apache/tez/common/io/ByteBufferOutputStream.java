@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.common.io;
+
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A thread-not-safe OutputStream writing into the remaining bytes of a ByteBuffer, the
+ * counterpart of {@link ByteBufferInputStream}. The position of the buffer is advanced as bytes
+ * are written, writing past its limit fails.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+  protected final ByteBuffer buffer;
+
+  public ByteBufferOutputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(int b) throws EOFException {
+    if (!buffer.hasRemaining()) {
+      throw new EOFException("Reached the limit of the buffer: " + buffer.limit());
+    }
+    buffer.put((byte) b);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte b[], int off, int len) throws EOFException {
+    if (b == null) {
+      throw new NullPointerException();
+    } else if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len > buffer.remaining()) {
+      throw new EOFException("Reached the limit of the buffer: " + buffer.limit());
+    }
+    buffer.put(b, off, len);
+  }
+
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+}
@@ -21,6 +21,7 @@ import java.util.concurrent.CountDownLatch;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.common.counters.TezCounters;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -132,6 +133,41 @@ public class TestAsyncDispatcherConcurrent {
     central.close();
   }
   
+  @Test (timeout=5000)
+  public void testDispatcherMetrics() throws Exception {
+    CountDownLatch latch = new CountDownLatch(4);
+    CountDownEventHandler.init(latch);
+
+    AsyncDispatcher central = new AsyncDispatcher("Type1");
+    DispatcherMetrics metrics = new DispatcherMetrics();
+    central.setMetrics(metrics);
+    central.registerAndCreateDispatcher(
+        TestEventType1.class, new TestEventHandler1(), "Type1", 3);
+
+    central.init(new Configuration());
+    central.start();
+    // 3 threads in the same dispatcher will handle 3 events
+    central.getEventHandler().handle(new TestEvent1(TestEventType1.TYPE1, 0));
+    central.getEventHandler().handle(new TestEvent1(TestEventType1.TYPE1, 1));
+    central.getEventHandler().handle(new TestEvent1(TestEventType1.TYPE1, 2));
+    // wait for all events to be run in parallel
+    CountDownEventHandler.checkParallelCountersDoneAndFinish();
+
+    TezCounters counters = new TezCounters();
+    while (counters.findCounter(DispatcherMetrics.EVENT_COUNT_GROUP,
+        "TestEventType1.TYPE1").getValue() != 3) {
+      Thread.sleep(10);
+      metrics.updateCounters(counters);
+    }
+    Assert.assertEquals(1, counters.findCounter(DispatcherMetrics.PEAK_QUEUE_DEPTH_GROUP,
+        "Type1").getValue());
+    metrics.reset();
+    counters = new TezCounters();
+    metrics.updateCounters(counters);
+    Assert.assertEquals(0, counters.countCounters());
+    central.close();
+  }
+
   @Test (timeout=5000)
   public void testMultipleRegisterFail() throws Exception {
     AsyncDispatcher central = new AsyncDispatcher("Type1");
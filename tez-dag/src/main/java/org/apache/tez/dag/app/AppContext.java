@@ -36,6 +36,7 @@ import org.apache.tez.dag.app.dag.DAG;
 import org.apache.tez.dag.app.rm.TaskSchedulerManager;
 import org.apache.tez.dag.app.rm.container.AMContainerMap;
 import org.apache.tez.dag.app.rm.node.AMNodeTracker;
+import org.apache.tez.common.DispatcherMetrics;
 import org.apache.tez.common.security.ACLManager;
 import org.apache.tez.dag.history.HistoryEventHandler;
 import org.apache.tez.dag.records.TezDAGID;
@@ -62,6 +63,11 @@ public interface AppContext {
   
   long getCumulativeGCTime();
 
+  /**
+   * @return the statistics of the AM dispatchers, null if they are not tracked
+   */
+  DispatcherMetrics getDispatcherMetrics();
+
   ApplicationAttemptId getApplicationAttemptId();
 
   String getApplicationName();
@@ -114,6 +114,7 @@ import org.apache.hadoop.yarn.util.ResourceCalculatorProcessTree;
 import org.apache.hadoop.yarn.util.SystemClock;
 import org.apache.tez.common.AsyncDispatcher;
 import org.apache.tez.common.AsyncDispatcherConcurrent;
+import org.apache.tez.common.DispatcherMetrics;
 import org.apache.tez.common.GcTimeUpdater;
 import org.apache.tez.common.TezCommonUtils;
 import org.apache.tez.common.TezConverterUtils;
@@ -255,6 +256,7 @@ public class DAGAppMaster extends AbstractService {
   private AppContext context;
   private Configuration amConf;
   private AsyncDispatcher dispatcher;
+  private DispatcherMetrics dispatcherMetrics;
   private ContainerLauncherManager containerLauncherManager;
   private ContainerHeartbeatHandler containerHeartbeatHandler;
   private TaskHeartbeatHandler taskHeartbeatHandler;
@@ -480,6 +482,11 @@ public class DAGAppMaster extends AbstractService {
     }
 
     dispatcher = createDispatcher();
+    if (conf.getBoolean(TezConfiguration.TEZ_AM_DISPATCHER_METRICS_ENABLED,
+        TezConfiguration.TEZ_AM_DISPATCHER_METRICS_ENABLED_DEFAULT)) {
+      dispatcherMetrics = new DispatcherMetrics();
+      dispatcher.setMetrics(dispatcherMetrics);
+    }
 
     if (isLocal) {
        conf.setBoolean(TezConfiguration.TEZ_AM_NODE_BLACKLISTING_ENABLED, false);
@@ -1777,6 +1784,11 @@ public class DAGAppMaster extends AbstractService {
       return getAMGCTime();
     }
 
+    @Override
+    public DispatcherMetrics getDispatcherMetrics() {
+      return dispatcherMetrics;
+    }
+
     @Override
     public void setDAGRecoveryData(DAGRecoveryData dagRecoveryData) {
       this.dagRecoveryData = dagRecoveryData;
@@ -2115,6 +2127,10 @@ public class DAGAppMaster extends AbstractService {
       } else {
         LOG.info("Found DAG to recover, dagId=" + recoveredDAGData.recoveredDAG.getID());
         _updateLoggers(recoveredDAGData.recoveredDAG, "");
+        if (recoveredDAGData.checkpointEvents != null) {
+          this.historyEventHandler.setRecoveredEvents(recoveredDAGData.recoveredDAG.getID(),
+              recoveredDAGData.checkpointEvents);
+        }
         DAGRecoveredEvent dagRecoveredEvent = new DAGRecoveredEvent(this.appAttemptID,
             recoveredDAGData.recoveredDAG.getID(), recoveredDAGData.recoveredDAG.getName(),
             recoveredDAGData.recoveredDAG.getUserName(), this.clock.getTime(), this.containerLogs);
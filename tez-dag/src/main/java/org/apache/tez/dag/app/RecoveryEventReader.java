@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.tez.dag.history.HistoryEvent;
+import org.apache.tez.dag.history.HistoryEventType;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Reads the events of a DAG recovery file, like {@link RecoveryParser#parseDAGRecoveryFile}.
+ * Reads a batch of records ahead and, given an executor, decodes them in parallel, in slices.
+ * Events are returned in the order of the file.
+ */
+class RecoveryEventReader {
+
+  private static final int BATCH_SIZE = 4096;
+  // Below that, decoding a slice costs less than handing it over
+  private static final int MIN_SLICE_SIZE = 256;
+
+  private final DataInputStream in;
+  private final ExecutorService decoder;
+  private final int parallelism;
+
+  private final List<HistoryEvent> events = new ArrayList<HistoryEvent>();
+  private int nextEvent = 0;
+  private boolean ended = false;
+  // Thrown once the events before it are returned
+  private IOException error;
+
+  /**
+   * @param decoder to decode the events with, null to decode them in the calling thread
+   * @param parallelism the number of slices a batch is decoded in, at most
+   */
+  RecoveryEventReader(DataInputStream in, ExecutorService decoder, int parallelism) {
+    this.in = in;
+    this.decoder = decoder;
+    this.parallelism = decoder == null ? 1 : parallelism;
+  }
+
+  /**
+   * @return the next event, null at the end of the file or if the last record is incomplete
+   * @throws IOException if a record is corrupt. The events before it are returned first
+   */
+  HistoryEvent next() throws IOException {
+    if (nextEvent == events.size()) {
+      if (error != null) {
+        IOException e = error;
+        error = null;
+        ended = true;
+        throw e;
+      }
+      if (ended) {
+        return null;
+      }
+      readBatch();
+      if (events.isEmpty()) {
+        return next();
+      }
+    }
+    return events.get(nextEvent++);
+  }
+
+  private void readBatch() throws IOException {
+    events.clear();
+    nextEvent = 0;
+    List<RawEvent> rawEvents = new ArrayList<RawEvent>();
+    try {
+      while (rawEvents.size() < BATCH_SIZE) {
+        RawEvent rawEvent = readRawEvent();
+        if (rawEvent == null) {
+          ended = true;
+          break;
+        }
+        rawEvents.add(rawEvent);
+      }
+    } catch (IOException e) {
+      error = e;
+    }
+    IOException decodeError = decode(rawEvents);
+    if (decodeError != null) {
+      // Comes before whatever stopped the reading
+      error = decodeError;
+    }
+  }
+
+  // Returns the error of the first record which could not be decoded, the events before it are
+  // added to the batch
+  private IOException decode(List<RawEvent> rawEvents) throws IOException {
+    int slices = Math.min(parallelism, rawEvents.size() / MIN_SLICE_SIZE);
+    if (slices <= 1) {
+      return decodeSlice(rawEvents, events);
+    }
+    List<Future<DecodedSlice>> futures = new ArrayList<Future<DecodedSlice>>(slices);
+    int sliceSize = (rawEvents.size() + slices - 1) / slices;
+    for (int start = 0; start < rawEvents.size(); start += sliceSize) {
+      final List<RawEvent> slice =
+          rawEvents.subList(start, Math.min(start + sliceSize, rawEvents.size()));
+      futures.add(decoder.submit(new Callable<DecodedSlice>() {
+        @Override
+        public DecodedSlice call() {
+          DecodedSlice decoded = new DecodedSlice(slice.size());
+          decoded.error = decodeSlice(slice, decoded.events);
+          return decoded;
+        }
+      }));
+    }
+    IOException decodeError = null;
+    for (Future<DecodedSlice> future : futures) {
+      DecodedSlice decoded;
+      try {
+        decoded = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while decoding recovery events", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to decode recovery events", e.getCause());
+      }
+      if (decodeError == null) {
+        events.addAll(decoded.events);
+        decodeError = decoded.error;
+      }
+    }
+    return decodeError;
+  }
+
+  private static IOException decodeSlice(List<RawEvent> rawEvents, List<HistoryEvent> decoded) {
+    for (RawEvent rawEvent : rawEvents) {
+      try {
+        HistoryEvent event = RecoveryParser.createEvent(rawEvent.eventType);
+        event.fromProtoStream(new ByteArrayInputStream(rawEvent.data));
+        decoded.add(event);
+      } catch (IOException e) {
+        return e;
+      } catch (RuntimeException e) {
+        return new IOException("Failed to decode recovery event of type " + rawEvent.eventType, e);
+      }
+    }
+    return null;
+  }
+
+  // The type of the next event and its delimited proto, null at the end of the file
+  private RawEvent readRawEvent() throws IOException {
+    int eventTypeOrdinal;
+    try {
+      eventTypeOrdinal = in.readInt();
+    } catch (EOFException eof) {
+      return null;
+    }
+    if (eventTypeOrdinal < 0 || eventTypeOrdinal >= HistoryEventType.values().length) {
+      throw new IOException("Corrupt data found when trying to read next event type"
+          + ", eventTypeOrdinal=" + eventTypeOrdinal);
+    }
+    // The varint size of the delimited proto, as CodedInputStream.readRawVarint32 reads it. A
+    // size cut off by the end of the file is a truncated record, like an incomplete body
+    int size = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (shift == 70) {
+        throw new IOException("Corrupt data found when trying to read next event"
+            + ", malformed size");
+      }
+      int b = in.read();
+      if (b == -1) {
+        return null;
+      }
+      if (shift < 32) {
+        size |= (b & 0x7f) << shift;
+      }
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    if (size < 0) {
+      throw new IOException("Corrupt data found when trying to read next event"
+          + ", size=" + size);
+    }
+    int sizeLength = CodedOutputStream.computeRawVarint32Size(size);
+    byte[] data = new byte[sizeLength + size];
+    CodedOutputStream.newInstance(data, 0, sizeLength).writeRawVarint32(size);
+    try {
+      in.readFully(data, sizeLength, size);
+    } catch (EOFException eof) {
+      return null;
+    }
+    return new RawEvent(HistoryEventType.values()[eventTypeOrdinal], data);
+  }
+
+  private static class RawEvent {
+    final HistoryEventType eventType;
+    final byte[] data;
+
+    RawEvent(HistoryEventType eventType, byte[] data) {
+      this.eventType = eventType;
+      this.data = data;
+    }
+  }
+
+  private static class DecodedSlice {
+    final List<HistoryEvent> events;
+    IOException error;
+
+    DecodedSlice(int size) {
+      this.events = new ArrayList<HistoryEvent>(size);
+    }
+  }
+}
@@ -26,6 +26,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,6 +79,7 @@ import org.apache.tez.runtime.api.impl.TezEvent;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -93,6 +96,8 @@ public class RecoveryParser {
   private final Path currentAttemptRecoveryDataDir;
   private final int recoveryBufferSize;
   private final int currentAttemptId;
+  private final boolean checkpointEnabled;
+  private final int parseThreads;
 
   public RecoveryParser(DAGAppMaster dagAppMaster,
       FileSystem recoveryFS,
@@ -107,6 +112,12 @@ public class RecoveryParser {
     recoveryBufferSize = dagAppMaster.getConfig().getInt(
         TezConfiguration.DAG_RECOVERY_FILE_IO_BUFFER_SIZE,
         TezConfiguration.DAG_RECOVERY_FILE_IO_BUFFER_SIZE_DEFAULT);
+    checkpointEnabled = dagAppMaster.getConfig().getBoolean(
+        TezConfiguration.DAG_RECOVERY_CHECKPOINT_ENABLED,
+        TezConfiguration.DAG_RECOVERY_CHECKPOINT_ENABLED_DEFAULT);
+    parseThreads = dagAppMaster.getConfig().getInt(
+        TezConfiguration.DAG_RECOVERY_PARSE_THREADS,
+        TezConfiguration.DAG_RECOVERY_PARSE_THREADS_DEFAULT);
     this.recoveryFS.mkdirs(currentAttemptRecoveryDataDir);
   }
 
@@ -121,6 +132,8 @@ public class RecoveryParser {
     public String reason = null;
     public Map<String, LocalResource> cumulativeAdditionalResources = null;
     public List<URL> additionalUrlsForClasspath = null;
+    // The recovered events the checkpoints of this attempt start from, null if it writes none
+    public List<HistoryEvent> checkpointEvents = null;
 
     public Map<TezVertexID, VertexRecoveryData> vertexRecoveryDataMap =
         new HashMap<TezVertexID, RecoveryParser.VertexRecoveryData>();
@@ -267,6 +280,21 @@ public class RecoveryParser {
           + ", eventTypeOrdinal=" + eventTypeOrdinal);
     }
     HistoryEventType eventType = HistoryEventType.values()[eventTypeOrdinal];
+    HistoryEvent event = createEvent(eventType);
+    try {
+      event.fromProtoStream(inputStream);
+    } catch (EOFException eof) {
+      return null;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Parsed event from input stream"
+          + ", eventType=" + eventType
+          + ", event=" + event.toString());
+    }
+    return event;
+  }
+
+  static HistoryEvent createEvent(HistoryEventType eventType) throws IOException {
     HistoryEvent event;
     switch (eventType) {
       case AM_LAUNCHED:
@@ -337,16 +365,6 @@ public class RecoveryParser {
             + eventType);
 
     }
-    try {
-      event.fromProtoStream(inputStream);
-    } catch (EOFException eof) {
-      return null;
-    }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Parsed event from input stream"
-          + ", eventType=" + eventType
-          + ", event=" + event.toString());
-    }
     return event;
   }
 
@@ -627,9 +645,42 @@ public class RecoveryParser {
     return summaryFiles;
   }
 
-  private List<Path> getDAGRecoveryFiles(TezDAGID dagId) throws IOException {
+  /**
+   * @param startOffsets gets the offset to start reading at of the files which are not read
+   *          from the start
+   */
+  private List<Path> getDAGRecoveryFiles(TezDAGID dagId, Map<Path, Long> startOffsets)
+      throws IOException {
     List<Path> recoveryFiles = new ArrayList<Path>();
-    for (int i = 1; i < currentAttemptId; ++i) {
+    // The latest checkpoint has the events of the attempts before the one which wrote it, and of
+    // the beginning of the recovery file of that attempt. The rest of that file and the recovery
+    // files of the attempts since then come after it
+    int firstAttemptId = 1;
+    for (int i = currentAttemptId - 1; i >= 1; --i) {
+      Path attemptPath = TezCommonUtils.getAttemptRecoveryPath(recoveryDataDir, i);
+      Path checkpointFile = TezCommonUtils.getDAGCheckpointPath(attemptPath, dagId.toString());
+      if (recoveryFS.exists(checkpointFile)) {
+        // Starts with the length of the recovery file it covers
+        long coveredLength;
+        long eventsOffset;
+        FSDataInputStream in = recoveryFS.open(checkpointFile, recoveryBufferSize);
+        try {
+          coveredLength = in.readLong();
+          eventsOffset = in.getPos();
+        } catch (EOFException e) {
+          LOG.warn("Ignoring empty recovery checkpoint " + checkpointFile);
+          continue;
+        } finally {
+          in.close();
+        }
+        recoveryFiles.add(checkpointFile);
+        startOffsets.put(checkpointFile, eventsOffset);
+        startOffsets.put(getDAGRecoveryFilePath(attemptPath, dagId), coveredLength);
+        firstAttemptId = i;
+        break;
+      }
+    }
+    for (int i = firstAttemptId; i < currentAttemptId; ++i) {
       Path attemptPath = TezCommonUtils.getAttemptRecoveryPath(recoveryDataDir, i);
       Path recoveryFile = getDAGRecoveryFilePath(attemptPath, dagId);
       if (recoveryFS.exists(recoveryFile)) {
@@ -650,6 +701,21 @@ public class RecoveryParser {
    * @throws IOException
    */
   public DAGRecoveryData parseRecoveryData() throws IOException {
+    ExecutorService decoder = null;
+    if (parseThreads > 1) {
+      decoder = Executors.newFixedThreadPool(parseThreads, new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("RecoveryEventDecoder #%d").build());
+    }
+    try {
+      return parseRecoveryData(decoder);
+    } finally {
+      if (decoder != null) {
+        decoder.shutdownNow();
+      }
+    }
+  }
+
+  private DAGRecoveryData parseRecoveryData(ExecutorService decoder) throws IOException {
     int dagCounter = 0;
     Map<TezDAGID, DAGSummaryData> dagSummaryDataMap =
         new HashMap<TezDAGID, DAGSummaryData>();
@@ -727,9 +793,11 @@ public class RecoveryParser {
         + ", dagId=" + lastInProgressDAGData.dagId);
 
     final DAGRecoveryData recoveredDAGData = new DAGRecoveryData(lastInProgressDAGData);
-    List<Path> dagRecoveryFiles = getDAGRecoveryFiles(lastInProgressDAG);
+    Map<Path, Long> startOffsets = new HashMap<Path, Long>();
+    List<Path> dagRecoveryFiles = getDAGRecoveryFiles(lastInProgressDAG, startOffsets);
     boolean skipAllOtherEvents = false;
     Path lastRecoveryFile = null;
+    DAGSubmittedEvent dagSubmittedEvent = null;
     // read the non summary events even when it is nonrecoverable. (Just read the DAGSubmittedEvent
     // to create the DAGImpl)
     for (Path dagRecoveryFile : dagRecoveryFiles) {
@@ -745,10 +813,23 @@ public class RecoveryParser {
           + ", dagRecoveryFile=" + dagRecoveryFile
           + ", len=" + fileStatus.getLen());
       FSDataInputStream dagRecoveryStream = recoveryFS.open(dagRecoveryFile, recoveryBufferSize);
+      Long startOffset = startOffsets.get(dagRecoveryFile);
+      if (startOffset != null) {
+        LOG.info("Reading the recovery file from offset " + startOffset);
+        try {
+          dagRecoveryStream.seek(startOffset);
+        } catch (EOFException eof) {
+          LOG.info("Reached end of dag recovery stream");
+          dagRecoveryStream.close();
+          continue;
+        }
+      }
+      RecoveryEventReader eventReader =
+          new RecoveryEventReader(dagRecoveryStream, decoder, parseThreads);
       while (true) {
         HistoryEvent event;
         try {
-          event = getNextEvent(dagRecoveryStream);
+          event = eventReader.next();
           if (event == null) {
             LOG.info("Reached end of dag recovery stream");
             break;
@@ -766,12 +847,15 @@ public class RecoveryParser {
         }
 
         HistoryEventType eventType = event.getEventType();
-        LOG.info("Recovering from event"
-            + ", eventType=" + eventType
-            + ", event=" + event.toString());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Recovering from event"
+              + ", eventType=" + eventType
+              + ", event=" + event.toString());
+        }
         switch (eventType) {
           case DAG_SUBMITTED:
             DAGSubmittedEvent submittedEvent = (DAGSubmittedEvent) event;
+            dagSubmittedEvent = submittedEvent;
             recoveredDAGData.recoveredDAG = dagAppMaster.createDAG(submittedEvent.getDAGPlan(),
                 lastInProgressDAG);
             recoveredDAGData.cumulativeAdditionalResources = submittedEvent
@@ -902,9 +986,48 @@ public class RecoveryParser {
       dagRecoveryStream.close();
     }
     recoveredDAGData.checkRecoverableNonSummary();
+    if (checkpointEnabled && dagSubmittedEvent != null && !recoveredDAGData.nonRecoverable
+        && !recoveredDAGData.isCompleted && recoveredDAGData.dagFinishedEvent == null) {
+      recoveredDAGData.checkpointEvents =
+          getCheckpointEvents(dagSubmittedEvent, recoveredDAGData);
+    }
     return recoveredDAGData;
   }
 
+  /**
+   * @return the events recovered for the DAG which recovery uses, in an order in which they
+   * can be read back. The events which create the recovery data of a vertex or a task come
+   * before the others.
+   */
+  private static List<HistoryEvent> getCheckpointEvents(DAGSubmittedEvent dagSubmittedEvent,
+      DAGRecoveryData recoveredDAGData) {
+    List<HistoryEvent> events = new ArrayList<HistoryEvent>();
+    addEvent(events, dagSubmittedEvent);
+    addEvent(events, recoveredDAGData.dagInitedEvent);
+    addEvent(events, recoveredDAGData.dagStartedEvent);
+    for (VertexRecoveryData vertexData : recoveredDAGData.vertexRecoveryDataMap.values()) {
+      addEvent(events, vertexData.vertexInitedEvent);
+      addEvent(events, vertexData.vertexConfigurationDoneEvent);
+      addEvent(events, vertexData.vertexFinishedEvent);
+      addEvent(events, vertexData.vertexStartedEvent);
+      for (TaskRecoveryData taskData : vertexData.taskRecoveryDataMap.values()) {
+        addEvent(events, taskData.taskStartedEvent);
+        addEvent(events, taskData.taskFinishedEvent);
+        for (TaskAttemptRecoveryData taData : taskData.taRecoveryDataMap.values()) {
+          addEvent(events, taData.taStartedEvent);
+          addEvent(events, taData.taFinishedEvent);
+        }
+      }
+    }
+    return events;
+  }
+
+  private static void addEvent(List<HistoryEvent> events, HistoryEvent event) {
+    if (event != null) {
+      events.add(event);
+    }
+  }
+
   public static class VertexRecoveryData {
 
     private VertexInitializedEvent vertexInitedEvent;
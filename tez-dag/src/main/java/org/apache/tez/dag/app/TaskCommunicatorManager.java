@@ -22,7 +22,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -104,15 +106,28 @@ public class TaskCommunicatorManager extends AbstractService implements
   private final ConcurrentMap<ContainerId, ContainerInfo> registeredContainers =
       new ConcurrentHashMap<ContainerId, ContainerInfo>();
 
-  // Defined primarily to work around ConcurrentMaps not accepting null values
+  // Holds the attempts running in the slots of a container. Never modified once in the map.
   private static final class ContainerInfo {
-    TezTaskAttemptID taskAttemptId;
-    ContainerInfo(TezTaskAttemptID taskAttemptId) {
-      this.taskAttemptId = taskAttemptId;
+    final Set<TezTaskAttemptID> taskAttemptIds;
+    ContainerInfo(Set<TezTaskAttemptID> taskAttemptIds) {
+      this.taskAttemptIds = Collections.unmodifiableSet(taskAttemptIds);
+    }
+
+    ContainerInfo withTaskAttempt(TezTaskAttemptID taskAttemptId) {
+      Set<TezTaskAttemptID> newTaskAttemptIds = new HashSet<TezTaskAttemptID>(taskAttemptIds);
+      newTaskAttemptIds.add(taskAttemptId);
+      return new ContainerInfo(newTaskAttemptIds);
+    }
+
+    ContainerInfo withoutTaskAttempt(TezTaskAttemptID taskAttemptId) {
+      Set<TezTaskAttemptID> newTaskAttemptIds = new HashSet<TezTaskAttemptID>(taskAttemptIds);
+      newTaskAttemptIds.remove(taskAttemptId);
+      return new ContainerInfo(newTaskAttemptIds);
     }
   }
 
-  private static final ContainerInfo NULL_CONTAINER_INFO = new ContainerInfo(null);
+  private static final ContainerInfo NULL_CONTAINER_INFO =
+      new ContainerInfo(Collections.<TezTaskAttemptID>emptySet());
 
 
   @VisibleForTesting
@@ -519,8 +534,8 @@ public class TaskCommunicatorManager extends AbstractService implements
       LOG.debug("Unregistering Container from TaskAttemptListener: " + containerId);
     }
     ContainerInfo containerInfo = registeredContainers.remove(containerId);
-    if (containerInfo.taskAttemptId != null) {
-      registeredAttempts.remove(containerInfo.taskAttemptId);
+    for (TezTaskAttemptID taskAttemptId : containerInfo.taskAttemptIds) {
+      registeredAttempts.remove(taskAttemptId);
     }
     try {
       taskCommunicators[taskCommId].registerContainerEnd(containerId, endReason, diagnostics);
@@ -544,15 +559,10 @@ public class TaskCommunicatorManager extends AbstractService implements
       throw new TezUncheckedException("Registering task attempt: "
           + amContainerTask.getTask().getTaskAttemptID() + " to unknown container: " + containerId);
     }
-    if (containerInfo.taskAttemptId != null) {
-      throw new TezUncheckedException("Registering task attempt: "
-          + amContainerTask.getTask().getTaskAttemptID() + " to container: " + containerId
-          + " with existing assignment to: " +
-          containerInfo.taskAttemptId);
-    }
-
+    // The AMContainer bounds the number of attempts running in the slots of a container.
     // Explicitly putting in a new entry so that synchronization is not required on the existing element in the map.
-    registeredContainers.put(containerId, new ContainerInfo(amContainerTask.getTask().getTaskAttemptID()));
+    registeredContainers.put(containerId,
+        containerInfo.withTaskAttempt(amContainerTask.getTask().getTaskAttemptID()));
 
     ContainerId containerIdFromMap = registeredAttempts.put(
         amContainerTask.getTask().getTaskAttemptID(), containerId);
@@ -592,7 +602,7 @@ public class TaskCommunicatorManager extends AbstractService implements
       return;
     }
     // Explicitly putting in a new entry so that synchronization is not required on the existing element in the map.
-    registeredContainers.put(containerId, NULL_CONTAINER_INFO);
+    registeredContainers.put(containerId, containerInfo.withoutTaskAttempt(attemptId));
     try {
       taskCommunicators[taskCommId].unregisterRunningTaskAttempt(attemptId, endReason, diagnostics);
     } catch (Exception e) {
@@ -17,6 +17,8 @@ package org.apache.tez.dag.app;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -97,21 +99,43 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     final ContainerId containerId;
     public final String host;
     public final int port;
+    // Keyed by the identifier of the slot of the container sending the heartbeats
+    final Map<String, HeartbeatInfo> heartbeatInfos = new HashMap<String, HeartbeatInfo>();
+    // The tasks assigned to the slots of the container, in the order they were assigned
+    final Map<TezTaskAttemptID, TaskInfo> taskInfos =
+        new LinkedHashMap<TezTaskAttemptID, TaskInfo>();
+
+    HeartbeatInfo getHeartbeatInfo(String slotIdentifier) {
+      HeartbeatInfo heartbeatInfo = heartbeatInfos.get(slotIdentifier);
+      if (heartbeatInfo == null) {
+        heartbeatInfo = new HeartbeatInfo();
+        heartbeatInfos.put(slotIdentifier, heartbeatInfo);
+      }
+      return heartbeatInfo;
+    }
+  }
+
+  // Heartbeats are numbered in sequence by each slot of a container
+  static final class HeartbeatInfo {
     TezHeartbeatResponse lastResponse = null;
-    TaskSpec taskSpec = null;
     long lastRequestId = 0;
-    Map<String, LocalResource> additionalLRs = null;
-    Credentials credentials = null;
-    boolean credentialsChanged = false;
-    boolean taskPulled = false;
+  }
+
+  static final class TaskInfo {
 
-    void reset() {
-      taskSpec = null;
-      additionalLRs = null;
-      credentials = null;
-      credentialsChanged = false;
-      taskPulled = false;
+    TaskInfo(TaskSpec taskSpec, Map<String, LocalResource> additionalLRs,
+        Credentials credentials, boolean credentialsChanged) {
+      this.taskSpec = taskSpec;
+      this.additionalLRs = additionalLRs;
+      this.credentials = credentials;
+      this.credentialsChanged = credentialsChanged;
     }
+
+    final TaskSpec taskSpec;
+    final Map<String, LocalResource> additionalLRs;
+    final Credentials credentials;
+    final boolean credentialsChanged;
+    boolean taskPulled = false;
   }
 
 
@@ -207,8 +231,8 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     ContainerInfo containerInfo = registeredContainers.remove(containerId);
     if (containerInfo != null) {
       synchronized(containerInfo) {
-        if (containerInfo.taskSpec != null && containerInfo.taskSpec.getTaskAttemptID() != null) {
-          attemptToContainerMap.remove(containerInfo.taskSpec.getTaskAttemptID());
+        for (TezTaskAttemptID taskAttemptId : containerInfo.taskInfos.keySet()) {
+          attemptToContainerMap.remove(taskAttemptId);
         }
       }
     }
@@ -224,19 +248,8 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     Preconditions.checkNotNull(containerInfo,
         "Cannot register task attempt: " + taskSpec.getTaskAttemptID() + " to unknown container: " +
             containerId);
+    // The AMContainer bounds the number of tasks assigned to the slots of a container
     synchronized (containerInfo) {
-      if (containerInfo.taskSpec != null) {
-        throw new TezUncheckedException(
-            "Cannot register task: " + taskSpec.getTaskAttemptID() + " to container: " +
-                containerId + " , with pre-existing assignment: " +
-                containerInfo.taskSpec.getTaskAttemptID());
-      }
-      containerInfo.taskSpec = taskSpec;
-      containerInfo.additionalLRs = additionalResources;
-      containerInfo.credentials = credentials;
-      containerInfo.credentialsChanged = credentialsChanged;
-      containerInfo.taskPulled = false;
-
       ContainerId oldId = attemptToContainerMap.putIfAbsent(taskSpec.getTaskAttemptID(), containerId);
       if (oldId != null) {
         throw new TezUncheckedException(
@@ -244,6 +257,8 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
                 taskSpec.getTaskAttemptID() + " to containerId: " + containerId +
                 ". Already registered to containerId: " + oldId);
       }
+      containerInfo.taskInfos.put(taskSpec.getTaskAttemptID(),
+          new TaskInfo(taskSpec, additionalResources, credentials, credentialsChanged));
     }
   }
 
@@ -262,7 +277,7 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
       return;
     }
     synchronized (containerInfo) {
-      containerInfo.reset();
+      containerInfo.taskInfos.remove(taskAttemptID);
       attemptToContainerMap.remove(taskAttemptID);
     }
   }
@@ -308,8 +323,9 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
         LOG.info("Invalid task request with an empty containerContext or containerId");
         task = TASK_FOR_INVALID_JVM;
       } else {
-        ContainerId containerId = ConverterUtils.toContainerId(containerContext
-            .getContainerIdentifier());
+        // Any slot of the container can run a task assigned to it
+        ContainerId containerId = ConverterUtils.toContainerId(ContainerContext
+            .getContainerIdentifier(containerContext.getContainerIdentifier()));
         if (LOG.isDebugEnabled()) {
           LOG.debug("Container with id: " + containerId + " asked for a task");
         }
@@ -333,7 +349,9 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     @Override
     public TezHeartbeatResponse heartbeat(TezHeartbeatRequest request) throws IOException,
         TezException {
-      ContainerId containerId = ConverterUtils.toContainerId(request.getContainerIdentifier());
+      String slotIdentifier = request.getContainerIdentifier();
+      ContainerId containerId = ConverterUtils.toContainerId(
+          ContainerContext.getContainerIdentifier(slotIdentifier));
       long requestId = request.getRequestId();
       if (LOG.isDebugEnabled()) {
         LOG.debug("Received heartbeat from container"
@@ -345,22 +363,26 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
         LOG.warn("Received task heartbeat from unknown container with id: " + containerId +
             ", asking it to die");
         TezHeartbeatResponse response = new TezHeartbeatResponse();
+        response.setCompactEncoding(request.isCompactEncoding());
         response.setLastRequestId(requestId);
         response.setShouldDie();
         return response;
       }
 
+      HeartbeatInfo heartbeatInfo;
       synchronized (containerInfo) {
-        if (containerInfo.lastRequestId == requestId) {
+        heartbeatInfo = containerInfo.getHeartbeatInfo(slotIdentifier);
+        if (heartbeatInfo.lastRequestId == requestId) {
           LOG.warn("Old sequenceId received: " + requestId
               + ", Re-sending last response to client");
-          return containerInfo.lastResponse;
+          return heartbeatInfo.lastResponse;
         }
       }
 
 
 
       TezHeartbeatResponse response = new TezHeartbeatResponse();
+      response.setCompactEncoding(request.isCompactEncoding());
       TezTaskAttemptID taskAttemptID = request.getCurrentTaskAttemptID();
       if (taskAttemptID != null) {
         TaskHeartbeatResponse tResponse;
@@ -371,14 +393,14 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
                 + " is not recognized for heartbeat");
           }
 
-          if (containerInfo.lastRequestId + 1 != requestId) {
-            throw new TezException("Container " + containerId
+          if (heartbeatInfo.lastRequestId + 1 != requestId) {
+            throw new TezException("Container " + slotIdentifier
                 + " has invalid request id. Expected: "
-                + containerInfo.lastRequestId + 1
+                + heartbeatInfo.lastRequestId + 1
                 + " and actual: " + requestId);
           }
         }
-        TaskHeartbeatRequest tRequest = new TaskHeartbeatRequest(request.getContainerIdentifier(),
+        TaskHeartbeatRequest tRequest = new TaskHeartbeatRequest(containerId.toString(),
             request.getCurrentTaskAttemptID(), request.getEvents(), request.getStartIndex(),
             request.getPreRoutedStartIndex(), request.getMaxEvents());
         tResponse = getContext().heartbeat(tRequest);
@@ -387,8 +409,10 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
         response.setNextPreRoutedEventId(tResponse.getNextPreRoutedEventId());
       }
       response.setLastRequestId(requestId);
-      containerInfo.lastRequestId = requestId;
-      containerInfo.lastResponse = response;
+      synchronized (containerInfo) {
+        heartbeatInfo.lastRequestId = requestId;
+        heartbeatInfo.lastResponse = response;
+      }
       return response;
     }
 
@@ -423,13 +447,14 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     } else {
       synchronized (containerInfo) {
         getContext().containerAlive(containerId);
-        if (containerInfo.taskSpec != null) {
-          if (!containerInfo.taskPulled) {
-            containerInfo.taskPulled = true;
-            task = constructContainerTask(containerInfo);
+        if (!containerInfo.taskInfos.isEmpty()) {
+          TaskInfo taskInfo = getTaskToPull(containerInfo);
+          if (taskInfo != null) {
+            taskInfo.taskPulled = true;
+            task = constructContainerTask(taskInfo);
           } else {
             if (LOG.isDebugEnabled()) {
-              LOG.debug("Task " + containerInfo.taskSpec.getTaskAttemptID() +
+              LOG.debug("Tasks " + containerInfo.taskInfos.keySet() +
                   " already sent to container: " + containerId);
             }
             task = null;
@@ -445,10 +470,19 @@ public class TezTaskCommunicatorImpl extends TaskCommunicator {
     return task;
   }
 
-  private ContainerTask constructContainerTask(ContainerInfo containerInfo) throws IOException {
-    return new ContainerTask(containerInfo.taskSpec, false,
-        convertLocalResourceMap(containerInfo.additionalLRs), containerInfo.credentials,
-        containerInfo.credentialsChanged);
+  private TaskInfo getTaskToPull(ContainerInfo containerInfo) {
+    for (TaskInfo taskInfo : containerInfo.taskInfos.values()) {
+      if (!taskInfo.taskPulled) {
+        return taskInfo;
+      }
+    }
+    return null;
+  }
+
+  private ContainerTask constructContainerTask(TaskInfo taskInfo) throws IOException {
+    return new ContainerTask(taskInfo.taskSpec, false,
+        convertLocalResourceMap(taskInfo.additionalLRs), taskInfo.credentials,
+        taskInfo.credentialsChanged);
   }
 
   private Map<String, TezLocalResource> convertLocalResourceMap(Map<String, LocalResource> ylrs)
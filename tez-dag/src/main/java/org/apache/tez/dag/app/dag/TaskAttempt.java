@@ -33,6 +33,7 @@ import org.apache.tez.dag.records.TezDAGID;
 import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.dag.records.TezTaskID;
 import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.impl.TaskStatistics;
 import org.apache.tez.runtime.api.impl.TezEvent;
 
 /**
@@ -77,6 +78,13 @@ public interface TaskAttempt {
   TaskAttemptTerminationCause getTerminationCause();
   TezCounters getCounters();
   float getProgress();
+
+  /**
+   * @return the statistics of the inputs and outputs last reported by the attempt, null if it has
+   *         not reported any yet
+   */
+  TaskStatistics getStatistics();
+
   TaskAttemptState getState();
   TaskAttemptState getStateNoLock();
   
@@ -63,6 +63,7 @@ import org.apache.hadoop.yarn.state.StateMachineFactory;
 import org.apache.hadoop.yarn.util.Clock;
 import org.apache.tez.common.ATSConstants;
 import org.apache.tez.common.ReflectionUtils;
+import org.apache.tez.common.DispatcherMetrics;
 import org.apache.tez.common.counters.DAGCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.DagTypeConverters;
@@ -1377,6 +1378,10 @@ public class DAGImpl implements org.apache.tez.dag.app.dag.DAG,
     long totalDAGGCTime = stopDAGGCTime - startDAGGCTime;
     dagCounters.findCounter(DAGCounter.AM_CPU_MILLISECONDS).setValue(totalDAGCpuTime);
     dagCounters.findCounter(DAGCounter.AM_GC_TIME_MILLIS).setValue(totalDAGGCTime);
+    DispatcherMetrics dispatcherMetrics = appContext.getDispatcherMetrics();
+    if (dispatcherMetrics != null) {
+      dispatcherMetrics.updateCounters(dagCounters);
+    }
   }
   
   private DAGState finished(DAGState finalState) {
@@ -1756,6 +1761,11 @@ public class DAGImpl implements org.apache.tez.dag.app.dag.DAG,
       }
       dag.startDAGCpuTime = dag.appContext.getCumulativeCPUTime();
       dag.startDAGGCTime = dag.appContext.getCumulativeGCTime();
+      DispatcherMetrics dispatcherMetrics = dag.appContext.getDispatcherMetrics();
+      if (dispatcherMetrics != null) {
+        // only the events of this DAG are counted
+        dispatcherMetrics.reset();
+      }
 
       DAGState state = dag.initializeDAG();
       if (state != DAGState.INITED) {
@@ -0,0 +1,185 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
+import org.apache.tez.dag.app.dag.DAG;
+import org.apache.tez.dag.app.dag.DAGScheduler;
+import org.apache.tez.dag.app.dag.TaskAttempt;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.app.dag.event.DAGEventSchedulerUpdate;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventSchedule;
+import org.apache.tez.dag.records.TezVertexID;
+
+/**
+ * Gives the highest priority to the tasks of the vertices with the longest remaining path to the
+ * end of the DAG, so that long chains of vertices do not wait behind short side branches. The
+ * remaining path of a vertex is the expected duration of its tasks, plus the longest remaining
+ * path of the vertices it outputs to. A vertex therefore always comes before the vertices it
+ * outputs to.</p>
+ * The expected task duration of a vertex is the mean duration of its succeeded attempts, or
+ * the mean of all the succeeded attempts of the DAG until one of its own succeeds. Before any
+ * attempt succeeds, all vertices count the same and the longest chain of vertices comes first.
+ * Priorities are recomputed as attempts succeed; attempts already scheduled keep theirs.
+ */
+@SuppressWarnings("rawtypes")
+public class DAGSchedulerCriticalPath extends DAGScheduler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DAGSchedulerCriticalPath.class);
+
+  private final DAG dag;
+  private final EventHandler handler;
+
+  // Durations of the succeeded attempts, by vertex and for the whole DAG
+  private final Map<TezVertexID, Durations> vertexDurations =
+      new HashMap<TezVertexID, Durations>();
+  private final Durations dagDurations = new Durations();
+  // Position of each vertex once sorted by remaining path, longest first. Null when outdated
+  private Map<TezVertexID, Integer> vertexRanks = null;
+
+  public DAGSchedulerCriticalPath(DAG dag, EventHandler dispatcher) {
+    this.dag = dag;
+    this.handler = dispatcher;
+  }
+
+  @Override
+  public void scheduleTaskEx(DAGEventSchedulerUpdate event) {
+    TaskAttempt attempt = event.getAttempt();
+    if (vertexRanks == null) {
+      vertexRanks = computeVertexRanks();
+    }
+    int rank = vertexRanks.get(attempt.getVertexID());
+
+    // Same band of 3 per vertex as the natural order. Handles failures and retries.
+    int priorityLowLimit = (rank + 1) * 3;
+    int priorityHighLimit = priorityLowLimit - 2;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Scheduling " + attempt.getID() + " between priorityLow: " + priorityLowLimit
+          + " and priorityHigh: " + priorityHighLimit);
+    }
+
+    TaskAttemptEventSchedule attemptEvent = new TaskAttemptEventSchedule(
+        attempt.getID(), priorityLowLimit, priorityHighLimit);
+
+    sendEvent(attemptEvent);
+  }
+
+  @Override
+  public void taskCompletedEx(DAGEventSchedulerUpdate event) {
+    TaskAttempt attempt = event.getAttempt();
+    if (attempt.getState() != TaskAttemptState.SUCCEEDED || attempt.getLaunchTime() <= 0
+        || attempt.getFinishTime() < attempt.getLaunchTime()) {
+      return;
+    }
+    long duration = attempt.getFinishTime() - attempt.getLaunchTime();
+    Durations durations = vertexDurations.get(attempt.getVertexID());
+    if (durations == null) {
+      durations = new Durations();
+      vertexDurations.put(attempt.getVertexID(), durations);
+    }
+    durations.add(duration);
+    dagDurations.add(duration);
+    vertexRanks = null;
+  }
+
+  private Map<TezVertexID, Integer> computeVertexRanks() {
+    final Map<Vertex, Double> remainingPaths = new HashMap<Vertex, Double>();
+    List<Vertex> vertices = new ArrayList<Vertex>(dag.getVertices().values());
+    for (Vertex vertex : vertices) {
+      computeRemainingPath(vertex, remainingPaths);
+    }
+    Collections.sort(vertices, new Comparator<Vertex>() {
+      @Override
+      public int compare(Vertex v1, Vertex v2) {
+        int result = Double.compare(remainingPaths.get(v2), remainingPaths.get(v1));
+        if (result == 0) {
+          result = Integer.compare(v1.getDistanceFromRoot(), v2.getDistanceFromRoot());
+        }
+        if (result == 0) {
+          result = Integer.compare(v1.getVertexId().getId(), v2.getVertexId().getId());
+        }
+        return result;
+      }
+    });
+    Map<TezVertexID, Integer> ranks = new HashMap<TezVertexID, Integer>();
+    for (int i = 0; i < vertices.size(); i++) {
+      ranks.put(vertices.get(i).getVertexId(), i);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Vertex remaining paths: " + remainingPaths + ", ranks: " + ranks);
+    }
+    return ranks;
+  }
+
+  private double computeRemainingPath(Vertex vertex, Map<Vertex, Double> remainingPaths) {
+    Double remainingPath = remainingPaths.get(vertex);
+    if (remainingPath != null) {
+      return remainingPath;
+    }
+    double longestOutputPath = 0;
+    for (Vertex outputVertex : vertex.getOutputVertices().keySet()) {
+      longestOutputPath = Math.max(longestOutputPath,
+          computeRemainingPath(outputVertex, remainingPaths));
+    }
+    remainingPath = getExpectedTaskDuration(vertex) + longestOutputPath;
+    remainingPaths.put(vertex, remainingPath);
+    return remainingPath;
+  }
+
+  private double getExpectedTaskDuration(Vertex vertex) {
+    Durations durations = vertexDurations.get(vertex.getVertexId());
+    if (durations != null) {
+      return durations.mean();
+    }
+    if (dagDurations.count > 0) {
+      return dagDurations.mean();
+    }
+    return 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  void sendEvent(TaskAttemptEventSchedule event) {
+    handler.handle(event);
+  }
+
+  private static class Durations {
+    long total;
+    int count;
+
+    void add(long duration) {
+      total += duration;
+      count++;
+    }
+
+    double mean() {
+      return (double) total / count;
+    }
+  }
+}
@@ -573,6 +573,19 @@ public class Edge {
     return pendingEvents.remove(attemptID);
   }
   
+  /**
+   * @return the index of the only destination task an on demand routed event can go to, or -1
+   *         if it may be routed to any of them
+   */
+  int getOnlyDestinationTaskIndex(TezEvent tezEvent, int srcTaskIndex) {
+    if (edgeManager instanceof OneToOneEdgeManagerOnDemand
+        && (tezEvent.getEventType() == EventType.DATA_MOVEMENT_EVENT
+            || tezEvent.getEventType() == EventType.COMPOSITE_DATA_MOVEMENT_EVENT)) {
+      return srcTaskIndex;
+    }
+    return -1;
+  }
+
   // return false is event could be routed but ran out of space in the list
   public boolean maybeAddTezEventForDestinationTask(TezEvent tezEvent, TezTaskAttemptID attemptID,
       int srcTaskIndex, List<TezEvent> listToAdd, int listMaxSize, 
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tez.dag.app.dag.impl.VertexImpl.EventInfo;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.runtime.api.impl.EventType;
+
+/**
+ * Append-only store of the events a vertex routes on demand. Events are identified by their
+ * position in the store, which is the event id task heartbeats resume from.
+ * <p/>
+ * Besides the log of all the events, the store indexes
+ * <ul>
+ *   <li>the ids of the events which can only be routed to a single destination task, apart
+ *   from the ids of the events which may go to any of them, so that a heartbeat only visits
+ *   the events its task may receive.</li>
+ *   <li>the data movement events of every source attempt, so that they can be obsoleted
+ *   without scanning the store.</li>
+ * </ul>
+ * Events are added by one thread at a time while heartbeats read the store without locking:
+ * an event, and its place in the indices, is visible to readers once {@link #size()} covers
+ * it.
+ */
+final class OnDemandRouteEventStore {
+
+  private final ObjectLog<EventInfo> events = new ObjectLog<EventInfo>();
+  // Ids of the events which may be routed to any destination task
+  private final IdLog anyDestinationIds = new IdLog();
+  // Ids of the events which can only be routed to one destination task, by task index
+  private final Map<Integer, IdLog> destinationIds = new ConcurrentHashMap<Integer, IdLog>();
+  // Data movement events by source attempt, only used by the writer
+  private final Map<TezTaskAttemptID, List<EventInfo>> dataMovementEvents =
+      new HashMap<TezTaskAttemptID, List<EventInfo>>();
+
+  /**
+   * Add an event, which gets the next id.
+   */
+  synchronized void add(EventInfo eventInfo) {
+    int id = events.size();
+    if (eventInfo.destinationTaskIndex < 0) {
+      anyDestinationIds.add(id);
+    } else {
+      IdLog ids = destinationIds.get(eventInfo.destinationTaskIndex);
+      if (ids == null) {
+        ids = new IdLog();
+        destinationIds.put(eventInfo.destinationTaskIndex, ids);
+      }
+      ids.add(id);
+    }
+    EventType eventType = eventInfo.tezEvent.getEventType();
+    if (eventType == EventType.DATA_MOVEMENT_EVENT
+        || eventType == EventType.COMPOSITE_DATA_MOVEMENT_EVENT) {
+      TezTaskAttemptID srcAttemptId = eventInfo.tezEvent.getSourceInfo().getTaskAttemptID();
+      List<EventInfo> attemptEvents = dataMovementEvents.get(srcAttemptId);
+      if (attemptEvents == null) {
+        attemptEvents = new ArrayList<EventInfo>(1);
+        dataMovementEvents.put(srcAttemptId, attemptEvents);
+      }
+      attemptEvents.add(eventInfo);
+    }
+    // Published last, so that readers find the event in the indices as soon as they see it
+    events.add(eventInfo);
+  }
+
+  /**
+   * Mark the data movement events received from a source attempt on an edge as obsolete.
+   *
+   * @return true if there were any
+   */
+  synchronized boolean obsoleteDataMovementEvents(Edge srcEdge, TezTaskAttemptID srcAttemptId) {
+    List<EventInfo> attemptEvents = dataMovementEvents.get(srcAttemptId);
+    if (attemptEvents == null) {
+      return false;
+    }
+    boolean found = false;
+    for (EventInfo eventInfo : attemptEvents) {
+      if (eventInfo.eventEdge == srcEdge) {
+        eventInfo.isObsolete = true;
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  int size() {
+    return events.size();
+  }
+
+  EventInfo get(int id) {
+    return events.get(id);
+  }
+
+  /**
+   * @return the events which may be routed to a destination task, from
+   *         <code>fromEventId</code> up to the current size of the store
+   */
+  Cursor getEvents(int destinationTaskIndex, int fromEventId) {
+    return new Cursor(destinationTaskIndex, fromEventId);
+  }
+
+  /**
+   * Iterates, in id order, over the events of a destination task which were in the store when
+   * it was created. Used by a single thread.
+   */
+  final class Cursor {
+    private final int limit;
+    private final int[] ids;
+    private final int idCount;
+    private final int[] anyIds;
+    private final int anyIdCount;
+    private int idPos;
+    private int anyIdPos;
+
+    private Cursor(int destinationTaskIndex, int fromEventId) {
+      // The size is read first, the indices already cover every event below it. This includes
+      // the id log of the destination task, which may be added along with its first event.
+      this.limit = events.size();
+      this.anyIdCount = anyDestinationIds.size();
+      this.anyIds = anyDestinationIds.ids;
+      this.anyIdPos = IdLog.search(anyIds, anyIdCount, fromEventId);
+      IdLog taskIds = destinationIds.get(destinationTaskIndex);
+      if (taskIds != null) {
+        this.idCount = taskIds.size();
+        this.ids = taskIds.ids;
+        this.idPos = IdLog.search(ids, idCount, fromEventId);
+      } else {
+        this.idCount = 0;
+        this.ids = null;
+      }
+    }
+
+    /**
+     * @return the size of the store when the cursor was created, the id the next read should
+     *         start from once the cursor is exhausted
+     */
+    int getLimit() {
+      return limit;
+    }
+
+    /**
+     * @return the id of the next event, or {@link #getLimit()} if there are no more
+     */
+    int peekId() {
+      int id = idPos < idCount ? ids[idPos] : limit;
+      int anyId = anyIdPos < anyIdCount ? anyIds[anyIdPos] : limit;
+      return Math.min(Math.min(id, anyId), limit);
+    }
+
+    /**
+     * @return the next event, or null if there are no more
+     */
+    EventInfo next() {
+      int id = peekId();
+      if (id == limit) {
+        return null;
+      }
+      if (idPos < idCount && ids[idPos] == id) {
+        idPos++;
+      } else {
+        anyIdPos++;
+      }
+      return events.get(id);
+    }
+  }
+
+  /**
+   * Growable array of ints with a single writer and lock-free readers. A reader reads the size
+   * before the array: the array then has at least that many valid entries, since a replaced
+   * array is only ever copied into a larger one.
+   */
+  private static final class IdLog {
+    private volatile int[] ids = new int[16];
+    private volatile int size;
+
+    void add(int id) {
+      int[] current = ids;
+      if (size == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+        ids = current;
+      }
+      current[size] = id;
+      size = size + 1;
+    }
+
+    int size() {
+      return size;
+    }
+
+    // Position of the first id which is at least fromId
+    static int search(int[] ids, int count, int fromId) {
+      int pos = Arrays.binarySearch(ids, 0, count, fromId);
+      return pos >= 0 ? pos : -(pos + 1);
+    }
+  }
+
+  /**
+   * Growable array of objects, with the same visibility rules as {@link IdLog}.
+   */
+  private static final class ObjectLog<T> {
+    private volatile Object[] entries = new Object[1024];
+    private volatile int size;
+
+    void add(T entry) {
+      Object[] current = entries;
+      if (size == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+        entries = current;
+      }
+      current[size] = entry;
+      size = size + 1;
+    }
+
+    int size() {
+      return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+      // The size is read first, to see the entries it covers
+      if (index >= size) {
+        throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+      }
+      return (T) entries[index];
+    }
+  }
+}
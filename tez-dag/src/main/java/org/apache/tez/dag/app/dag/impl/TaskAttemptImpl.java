@@ -61,6 +61,7 @@ import org.apache.hadoop.yarn.util.Clock;
 import org.apache.hadoop.yarn.util.RackResolver;
 import org.apache.hadoop.yarn.util.Records;
 import org.apache.tez.common.TezUtilsInternal;
+import org.apache.tez.common.counters.CompactCounters;
 import org.apache.tez.common.counters.DAGCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezConfiguration;
@@ -130,6 +131,10 @@ public class TaskAttemptImpl implements TaskAttempt,
   private static final Logger LOG = LoggerFactory.getLogger(TaskAttemptImpl.class);
   private static final String LINE_SEPARATOR = System
       .getProperty("line.separator");
+
+  private static final EnumSet<TaskAttemptStateInternal> DONE_STATES = EnumSet.of(
+      TaskAttemptStateInternal.SUCCEEDED, TaskAttemptStateInternal.FAILED,
+      TaskAttemptStateInternal.KILLED);
   
   public static class DataEventDependencyInfo {
     long timestamp;
@@ -201,8 +206,13 @@ public class TaskAttemptImpl implements TaskAttempt,
   @VisibleForTesting
   TaskAttemptStatus reportedStatus;
   private DAGCounter localityCounter;
+  // The counters once the attempt is done, which then replace the ones of reportedStatus
+  private CompactCounters finishedCounters;
+  // Set when the counters of the task have to be refreshed in the vertex once the lock is
+  // released
+  private boolean refreshTaskCounters;
   
-  org.apache.tez.runtime.api.impl.TaskStatistics statistics;
+  volatile org.apache.tez.runtime.api.impl.TaskStatistics statistics;
 
   long lastNotifyProgressTimestamp = 0;
   private final long hungIntervalMax;
@@ -669,6 +679,9 @@ public class TaskAttemptImpl implements TaskAttempt,
   public TezCounters getCounters() {
     readLock.lock();
     try {
+      if (finishedCounters != null) {
+        return finishedCounters.toTezCounters();
+      }
       reportedStatus.setLocalityCounter(this.localityCounter);
       TezCounters counters = reportedStatus.counters;
       if (counters == null) {
@@ -680,7 +693,23 @@ public class TaskAttemptImpl implements TaskAttempt,
     }
   }
   
-  TaskStatistics getStatistics() {
+  /**
+   * @return the counters of {@link #getCounters()}, without a copy once the attempt is done
+   */
+  CompactCounters getCompactCounters() {
+    readLock.lock();
+    try {
+      if (finishedCounters != null) {
+        return finishedCounters;
+      }
+      return CompactCounters.create(getCounters());
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public TaskStatistics getStatistics() {
     return this.statistics;
   }
 
@@ -858,6 +887,7 @@ public class TaskAttemptImpl implements TaskAttempt,
           + " of type " + event.getType() + " while in state "
           + getInternalState() + ". Event: " + event);
     }
+    boolean refresh;
     writeLock.lock();
     try {
       final TaskAttemptStateInternal oldState = getInternalState();
@@ -897,10 +927,31 @@ public class TaskAttemptImpl implements TaskAttempt,
               + getInternalState() + " due to event "
               + event.getType());
         }
+        maybeCompactCounters();
+        refreshTaskCounters = true;
       }
     } finally {
+      refresh = refreshTaskCounters;
+      refreshTaskCounters = false;
       writeLock.unlock();
     }
+    // State changes, and counters which could not be added to the running sum of the vertex as
+    // deltas, alter the counters of the task in a way only reading it again accounts for. Done
+    // once the lock of the attempt is released, as it takes the lock of the task
+    if (refresh && vertex instanceof VertexImpl) {
+      ((VertexImpl) vertex).updateTaskCounters(attemptId.getTaskID());
+    }
+  }
+
+  // The counters of done attempts no longer change, keep them in a compact form. A DAG can
+  // have a lot of them.
+  private void maybeCompactCounters() {
+    if (finishedCounters == null && DONE_STATES.contains(getInternalState())) {
+      reportedStatus.setLocalityCounter(this.localityCounter);
+      finishedCounters = reportedStatus.counters == null ? CompactCounters.EMPTY
+          : CompactCounters.create(reportedStatus.counters);
+      reportedStatus.counters = null;
+    }
   }
 
   @VisibleForTesting
@@ -1374,7 +1425,7 @@ public class TaskAttemptImpl implements TaskAttempt,
         AMContainer amContainer = ta.appContext.getAllContainers().get(tEvent.getContainerId());
         Container container = amContainer.getContainer();
 
-        ta.allocationTime = amContainer.getCurrentTaskAttemptAllocationTime();
+        ta.allocationTime = amContainer.getTaskAttemptAllocationTime(ta.attemptId);
         ta.container = container;
         ta.containerId = tEvent.getContainerId();
         ta.containerNodeId = container.getNodeId();
@@ -1386,7 +1437,7 @@ public class TaskAttemptImpl implements TaskAttempt,
         AMContainer amContainer = ta.appContext.getAllContainers().get(tEvent.getContainerId());
         Container container = amContainer.getContainer();
 
-        ta.allocationTime = amContainer.getCurrentTaskAttemptAllocationTime();
+        ta.allocationTime = amContainer.getTaskAttemptAllocationTime(ta.attemptId);
         ta.container = container;
         ta.containerId = tEvent.getContainerId();
         ta.containerNodeId = container.getNodeId();
@@ -1427,7 +1478,7 @@ public class TaskAttemptImpl implements TaskAttempt,
       AMContainer amContainer = ta.appContext.getAllContainers().get(event.getContainerId());
       Container container = amContainer.getContainer();
 
-      ta.allocationTime = amContainer.getCurrentTaskAttemptAllocationTime();
+      ta.allocationTime = amContainer.getTaskAttemptAllocationTime(ta.attemptId);
       ta.container = container;
       ta.containerId = event.getContainerId();
       ta.containerNodeId = container.getNodeId();
@@ -1575,7 +1626,26 @@ public class TaskAttemptImpl implements TaskAttempt,
       TaskStatusUpdateEvent statusEvent = sEvent.getStatusEvent();
       ta.reportedStatus.state = ta.getState();
       ta.reportedStatus.progress = statusEvent.getProgress();
-      ta.reportedStatus.counters = statusEvent.getCounters();
+      TezCounters counters = statusEvent.getCounters();
+      if (statusEvent.isCounterDeltas()) {
+        // Applied in place, the counters received before are kept between updates
+        if (counters != null) {
+          if (ta.reportedStatus.counters == null) {
+            ta.reportedStatus.counters = counters;
+          } else {
+            ta.reportedStatus.counters.incrAllCounters(counters);
+          }
+        }
+      } else {
+        ta.reportedStatus.counters = counters;
+      }
+      if (counters != null) {
+        // Deltas are added to the counters the vertex keeps of the task, a full set has the
+        // task read again
+        ta.refreshTaskCounters = !statusEvent.isCounterDeltas()
+            || !(ta.vertex instanceof VertexImpl)
+            || !((VertexImpl) ta.vertex).addTaskAttemptCounters(ta.attemptId, counters);
+      }
       ta.statistics = statusEvent.getStatistics();
       if (statusEvent.getProgressNotified()) {
         ta.lastNotifyProgressTimestamp = ta.clock.getTime();
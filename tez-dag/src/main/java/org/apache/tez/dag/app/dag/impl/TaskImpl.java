@@ -50,6 +50,7 @@ import org.apache.hadoop.yarn.state.MultipleArcTransition;
 import org.apache.hadoop.yarn.state.SingleArcTransition;
 import org.apache.hadoop.yarn.state.StateMachineFactory;
 import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.common.counters.CompactCounters;
 import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TaskLocationHint;
@@ -461,11 +462,55 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     }
   }
   
+  /**
+   * Add the counters of {@link #getCounters()} to an aggregation, without copying them.
+   * @return the attempt whose counters were added, null if there is none
+   */
+  TezTaskAttemptID aggregateCounters(CompactCounters.Aggregator aggregator) {
+    aggregator.add(this.counters);
+    readLock.lock();
+    try {
+      TaskAttempt bestAttempt = selectBestAttempt();
+      if (bestAttempt instanceof TaskAttemptImpl) {
+        aggregator.add(((TaskAttemptImpl) bestAttempt).getCompactCounters());
+      } else if (bestAttempt != null) {
+        aggregator.add(bestAttempt.getCounters());
+      }
+      return bestAttempt == null ? null : bestAttempt.getID();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * @return the same counters as {@link #getCounters()}, shared with the best attempt when it
+   *         is done and the task has no counters of its own
+   */
+  CompactCounters getCompactCounters() {
+    if (this.counters.countCounters() > 0) {
+      CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+      aggregateCounters(aggregator);
+      return aggregator.toCompactCounters();
+    }
+    readLock.lock();
+    try {
+      TaskAttempt bestAttempt = selectBestAttempt();
+      if (bestAttempt instanceof TaskAttemptImpl) {
+        return ((TaskAttemptImpl) bestAttempt).getCompactCounters();
+      } else if (bestAttempt != null) {
+        return CompactCounters.create(bestAttempt.getCounters());
+      }
+      return CompactCounters.EMPTY;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
   TaskStatistics getStatistics() {
     // simply return the stats from the best attempt
     readLock.lock();
     try {
-      TaskAttemptImpl bestAttempt = (TaskAttemptImpl) selectBestAttempt();
+      TaskAttempt bestAttempt = selectBestAttempt();
       if (bestAttempt == null) {
         return null;
       }
@@ -1449,6 +1494,9 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     } finally {
       writeLock.unlock();
     }
+    if (vertex instanceof VertexImpl) {
+      ((VertexImpl) vertex).updateTaskCounters(taskId);
+    }
   }
 
 }
@@ -61,6 +61,7 @@ import org.apache.tez.client.TezClientUtils;
 import org.apache.tez.common.ATSConstants;
 import org.apache.tez.common.ReflectionUtils;
 import org.apache.tez.common.TezUtilsInternal;
+import org.apache.tez.common.counters.CompactCounters;
 import org.apache.tez.common.counters.LimitExceededException;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.io.NonSyncByteArrayInputStream;
@@ -234,6 +235,20 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   private TezCounters fullCounters = null;
   private TezCounters cachedCounters = null;
   private long cachedCountersTimestamp = 0;
+  // Counters of the succeeded tasks, and of the other tasks whose attempts reported any, by
+  // task, and their sums. Updated as tasks succeed and get rescheduled, and as the attempts of
+  // running tasks report counters or change state, so that reading the counters of a running
+  // vertex does not go through its tasks. Guarded by taskCountersLock, under which no other
+  // lock is taken
+  private final Object taskCountersLock = new Object();
+  private final Map<TezTaskID, CompactCounters> succeededTaskCounters =
+      new HashMap<TezTaskID, CompactCounters>();
+  private final CompactCounters.Aggregator succeededTaskCountersSum =
+      new CompactCounters.Aggregator();
+  private final Map<TezTaskID, RunningTaskCounters> runningTaskCounters =
+      new HashMap<TezTaskID, RunningTaskCounters>();
+  private final CompactCounters.Aggregator runningTaskCountersSum =
+      new CompactCounters.Aggregator();
   private Resource taskResource;
 
   // Merged/combined vertex level config
@@ -725,15 +740,11 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   // We may always store task events in the vertex for scalability
   List<TezEvent> pendingTaskEvents = Lists.newLinkedList();
   private boolean tasksNotYetScheduled = true;
-  // must be a random access structure
-  
-  private final List<EventInfo> onDemandRouteEvents = Lists.newArrayListWithCapacity(1000);
+  // heartbeats read it without locking while routed events are added
+  private final OnDemandRouteEventStore onDemandRouteEvents = new OnDemandRouteEventStore();
   // Do not send any events if attempt is failed due to INPUT_FAILED_EVENTS.
   private final Set<TezTaskAttemptID> failedTaskAttemptIDs = Sets.newHashSet();
-  private final ReadWriteLock onDemandRouteEventsReadWriteLock = new ReentrantReadWriteLock();
-  private final Lock onDemandRouteEventsReadLock = onDemandRouteEventsReadWriteLock.readLock();
-  private final Lock onDemandRouteEventsWriteLock = onDemandRouteEventsReadWriteLock.writeLock();
-  
+
   List<TezEvent> pendingRouteEvents = new LinkedList<TezEvent>();
   List<TezTaskAttemptID> pendingReportedSrcCompletions = Lists.newLinkedList();
 
@@ -773,11 +784,16 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
     final TezEvent tezEvent;
     final Edge eventEdge;
     final int eventTaskIndex;
-    boolean isObsolete = false;
-    EventInfo(TezEvent tezEvent, Edge eventEdge, int eventTaskIndex) {
+    // the only task the event can be routed to, -1 if it may go to any task
+    final int destinationTaskIndex;
+    volatile boolean isObsolete = false;
+    // event routed to destinationTaskIndex, kept for the next attempts of that task
+    volatile TezEvent routedEvent;
+    EventInfo(TezEvent tezEvent, Edge eventEdge, int eventTaskIndex, int destinationTaskIndex) {
       this.tezEvent = tezEvent;
       this.eventEdge = eventEdge;
       this.eventTaskIndex = eventTaskIndex;
+      this.destinationTaskIndex = destinationTaskIndex;
     }
   }
 
@@ -1187,8 +1203,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
         return fullCounters;
       }
 
-      TezCounters counters = new TezCounters();
-      return incrTaskCounters(counters, tasks.values());
+      return aggregateCounters().toTezCounters();
 
     } finally {
       readLock.unlock();
@@ -1215,8 +1230,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
         return fullCounters;
       }
 
-      TezCounters counters = new TezCounters();
-      cachedCounters = incrTaskCounters(counters, tasks.values());
+      cachedCounters = aggregateCounters().toTezCounters();
       return cachedCounters;
     } finally {
       readLock.unlock();
@@ -1319,12 +1333,141 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
     return false;
   }
 
-  public static TezCounters incrTaskCounters(
-      TezCounters counters, Collection<Task> tasks) {
+  // The running sums of the counters of the tasks, only the result is made a TezCounters
+  private CompactCounters.Aggregator aggregateCounters() {
+    CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+    synchronized (taskCountersLock) {
+      aggregator.add(succeededTaskCountersSum);
+      aggregator.add(runningTaskCountersSum);
+    }
+    return aggregator;
+  }
+
+  // Sums the counters of all the tasks up in arrays, for the final counters of the vertex
+  private static CompactCounters.Aggregator aggregateTaskCounters(Collection<Task> tasks) {
+    CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
     for (Task task : tasks) {
-      counters.incrAllCounters(task.getCounters());
+      if (task instanceof TaskImpl) {
+        ((TaskImpl) task).aggregateCounters(aggregator);
+      } else {
+        aggregator.add(task.getCounters());
+      }
+    }
+    return aggregator;
+  }
+
+  private static CompactCounters getCompactCounters(Task task) {
+    return task instanceof TaskImpl
+        ? ((TaskImpl) task).getCompactCounters() : CompactCounters.create(task.getCounters());
+  }
+
+  // The counters of a task which has not succeeded, with the attempt they include the ones of
+  private static final class RunningTaskCounters {
+    private final TezTaskAttemptID attemptId;
+    private final CompactCounters.Aggregator counters;
+    // Number of counter deltas of the attempt added since the counters were read from the task
+    private int deltas;
+
+    private RunningTaskCounters(TezTaskAttemptID attemptId,
+        CompactCounters.Aggregator counters) {
+      this.attemptId = attemptId;
+      this.counters = counters;
+    }
+  }
+
+  private void removeRunningTaskCounters(TezTaskID taskId) {
+    RunningTaskCounters counters = runningTaskCounters.remove(taskId);
+    if (counters != null) {
+      runningTaskCountersSum.subtract(counters.counters);
+    }
+  }
+
+  private void addSucceededTaskCounters(Task task) {
+    CompactCounters counters = getCompactCounters(task);
+    synchronized (taskCountersLock) {
+      removeRunningTaskCounters(task.getTaskId());
+      CompactCounters previous = succeededTaskCounters.put(task.getTaskId(), counters);
+      if (previous != null) {
+        succeededTaskCountersSum.subtract(previous);
+      }
+      succeededTaskCountersSum.add(counters);
+    }
+  }
+
+  private void removeSucceededTaskCounters(TezTaskID taskId) {
+    synchronized (taskCountersLock) {
+      CompactCounters counters = succeededTaskCounters.remove(taskId);
+      if (counters != null) {
+        succeededTaskCountersSum.subtract(counters);
+      }
+    }
+    updateTaskCounters(taskId);
+  }
+
+  /**
+   * Add the counter deltas a running attempt reported to the counters of its task, when they
+   * include the ones of the attempt already. Invoked with the lock of the attempt held, along
+   * with the update of its own counters.
+   * @return false if the task counters have to be refreshed with
+   *         {@link #updateTaskCounters(TezTaskID)} instead
+   */
+  boolean addTaskAttemptCounters(TezTaskAttemptID attemptId, TezCounters deltas) {
+    TezTaskID taskId = attemptId.getTaskID();
+    synchronized (taskCountersLock) {
+      // Succeeded tasks are summed up separately, and no longer change
+      if (succeededTaskCounters.containsKey(taskId)) {
+        return true;
+      }
+      RunningTaskCounters counters = runningTaskCounters.get(taskId);
+      if (counters == null || !attemptId.equals(counters.attemptId)) {
+        return false;
+      }
+      counters.counters.add(deltas);
+      counters.deltas++;
+      runningTaskCountersSum.add(deltas);
+      return true;
+    }
+  }
+
+  /**
+   * Refresh the counters of a task which has not succeeded, after its own changed, or its
+   * attempts changed state or reported counters which could not be added as deltas. Must not
+   * be invoked with a lock of the task or its attempts held.
+   */
+  void updateTaskCounters(TezTaskID taskId) {
+    Task task = getTask(taskId);
+    if (task == null) {
+      return;
+    }
+    while (true) {
+      RunningTaskCounters previous;
+      int previousDeltas;
+      synchronized (taskCountersLock) {
+        previous = runningTaskCounters.get(taskId);
+        previousDeltas = previous == null ? 0 : previous.deltas;
+      }
+      CompactCounters.Aggregator aggregator = new CompactCounters.Aggregator();
+      TezTaskAttemptID attemptId = null;
+      if (task instanceof TaskImpl) {
+        attemptId = ((TaskImpl) task).aggregateCounters(aggregator);
+      } else {
+        aggregator.add(task.getCounters());
+      }
+      synchronized (taskCountersLock) {
+        // Succeeded tasks are summed up separately, and no longer change
+        if (succeededTaskCounters.containsKey(taskId)) {
+          return;
+        }
+        // Deltas added while the task was read may be missing from what was read, read again
+        RunningTaskCounters current = runningTaskCounters.get(taskId);
+        if (current == previous && (current == null || current.deltas == previousDeltas)) {
+          removeRunningTaskCounters(taskId);
+          runningTaskCounters.put(taskId, new RunningTaskCounters(attemptId, aggregator));
+          runningTaskCountersSum.add(aggregator);
+          return;
+        }
+      }
     }
-    return counters;
   }
 
   public static VertexStats updateVertexStats(
@@ -1458,7 +1601,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   }
 
   @VisibleForTesting
-  List<EventInfo> getOnDemandRouteEvents() {
+  OnDemandRouteEventStore getOnDemandRouteEvents() {
     return onDemandRouteEvents;
   }
   
@@ -3311,9 +3454,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
 
     for (Task t : this.tasks.values()) {
       vertexStats.updateStats(t.getReport());
-      TezCounters counters = t.getCounters();
-      this.fullCounters.incrAllCounters(counters);
     }
+    this.fullCounters.incrAllCounters(aggregateTaskCounters(tasks.values()).toTezCounters());
   }
 
   private static class RootInputInitFailedTransition implements
@@ -3519,6 +3661,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
       Task task = vertex.tasks.get(taskEvent.getTaskID());
       if (taskEvent.getState() == TaskState.SUCCEEDED) {
         taskSucceeded(vertex, task);
+        vertex.addSucceededTaskCounters(task);
         if (!vertex.completedTasksStatsCache.containsTask(task.getTaskId())) {
           vertex.completedTasksStatsCache.addTask(task.getTaskId());
           vertex.completedTasksStatsCache.mergeFrom(((TaskImpl) task).getStatistics());
@@ -3572,6 +3715,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
       //succeeded task is restarted back
       vertex.completedTaskCount--;
       vertex.succeededTaskCount--;
+      vertex.removeSucceededTaskCounters(((VertexEventTaskReschedule) event).getTaskID());
       vertex.resetCompletedTaskStatsCache(true);
     }
   }
@@ -3751,102 +3895,111 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
         attemptID, preRoutedFromEventId, maxEvents);
     int nextPreRoutedFromEventId = preRoutedFromEventId + events.size();
     int nextFromEventId = fromEventId;
-    onDemandRouteEventsReadLock.lock();
+    int taskIndex = attemptID.getTaskID().getId();
+    // only visit the events which may be routed to this task
+    OnDemandRouteEventStore.Cursor cursor = onDemandRouteEvents.getEvents(taskIndex, fromEventId);
+    int currEventCount = cursor.getLimit();
     try {
-      int currEventCount = onDemandRouteEvents.size();
-      try {
-        if (currEventCount > fromEventId) {
-          if (events != TaskImpl.EMPTY_TASK_ATTEMPT_TEZ_EVENTS) {
-            events.ensureCapacity(maxEvents);
-          } else {
-            events = Lists.newArrayListWithCapacity(maxEvents);
+      if (currEventCount > fromEventId) {
+        if (events != TaskImpl.EMPTY_TASK_ATTEMPT_TEZ_EVENTS) {
+          events.ensureCapacity(maxEvents);
+        } else {
+          events = Lists.newArrayListWithCapacity(maxEvents);
+        }
+        int numPreRoutedEvents = events.size();
+        Preconditions.checkState(taskIndex < tasks.size(), "Invalid task index for TA: " + attemptID
+            + " vertex: " + getLogIdentifier());
+        boolean isFirstEvent = true;
+        boolean firstEventObsoleted = false;
+        while (true) {
+          boolean earlyExit = false;
+          nextFromEventId = cursor.peekId();
+          if (nextFromEventId == currEventCount || events.size() == maxEvents) {
+            break;
           }
-          int numPreRoutedEvents = events.size();
-          int taskIndex = attemptID.getTaskID().getId();
-          Preconditions.checkState(taskIndex < tasks.size(), "Invalid task index for TA: " + attemptID
-              + " vertex: " + getLogIdentifier());
-          boolean isFirstEvent = true;
-          boolean firstEventObsoleted = false;
-          for (nextFromEventId = fromEventId; nextFromEventId < currEventCount; ++nextFromEventId) {
-            boolean earlyExit = false;
-            if (events.size() == maxEvents) {
-              break;
-            }
-            EventInfo eventInfo = onDemandRouteEvents.get(nextFromEventId);
-            if (eventInfo.isObsolete) {
-              // ignore obsolete events
-              firstEventObsoleted = true;
-              continue;
-            }
-            TezEvent tezEvent = eventInfo.tezEvent;
-            switch(tezEvent.getEventType()) {
-            case INPUT_FAILED_EVENT:
-            case DATA_MOVEMENT_EVENT:
-            case COMPOSITE_DATA_MOVEMENT_EVENT:
-              {
-                int srcTaskIndex = eventInfo.eventTaskIndex;
-                Edge srcEdge = eventInfo.eventEdge;
-                PendingEventRouteMetadata pendingRoute = null;
-                if (isFirstEvent) {
-                  // the first event is the one that can have pending routes because its expanded
-                  // events had not been completely sent in the last round.
-                  isFirstEvent = false;
-                  pendingRoute = srcEdge.removePendingEvents(attemptID);
-                  if (pendingRoute != null) {
-                    // the first event must match the pending route event
-                    // the only reason it may not match is if in between rounds that event got
-                    // obsoleted
-                    if(tezEvent != pendingRoute.getTezEvent()) {
-                      Preconditions.checkState(firstEventObsoleted);
-                      // pending routes can be ignored for obsoleted events
-                      pendingRoute = null;
-                    }
+          EventInfo eventInfo = cursor.next();
+          if (eventInfo.isObsolete) {
+            // ignore obsolete events
+            firstEventObsoleted = true;
+            continue;
+          }
+          TezEvent tezEvent = eventInfo.tezEvent;
+          switch(tezEvent.getEventType()) {
+          case INPUT_FAILED_EVENT:
+          case DATA_MOVEMENT_EVENT:
+          case COMPOSITE_DATA_MOVEMENT_EVENT:
+            {
+              int srcTaskIndex = eventInfo.eventTaskIndex;
+              Edge srcEdge = eventInfo.eventEdge;
+              PendingEventRouteMetadata pendingRoute = null;
+              if (isFirstEvent) {
+                // the first event is the one that can have pending routes because its expanded
+                // events had not been completely sent in the last round.
+                isFirstEvent = false;
+                pendingRoute = srcEdge.removePendingEvents(attemptID);
+                if (pendingRoute != null) {
+                  // the first event must match the pending route event
+                  // the only reason it may not match is if in between rounds that event got
+                  // obsoleted
+                  if(tezEvent != pendingRoute.getTezEvent()) {
+                    Preconditions.checkState(firstEventObsoleted);
+                    // pending routes can be ignored for obsoleted events
+                    pendingRoute = null;
                   }
                 }
-                if (!srcEdge.maybeAddTezEventForDestinationTask(tezEvent, attemptID, srcTaskIndex,
-                    events, maxEvents, pendingRoute)) {
-                  // not enough space left for this iteration events.
-                  // Exit and start from here next time
-                  earlyExit = true;
-                }
               }
-              break;
-            case ROOT_INPUT_DATA_INFORMATION_EVENT:
-              {
-                InputDataInformationEvent riEvent = (InputDataInformationEvent) tezEvent.getEvent();
-                if (riEvent.getTargetIndex() == taskIndex) {
-                  events.add(tezEvent);
-                }
+              TezEvent routedEvent = eventInfo.routedEvent;
+              if (routedEvent != null) {
+                // already routed for an earlier attempt of this task
+                events.add(routedEvent);
+                break;
+              }
+              int numEvents = events.size();
+              if (!srcEdge.maybeAddTezEventForDestinationTask(tezEvent, attemptID, srcTaskIndex,
+                  events, maxEvents, pendingRoute)) {
+                // not enough space left for this iteration events.
+                // Exit and start from here next time
+                earlyExit = true;
+              } else if (eventInfo.destinationTaskIndex >= 0
+                  && tezEvent.getEventType() == EventType.COMPOSITE_DATA_MOVEMENT_EVENT
+                  && events.size() == numEvents + 1) {
+                eventInfo.routedEvent = events.get(numEvents);
               }
-              break;
-            default:
-              throw new TezUncheckedException("Unexpected event type for task: "
-                  + tezEvent.getEventType());
             }
-            if (earlyExit) {
-              break;
+            break;
+          case ROOT_INPUT_DATA_INFORMATION_EVENT:
+            {
+              InputDataInformationEvent riEvent = (InputDataInformationEvent) tezEvent.getEvent();
+              if (riEvent.getTargetIndex() == taskIndex) {
+                events.add(tezEvent);
+              }
             }
+            break;
+          default:
+            throw new TezUncheckedException("Unexpected event type for task: "
+                + tezEvent.getEventType());
           }
-          int numEventsSent = events.size() - numPreRoutedEvents;
-          if (numEventsSent > 0) {
-            StringBuilder builder = new StringBuilder();
-            builder.append("Sending ").append(attemptID).append(" ")
-                .append(numEventsSent)
-                .append(" events [").append(fromEventId).append(",").append(nextFromEventId)
-                .append(") total ").append(currEventCount).append(" ")
-                .append(getLogIdentifier());
-            LOG.info(builder.toString());
+          if (earlyExit) {
+            break;
           }
         }
-      } catch (AMUserCodeException e) {
-        String msg = "Exception in " + e.getSource() + ", vertex=" + getLogIdentifier();
-        LOG.error(msg, e);
-        eventHandler.handle(new VertexEventManagerUserCodeError(getVertexId(), e));
-        nextFromEventId = fromEventId;
-        events.clear();
+        int numEventsSent = events.size() - numPreRoutedEvents;
+        if (numEventsSent > 0) {
+          StringBuilder builder = new StringBuilder();
+          builder.append("Sending ").append(attemptID).append(" ")
+              .append(numEventsSent)
+              .append(" events [").append(fromEventId).append(",").append(nextFromEventId)
+              .append(") total ").append(currEventCount).append(" ")
+              .append(getLogIdentifier());
+          LOG.info(builder.toString());
+        }
       }
-    } finally {
-      onDemandRouteEventsReadLock.unlock();
+    } catch (AMUserCodeException e) {
+      String msg = "Exception in " + e.getSource() + ", vertex=" + getLogIdentifier();
+      LOG.error(msg, e);
+      eventHandler.handle(new VertexEventManagerUserCodeError(getVertexId(), e));
+      nextFromEventId = fromEventId;
+      events.clear();
     }
     if (!events.isEmpty()) {
       for (int i=(events.size() - 1); i>=0; --i) {
@@ -4015,8 +4168,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
   }
   
   private void processOnDemandEvent(TezEvent tezEvent, Edge srcEdge, int srcTaskIndex) {
-    onDemandRouteEventsWriteLock.lock();
-    try {
+    synchronized (onDemandRouteEvents) {
       if (tezEvent.getEventType() == EventType.DATA_MOVEMENT_EVENT ||
           tezEvent.getEventType() == EventType.COMPOSITE_DATA_MOVEMENT_EVENT) {
         // Prevent any failed task (due to INPUT_FAILED_EVENT) sending events downstream. E.g LLAP
@@ -4024,26 +4176,16 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex, EventHandl
           return;
         }
       }
-      onDemandRouteEvents.add(new EventInfo(tezEvent, srcEdge, srcTaskIndex));
+      onDemandRouteEvents.add(new EventInfo(tezEvent, srcEdge, srcTaskIndex,
+          srcEdge.getOnlyDestinationTaskIndex(tezEvent, srcTaskIndex)));
       if (tezEvent.getEventType() == EventType.INPUT_FAILED_EVENT) {
-        for (EventInfo eventInfo : onDemandRouteEvents) {
-          if (eventInfo.eventEdge == srcEdge 
-              && eventInfo.tezEvent.getSourceInfo().getTaskAttemptID().equals(
-                 tezEvent.getSourceInfo().getTaskAttemptID())
-              && (eventInfo.tezEvent.getEventType() == EventType.DATA_MOVEMENT_EVENT
-                  || eventInfo.tezEvent
-                      .getEventType() == EventType.COMPOSITE_DATA_MOVEMENT_EVENT)) {
-            // any earlier data movement events from the same source
-            // edge+task
-            // can be obsoleted by an input failed event from the
-            // same source edge+task
-            eventInfo.isObsolete = true;
-            failedTaskAttemptIDs.add(tezEvent.getSourceInfo().getTaskAttemptID());
-          }
+        // any earlier data movement events from the same source edge+task
+        // can be obsoleted by an input failed event from the same source edge+task
+        TezTaskAttemptID srcAttemptId = tezEvent.getSourceInfo().getTaskAttemptID();
+        if (onDemandRouteEvents.obsoleteDataMovementEvents(srcEdge, srcAttemptId)) {
+          failedTaskAttemptIDs.add(srcAttemptId);
         }
       }
-    } finally {
-      onDemandRouteEventsWriteLock.unlock();
     }
   }
 
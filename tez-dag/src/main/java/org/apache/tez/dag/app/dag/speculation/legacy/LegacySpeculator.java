@@ -27,7 +27,12 @@ import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.common.ReflectionUtils;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezReflectionException;
+import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.api.oldrecords.TaskState;
 import org.apache.tez.dag.app.AppContext;
@@ -92,8 +97,12 @@ public class LegacySpeculator {
   private final Clock clock;
   private long nextSpeculateTime = Long.MIN_VALUE;
 
+  // To find the resources available to the vertex. Null when unknown
+  private final AppContext context;
+  private final boolean limitByHeadroom;
+
   public LegacySpeculator(Configuration conf, AppContext context, Vertex vertex) {
-    this(conf, context.getClock(), vertex);
+    this(conf, getEstimator(conf, vertex), context.getClock(), context, vertex);
   }
 
   public LegacySpeculator(Configuration conf, Clock clock, Vertex vertex) {
@@ -102,7 +111,15 @@ public class LegacySpeculator {
   
   static private TaskRuntimeEstimator getEstimator
       (Configuration conf, Vertex vertex) {
-    TaskRuntimeEstimator estimator = new LegacyTaskRuntimeEstimator();
+    String estimatorClassName = conf.get(TezConfiguration.TEZ_AM_SPECULATION_ESTIMATOR_CLASS,
+        TezConfiguration.TEZ_AM_SPECULATION_ESTIMATOR_CLASS_DEFAULT);
+    TaskRuntimeEstimator estimator;
+    try {
+      estimator = ReflectionUtils.createClazzInstance(estimatorClassName);
+    } catch (TezReflectionException e) {
+      throw new TezUncheckedException("Failed to create the task runtime estimator "
+          + estimatorClassName, e);
+    }
     estimator.contextualize(conf, vertex);
     
     return estimator;
@@ -113,9 +130,18 @@ public class LegacySpeculator {
   // Normally we figure out our own estimator.
   public LegacySpeculator
       (Configuration conf, TaskRuntimeEstimator estimator, Clock clock, Vertex vertex) {
+    this(conf, estimator, clock, null, vertex);
+  }
+
+  public LegacySpeculator(Configuration conf, TaskRuntimeEstimator estimator, Clock clock,
+      AppContext context, Vertex vertex) {
     this.vertex = vertex;
     this.estimator = estimator;
     this.clock = clock;
+    this.context = context;
+    this.limitByHeadroom = context != null && conf.getBoolean(
+        TezConfiguration.TEZ_AM_SPECULATION_LIMIT_BY_HEADROOM,
+        TezConfiguration.TEZ_AM_SPECULATION_LIMIT_BY_HEADROOM_DEFAULT);
   }
 
 /*   *************************************************************    */
@@ -351,6 +377,10 @@ public class LegacySpeculator {
     numberAllowedSpeculativeTasks
         = (int) Math.max(numberAllowedSpeculativeTasks,
                          PROPORTION_RUNNING_TASKS_SPECULATABLE * numberRunningTasks);
+    if (limitByHeadroom) {
+      numberAllowedSpeculativeTasks = (int) Math.min(numberAllowedSpeculativeTasks,
+          (long) numberSpeculationsAlready + getHeadroomInTasks());
+    }
 
     // If we found a speculation target, fire it off
     if (bestTaskID != null
@@ -362,6 +392,25 @@ public class LegacySpeculator {
     return successes;
   }
 
+  // The number of tasks of the vertex which fit in the resources available to its scheduler
+  private int getHeadroomInTasks() {
+    Resource available = context.getTaskScheduler().getAvailableResources(
+        vertex.getTaskSchedulerIdentifier());
+    Resource taskResource = vertex.getTaskResource();
+    if (available == null || taskResource == null) {
+      return Integer.MAX_VALUE;
+    }
+    int headroom = Integer.MAX_VALUE;
+    if (taskResource.getMemory() > 0) {
+      headroom = Math.min(headroom, available.getMemory() / taskResource.getMemory());
+    }
+    if (taskResource.getVirtualCores() > 0) {
+      headroom = Math.min(headroom,
+          available.getVirtualCores() / taskResource.getVirtualCores());
+    }
+    return Math.max(headroom, 0);
+  }
+
   static class TaskAttemptHistoryStatistics {
 
     private long estimatedRunTime;
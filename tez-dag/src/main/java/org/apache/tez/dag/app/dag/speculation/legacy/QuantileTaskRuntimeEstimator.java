@@ -0,0 +1,290 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.speculation.legacy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
+import org.apache.tez.dag.app.dag.Task;
+import org.apache.tez.dag.app.dag.TaskAttempt;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.runtime.api.impl.IOStatistics;
+import org.apache.tez.runtime.api.impl.TaskStatistics;
+
+/**
+ * Runtime estimator for vertices whose tasks do not all take the same time, because they do not
+ * all get the same amount of input or do not all run on equally fast nodes.
+ * <ul>
+ * <li>The runtimes of the completed tasks are kept per byte of input, when the inputs report
+ * their size, so that a task with more input than the others is expected to take longer.</li>
+ * <li>A task is slow when its attempt is expected to run for longer than a quantile of the
+ * completed runtimes, see {@link TezConfiguration#TEZ_AM_SPECULATION_QUANTILE}, rather than the
+ * mean plus some standard deviations, which a few very long tasks skew.</li>
+ * <li>Each node gets a slowness factor: how much longer than expected the attempts which ran on
+ * it took. It is used for the attempts which have not made enough progress to tell.</li>
+ * </ul>
+ */
+public class QuantileTaskRuntimeEstimator extends StartEndTimesBase {
+
+  // Below that, the progress of an attempt says too little about its runtime and its input size
+  static final float MINIMUM_PROGRESS_TO_ESTIMATE = 0.05F;
+
+  private float quantile;
+
+  // Runtimes of the completed tasks, and per byte of input for the ones whose input size is known
+  private final RuntimeSamples runtimes = new RuntimeSamples();
+  private final RuntimeSamples runtimesPerByte = new RuntimeSamples();
+  private final Map<NodeId, DataStatistics> nodeSlowness =
+      new ConcurrentHashMap<NodeId, DataStatistics>();
+  private final Map<TezTaskAttemptID, Long> attemptRuntimeEstimates =
+      new ConcurrentHashMap<TezTaskAttemptID, Long>();
+  // Total input of the running attempts, extrapolated from their progress
+  private final Map<TezTaskAttemptID, Long> attemptInputSizes =
+      new ConcurrentHashMap<TezTaskAttemptID, Long>();
+
+  @Override
+  public void contextualize(Configuration conf, Vertex vertex) {
+    super.contextualize(conf, vertex);
+    quantile = conf.getFloat(TezConfiguration.TEZ_AM_SPECULATION_QUANTILE,
+        TezConfiguration.TEZ_AM_SPECULATION_QUANTILE_DEFAULT);
+  }
+
+  @Override
+  public void updateAttempt(TezTaskAttemptID attemptID, TaskAttemptState state, long timestamp) {
+    Task task = vertex.getTask(attemptID.getTaskID());
+    if (task == null) {
+      return;
+    }
+    TaskAttempt taskAttempt = task.getAttempt(attemptID);
+    if (taskAttempt == null) {
+      return;
+    }
+    boolean isNewCompletion = false;
+    if (taskAttempt.getState() == TaskAttemptState.SUCCEEDED) {
+      synchronized (doneTasks) {
+        isNewCompletion = !doneTasks.contains(task);
+      }
+    }
+    super.updateAttempt(attemptID, state, timestamp);
+
+    Long boxedStart = startTimes.get(attemptID);
+    long start = boxedStart == null ? Long.MIN_VALUE : boxedStart;
+    if (isNewCompletion) {
+      attemptRuntimeEstimates.remove(attemptID);
+      attemptInputSizes.remove(attemptID);
+      if (start > 1L && timestamp >= start) {
+        addCompletedRuntime(taskAttempt, timestamp - start);
+      }
+    } else if (taskAttempt.getState() == TaskAttemptState.RUNNING) {
+      if (start > 0 && timestamp > start) {
+        updateRunningAttempt(taskAttempt, timestamp - start);
+      }
+    } else {
+      attemptRuntimeEstimates.remove(attemptID);
+      attemptInputSizes.remove(attemptID);
+    }
+  }
+
+  private void addCompletedRuntime(TaskAttempt taskAttempt, long runtime) {
+    long inputSize = getInputSize(taskAttempt);
+    // How long it was expected to take, from the tasks which completed before it
+    long expectedRuntime = expectedRuntime(inputSize);
+    runtimes.add(runtime);
+    if (inputSize > 0) {
+      runtimesPerByte.add((double) runtime / inputSize);
+    }
+    NodeId nodeId = taskAttempt.getNodeId();
+    if (nodeId != null && expectedRuntime > 0) {
+      DataStatistics slowness = nodeSlowness.get(nodeId);
+      if (slowness == null) {
+        slowness = new DataStatistics();
+        nodeSlowness.put(nodeId, slowness);
+      }
+      slowness.add((double) runtime / expectedRuntime);
+    }
+  }
+
+  private void updateRunningAttempt(TaskAttempt taskAttempt, long elapsed) {
+    float progress = taskAttempt.getProgress();
+    if (progress >= MINIMUM_PROGRESS_TO_ESTIMATE) {
+      attemptRuntimeEstimates.put(taskAttempt.getID(), (long) (elapsed / progress));
+      long inputSize = getInputSize(taskAttempt);
+      if (inputSize > 0) {
+        attemptInputSizes.put(taskAttempt.getID(), (long) (inputSize / progress));
+      }
+      return;
+    }
+    // Too early to tell from the progress. Expected to take as long as the other tasks, on the
+    // node it runs on, once it really gets going: an attempt stuck from the start falls behind
+    long expectedRuntime = expectedRuntime(-1);
+    if (expectedRuntime > 0) {
+      attemptRuntimeEstimates.put(taskAttempt.getID(),
+          elapsed + (long) (expectedRuntime * getNodeSlowness(taskAttempt.getNodeId())));
+    } else {
+      attemptRuntimeEstimates.put(taskAttempt.getID(),
+          (long) (elapsed / Math.max(0.0001, progress)));
+    }
+  }
+
+  // The size of the data the attempt read from its inputs so far, -1 if they do not report it
+  private long getInputSize(TaskAttempt taskAttempt) {
+    TaskStatistics statistics = taskAttempt.getStatistics();
+    if (statistics == null) {
+      return -1;
+    }
+    Set<String> inputNames = new HashSet<String>();
+    for (Vertex inputVertex : vertex.getInputVertices().keySet()) {
+      inputNames.add(inputVertex.getName());
+    }
+    if (vertex.getAdditionalInputs() != null) {
+      inputNames.addAll(vertex.getAdditionalInputs().keySet());
+    }
+    long inputSize = 0;
+    for (Map.Entry<String, IOStatistics> entry : statistics.getIOStatistics().entrySet()) {
+      if (inputNames.contains(entry.getKey())) {
+        inputSize += Math.max(0, entry.getValue().getDataSize());
+      }
+    }
+    return inputSize > 0 ? inputSize : -1;
+  }
+
+  private double getNodeSlowness(NodeId nodeId) {
+    DataStatistics slowness = nodeId == null ? null : nodeSlowness.get(nodeId);
+    if (slowness == null || slowness.count() == 0) {
+      return 1.0;
+    }
+    return slowness.mean();
+  }
+
+  // The median runtime of the completed tasks, for the given input size if known. -1 if no task
+  // completed yet
+  private long expectedRuntime(long inputSize) {
+    return runtimeQuantile(0.5, inputSize);
+  }
+
+  private long runtimeQuantile(double q, long inputSize) {
+    if (inputSize > 0 && runtimesPerByte.size() > 0) {
+      return (long) (runtimesPerByte.quantile(q) * inputSize);
+    }
+    if (runtimes.size() > 0) {
+      return (long) runtimes.quantile(q);
+    }
+    return -1;
+  }
+
+  /**
+   * @return the acceptable runtime of the task, for the input its running attempt is expected to
+   *         read. {@link Long#MAX_VALUE} while too few tasks completed, and when the running
+   *         attempt is expected to finish within the acceptable runtime: the task is on schedule.
+   */
+  @Override
+  public long thresholdRuntime(TezTaskID taskID) {
+    if (!hasEnoughCompletedTasks() || runtimes.size() == 0) {
+      return Long.MAX_VALUE;
+    }
+    Task task = vertex.getTask(taskID);
+    if (task == null) {
+      return Long.MAX_VALUE;
+    }
+    long longestEstimate = -1;
+    long inputSize = -1;
+    for (TaskAttempt taskAttempt : task.getAttempts().values()) {
+      Long estimate = attemptRuntimeEstimates.get(taskAttempt.getID());
+      if (estimate != null && estimate > longestEstimate) {
+        longestEstimate = estimate;
+        Long attemptInputSize = attemptInputSizes.get(taskAttempt.getID());
+        inputSize = attemptInputSize == null ? -1 : attemptInputSize;
+      }
+    }
+    long acceptableRuntime = runtimeQuantile(quantile, inputSize);
+    if (longestEstimate <= acceptableRuntime) {
+      return Long.MAX_VALUE;
+    }
+    return acceptableRuntime;
+  }
+
+  @Override
+  public long newAttemptEstimatedRuntime() {
+    // The new attempt reads as much as a typical task, on a typical node
+    long expectedRuntime = expectedRuntime(-1);
+    return expectedRuntime < 0 ? super.newAttemptEstimatedRuntime() : expectedRuntime;
+  }
+
+  @Override
+  public long estimatedRuntime(TezTaskAttemptID attemptID) {
+    Long estimate = attemptRuntimeEstimates.get(attemptID);
+    return estimate == null ? -1L : estimate;
+  }
+
+  @Override
+  public long runtimeEstimateVariance(TezTaskAttemptID attemptID) {
+    if (!attemptRuntimeEstimates.containsKey(attemptID) || runtimes.size() == 0) {
+      return -1L;
+    }
+    // The spread of the runtimes of the completed tasks, between their quartiles
+    Long inputSize = attemptInputSizes.get(attemptID);
+    long size = inputSize == null ? -1 : inputSize;
+    return runtimeQuantile(0.75, size) - runtimeQuantile(0.25, size);
+  }
+
+  /**
+   * Values, sorted when a quantile is asked for after some were added.
+   */
+  static class RuntimeSamples {
+    private double[] values = new double[16];
+    private int count = 0;
+    private boolean sorted = true;
+
+    synchronized void add(double value) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = value;
+      sorted = false;
+    }
+
+    synchronized int size() {
+      return count;
+    }
+
+    /**
+     * @return the smallest value which at least a fraction q of the values are lower or equal to
+     */
+    synchronized double quantile(double q) {
+      if (count == 0) {
+        return Double.NaN;
+      }
+      if (!sorted) {
+        Arrays.sort(values, 0, count);
+        sorted = true;
+      }
+      int index = (int) Math.ceil(q * count) - 1;
+      return values[Math.min(count - 1, Math.max(0, index))];
+    }
+  }
+}
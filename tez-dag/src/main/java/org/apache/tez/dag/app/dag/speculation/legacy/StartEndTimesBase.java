@@ -77,15 +77,21 @@ abstract class StartEndTimesBase implements TaskRuntimeEstimator {
     return taskStatistics;
   }
 
-  @Override
-  public long thresholdRuntime(TezTaskID taskID) {
+  /**
+   * @return whether enough tasks of the vertex completed to tell the slow ones
+   */
+  protected boolean hasEnoughCompletedTasks() {
     int completedTasks = vertex.getCompletedTasks();
 
     int totalTasks = vertex.getTotalTasks();
     
-    if (completedTasks < MINIMUM_COMPLETE_NUMBER_TO_SPECULATE
-        || (((float)completedTasks) / totalTasks)
-              < MINIMUM_COMPLETE_PROPORTION_TO_SPECULATE ) {
+    return completedTasks >= MINIMUM_COMPLETE_NUMBER_TO_SPECULATE
+        && (((float)completedTasks) / totalTasks) >= MINIMUM_COMPLETE_PROPORTION_TO_SPECULATE;
+  }
+
+  @Override
+  public long thresholdRuntime(TezTaskID taskID) {
+    if (!hasEnoughCompletedTasks()) {
       return Long.MAX_VALUE;
     }
     
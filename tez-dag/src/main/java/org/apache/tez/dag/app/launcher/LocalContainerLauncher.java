@@ -51,6 +51,7 @@ import org.apache.tez.dag.records.TezDAGID;
 import org.apache.tez.hadoop.shim.DefaultHadoopShim;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.shuffle.LocalShuffleBufferRegistry;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.serviceplugins.api.ContainerLaunchRequest;
 import org.apache.tez.serviceplugins.api.ContainerLauncherContext;
@@ -95,6 +96,8 @@ public class LocalContainerLauncher extends DagContainerLauncher {
   private final boolean isLocalMode;
   int shufflePort = TezRuntimeUtils.INVALID_PORT;
   private DeletionTracker deletionTracker;
+  // Keeps shuffle output in memory for the tasks in this process. Only used in local mode.
+  private final LocalShuffleBufferRegistry shuffleBufferRegistry;
 
   private final ConcurrentHashMap<ContainerId, RunningTaskCallback>
       runningContainers =
@@ -163,6 +166,17 @@ public class LocalContainerLauncher extends DagContainerLauncher {
       deletionTracker = ReflectionUtils.createClazzInstance(
           deletionTrackerClassName, new Class[]{Configuration.class}, new Object[]{conf});
     }
+    if (isLocalMode && conf.getBoolean(TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_ENABLED,
+        TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_ENABLED_DEFAULT)) {
+      shuffleBufferRegistry = LocalShuffleBufferRegistry.getInstance();
+      shuffleBufferRegistry.enable(
+          conf.getLong(TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_BYTES,
+              TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_BYTES_DEFAULT),
+          conf.getLong(TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_OUTPUT_BYTES,
+              TezConfiguration.TEZ_LOCAL_MODE_SHUFFLE_BUFFER_MAX_OUTPUT_BYTES_DEFAULT));
+    } else {
+      shuffleBufferRegistry = null;
+    }
   }
 
   @Override
@@ -189,6 +203,9 @@ public class LocalContainerLauncher extends DagContainerLauncher {
     if (deletionTracker != null) {
       deletionTracker.shutdown();
     }
+    if (shuffleBufferRegistry != null) {
+      shuffleBufferRegistry.disable();
+    }
   }
 
 
@@ -410,6 +427,9 @@ public class LocalContainerLauncher extends DagContainerLauncher {
     if (deletionTracker != null) {
       deletionTracker.dagComplete(dag, jobTokenSecretManager);
     }
+    if (shuffleBufferRegistry != null) {
+      shuffleBufferRegistry.dagComplete(dag.getApplicationId(), dag.getId());
+    }
   }
 
 }
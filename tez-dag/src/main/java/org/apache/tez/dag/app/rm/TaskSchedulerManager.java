@@ -20,8 +20,12 @@ package org.apache.tez.dag.app.rm;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,6 +44,7 @@ import org.apache.tez.dag.app.ServicePluginLifecycleAbstractService;
 import org.apache.tez.dag.app.dag.event.DAGAppMasterEventUserServiceFatalError;
 import org.apache.tez.serviceplugins.api.DagInfo;
 import org.apache.tez.serviceplugins.api.ServicePluginError;
+import org.apache.tez.serviceplugins.api.TaskAttemptEndReason;
 import org.apache.tez.serviceplugins.api.TaskScheduler;
 import org.apache.tez.serviceplugins.api.TaskSchedulerContext;
 import org.apache.tez.serviceplugins.api.TaskSchedulerContext.AppFinalStatus;
@@ -67,6 +72,7 @@ import org.apache.tez.dag.api.TaskLocationHint.TaskBasedLocationAffinity;
 import org.apache.tez.dag.api.client.DAGClientServer;
 import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.ContainerContext;
 import org.apache.tez.dag.app.DAGAppMaster;
 import org.apache.tez.dag.app.DAGAppMasterState;
 import org.apache.tez.dag.app.dag.TaskAttempt;
@@ -89,6 +95,7 @@ import org.apache.tez.dag.app.rm.node.AMNodeEventTaskAttemptEnded;
 import org.apache.tez.dag.app.rm.node.AMNodeEventTaskAttemptSucceeded;
 import org.apache.tez.dag.app.web.WebUIService;
 import org.apache.tez.dag.records.TaskAttemptTerminationCause;
+import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.hadoop.shim.HadoopShim;
 import org.apache.tez.hadoop.shim.HadoopShimsLoader;
 
@@ -136,6 +143,40 @@ public class TaskSchedulerManager extends AbstractService implements
   private final long SCHEDULER_APP_ID_INCREMENT = 111111111;
   private final HadoopShim hadoopShim;
 
+  // The number of tasks a container runs at once
+  private final int containerSlots;
+  // Containers with more than one slot, by the order they were allocated in, and the containers
+  // of the tasks running in them
+  private final Map<ContainerId, ContainerSlots> slotContainers =
+      new LinkedHashMap<ContainerId, ContainerSlots>();
+  private final Map<TezTaskAttemptID, ContainerId> slotTaskContainers =
+      new LinkedHashMap<TezTaskAttemptID, ContainerId>();
+
+  /**
+   * The tasks running in the slots of a container. Only the task the container was allocated to
+   * is known to the task scheduler. It is deallocated from the scheduler once no task runs in the
+   * container, so that the scheduler does not release or reuse the container under the tasks in
+   * the other slots.
+   */
+  private static final class ContainerSlots {
+    final ContainerId containerId;
+    final int schedulerId;
+    final ContainerContext containerContext;
+    final TaskAttempt schedulerTask;
+    final Set<TezTaskAttemptID> runningTasks = new HashSet<TezTaskAttemptID>();
+    // Set by the first task which did not succeed. The container is stopped after it.
+    TaskAttemptEndReason failedEndReason = null;
+    boolean failed = false;
+
+    ContainerSlots(ContainerId containerId, int schedulerId, ContainerContext containerContext,
+        TaskAttempt schedulerTask) {
+      this.containerId = containerId;
+      this.schedulerId = schedulerId;
+      this.containerContext = containerContext;
+      this.schedulerTask = schedulerTask;
+    }
+  }
+
   BlockingQueue<AMSchedulerEvent> eventQueue
                               = new LinkedBlockingQueue<AMSchedulerEvent>();
 
@@ -164,6 +205,8 @@ public class TaskSchedulerManager extends AbstractService implements
     this.historyUrl = null;
     this.isLocalMode = false;
     this.hadoopShim = new HadoopShimsLoader(appContext.getAMConf()).getHadoopShim();
+    this.containerSlots = appContext.getAMConf().getInt(TezConfiguration.TEZ_TASK_CONTAINER_SLOTS,
+        TezConfiguration.TEZ_TASK_CONTAINER_SLOTS_DEFAULT);
   }
 
   /**
@@ -196,6 +239,8 @@ public class TaskSchedulerManager extends AbstractService implements
     this.historyUrl = getHistoryUrl();
     this.isLocalMode = isLocalMode;
     this.hadoopShim = hadoopShim;
+    this.containerSlots = appContext.getAMConf().getInt(TezConfiguration.TEZ_TASK_CONTAINER_SLOTS,
+        TezConfiguration.TEZ_TASK_CONTAINER_SLOTS_DEFAULT);
     this.appCallbackExecutor = createAppCallbackExecutorService();
     if (this.webUI != null) {
       this.webUI.setHistoryUrl(this.historyUrl);
@@ -375,11 +420,17 @@ public class TaskSchedulerManager extends AbstractService implements
 
   private void handleTAUnsuccessfulEnd(AMSchedulerEventTAEnded event) {
     TaskAttempt attempt = event.getAttempt();
+    ContainerSlots slots = slotTaskEnded(attempt.getID(), false, event.getTaskAttemptEndReason());
     // Propagate state and failure cause (if any) when informing the scheduler about the de-allocation.
     boolean wasContainerAllocated = false;
     try {
-      wasContainerAllocated = taskSchedulers[event.getSchedulerId()]
-          .deallocateTask(attempt, false, event.getTaskAttemptEndReason(), event.getDiagnostics());
+      if (slots == null) {
+        wasContainerAllocated = taskSchedulers[event.getSchedulerId()]
+            .deallocateTask(attempt, false, event.getTaskAttemptEndReason(), event.getDiagnostics());
+      } else {
+        // Tasks in the other slots are stopped along with the container
+        wasContainerAllocated = deallocateSlotContainer(slots, event.getDiagnostics());
+      }
     } catch (Exception e) {
       String msg = "Error in TaskScheduler for handling Task De-allocation"
           + ", eventType=" + event.getType()
@@ -395,7 +446,8 @@ public class TaskSchedulerManager extends AbstractService implements
     // use stored value of container id in case the scheduler has removed this
     // assignment because the task has been deallocated earlier.
     // retroactive case
-    ContainerId attemptContainerId = attempt.getAssignedContainerID();
+    ContainerId attemptContainerId = slots == null ? attempt.getAssignedContainerID()
+        : slots.containerId;
 
     if(!wasContainerAllocated) {
       LOG.info("Task: " + attempt.getID() +
@@ -435,11 +487,16 @@ public class TaskSchedulerManager extends AbstractService implements
           event.getAttemptID()));
     }
 
+    ContainerSlots slots = slotTaskEnded(attempt.getID(), true, null);
     boolean wasContainerAllocated = false;
 
     try {
-      wasContainerAllocated = taskSchedulers[event.getSchedulerId()].deallocateTask(attempt,
-        true, null, event.getDiagnostics());
+      if (slots == null) {
+        wasContainerAllocated = taskSchedulers[event.getSchedulerId()].deallocateTask(attempt,
+          true, null, event.getDiagnostics());
+      } else {
+        wasContainerAllocated = deallocateSlotContainer(slots, event.getDiagnostics());
+      }
     } catch (Exception e) {
       String msg = "Error in TaskScheduler for handling Task De-allocation"
           + ", eventType=" + event.getType()
@@ -509,6 +566,10 @@ public class TaskSchedulerManager extends AbstractService implements
       }
     }
 
+    if (containerSlots > 1 && assignToFreeSlot(event, hosts)) {
+      return;
+    }
+
     try {
       taskSchedulers[event.getSchedulerId()].allocateTask(taskAttempt,
           event.getCapability(),
@@ -530,6 +591,89 @@ public class TaskSchedulerManager extends AbstractService implements
     }
   }
 
+  /**
+   * Assigns the task to a free slot of a container allocated earlier, without going through the
+   * task scheduler. The container has to be on one of the requested hosts, if any, and be able to
+   * run the task as far as its signature goes.
+   *
+   * @return true if the task was assigned
+   */
+  private boolean assignToFreeSlot(AMSchedulerEventTALaunchRequest event, String[] hosts) {
+    for (ContainerSlots slots : slotContainers.values()) {
+      if (slots.failed || slots.runningTasks.size() >= containerSlots
+          || slots.schedulerId != event.getSchedulerId()) {
+        continue;
+      }
+      AMContainer amContainer = appContext.getAllContainers().get(slots.containerId);
+      if (amContainer == null || amContainer.isInErrorState()
+          || amContainer.getContainerLauncherIdentifier() != event.getLauncherId()
+          || amContainer.getTaskCommunicatorIdentifier() != event.getTaskCommId()) {
+        continue;
+      }
+      AMContainerState state = amContainer.getState();
+      if (state != AMContainerState.LAUNCHING && state != AMContainerState.IDLE
+          && state != AMContainerState.RUNNING) {
+        continue;
+      }
+      if (hosts != null && hosts.length > 0 && !Arrays.asList(hosts).contains(
+          amContainer.getContainer().getNodeId().getHost())) {
+        continue;
+      }
+      if (!containerSignatureMatcher.isSuperSet(slots.containerContext,
+          event.getContainerContext())) {
+        continue;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Assigning task: " + event.getAttemptID() + " to a free slot of container: "
+            + slots.containerId);
+      }
+      slots.runningTasks.add(event.getAttemptID());
+      slotTaskContainers.put(event.getAttemptID(), slots.containerId);
+      sendEvent(new AMContainerEventAssignTA(slots.containerId, event.getAttemptID(),
+          event.getRemoteTaskSpec(), event.getContainerContext().getLocalResources(),
+          event.getContainerContext().getCredentials(), event.getPriority()));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the slots of the container the task ran in, or null if it did not run in a container
+   *         with more than one slot
+   */
+  private ContainerSlots slotTaskEnded(TezTaskAttemptID attemptId, boolean succeeded,
+      TaskAttemptEndReason endReason) {
+    ContainerId containerId = slotTaskContainers.remove(attemptId);
+    if (containerId == null) {
+      return null;
+    }
+    ContainerSlots slots = slotContainers.get(containerId);
+    slots.runningTasks.remove(attemptId);
+    if (!succeeded && !slots.failed) {
+      slots.failed = true;
+      slots.failedEndReason = endReason;
+    }
+    if (slots.runningTasks.isEmpty()) {
+      slotContainers.remove(containerId);
+    }
+    return slots;
+  }
+
+  /**
+   * Deallocates the task the container was allocated to from the scheduler, once no task runs in
+   * the container.
+   *
+   * @return true if the task had the container allocated in the scheduler, or still runs tasks
+   */
+  private boolean deallocateSlotContainer(ContainerSlots slots, String diagnostics)
+      throws Exception {
+    if (!slots.runningTasks.isEmpty()) {
+      return true;
+    }
+    return taskSchedulers[slots.schedulerId].deallocateTask(slots.schedulerTask, !slots.failed,
+        slots.failedEndReason, diagnostics);
+  }
+
   private void handleTAStateUpdated(AMSchedulerEventTAStateUpdated event) {
     try {
       taskSchedulers[event.getSchedulerId()].taskStateUpdated(event.getTaskAttempt(), event.getState());
@@ -740,6 +884,13 @@ public class TaskSchedulerManager extends AbstractService implements
     sendEvent(new AMContainerEventAssignTA(containerId, taskAttempt.getID(),
         event.getRemoteTaskSpec(), event.getContainerContext().getLocalResources(), event
             .getContainerContext().getCredentials(), event.getPriority()));
+    if (containerSlots > 1) {
+      ContainerSlots slots = new ContainerSlots(containerId, schedulerId,
+          event.getContainerContext(), taskAttempt);
+      slots.runningTasks.add(taskAttempt.getID());
+      slotContainers.put(containerId, slots);
+      slotTaskContainers.put(taskAttempt.getID(), containerId);
+    }
   }
 
   public synchronized void containerCompleted(int schedulerId, Object task, ContainerStatus containerStatus) {
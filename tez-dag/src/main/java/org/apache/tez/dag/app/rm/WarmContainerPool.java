@@ -0,0 +1,118 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.rm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Sizes the pool of warm containers an idle session holds for the next DAG, per resource
+ * profile. The demand for a profile is the most tasks with the profile which were outstanding at
+ * once during a DAG, smoothed over recent DAGs. It is scaled down by the chance of the next DAG
+ * arriving within the horizon, going by the mean time between DAGs so far, or by the time since
+ * the last DAG when that is longer. An idle session therefore lets its pool go gradually.
+ *
+ * Not thread safe. Used under the lock of {@link YarnTaskSchedulerService}.
+ */
+class WarmContainerPool {
+
+  // Weight of the latest DAG in the smoothed demand and time between DAGs
+  static final double SMOOTHING = 0.5;
+
+  private static class ProfileDemand {
+    int outstanding;
+    int peak;
+    double smoothedPeak = -1;
+  }
+
+  private final long horizonMillis;
+  private final int maxContainers;
+  private final Map<Resource, ProfileDemand> demands = new HashMap<Resource, ProfileDemand>();
+  private long lastDagCompletionTime = -1;
+  private double meanDagIntervalMillis = -1;
+
+  WarmContainerPool(long horizonMillis, int maxContainers) {
+    Preconditions.checkArgument(horizonMillis > 0, "Warm pool horizon should be > 0");
+    Preconditions.checkArgument(maxContainers >= 0, "Warm pool max containers should be >= 0");
+    this.horizonMillis = horizonMillis;
+    this.maxContainers = maxContainers;
+  }
+
+  void taskRequested(Resource profile) {
+    ProfileDemand demand = demands.get(profile);
+    if (demand == null) {
+      demand = new ProfileDemand();
+      demands.put(profile, demand);
+    }
+    demand.outstanding++;
+    demand.peak = Math.max(demand.peak, demand.outstanding);
+  }
+
+  void taskEnded(Resource profile) {
+    ProfileDemand demand = demands.get(profile);
+    if (demand != null && demand.outstanding > 0) {
+      demand.outstanding--;
+    }
+  }
+
+  void dagCompleted(long currentTime) {
+    for (ProfileDemand demand : demands.values()) {
+      if (demand.smoothedPeak < 0) {
+        demand.smoothedPeak = demand.peak;
+      } else {
+        demand.smoothedPeak = SMOOTHING * demand.peak + (1 - SMOOTHING) * demand.smoothedPeak;
+      }
+      // Nothing is outstanding between DAGs. Also forgets tasks which were never seen to end.
+      demand.outstanding = 0;
+      demand.peak = 0;
+    }
+    if (lastDagCompletionTime >= 0) {
+      long interval = currentTime - lastDagCompletionTime;
+      if (meanDagIntervalMillis < 0) {
+        meanDagIntervalMillis = interval;
+      } else {
+        meanDagIntervalMillis = SMOOTHING * interval + (1 - SMOOTHING) * meanDagIntervalMillis;
+      }
+    }
+    lastDagCompletionTime = currentTime;
+  }
+
+  Set<Resource> getProfiles() {
+    return demands.keySet();
+  }
+
+  /**
+   * @return the number of warm containers to hold for the profile
+   */
+  int getTargetSize(Resource profile, long currentTime) {
+    ProfileDemand demand = demands.get(profile);
+    if (demand == null || demand.smoothedPeak <= 0) {
+      return 0;
+    }
+    double interval = Math.max(meanDagIntervalMillis, currentTime - lastDagCompletionTime);
+    double arrivalProbability =
+        interval <= 0 ? 1 : 1 - Math.exp(-(double) horizonMillis / interval);
+    return (int) Math.min(maxContainers, Math.round(demand.smoothedPeak * arrivalProbability));
+  }
+}
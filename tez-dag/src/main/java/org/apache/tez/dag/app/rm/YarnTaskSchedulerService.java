@@ -26,10 +26,12 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -99,6 +101,8 @@ public class YarnTaskSchedulerService extends TaskScheduler
   // type is linked hash map to maintain order of incoming requests
   Map<Object, CookieContainerRequest> taskRequests =
                   new LinkedHashMap<Object, CookieContainerRequest>();
+  // The same requests, indexed for matching
+  final TaskRequestIndex taskRequestIndex = new TaskRequestIndex();
   // LinkedHashMap is need in getProgress()
   LinkedHashMap<Object, Container> taskAllocations =
                   new LinkedHashMap<Object, Container>();
@@ -151,6 +155,13 @@ public class YarnTaskSchedulerService extends TaskScheduler
   Priority highestWaitingRequestPriority = null;
   
   Set<ContainerId> sessionMinHeldContainers = Sets.newHashSet();
+
+  // Sizes the warm containers held by an idle session. Null when there is no warm pool.
+  WarmContainerPool warmContainerPool = null;
+  // Outstanding requests for warm containers, made while the session is idle
+  List<CookieContainerRequest> warmContainerRequests = Lists.newLinkedList();
+  // Below the priority of any task
+  static final Priority WARM_CONTAINER_PRIORITY = Priority.newInstance(Integer.MAX_VALUE);
   
   RandomDataGenerator random = new RandomDataGenerator();
   private final Configuration conf;
@@ -323,6 +334,16 @@ public class YarnTaskSchedulerService extends TaskScheduler
         TezConfiguration.TEZ_AM_SESSION_MIN_HELD_CONTAINERS_DEFAULT);
     Preconditions.checkArgument(sessionNumMinHeldContainers >= 0, 
         "Session minimum held containers should be >=0");
+
+    if (shouldReuseContainers && conf.getBoolean(
+        TezConfiguration.TEZ_AM_SESSION_WARM_POOL_ENABLED,
+        TezConfiguration.TEZ_AM_SESSION_WARM_POOL_ENABLED_DEFAULT)) {
+      warmContainerPool = new WarmContainerPool(
+          conf.getLong(TezConfiguration.TEZ_AM_SESSION_WARM_POOL_HORIZON_MILLIS,
+              TezConfiguration.TEZ_AM_SESSION_WARM_POOL_HORIZON_MILLIS_DEFAULT),
+          conf.getInt(TezConfiguration.TEZ_AM_SESSION_WARM_POOL_MAX_CONTAINERS,
+              TezConfiguration.TEZ_AM_SESSION_WARM_POOL_MAX_CONTAINERS_DEFAULT));
+    }
     
     preemptionPercentage = conf.getInt(TezConfiguration.TEZ_AM_PREEMPTION_PERCENTAGE, 
         TezConfiguration.TEZ_AM_PREEMPTION_PERCENTAGE_DEFAULT);
@@ -354,7 +375,8 @@ public class YarnTaskSchedulerService extends TaskScheduler
             ", numHeartbeatsBetweenPreemptions: " + numHeartbeatsBetweenPreemptions +
             ", idleContainerMinTimeout: " + idleContainerTimeoutMin +
             ", idleContainerMaxTimeout: " + idleContainerTimeoutMax +
-            ", sessionMinHeldContainers: " + sessionNumMinHeldContainers);
+            ", sessionMinHeldContainers: " + sessionNumMinHeldContainers +
+            ", warmPoolEnabled: " + (warmContainerPool != null));
   }
 
   @Override
@@ -653,6 +675,9 @@ public class YarnTaskSchedulerService extends TaskScheduler
           // increase the idle container expire time to maintain sanity with 
           // the rest of the code.
           heldContainer.setContainerExpiryTime(getHeldContainerExpireTime(currentTime));
+        } else if (shouldHoldWarmContainer(heldContainer, currentTime)) {
+          // Wanted in the warm pool for the next DAG
+          heldContainer.setContainerExpiryTime(getHeldContainerExpireTime(currentTime));
         } else {
           releaseContainer = true;          
         }
@@ -867,6 +892,9 @@ public class YarnTaskSchedulerService extends TaskScheduler
 
   @Override
   public synchronized void dagComplete() {
+    if (warmContainerPool != null) {
+      warmContainerPool.dagCompleted(System.currentTimeMillis());
+    }
     for (HeldContainer heldContainer : heldContainers.values()) {
       heldContainer.resetLocalityMatchLevel();
     }
@@ -915,6 +943,7 @@ public class YarnTaskSchedulerService extends TaskScheduler
       if (preemptIfNeeded()) {
         heartbeatAtLastPreemption = numHeartbeats;
       }
+      requestWarmContainersIfNeeded();
     }
 
     return getContext().getProgress();
@@ -1037,6 +1066,9 @@ public class YarnTaskSchedulerService extends TaskScheduler
       if (request != null) {
         // task not allocated yet
         LOG.info("Deallocating task: " + task + " before allocation");
+        if (warmContainerPool != null) {
+          warmContainerPool.taskEnded(request.getCapability());
+        }
         return false;
       }
 
@@ -1051,6 +1083,11 @@ public class YarnTaskSchedulerService extends TaskScheduler
           LOG.debug("Deallocated task: " + task + " from container: "
               + container.getId());
         }
+        HeldContainer taskContainer = heldContainers.get(container.getId());
+        if (warmContainerPool != null && taskContainer != null
+            && taskContainer.getLastTaskInfo() != null) {
+          warmContainerPool.taskEnded(taskContainer.getLastTaskInfo().getCapability());
+        }
 
         if (!taskSucceeded || !shouldReuseContainers) {
           if (LOG.isDebugEnabled()) {
@@ -1125,6 +1162,7 @@ public class YarnTaskSchedulerService extends TaskScheduler
     for (Object task : tasks) {
       removeTaskRequest(task);
     }
+    cancelWarmContainerRequests();
   }
 
   boolean canFit(Resource arg0, Resource arg1) {
@@ -1180,17 +1218,10 @@ public class YarnTaskSchedulerService extends TaskScheduler
   
       CookieContainerRequest highestPriRequest = null;
       int numHighestPriRequests = 0;
-      for(CookieContainerRequest request : taskRequests.values()) {
-        if(highestPriRequest == null) {
-          highestPriRequest = request;
-          numHighestPriRequests = 1;
-        } else if(isHigherPriority(request.getPriority(),
-                                     highestPriRequest.getPriority())){
-          highestPriRequest = request;
-          numHighestPriRequests = 1;
-        } else if (request.getPriority().equals(highestPriRequest.getPriority())) {
-          numHighestPriRequests++;
-        }
+      Priority highestPriority = taskRequestIndex.getHighestPriority();
+      if (highestPriority != null) {
+        highestPriRequest = taskRequestIndex.getFirstRequest(highestPriority);
+        numHighestPriRequests = taskRequestIndex.getRequestCount(highestPriority);
       }
       
       if (highestPriRequest == null) {
@@ -1419,22 +1450,19 @@ public class YarnTaskSchedulerService extends TaskScheduler
   }
 
   private void maybeRescheduleContainerAtPriority(Priority priority) {
-    for (Map.Entry<Object, CookieContainerRequest> entry : taskRequests.entrySet()) {
-      Object task = entry.getKey();
-      CookieContainerRequest request = entry.getValue();
-      if (request.getPriority().equals(priority)) {
-        LOG.info("Resending request for task again: " + task);
-        deallocateTask(task, true, null, null);
-        allocateTask(task, request.getCapability(),
-            (request.getNodes() == null ? null :
-              request.getNodes().toArray(new String[request.getNodes().size()])),
-              (request.getRacks() == null ? null :
-                request.getRacks().toArray(new String[request.getRacks().size()])),
-                request.getPriority(),
-                request.getCookie().getContainerSignature(),
-                request.getCookie().getAppCookie());
-        break;
-      }
+    CookieContainerRequest request = taskRequestIndex.getFirstRequest(priority);
+    if (request != null) {
+      Object task = getTask(request);
+      LOG.info("Resending request for task again: " + task);
+      deallocateTask(task, true, null, null);
+      allocateTask(task, request.getCapability(),
+          (request.getNodes() == null ? null :
+            request.getNodes().toArray(new String[request.getNodes().size()])),
+            (request.getRacks() == null ? null :
+              request.getRacks().toArray(new String[request.getRacks().size()])),
+              request.getPriority(),
+              request.getCookie().getContainerSignature(),
+              request.getCookie().getAppCookie());
     }
   }
 
@@ -1448,6 +1476,9 @@ public class YarnTaskSchedulerService extends TaskScheduler
       Container container,
       String location) {
     Priority priority = container.getPriority();
+    if (!hasRequestForContainerSignature(priority, container)) {
+      return null;
+    }
     Resource capability = container.getResource();
     List<? extends Collection<CookieContainerRequest>> requestsList =
         amRmClient.getMatchingRequests(priority, location, capability);
@@ -1470,64 +1501,89 @@ public class YarnTaskSchedulerService extends TaskScheduler
       Container container,
       String location,
       boolean considerContainerAffinity) {
+    Priority topPriority = amRmClient.getTopPriority();
+    if (topPriority != null && !hasRequestForContainerSignature(topPriority, container)) {
+      return null;
+    }
     Resource capability = container.getResource();
     List<? extends Collection<CookieContainerRequest>> pRequestsList =
       amRmClient.getMatchingRequestsForTopPriority(location, capability);
     if (considerContainerAffinity && 
-        !priorityHasAffinity.contains(amRmClient.getTopPriority())) {
+        !priorityHasAffinity.contains(topPriority)) {
       considerContainerAffinity = false;
     }
     if (pRequestsList == null || pRequestsList.isEmpty()) {
       return null;
     }
-    CookieContainerRequest firstMatch = null;
+    if (considerContainerAffinity) {
+      // A container level match comes first. Looked up rather than searched for among all the
+      // requests
+      for (CookieContainerRequest cookieContainerRequest :
+          taskRequestIndex.getAffinitizedRequests(container.getId())) {
+        if (cookieContainerRequest.getPriority().equals(topPriority)
+            && isInAny(cookieContainerRequest, pRequestsList)
+            && hasUsableAffinity(cookieContainerRequest)
+            && canAssignTaskToContainer(cookieContainerRequest, container)) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Matching with affinity for request: "
+                + cookieContainerRequest + " container: " + container.getId());
+          }
+          return cookieContainerRequest;
+        }
+      }
+    }
     for (Collection<CookieContainerRequest> requests : pRequestsList) {
       for (CookieContainerRequest cookieContainerRequest : requests) {
-        if (firstMatch == null || // we dont have a match. So look for one 
-            // we have a match but are looking for a better container level match.
-            // skip the expensive canAssignTaskToContainer() if the request is 
-            // not affinitized to the container
-            container.getId().equals(cookieContainerRequest.getAffinitizedContainer())
-            ) {
-          if (canAssignTaskToContainer(cookieContainerRequest, container)) {
-            // request matched to container
-            if (!considerContainerAffinity) {
-              return cookieContainerRequest;
-            }
-            ContainerId affCId = cookieContainerRequest.getAffinitizedContainer();
-            boolean canMatchTaskWithAffinity = true;
-            if (affCId == null || 
-                !heldContainers.containsKey(affCId) ||
-                inUseContainers.contains(affCId)) {
-              // affinity not specified
-              // affinitized container is no longer held
-              // affinitized container is in use
-              canMatchTaskWithAffinity = false;
-            }
-            if (canMatchTaskWithAffinity) {
-              if (container.getId().equals(
-                  cookieContainerRequest.getAffinitizedContainer())) {
-                // container level match
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Matching with affinity for request: "
-                      + cookieContainerRequest + " container: " + affCId);
-                }
-                return cookieContainerRequest;
-              }
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Skipping request for container " + container.getId()
-                    + " due to affinity. Request: " + cookieContainerRequest
-                    + " affContainer: " + affCId);
-              }
-            } else {
-              firstMatch = cookieContainerRequest;
-            }
+        if (considerContainerAffinity && hasUsableAffinity(cookieContainerRequest)) {
+          // affinitized to another container, which is held and not in use
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Skipping request for container " + container.getId()
+                + " due to affinity. Request: " + cookieContainerRequest
+                + " affContainer: " + cookieContainerRequest.getAffinitizedContainer());
           }
+          continue;
+        }
+        if (canAssignTaskToContainer(cookieContainerRequest, container)) {
+          // request matched to container
+          return cookieContainerRequest;
         }
       }
     }
     
-    return firstMatch;
+    return null;
+  }
+
+  // Whether the request is affinitized to a container which is held and not in use
+  private boolean hasUsableAffinity(CookieContainerRequest cookieContainerRequest) {
+    ContainerId affCId = cookieContainerRequest.getAffinitizedContainer();
+    return affCId != null && heldContainers.containsKey(affCId)
+        && !inUseContainers.contains(affCId);
+  }
+
+  private static boolean isInAny(CookieContainerRequest cookieContainerRequest,
+      List<? extends Collection<CookieContainerRequest>> requestsList) {
+    for (Collection<CookieContainerRequest> requests : requestsList) {
+      if (requests.contains(cookieContainerRequest)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Whether some request at the priority could run in the container, as far as the container
+  // signatures go. Saves going through all the requests when a held container can run none.
+  private boolean hasRequestForContainerSignature(Priority priority, Container container) {
+    HeldContainer heldContainer = heldContainers.get(container.getId());
+    if (heldContainer == null || heldContainer.isNew()) {
+      return true;
+    }
+    for (Object signature : taskRequestIndex.getContainerSignatures(priority)) {
+      if (containerSignatureMatcher.isSuperSet(
+          heldContainer.getLastAssignedContainerSignature(), signature)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private boolean canAssignTaskToContainer(
@@ -1639,6 +1695,7 @@ public class YarnTaskSchedulerService extends TaskScheduler
     if(request != null) {
       // remove all references of the request from AMRMClient
       amRmClient.removeContainerRequest(request);
+      taskRequestIndex.remove(request);
     }
     return request;
   }
@@ -1649,8 +1706,115 @@ public class YarnTaskSchedulerService extends TaskScheduler
     if (oldRequest != null) {
       // remove all references of the request from AMRMClient
       amRmClient.removeContainerRequest(oldRequest);
+      taskRequestIndex.remove(oldRequest);
     }
     amRmClient.addContainerRequest(request);
+    taskRequestIndex.add(request);
+    if (warmContainerPool != null) {
+      if (oldRequest == null) {
+        warmContainerPool.taskRequested(request.getCapability());
+      }
+      // Containers are wanted for tasks now, not for the pool
+      cancelWarmContainerRequests();
+    }
+  }
+
+  // Whether an idle container should be held in the warm pool. A new container takes the place
+  // of an outstanding warm request it fits.
+  private boolean shouldHoldWarmContainer(HeldContainer heldContainer, long currentTime) {
+    if (warmContainerPool == null || !getContext().isSession()) {
+      return false;
+    }
+    if (heldContainer.isNew() && heldContainer.getWarmProfile() == null) {
+      CookieContainerRequest warmRequest =
+          removeWarmContainerRequest(heldContainer.getContainer().getResource());
+      if (warmRequest == null) {
+        return false;
+      }
+      heldContainer.setWarmProfile(warmRequest.getCapability());
+    }
+    Resource profile = getResourceProfile(heldContainer);
+    return countIdleHeldContainers(profile)
+        <= warmContainerPool.getTargetSize(profile, currentTime);
+  }
+
+  // Tops the warm pool up, or trims the requests for it, while the session is idle
+  private void requestWarmContainersIfNeeded() {
+    if (warmContainerPool == null || !getContext().isSession()
+        || getContext().getAMState() != AMState.IDLE || !taskRequests.isEmpty()) {
+      return;
+    }
+    long currentTime = System.currentTimeMillis();
+    for (Resource profile : warmContainerPool.getProfiles()) {
+      int requested = 0;
+      for (CookieContainerRequest warmRequest : warmContainerRequests) {
+        if (warmRequest.getCapability().equals(profile)) {
+          requested++;
+        }
+      }
+      int missing = warmContainerPool.getTargetSize(profile, currentTime)
+          - countIdleHeldContainers(profile) - requested;
+      if (missing > 0) {
+        LOG.info("Requesting " + missing + " warm containers with " + profile);
+      }
+      for (; missing > 0; missing--) {
+        CookieContainerRequest warmRequest = new CookieContainerRequest(profile, null, null,
+            WARM_CONTAINER_PRIORITY, new CRCookie(null, null, null));
+        warmContainerRequests.add(warmRequest);
+        amRmClient.addContainerRequest(warmRequest);
+      }
+      for (Iterator<CookieContainerRequest> iter = warmContainerRequests.iterator();
+          missing < 0 && iter.hasNext();) {
+        CookieContainerRequest warmRequest = iter.next();
+        if (warmRequest.getCapability().equals(profile)) {
+          iter.remove();
+          amRmClient.removeContainerRequest(warmRequest);
+          missing++;
+        }
+      }
+    }
+  }
+
+  private CookieContainerRequest removeWarmContainerRequest(Resource containerResource) {
+    for (Iterator<CookieContainerRequest> iter = warmContainerRequests.iterator();
+        iter.hasNext();) {
+      CookieContainerRequest warmRequest = iter.next();
+      if (canFit(warmRequest.getCapability(), containerResource)) {
+        iter.remove();
+        amRmClient.removeContainerRequest(warmRequest);
+        return warmRequest;
+      }
+    }
+    return null;
+  }
+
+  private void cancelWarmContainerRequests() {
+    for (CookieContainerRequest warmRequest : warmContainerRequests) {
+      amRmClient.removeContainerRequest(warmRequest);
+    }
+    warmContainerRequests.clear();
+  }
+
+  // The resources asked for by the tasks the container has run, or it was requested warm with
+  private Resource getResourceProfile(HeldContainer heldContainer) {
+    if (heldContainer.getLastTaskInfo() != null) {
+      return heldContainer.getLastTaskInfo().getCapability();
+    }
+    if (heldContainer.getWarmProfile() != null) {
+      return heldContainer.getWarmProfile();
+    }
+    return heldContainer.getContainer().getResource();
+  }
+
+  private int countIdleHeldContainers(Resource profile) {
+    int count = 0;
+    for (HeldContainer heldContainer : heldContainers.values()) {
+      if (!inUseContainers.contains(heldContainer.getContainer().getId())
+          && profile.equals(getResourceProfile(heldContainer))) {
+        count++;
+      }
+    }
+    return count;
   }
 
   private Container doBookKeepingForTaskDeallocate(Object task) {
@@ -2276,6 +2440,107 @@ public class YarnTaskSchedulerService extends TaskScheduler
     }
   }
 
+  /**
+   * The pending requests by priority, highest first, along with the container signatures they
+   * have at each priority, and by the container they are affinitized to. Guarded by the
+   * scheduler lock, like {@link YarnTaskSchedulerService#taskRequests}.
+   */
+  static class TaskRequestIndex {
+
+    private static class PriorityRequests {
+      // In the order they were made
+      final Set<CookieContainerRequest> requests = new LinkedHashSet<CookieContainerRequest>();
+      final Map<Object, AtomicInteger> signatureCounts = new HashMap<Object, AtomicInteger>();
+    }
+
+    private final TreeMap<Priority, PriorityRequests> requestsByPriority =
+        new TreeMap<Priority, PriorityRequests>(new Comparator<Priority>() {
+          @Override
+          public int compare(Priority p1, Priority p2) {
+            // A lower value is a higher priority
+            return Integer.compare(p1.getPriority(), p2.getPriority());
+          }
+        });
+    private final Map<ContainerId, Set<CookieContainerRequest>> requestsByAffinitizedContainer =
+        new HashMap<ContainerId, Set<CookieContainerRequest>>();
+
+    void add(CookieContainerRequest request) {
+      PriorityRequests priorityRequests = requestsByPriority.get(request.getPriority());
+      if (priorityRequests == null) {
+        priorityRequests = new PriorityRequests();
+        requestsByPriority.put(request.getPriority(), priorityRequests);
+      }
+      priorityRequests.requests.add(request);
+      Object signature = request.getCookie().getContainerSignature();
+      AtomicInteger signatureCount = priorityRequests.signatureCounts.get(signature);
+      if (signatureCount == null) {
+        signatureCount = new AtomicInteger();
+        priorityRequests.signatureCounts.put(signature, signatureCount);
+      }
+      signatureCount.incrementAndGet();
+      ContainerId affinitizedContainer = request.getAffinitizedContainer();
+      if (affinitizedContainer != null) {
+        Set<CookieContainerRequest> affinitized =
+            requestsByAffinitizedContainer.get(affinitizedContainer);
+        if (affinitized == null) {
+          affinitized = new LinkedHashSet<CookieContainerRequest>();
+          requestsByAffinitizedContainer.put(affinitizedContainer, affinitized);
+        }
+        affinitized.add(request);
+      }
+    }
+
+    void remove(CookieContainerRequest request) {
+      PriorityRequests priorityRequests = requestsByPriority.get(request.getPriority());
+      if (priorityRequests == null || !priorityRequests.requests.remove(request)) {
+        return;
+      }
+      if (priorityRequests.requests.isEmpty()) {
+        requestsByPriority.remove(request.getPriority());
+      } else {
+        Object signature = request.getCookie().getContainerSignature();
+        AtomicInteger signatureCount = priorityRequests.signatureCounts.get(signature);
+        if (signatureCount.decrementAndGet() == 0) {
+          priorityRequests.signatureCounts.remove(signature);
+        }
+      }
+      ContainerId affinitizedContainer = request.getAffinitizedContainer();
+      if (affinitizedContainer != null) {
+        Set<CookieContainerRequest> affinitized =
+            requestsByAffinitizedContainer.get(affinitizedContainer);
+        affinitized.remove(request);
+        if (affinitized.isEmpty()) {
+          requestsByAffinitizedContainer.remove(affinitizedContainer);
+        }
+      }
+    }
+
+    Priority getHighestPriority() {
+      return requestsByPriority.isEmpty() ? null : requestsByPriority.firstKey();
+    }
+
+    CookieContainerRequest getFirstRequest(Priority priority) {
+      PriorityRequests priorityRequests = requestsByPriority.get(priority);
+      return priorityRequests == null ? null : priorityRequests.requests.iterator().next();
+    }
+
+    int getRequestCount(Priority priority) {
+      PriorityRequests priorityRequests = requestsByPriority.get(priority);
+      return priorityRequests == null ? 0 : priorityRequests.requests.size();
+    }
+
+    Collection<Object> getContainerSignatures(Priority priority) {
+      PriorityRequests priorityRequests = requestsByPriority.get(priority);
+      return priorityRequests == null ? Collections.<Object>emptySet()
+          : priorityRequests.signatureCounts.keySet();
+    }
+
+    Collection<CookieContainerRequest> getAffinitizedRequests(ContainerId containerId) {
+      Set<CookieContainerRequest> affinitized = requestsByAffinitizedContainer.get(containerId);
+      return affinitized == null ? Collections.<CookieContainerRequest>emptySet() : affinitized;
+    }
+  }
+
   static class HeldContainer {
 
     enum LocalityMatchLevel {
@@ -2293,6 +2558,7 @@ public class YarnTaskSchedulerService extends TaskScheduler
     private CookieContainerRequest lastTaskInfo;
     private int numAssignmentAttempts = 0;
     private Object lastAssignedContainerSignature;
+    private Resource warmProfile;
     final ContainerSignatureMatcher signatureMatcher;
     
     HeldContainer(Container container,
@@ -2375,6 +2641,14 @@ public class YarnTaskSchedulerService extends TaskScheduler
       lastTaskInfo = taskInfo;
     }
 
+    Resource getWarmProfile() {
+      return warmProfile;
+    }
+
+    void setWarmProfile(Resource warmProfile) {
+      this.warmProfile = warmProfile;
+    }
+
     public synchronized void resetLocalityMatchLevel() {
       localityMatchLevel = LocalityMatchLevel.NEW;
     }
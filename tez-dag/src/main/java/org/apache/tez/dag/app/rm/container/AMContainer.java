@@ -32,7 +32,8 @@ public interface AMContainer extends EventHandler<AMContainerEvent>{
   public Container getContainer();
   public List<TezTaskAttemptID> getAllTaskAttempts();
   public TezTaskAttemptID getCurrentTaskAttempt();
-  public long getCurrentTaskAttemptAllocationTime();
+  public List<TezTaskAttemptID> getCurrentTaskAttempts();
+  public long getTaskAttemptAllocationTime(TezTaskAttemptID taskAttemptId);
   public int getTaskSchedulerIdentifier();
   public int getContainerLauncherIdentifier();
   public int getTaskCommunicatorIdentifier();
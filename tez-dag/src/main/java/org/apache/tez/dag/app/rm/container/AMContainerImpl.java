@@ -19,8 +19,10 @@
 package org.apache.tez.dag.app.rm.container;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +32,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import org.apache.tez.Utils;
 import org.apache.tez.common.TezUtilsInternal;
+import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.dag.app.dag.event.DAGAppMasterEventType;
 import org.apache.tez.dag.app.dag.event.DAGAppMasterEventUserServiceFatalError;
 import org.apache.tez.dag.app.rm.node.AMNodeEventContainerCompleted;
@@ -94,6 +97,8 @@ public class AMContainerImpl implements AMContainer {
   private final int launcherId;
   private final int taskCommId;
   private String auxiliaryService;
+  // The number of attempts the container runs at once
+  private final int numSlots;
 
   private final List<TezTaskAttemptID> completedAttempts =
       new LinkedList<TezTaskAttemptID>();
@@ -108,8 +113,11 @@ public class AMContainerImpl implements AMContainer {
   // be modelled as a separate state.
   private boolean nodeFailed = false;
 
-  private TezTaskAttemptID currentAttempt;
-  private long currentAttemptAllocationTime;
+  // Running in the slots of the container, in the order they were assigned
+  private final LinkedHashSet<TezTaskAttemptID> currentAttempts =
+      new LinkedHashSet<TezTaskAttemptID>();
+  private final Map<TezTaskAttemptID, Long> attemptAllocationTimes =
+      new HashMap<TezTaskAttemptID, Long>();
   private List<TezTaskAttemptID> failedAssignments;
 
   private boolean inError = false;
@@ -219,10 +227,12 @@ public class AMContainerImpl implements AMContainer {
               AMContainerEventType.C_NM_STOP_FAILED),
           new ErrorAtIdleTransition())
 
-      .addTransition(AMContainerState.RUNNING, AMContainerState.STOP_REQUESTED,
+      .addTransition(AMContainerState.RUNNING,
+          EnumSet.of(AMContainerState.RUNNING, AMContainerState.STOP_REQUESTED),
           AMContainerEventType.C_ASSIGN_TA,
           new AssignTaskAttemptAtRunningTransition())
-      .addTransition(AMContainerState.RUNNING, AMContainerState.IDLE,
+      .addTransition(AMContainerState.RUNNING,
+          EnumSet.of(AMContainerState.IDLE, AMContainerState.RUNNING),
           AMContainerEventType.C_TA_SUCCEEDED,
           new TASucceededAtRunningTransition())
       .addTransition(AMContainerState.RUNNING, AMContainerState.COMPLETED,
@@ -337,6 +347,8 @@ public class AMContainerImpl implements AMContainer {
     this.launcherId = launcherId;
     this.taskCommId = taskCommId;
     this.auxiliaryService = auxiliaryService;
+    this.numSlots = appContext.getAMConf().getInt(TezConfiguration.TEZ_TASK_CONTAINER_SLOTS,
+        TezConfiguration.TEZ_TASK_CONTAINER_SLOTS_DEFAULT);
     this.stateMachine = new StateMachineTez<>(stateMachineFactory.make(this), this);
     augmentStateMachine();
   }
@@ -379,9 +391,7 @@ public class AMContainerImpl implements AMContainer {
       List<TezTaskAttemptID> allAttempts = new LinkedList<TezTaskAttemptID>();
       allAttempts.addAll(this.completedAttempts);
       allAttempts.addAll(this.failedAssignments);
-      if (this.currentAttempt != null) {
-        allAttempts.add(this.currentAttempt);
-      }
+      allAttempts.addAll(this.currentAttempts);
       return allAttempts;
     } finally {
       readLock.unlock();
@@ -392,17 +402,28 @@ public class AMContainerImpl implements AMContainer {
   public TezTaskAttemptID getCurrentTaskAttempt() {
     readLock.lock();
     try {
-      return this.currentAttempt;
+      return this.currentAttempts.isEmpty() ? null : this.currentAttempts.iterator().next();
     } finally {
       readLock.unlock();
     }
   }
 
   @Override
-  public long getCurrentTaskAttemptAllocationTime() {
+  public List<TezTaskAttemptID> getCurrentTaskAttempts() {
     readLock.lock();
     try {
-      return this.currentAttemptAllocationTime;
+      return new ArrayList<TezTaskAttemptID>(this.currentAttempts);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public long getTaskAttemptAllocationTime(TezTaskAttemptID taskAttemptId) {
+    readLock.lock();
+    try {
+      Long allocationTime = this.attemptAllocationTimes.get(taskAttemptId);
+      return allocationTime == null ? 0 : allocationTime;
     } finally {
       readLock.unlock();
     }
@@ -603,11 +624,11 @@ public class AMContainerImpl implements AMContainer {
         LOG.debug("AssignTaskAttempt at state " + container.getState() + ", attempt: " +
             ((AMContainerEventAssignTA) cEvent).getRemoteTaskSpec());
       }
-      if (container.currentAttempt != null) {
+      if (container.currentAttempts.size() >= container.numSlots) {
         // This may include a couple of additional (harmless) unregister calls
         // to the taskAttemptListener and containerHeartbeatHandler - in case
         // of assign at any state prior to IDLE.
-        container.handleExtraTAAssign(event, container.currentAttempt);
+        container.handleExtraTAAssign(event, container.getCurrentTaskAttempts());
         return AMContainerState.STOP_REQUESTED;
       }
       
@@ -618,8 +639,9 @@ public class AMContainerImpl implements AMContainer {
           container.containerLocalResources, taskLocalResources);
       // Register the additional resources back for this container.
       container.containerLocalResources.putAll(container.additionalLocalResources);
-      container.currentAttempt = event.getTaskAttemptId();
-      container.currentAttemptAllocationTime = container.appContext.getClock().getTime();
+      container.currentAttempts.add(event.getTaskAttemptId());
+      container.attemptAllocationTimes.put(event.getTaskAttemptId(),
+          container.appContext.getClock().getTime());
       if (LOG.isDebugEnabled()) {
         LOG.debug("AssignTA: attempt: " + event.getRemoteTaskSpec());
         LOG.debug("AdditionalLocalResources: " + container.additionalLocalResources);
@@ -669,7 +691,7 @@ public class AMContainerImpl implements AMContainer {
     @Override
     public AMContainerState transition(AMContainerImpl container, AMContainerEvent cEvent) {
       container.registerWithContainerListener();
-      if (container.currentAttempt != null) {
+      if (!container.currentAttempts.isEmpty()) {
         return AMContainerState.RUNNING;
       } else {
         return AMContainerState.IDLE;
@@ -682,10 +704,10 @@ public class AMContainerImpl implements AMContainer {
     @Override
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
       AMContainerEventLaunchFailed event = (AMContainerEventLaunchFailed) cEvent;
-      if (container.currentAttempt != null) {
+      for (TezTaskAttemptID taId : container.currentAttempts) {
         // for a properly setup cluster this should almost always be an app error
         // need to differentiate between launch failed due to framework/cluster or app
-        container.sendTerminatingToTaskAttempt(container.currentAttempt,
+        container.sendTerminatingToTaskAttempt(taId,
             event.getMessage(), TaskAttemptTerminationCause.CONTAINER_LAUNCH_FAILED);
       }
       container.unregisterFromTAListener(ContainerEndReason.LAUNCH_FAILED, event.getMessage());
@@ -698,22 +720,24 @@ public class AMContainerImpl implements AMContainer {
     @Override
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
       AMContainerEventCompleted event = (AMContainerEventCompleted) cEvent;
-      if (container.currentAttempt!= null) {
+      if (!container.currentAttempts.isEmpty()) {
         String errorMessage = getMessage(container, event);
-        if (event.isSystemAction()) {
-          container.sendContainerTerminatedBySystemToTaskAttempt(container.currentAttempt,
-              errorMessage, event.getTerminationCause());
-        } else {
-          container
-              .sendTerminatedToTaskAttempt(
-                  container.currentAttempt,
-                  errorMessage,
-                  // if termination cause is generic exited then replace with specific
-                  (event.getTerminationCause() == TaskAttemptTerminationCause.CONTAINER_EXITED ? 
-                      TaskAttemptTerminationCause.CONTAINER_LAUNCH_FAILED : event.getTerminationCause()));
+        for (TezTaskAttemptID taId : container.currentAttempts) {
+          if (event.isSystemAction()) {
+            container.sendContainerTerminatedBySystemToTaskAttempt(taId,
+                errorMessage, event.getTerminationCause());
+          } else {
+            container
+                .sendTerminatedToTaskAttempt(
+                    taId,
+                    errorMessage,
+                    // if termination cause is generic exited then replace with specific
+                    (event.getTerminationCause() == TaskAttemptTerminationCause.CONTAINER_EXITED ? 
+                        TaskAttemptTerminationCause.CONTAINER_LAUNCH_FAILED : event.getTerminationCause()));
+          }
+          container.registerFailedAttempt(taId);
         }
-        container.registerFailedAttempt(container.currentAttempt);
-        container.currentAttempt = null;
+        container.currentAttempts.clear();
         LOG.warn(errorMessage);
       }
       container.containerLocalResources = null;
@@ -740,12 +764,12 @@ public class AMContainerImpl implements AMContainer {
 
     @Override
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
-      if (container.currentAttempt != null) {
-        container.sendTerminatingToTaskAttempt(container.currentAttempt,
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.sendTerminatingToTaskAttempt(taId,
             getMessage(container, cEvent), TaskAttemptTerminationCause.CONTAINER_STOPPED);
       }
       container.unregisterFromTAListener(ContainerEndReason.OTHER, getMessage(container, cEvent));
-      container.logStopped(container.currentAttempt == null ?
+      container.logStopped(container.currentAttempts.isEmpty() ?
           ContainerExitStatus.SUCCESS 
           : ContainerExitStatus.INVALID);
       container.sendStopRequestToNM();
@@ -780,11 +804,11 @@ public class AMContainerImpl implements AMContainer {
         container.sendNodeFailureToTA(taId, errorMessage, TaskAttemptTerminationCause.NODE_FAILED);
       }
 
-      if (container.currentAttempt != null) {
-        // Will be null in COMPLETED state.
-        container.sendNodeFailureToTA(container.currentAttempt, errorMessage,
+      // Will be empty in COMPLETED state.
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.sendNodeFailureToTA(taId, errorMessage,
             TaskAttemptTerminationCause.NODE_FAILED);
-        container.sendTerminatingToTaskAttempt(container.currentAttempt, errorMessage,
+        container.sendTerminatingToTaskAttempt(taId, errorMessage,
             TaskAttemptTerminationCause.NODE_FAILED);
       }
       container.logStopped(ContainerExitStatus.ABORTED);
@@ -813,8 +837,8 @@ public class AMContainerImpl implements AMContainer {
       String errorMessage = "Container " + container.getContainerId() +
           " hit an invalid transition - " + cEvent.getType() + " at " +
           container.getState();
-      if (container.currentAttempt != null) {
-        container.sendTerminatingToTaskAttempt(container.currentAttempt,
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.sendTerminatingToTaskAttempt(taId,
             errorMessage, TaskAttemptTerminationCause.FRAMEWORK_ERROR);
       }
       container.logStopped(ContainerExitStatus.ABORTED);
@@ -884,30 +908,42 @@ public class AMContainerImpl implements AMContainer {
     }
   }
 
-  protected static class AssignTaskAttemptAtRunningTransition implements
-      SingleArcTransition<AMContainerImpl, AMContainerEvent> {
+  protected static class AssignTaskAttemptAtRunningTransition
+      extends AssignTaskAttemptTransition {
     @Override
-    public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
-
-      AMContainerEventAssignTA event = (AMContainerEventAssignTA) cEvent;
-      String errorMessage = "AMScheduler Error: Multiple simultaneous " +
-          "taskAttempt allocations to: " + container.getContainerId() +
-          ". Attempts: " + container.getCurrentTaskAttempt() + ", " + event.getTaskAttemptId() +
-          ". Current state: " + container.getState();
-      container.unregisterAttemptFromListener(container.currentAttempt,
-          TaskAttemptEndReason.FRAMEWORK_ERROR, errorMessage);
-      container.handleExtraTAAssign(event, container.currentAttempt);
+    public AMContainerState transition(AMContainerImpl container, AMContainerEvent cEvent) {
+      if (container.currentAttempts.size() >= container.numSlots) {
+        AMContainerEventAssignTA event = (AMContainerEventAssignTA) cEvent;
+        String errorMessage = "AMScheduler Error: Multiple simultaneous " +
+            "taskAttempt allocations to: " + container.getContainerId() +
+            ". Attempts: " + container.currentAttempts + ", " + event.getTaskAttemptId() +
+            ". Current state: " + container.getState();
+        for (TezTaskAttemptID taId : container.currentAttempts) {
+          container.unregisterAttemptFromListener(taId,
+              TaskAttemptEndReason.FRAMEWORK_ERROR, errorMessage);
+        }
+      }
+      return super.transition(container, cEvent);
     }
   }
 
   protected static class TASucceededAtRunningTransition
-      implements SingleArcTransition<AMContainerImpl, AMContainerEvent> {
+      implements MultipleArcTransition<AMContainerImpl, AMContainerEvent, AMContainerState> {
     @Override
-    public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
+    public AMContainerState transition(AMContainerImpl container, AMContainerEvent cEvent) {
+      AMContainerEventTASucceeded event = (AMContainerEventTASucceeded) cEvent;
+      TezTaskAttemptID taId = event.getTaskAttemptId();
+      if (!container.currentAttempts.remove(taId)) {
+        LOG.warn("Ignoring success of attempt: " + taId + ", which is not running in container: "
+            + container.getContainerId());
+        return AMContainerState.RUNNING;
+      }
       container.lastTaskFinishTime = System.currentTimeMillis();
-      container.completedAttempts.add(container.currentAttempt);
-      container.unregisterAttemptFromListener(container.currentAttempt, TaskAttemptEndReason.OTHER, null);
-      container.currentAttempt = null;
+      container.completedAttempts.add(taId);
+      container.unregisterAttemptFromListener(taId, TaskAttemptEndReason.OTHER, null);
+      // Stays running while attempts run in other slots
+      return container.currentAttempts.isEmpty() ?
+          AMContainerState.IDLE : AMContainerState.RUNNING;
     }
   }
 
@@ -916,18 +952,20 @@ public class AMContainerImpl implements AMContainer {
     @Override
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
       AMContainerEventCompleted event = (AMContainerEventCompleted) cEvent;
-      if (event.isSystemAction()) {
-        container.sendContainerTerminatedBySystemToTaskAttempt(container.currentAttempt,
-            getMessage(container, event), event.getTerminationCause());
-      } else {
-        container.sendTerminatedToTaskAttempt(container.currentAttempt,
-            getMessage(container, event), event.getTerminationCause());
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        if (event.isSystemAction()) {
+          container.sendContainerTerminatedBySystemToTaskAttempt(taId,
+              getMessage(container, event), event.getTerminationCause());
+        } else {
+          container.sendTerminatedToTaskAttempt(taId,
+              getMessage(container, event), event.getTerminationCause());
+        }
+        container.unregisterAttemptFromListener(taId,
+            TezUtilsInternal.toTaskAttemptEndReason(event.getTerminationCause()),
+            getMessage(container, event));
+        container.registerFailedAttempt(taId);
       }
-      container.unregisterAttemptFromListener(container.currentAttempt,
-          TezUtilsInternal.toTaskAttemptEndReason(event.getTerminationCause()),
-          getMessage(container, event));
-      container.registerFailedAttempt(container.currentAttempt);
-      container.currentAttempt= null;
+      container.currentAttempts.clear();
       super.transition(container, cEvent);
     }
   }
@@ -935,8 +973,10 @@ public class AMContainerImpl implements AMContainer {
   protected static class StopRequestAtRunningTransition
       extends StopRequestAtIdleTransition {
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
-      container.unregisterAttemptFromListener(container.currentAttempt, TaskAttemptEndReason.OTHER,
-          getMessage(container, cEvent));
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.unregisterAttemptFromListener(taId, TaskAttemptEndReason.OTHER,
+            getMessage(container, cEvent));
+      }
       super.transition(container, cEvent);
     }
   }
@@ -958,7 +998,9 @@ public class AMContainerImpl implements AMContainer {
     public void transition(AMContainerImpl container, AMContainerEvent cEvent) {
       super.transition(container, cEvent);
       String errorMessage = "Node " + container.getContainer().getNodeId() + " failed. ";
-      container.unregisterAttemptFromListener(container.currentAttempt, TaskAttemptEndReason.NODE_FAILED, errorMessage);
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.unregisterAttemptFromListener(taId, TaskAttemptEndReason.NODE_FAILED, errorMessage);
+      }
     }
   }
 
@@ -970,10 +1012,12 @@ public class AMContainerImpl implements AMContainer {
       String errorMessage = "Container " + container.getContainerId() +
           " hit an invalid transition - " + cEvent.getType() + " at " +
           container.getState();
-      container.unregisterAttemptFromListener(container.currentAttempt,
-          TaskAttemptEndReason.FRAMEWORK_ERROR, errorMessage);
-      container.sendTerminatingToTaskAttempt(container.currentAttempt,
-          errorMessage, TaskAttemptTerminationCause.FRAMEWORK_ERROR);
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.unregisterAttemptFromListener(taId,
+            TaskAttemptEndReason.FRAMEWORK_ERROR, errorMessage);
+        container.sendTerminatingToTaskAttempt(taId,
+            errorMessage, TaskAttemptTerminationCause.FRAMEWORK_ERROR);
+      }
     }
   }
 
@@ -1003,12 +1047,12 @@ public class AMContainerImpl implements AMContainer {
         container.sendTerminatedToTaskAttempt(taId, diag, 
             TaskAttemptTerminationCause.CONTAINER_EXITED);
       }
-      if (container.currentAttempt != null) {
-        container.sendTerminatedToTaskAttempt(container.currentAttempt, diag,
+      for (TezTaskAttemptID taId : container.currentAttempts) {
+        container.sendTerminatedToTaskAttempt(taId, diag,
             TaskAttemptTerminationCause.CONTAINER_EXITED);
-        container.registerFailedAttempt(container.currentAttempt);
-        container.currentAttempt = null;
+        container.registerFailedAttempt(taId);
       }
+      container.currentAttempts.clear();
       if (!(diag == null || diag.equals(""))) {
         LOG.info("Container " + container.getContainerId()
             + " exited with diagnostics set to " + diag);
@@ -1090,17 +1134,19 @@ public class AMContainerImpl implements AMContainer {
   }
 
   private void handleExtraTAAssign(
-      AMContainerEventAssignTA event, TezTaskAttemptID currentTaId) {
+      AMContainerEventAssignTA event, List<TezTaskAttemptID> currentTaIds) {
     setError();
     String errorMessage = "AMScheduler Error: Multiple simultaneous " +
         "taskAttempt allocations to: " + this.getContainerId() +
-        ". Attempts: " + currentTaId + ", " + event.getTaskAttemptId() +
+        ". Attempts: " + currentTaIds + ", " + event.getTaskAttemptId() +
         ". Current state: " + this.getState();
     this.maybeSendNodeFailureForFailedAssignment(event.getTaskAttemptId());
     this.sendTerminatingToTaskAttempt(event.getTaskAttemptId(), errorMessage,
         TaskAttemptTerminationCause.FRAMEWORK_ERROR);
-    this.sendTerminatingToTaskAttempt(currentTaId, errorMessage,
-        TaskAttemptTerminationCause.FRAMEWORK_ERROR);
+    for (TezTaskAttemptID currentTaId : currentTaIds) {
+      this.sendTerminatingToTaskAttempt(currentTaId, errorMessage,
+          TaskAttemptTerminationCause.FRAMEWORK_ERROR);
+    }
     this.registerFailedAttempt(event.getTaskAttemptId());
     LOG.warn(errorMessage);
     this.logStopped(ContainerExitStatus.INVALID);
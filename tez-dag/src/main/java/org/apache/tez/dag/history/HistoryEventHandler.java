@@ -19,6 +19,7 @@
 package org.apache.tez.dag.history;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -263,6 +264,16 @@ public class HistoryEventHandler extends CompositeService {
     }
   }
 
+  /**
+   * Hand the events recovered for a DAG to the recovery service, which starts the checkpoints of
+   * the DAG from them.
+   */
+  public void setRecoveredEvents(TezDAGID dagId, List<HistoryEvent> events) {
+    if (recoveryEnabled) {
+      recoveryService.setRecoveredEvents(dagId, events);
+    }
+  }
+
   public boolean hasRecoveryFailed() {
     if (recoveryEnabled) {
       return recoveryService.hasRecoveryFailed();
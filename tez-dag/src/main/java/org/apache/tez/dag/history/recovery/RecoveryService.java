@@ -19,12 +19,22 @@
 package org.apache.tez.dag.history.recovery;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -39,14 +49,25 @@ import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.dag.api.TezConstants;
 import org.apache.tez.dag.app.AppContext;
 import org.apache.tez.dag.history.DAGHistoryEvent;
+import org.apache.tez.dag.history.HistoryEvent;
 import org.apache.tez.dag.history.HistoryEventType;
 import org.apache.tez.dag.history.SummaryEvent;
 import org.apache.tez.dag.history.events.DAGSubmittedEvent;
+import org.apache.tez.dag.history.events.TaskAttemptFinishedEvent;
+import org.apache.tez.dag.history.events.TaskAttemptStartedEvent;
+import org.apache.tez.dag.history.events.TaskFinishedEvent;
+import org.apache.tez.dag.history.events.TaskStartedEvent;
+import org.apache.tez.dag.history.events.VertexConfigurationDoneEvent;
+import org.apache.tez.dag.history.events.VertexFinishedEvent;
+import org.apache.tez.dag.history.events.VertexInitializedEvent;
+import org.apache.tez.dag.history.events.VertexStartedEvent;
 import org.apache.tez.dag.records.TezDAGID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class RecoveryService extends AbstractService {
 
@@ -95,6 +116,21 @@ public class RecoveryService extends AbstractService {
   private int flushInterval;
   private AtomicBoolean recoveryFatalErrorOccurred = new AtomicBoolean(false);
   private boolean drainEventsFlag;
+  private boolean groupCommit;
+  // Events whose callers wait for them to be flushed, in group commit mode
+  private final Map<DAGHistoryEvent, SettableFuture<Void>> flushFutures =
+      new ConcurrentHashMap<DAGHistoryEvent, SettableFuture<Void>>();
+
+  private boolean checkpointEnabled;
+  private long checkpointIntervalMs;
+  private long lastCheckpointTime;
+  // The events recovered for a DAG from the previous attempts, until its recovery file is created
+  private final Map<TezDAGID, List<HistoryEvent>> recoveredEvents =
+      new HashMap<TezDAGID, List<HistoryEvent>>();
+  // What the checkpoints of the DAGs with a recovery file are written from
+  private final Map<TezDAGID, DAGCheckpoint> checkpoints = new HashMap<TezDAGID, DAGCheckpoint>();
+  private ExecutorService checkpointWriter;
+  private Future<?> checkpointFuture;
 
   // Indicates all the remaining events on stop have been drained
   // and processed.
@@ -121,17 +157,31 @@ public class RecoveryService extends AbstractService {
     drainEventsFlag = conf.getBoolean(
         TEZ_TEST_RECOVERY_DRAIN_EVENTS_WHEN_STOPPED,
         TEZ_TEST_RECOVERY_DRAIN_EVENTS_WHEN_STOPPED_DEFAULT);
+    groupCommit = conf.getBoolean(TezConfiguration.DAG_RECOVERY_GROUP_COMMIT_ENABLED,
+        TezConfiguration.DAG_RECOVERY_GROUP_COMMIT_ENABLED_DEFAULT);
+    checkpointEnabled = conf.getBoolean(TezConfiguration.DAG_RECOVERY_CHECKPOINT_ENABLED,
+        TezConfiguration.DAG_RECOVERY_CHECKPOINT_ENABLED_DEFAULT);
+    checkpointIntervalMs = conf.getInt(TezConfiguration.DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS,
+        TezConfiguration.DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS_DEFAULT) * 1000L;
+    if (checkpointEnabled) {
+      checkpointWriter = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("RecoveryCheckpointWriter").build());
+    }
 
     LOG.info("RecoveryService initialized with "
       + "recoveryPath=" + recoveryPath
       + ", bufferSize(bytes)=" + bufferSize
       + ", flushInterval(s)=" + flushInterval
-      + ", maxUnflushedEvents=" + maxUnflushedEvents);
+      + ", maxUnflushedEvents=" + maxUnflushedEvents
+      + ", groupCommit=" + groupCommit
+      + ", checkpointEnabled=" + checkpointEnabled
+      + ", checkpointInterval(ms)=" + checkpointIntervalMs);
   }
 
   @Override
   public void serviceStart() {
     lastFlushTime = appContext.getClock().getTime();
+    lastCheckpointTime = lastFlushTime;
     eventHandlingThread = new Thread(new Runnable() {
       @Override
       public void run() {
@@ -154,6 +204,9 @@ public class RecoveryService extends AbstractService {
             LOG.error("Recovery failure occurred. Stopping recovery thread."
                 + " Current eventQueueSize=" + eventQueue.size());
             eventQueue.clear();
+            synchronized (lock) {
+              failFlushFutures(new IOException("Recovery failure occurred"));
+            }
             return;
           }
 
@@ -175,6 +228,20 @@ public class RecoveryService extends AbstractService {
             return;
           }
 
+          if (groupCommit) {
+            // Everything queued while the previous batch was written goes in this one
+            List<DAGHistoryEvent> batch = new ArrayList<DAGHistoryEvent>();
+            batch.add(event);
+            eventQueue.drainTo(batch,
+                maxUnflushedEvents > 0 ? maxUnflushedEvents - 1 : Integer.MAX_VALUE);
+            synchronized (lock) {
+              eventsProcessed += batch.size();
+              handleRecoveryEvents(batch);
+              maybeCheckpoint(false);
+            }
+            continue;
+          }
+
           synchronized (lock) {
             try {
               ++eventsProcessed;
@@ -184,6 +251,7 @@ public class RecoveryService extends AbstractService {
               // All summary event related errors are handled as critical
               LOG.warn("Error handling recovery event", e);
             }
+            maybeCheckpoint(false);
           }
         }
       }
@@ -217,6 +285,19 @@ public class RecoveryService extends AbstractService {
     }
 
     synchronized (lock) {
+      failFlushFutures(new IOException("RecoveryService stopped"));
+      if (checkpointEnabled) {
+        // The DAGs still running are checkpointed as of the last of their events
+        maybeCheckpoint(true);
+        checkpointWriter.shutdown();
+        if (checkpointFuture != null) {
+          try {
+            checkpointFuture.get();
+          } catch (ExecutionException e) {
+            LOG.warn("Error writing recovery checkpoints", e.getCause());
+          }
+        }
+      }
       if (summaryStream != null) {
         try {
           LOG.info("Closing Summary Stream");
@@ -301,6 +382,7 @@ public class RecoveryService extends AbstractService {
     }
 
     if (event.getHistoryEvent() instanceof SummaryEvent) {
+      SettableFuture<Void> flushFuture = null;
       synchronized (lock) {
         if (stopped.get()) {
           LOG.warn("Igoring event as service stopped, eventType"
@@ -310,7 +392,15 @@ public class RecoveryService extends AbstractService {
         try {
           SummaryEvent summaryEvent = (SummaryEvent) event.getHistoryEvent();
           handleSummaryEvent(dagId, eventType, summaryEvent);
-          if (summaryEvent.writeToRecoveryImmediately()) {
+          if (summaryEvent.writeToRecoveryImmediately() && groupCommit) {
+            if (recoveryFatalErrorOccurred.get()) {
+              return;
+            }
+            // Written along with the queued events, waited for out of the lock
+            flushFuture = SettableFuture.create();
+            flushFutures.put(event, flushFuture);
+            addToEventQueue(event);
+          } else if (summaryEvent.writeToRecoveryImmediately()) {
             handleRecoveryEvent(event);
             // outputStream may already be closed and removed
             if (outputStreamMap.containsKey(event.getDagID())) {
@@ -324,28 +414,25 @@ public class RecoveryService extends AbstractService {
             }
             addToEventQueue(event);
           }
-          if (eventType.equals(HistoryEventType.DAG_FINISHED)) {
-            LOG.info("DAG completed"
-                + ", dagId=" + event.getDagID()
-                + ", queueSize=" + eventQueue.size());
-            completedDAGs.add(dagId);
-            if (outputStreamMap.containsKey(dagId)) {
-              try {
-                outputStreamMap.get(dagId).close();
-                outputStreamMap.remove(dagId);
-              } catch (IOException ioe) {
-                LOG.warn("Error when trying to flush/close recovery file for"
-                    + " dag, dagId=" + event.getDagID());
-              }
-            }
+          if (flushFuture == null && eventType.equals(HistoryEventType.DAG_FINISHED)) {
+            dagFinished(dagId);
           }
         } catch (IOException ioe) {
-          LOG.error("Error handling summary event"
-              + ", eventType=" + event.getHistoryEvent().getEventType(), ioe);
-          createFatalErrorFlagDir();
-          if (eventType.equals(HistoryEventType.DAG_SUBMITTED)) {
-            // Throw error to tell client that dag submission failed
-            throw ioe;
+          handleSummaryEventError(eventType, ioe);
+        }
+      }
+      if (flushFuture != null) {
+        try {
+          waitForFlush(flushFuture);
+        } catch (IOException ioe) {
+          synchronized (lock) {
+            handleSummaryEventError(eventType, ioe);
+          }
+          return;
+        }
+        if (eventType.equals(HistoryEventType.DAG_FINISHED)) {
+          synchronized (lock) {
+            dagFinished(dagId);
           }
         }
       }
@@ -358,6 +445,58 @@ public class RecoveryService extends AbstractService {
     }
   }
 
+  private void dagFinished(TezDAGID dagId) {
+    LOG.info("DAG completed"
+        + ", dagId=" + dagId
+        + ", queueSize=" + eventQueue.size());
+    completedDAGs.add(dagId);
+    // Recovery of a completed DAG goes by the summary
+    recoveredEvents.remove(dagId);
+    checkpoints.remove(dagId);
+    if (outputStreamMap.containsKey(dagId)) {
+      try {
+        outputStreamMap.get(dagId).close();
+        outputStreamMap.remove(dagId);
+      } catch (IOException ioe) {
+        LOG.warn("Error when trying to flush/close recovery file for"
+            + " dag, dagId=" + dagId);
+      }
+    }
+  }
+
+  private void handleSummaryEventError(HistoryEventType eventType, IOException ioe)
+      throws IOException {
+    LOG.error("Error handling summary event"
+        + ", eventType=" + eventType, ioe);
+    createFatalErrorFlagDir();
+    if (eventType.equals(HistoryEventType.DAG_SUBMITTED)) {
+      // Throw error to tell client that dag submission failed
+      throw ioe;
+    }
+  }
+
+  private static void waitForFlush(Future<Void> flushFuture) throws IOException {
+    try {
+      flushFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for recovery data to be flushed");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // Called with the lock held
+  private void failFlushFutures(IOException cause) {
+    for (SettableFuture<Void> flushFuture : flushFutures.values()) {
+      flushFuture.setException(cause);
+    }
+    flushFutures.clear();
+  }
+
   private void createFatalErrorFlagDir() throws IOException {
     Path fatalErrorDir = new Path(recoveryPath, RECOVERY_FATAL_OCCURRED_DIR);
     try {
@@ -443,6 +582,9 @@ public class RecoveryService extends AbstractService {
         outputStream = recoveryDirFS.create(dagFilePath, false, bufferSize);
       }
       outputStreamMap.put(dagID, outputStream);
+      if (checkpointEnabled) {
+        checkpoints.put(dagID, new DAGCheckpoint(recoveredEvents.remove(dagID)));
+      }
     }
 
     FSDataOutputStream outputStream = outputStreamMap.get(dagID);
@@ -455,12 +597,63 @@ public class RecoveryService extends AbstractService {
     ++unflushedEventsCount;
     outputStream.writeInt(event.getHistoryEvent().getEventType().ordinal());
     event.getHistoryEvent().toProtoStream(outputStream);
-    if (!EnumSet.of(HistoryEventType.DAG_SUBMITTED,
+    DAGCheckpoint checkpoint = checkpoints.get(dagID);
+    if (checkpoint != null) {
+      checkpoint.add(event.getHistoryEvent(), outputStream.getPos());
+    }
+    if (!groupCommit && !EnumSet.of(HistoryEventType.DAG_SUBMITTED,
         HistoryEventType.DAG_FINISHED).contains(eventType)) {
       maybeFlush(outputStream);
     }
   }
 
+  /**
+   * Writes a batch of events, then flushes each of the streams written to once. Completes the
+   * futures of the events of the batch once they are flushed. Called with the lock held.
+   */
+  private void handleRecoveryEvents(List<DAGHistoryEvent> batch) {
+    Set<TezDAGID> writtenDAGs = new HashSet<TezDAGID>();
+    for (DAGHistoryEvent event : batch) {
+      try {
+        handleRecoveryEvent(event);
+        writtenDAGs.add(event.getDagID());
+      } catch (Exception e) {
+        // For now, ignore any such errors as these are non-critical
+        LOG.warn("Error handling recovery event", e);
+        SettableFuture<Void> flushFuture = flushFutures.remove(event);
+        if (flushFuture != null) {
+          flushFuture.setException(e);
+        }
+      }
+    }
+    IOException flushError = null;
+    long currentTime = appContext.getClock().getTime();
+    for (TezDAGID dagID : writtenDAGs) {
+      // outputStream may not have been opened, or already be closed and removed
+      FSDataOutputStream outputStream = outputStreamMap.get(dagID);
+      if (outputStream == null) {
+        continue;
+      }
+      try {
+        doFlush(outputStream, currentTime);
+      } catch (IOException e) {
+        LOG.warn("Error flushing recovery data, dagId=" + dagID, e);
+        flushError = e;
+      }
+    }
+    for (DAGHistoryEvent event : batch) {
+      SettableFuture<Void> flushFuture = flushFutures.remove(event);
+      if (flushFuture == null) {
+        continue;
+      }
+      if (flushError != null) {
+        flushFuture.setException(flushError);
+      } else {
+        flushFuture.set(null);
+      }
+    }
+  }
+
   private void maybeFlush(FSDataOutputStream outputStream) throws IOException {
     long currentTime = appContext.getClock().getTime();
     boolean doFlush = false;
@@ -501,6 +694,206 @@ public class RecoveryService extends AbstractService {
     lastFlushTime = currentTime;
   }
 
+  /**
+   * Have the checkpoints of a DAG recovered from the previous attempts start from the events
+   * recovered for it. Must be called before a recovery event of the DAG is handled.
+   */
+  public void setRecoveredEvents(TezDAGID dagId, List<HistoryEvent> events) {
+    if (!checkpointEnabled) {
+      return;
+    }
+    synchronized (lock) {
+      if (outputStreamMap.containsKey(dagId) || completedDAGs.contains(dagId)) {
+        LOG.warn("Not checkpointing DAG " + dagId + ", its recovery events are handled already");
+        return;
+      }
+      recoveredEvents.put(dagId, events);
+    }
+  }
+
+  /**
+   * Checkpoint the DAGs which logged events since their last checkpoint, and wait for it.
+   */
+  @VisibleForTesting
+  public void checkpoint() throws Exception {
+    Future<?> future;
+    synchronized (lock) {
+      maybeCheckpoint(true);
+      future = checkpointFuture;
+    }
+    if (future != null) {
+      future.get();
+    }
+  }
+
+  /**
+   * Hand the checkpoints of the DAGs which logged events since their last one to the checkpoint
+   * writer, once the checkpoint interval elapsed and the previous ones are written. Called with
+   * the lock held.
+   *
+   * @param force whether to do it regardless of the interval, waiting for the previous ones
+   */
+  private void maybeCheckpoint(boolean force) {
+    if (!checkpointEnabled) {
+      return;
+    }
+    long currentTime = appContext.getClock().getTime();
+    if (!force && (currentTime - lastCheckpointTime < checkpointIntervalMs
+        || (checkpointFuture != null && !checkpointFuture.isDone()))) {
+      return;
+    }
+    lastCheckpointTime = currentTime;
+    final List<Runnable> writes = new ArrayList<Runnable>();
+    for (Entry<TezDAGID, DAGCheckpoint> entry : checkpoints.entrySet()) {
+      final TezDAGID dagId = entry.getKey();
+      DAGCheckpoint checkpoint = entry.getValue();
+      if (!checkpoint.changed) {
+        continue;
+      }
+      try {
+        // Events of the checkpoint are not lost with the recovery file either way
+        doFlush(outputStreamMap.get(dagId), currentTime);
+      } catch (IOException e) {
+        LOG.warn("Error flushing recovery data, not checkpointing dagId=" + dagId, e);
+        continue;
+      }
+      checkpoint.changed = false;
+      final List<HistoryEvent> events = new ArrayList<HistoryEvent>(checkpoint.events.values());
+      final long coveredLength = checkpoint.coveredLength;
+      writes.add(new Runnable() {
+        @Override
+        public void run() {
+          writeCheckpoint(dagId, events, coveredLength);
+        }
+      });
+    }
+    if (writes.isEmpty()) {
+      return;
+    }
+    checkpointFuture = checkpointWriter.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (Runnable write : writes) {
+          write.run();
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the checkpoint of a DAG in the recovery directory of the current attempt: the length
+   * of the recovery file of the DAG it covers, then the events in the format of the recovery
+   * file. Replaces the previous checkpoint once complete. Failures are logged, the next attempts
+   * then read an older checkpoint or the recovery files instead.
+   */
+  private void writeCheckpoint(TezDAGID dagId, List<HistoryEvent> events, long coveredLength) {
+    Path checkpointFile = TezCommonUtils.getDAGCheckpointPath(recoveryPath, dagId.toString());
+    // Renamed once complete, a partial checkpoint is never read
+    Path tmpCheckpointFile = checkpointFile.suffix(".tmp");
+    try {
+      FSDataOutputStream out = recoveryDirFS.create(tmpCheckpointFile, true, bufferSize);
+      try {
+        out.writeLong(coveredLength);
+        for (HistoryEvent event : events) {
+          out.writeInt(event.getEventType().ordinal());
+          event.toProtoStream(out);
+        }
+      } finally {
+        out.close();
+      }
+      recoveryDirFS.delete(checkpointFile, false);
+      if (!recoveryDirFS.rename(tmpCheckpointFile, checkpointFile)) {
+        throw new IOException("Failed to rename " + tmpCheckpointFile + " to " + checkpointFile);
+      }
+      LOG.info("Wrote recovery checkpoint"
+          + ", dagId=" + dagId
+          + ", checkpointFile=" + checkpointFile
+          + ", eventCount=" + events.size()
+          + ", coveredLength=" + coveredLength);
+    } catch (IOException e) {
+      LOG.warn("Failed to write recovery checkpoint, dagId=" + dagId, e);
+      try {
+        recoveryDirFS.delete(tmpCheckpointFile, false);
+      } catch (IOException ioe) {
+        LOG.warn("Failed to delete " + tmpCheckpointFile, ioe);
+      }
+    }
+  }
+
+  /**
+   * The recovery events of a DAG which recovery makes use of, the latest of each kind for the DAG
+   * and each of its vertices, tasks and attempts, in the order they were first handled. With the
+   * length of the recovery file of the DAG they cover.
+   */
+  private static class DAGCheckpoint {
+    private final LinkedHashMap<Object, HistoryEvent> events =
+        new LinkedHashMap<Object, HistoryEvent>();
+    private long coveredLength;
+    private boolean changed;
+
+    DAGCheckpoint(List<HistoryEvent> recoveredEvents) {
+      if (recoveredEvents != null) {
+        for (HistoryEvent event : recoveredEvents) {
+          add(event);
+        }
+        changed = true;
+      }
+    }
+
+    void add(HistoryEvent event, long position) {
+      add(event);
+      coveredLength = position;
+      changed = true;
+    }
+
+    private void add(HistoryEvent event) {
+      Object slot = getSlot(event);
+      if (slot != null) {
+        // Keeps the position of the event it replaces
+        events.put(slot, event);
+      }
+    }
+
+    // Events of the same slot replace each other, null for the events recovery does not use
+    private static Object getSlot(HistoryEvent event) {
+      HistoryEventType eventType = event.getEventType();
+      Object id;
+      switch (eventType) {
+        case DAG_SUBMITTED:
+        case DAG_INITIALIZED:
+        case DAG_STARTED:
+          return eventType;
+        case VERTEX_INITIALIZED:
+          id = ((VertexInitializedEvent) event).getVertexID();
+          break;
+        case VERTEX_CONFIGURE_DONE:
+          id = ((VertexConfigurationDoneEvent) event).getVertexID();
+          break;
+        case VERTEX_STARTED:
+          id = ((VertexStartedEvent) event).getVertexID();
+          break;
+        case VERTEX_FINISHED:
+          id = ((VertexFinishedEvent) event).getVertexID();
+          break;
+        case TASK_STARTED:
+          id = ((TaskStartedEvent) event).getTaskID();
+          break;
+        case TASK_FINISHED:
+          id = ((TaskFinishedEvent) event).getTaskID();
+          break;
+        case TASK_ATTEMPT_STARTED:
+          id = ((TaskAttemptStartedEvent) event).getTaskAttemptID();
+          break;
+        case TASK_ATTEMPT_FINISHED:
+          id = ((TaskAttemptFinishedEvent) event).getTaskAttemptID();
+          break;
+        default:
+          return null;
+      }
+      return new SimpleImmutableEntry<HistoryEventType, Object>(eventType, id);
+    }
+  }
+
   public boolean hasRecoveryFailed() {
     return recoveryFatalErrorOccurred.get();
   }
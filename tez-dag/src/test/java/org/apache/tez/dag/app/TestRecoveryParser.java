@@ -18,6 +18,10 @@
 
 package org.apache.tez.dag.app;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
@@ -36,6 +40,8 @@ import org.apache.hadoop.yarn.api.records.NodeId;
 import org.apache.hadoop.yarn.util.SystemClock;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezConstants;
 import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.api.oldrecords.TaskState;
 import org.apache.tez.dag.api.records.DAGProtos.DAGPlan;
@@ -49,6 +55,7 @@ import org.apache.tez.dag.app.dag.VertexState;
 import org.apache.tez.dag.app.dag.impl.DAGImpl;
 import org.apache.tez.dag.app.dag.impl.TestDAGImpl;
 import org.apache.tez.dag.history.DAGHistoryEvent;
+import org.apache.tez.dag.history.HistoryEventType;
 import org.apache.tez.dag.history.events.DAGCommitStartedEvent;
 import org.apache.tez.dag.history.events.DAGFinishedEvent;
 import org.apache.tez.dag.history.events.DAGInitializedEvent;
@@ -752,6 +759,143 @@ public class TestRecoveryParser {
     assertEquals(ta0t2v2FinishedEvent.getFinishTime(), ta0t2v2Data.getTaskAttemptFinishedEvent().getFinishTime());
   }
 
+  @Test(timeout=20000)
+  public void testRecoveryDataCheckpoint() throws Exception {
+    ApplicationId appId = ApplicationId.newInstance(System.currentTimeMillis(), 1);
+    TezDAGID dagID = TezDAGID.getInstance(appId, 1);
+    ApplicationAttemptId appAttemptId = ApplicationAttemptId.newInstance(appId, 1);
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getCurrentRecoveryDir()).thenReturn(new Path(recoveryPath+"/1"));
+    when(appContext.getClock()).thenReturn(new SystemClock());
+    when(mockDAGImpl.getID()).thenReturn(dagID);
+    when(appContext.getHadoopShim()).thenReturn(new DefaultHadoopShim());
+    when(appContext.getApplicationID()).thenReturn(appId);
+
+    Configuration conf = new Configuration();
+    conf.setBoolean(RecoveryService.TEZ_TEST_RECOVERY_DRAIN_EVENTS_WHEN_STOPPED, true);
+    conf.setBoolean(TezConfiguration.DAG_RECOVERY_CHECKPOINT_ENABLED, true);
+    // Checkpoints are only written when the test asks for them, and on stop
+    conf.setInt(TezConfiguration.DAG_RECOVERY_CHECKPOINT_INTERVAL_SECS, 3600);
+    // Enough events for them to be decoded by several threads
+    conf.setInt(TezConfiguration.DAG_RECOVERY_PARSE_THREADS, 4);
+    when(mockAppMaster.getConfig()).thenReturn(conf);
+
+    // attempt 1 runs the tasks of v0, and checkpoints the DAG half way
+    RecoveryService rService = new RecoveryService(appContext);
+    rService.init(conf);
+    rService.start();
+    DAGPlan dagPlan = TestDAGImpl.createTestDAGPlan();
+    rService.handle(new DAGHistoryEvent(dagID,
+        new DAGSubmittedEvent(dagID, 1L, dagPlan, appAttemptId,
+            null, "user", new Configuration(), null, null)));
+    rService.handle(new DAGHistoryEvent(dagID,
+        new DAGInitializedEvent(dagID, 100L, "user", "dagName", null)));
+    rService.handle(new DAGHistoryEvent(dagID,
+        new DAGStartedEvent(dagID, 200L, "user", "dagName")));
+    TezVertexID v0Id = TezVertexID.getInstance(dagID, 0);
+    int numTasks = 1500;
+    rService.handle(new DAGHistoryEvent(dagID, new VertexInitializedEvent(
+        v0Id, "v0", 200L, 400L, numTasks, null, null, null, null)));
+    rService.handle(new DAGHistoryEvent(dagID, new VertexStartedEvent(v0Id, 0L, 500L)));
+    ContainerId containerId = ContainerId.newInstance(appAttemptId, 1);
+    NodeId nodeId = NodeId.newInstance("localhost", 9999);
+    Path checkpointFile1 = new Path(recoveryPath + "/1",
+        dagID + TezConstants.DAG_RECOVERY_CHECKPOINT_FILE_SUFFIX);
+    Path savedCheckpointFile1 = checkpointFile1.suffix(".saved");
+    for (int i = 0; i < numTasks; ++i) {
+      if (i == numTasks / 2) {
+        rService.await();
+        rService.checkpoint();
+        localFS.rename(checkpointFile1, savedCheckpointFile1);
+      }
+      TezTaskID taskId = TezTaskID.getInstance(v0Id, i);
+      TezTaskAttemptID taId = TezTaskAttemptID.getInstance(taskId, 0);
+      rService.handle(new DAGHistoryEvent(dagID,
+          new TaskStartedEvent(taskId, "v0", 600L, 600L + i)));
+      rService.handle(new DAGHistoryEvent(dagID, new TaskAttemptStartedEvent(
+          taId, "v0", 700L + i, containerId, nodeId, "", "", "")));
+      rService.handle(new DAGHistoryEvent(dagID, new TaskAttemptFinishedEvent(
+          taId, "v0", 700L + i, 800L + i, TaskAttemptState.SUCCEEDED, null, null, "", null,
+          null, null, 0L, null, 0L, null, null, null, null, null)));
+      rService.handle(new DAGHistoryEvent(dagID, new TaskFinishedEvent(
+          taskId, "v0", 600L, 900L + i, taId, TaskState.SUCCEEDED, "", null, 1)));
+    }
+    rService.stop();
+    assertTrue(localFS.exists(checkpointFile1));
+    // As if attempt 1 had died before the checkpoint on stop
+    localFS.delete(checkpointFile1, false);
+    localFS.rename(savedCheckpointFile1, checkpointFile1);
+
+    // attempt 2 recovers the DAG from the checkpoint and the rest of the recovery file of
+    // attempt 1, and reruns the first task
+    RecoveryParser parser2 = new RecoveryParser(mockAppMaster, localFS, recoveryPath, 2);
+    DAGRecoveryData dagData = parser2.parseRecoveryData();
+    assertRecoveredTasks(dagData, v0Id, numTasks);
+    // The DAGSubmittedEvent of the recovery file is covered by the checkpoint
+    verify(mockAppMaster, times(1)).createDAG(any(DAGPlan.class), any(TezDAGID.class));
+    assertNotNull(dagData.checkpointEvents);
+    when(appContext.getCurrentRecoveryDir()).thenReturn(new Path(recoveryPath+"/2"));
+    rService = new RecoveryService(appContext);
+    rService.init(conf);
+    rService.start();
+    rService.setRecoveredEvents(dagID, dagData.checkpointEvents);
+    TezTaskAttemptID rerunId = TezTaskAttemptID.getInstance(TezTaskID.getInstance(v0Id, 0), 1);
+    rService.handle(new DAGHistoryEvent(dagID, new TaskAttemptStartedEvent(
+        rerunId, "v0", 1000L, containerId, nodeId, "", "", "")));
+    rService.stop();
+
+    // attempt 3 reads the checkpoint of attempt 2 only
+    localFS.delete(checkpointFile1, false);
+    localFS.delete(new Path(recoveryPath + "/1",
+        dagID + TezConstants.DAG_RECOVERY_RECOVER_FILE_SUFFIX), false);
+    RecoveryParser parser3 = new RecoveryParser(mockAppMaster, localFS, recoveryPath, 3);
+    dagData = parser3.parseRecoveryData();
+    assertRecoveredTasks(dagData, v0Id, numTasks);
+    assertEquals(100L, dagData.getDAGInitializedEvent().getInitTime());
+    assertEquals(200L, dagData.getDAGStartedEvent().getStartTime());
+    assertEquals(1000L,
+        dagData.getTaskAttemptRecoveryData(rerunId).getTaskAttemptStartedEvent().getStartTime());
+    verify(mockAppMaster, times(2)).createDAG(any(DAGPlan.class), any(TezDAGID.class));
+  }
+
+  @Test(timeout = 5000)
+  public void testTruncatedRecoveryRecordSize() throws IOException {
+    TezDAGID dagID = TezDAGID.getInstance(ApplicationId.newInstance(1, 1), 1);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    DAGInitializedEvent event = new DAGInitializedEvent(dagID, 100L, "user", "dagName", null);
+    out.writeInt(event.getEventType().ordinal());
+    event.toProtoStream(out);
+    // The size of the next record is cut off within its varint
+    out.writeInt(HistoryEventType.DAG_STARTED.ordinal());
+    out.write(0x80);
+    out.close();
+
+    RecoveryEventReader reader = new RecoveryEventReader(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), null, 1);
+    assertEquals(HistoryEventType.DAG_INITIALIZED, reader.next().getEventType());
+    // The end of the log, not a corrupt record
+    assertNull(reader.next());
+  }
+
+  private static void assertRecoveredTasks(DAGRecoveryData dagData, TezVertexID vertexId,
+      int numTasks) {
+    assertFalse(dagData.nonRecoverable);
+    VertexRecoveryData vertexData = dagData.getVertexRecoveryData(vertexId);
+    assertEquals(500L, vertexData.getVertexStartedEvent().getStartTime());
+    assertEquals(numTasks, vertexData.getVertexInitedEvent().getNumTasks());
+    for (int i = 0; i < numTasks; ++i) {
+      TezTaskID taskId = TezTaskID.getInstance(vertexId, i);
+      TezTaskAttemptID taId = TezTaskAttemptID.getInstance(taskId, 0);
+      TaskRecoveryData taskData = dagData.getTaskRecoveryData(taskId);
+      assertEquals(600L + i, taskData.getTaskStartedEvent().getStartTime());
+      assertEquals(900L + i, taskData.getTaskFinishedEvent().getFinishTime());
+      assertTrue(taskData.isTaskAttemptSucceeded(taId));
+      assertEquals(700L + i, dagData.getTaskAttemptRecoveryData(taId)
+          .getTaskAttemptStartedEvent().getStartTime());
+    }
+  }
+
   // Simulate the behavior that summary event is written 
   // but non-summary is not written to hdfs
   public static class MockRecoveryService extends RecoveryService{
@@ -91,6 +91,8 @@ import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
 import org.apache.tez.runtime.api.impl.EventType;
 import org.apache.tez.runtime.api.impl.TaskSpec;
 import org.apache.tez.runtime.api.impl.TezEvent;
+import org.apache.tez.runtime.api.impl.TezHeartbeatRequest;
+import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -239,6 +241,53 @@ public class TestTaskCommunicatorManager1 {
     assertNull(containerTask);
   }
 
+  @Test(timeout = 5000)
+  public void testGetTaskAndHeartbeatFromSlots() throws IOException, TezException {
+    TezTaskCommunicatorImpl taskCommunicator =
+        (TezTaskCommunicatorImpl) taskAttemptListener.getTaskCommunicator(0).getTaskCommunicator();
+    TezTaskUmbilicalProtocol tezUmbilical = taskCommunicator.getUmbilical();
+
+    ContainerId containerId1 = createContainerId(appId, 1);
+    String slot0 = ContainerContext.getSlotIdentifier(containerId1.toString(), 0);
+    String slot1 = ContainerContext.getSlotIdentifier(containerId1.toString(), 1);
+    assertEquals(containerId1.toString(), slot0);
+    assertEquals(containerId1.toString(), ContainerContext.getContainerIdentifier(slot1));
+    taskAttemptListener.registerRunningContainer(containerId1, 0);
+    assertNull(tezUmbilical.getTask(new ContainerContext(slot1)));
+
+    // Two attempts assigned to the container, each pulled once by the slot which asks first
+    TezTaskAttemptID taskAttemptID2 =
+        TezTaskAttemptID.getInstance(TezTaskID.getInstance(vertexID, 2), 1);
+    TaskSpec taskSpec2 = mock(TaskSpec.class);
+    doReturn(taskAttemptID2).when(taskSpec2).getTaskAttemptID();
+    taskAttemptListener.registerTaskAttempt(amContainerTask, containerId1, 0);
+    taskAttemptListener.registerTaskAttempt(
+        new AMContainerTask(taskSpec2, null, null, false, 0), containerId1, 0);
+    containerTask = tezUmbilical.getTask(new ContainerContext(slot1));
+    assertEquals(taskSpec, containerTask.getTaskSpec());
+    containerTask = tezUmbilical.getTask(new ContainerContext(slot0));
+    assertEquals(taskSpec2, containerTask.getTaskSpec());
+    assertNull(tezUmbilical.getTask(new ContainerContext(slot0)));
+
+    // Each slot numbers its heartbeats from the start
+    TezHeartbeatResponse response0 = tezUmbilical.heartbeat(new TezHeartbeatRequest(1,
+        new ArrayList<TezEvent>(), 0, slot0, null, 0, 0));
+    TezHeartbeatResponse response1 = tezUmbilical.heartbeat(new TezHeartbeatRequest(1,
+        new ArrayList<TezEvent>(), 0, slot1, null, 0, 0));
+    assertEquals(1, response0.getLastRequestId());
+    assertEquals(1, response1.getLastRequestId());
+    assertTrue(response0 != response1);
+    // A resent heartbeat gets the last response of its slot
+    assertTrue(response1 == tezUmbilical.heartbeat(new TezHeartbeatRequest(1,
+        new ArrayList<TezEvent>(), 0, slot1, null, 0, 0)));
+
+    // Ending one attempt leaves the other one registered to the container
+    taskAttemptListener.unregisterTaskAttempt(taskAttemptID, 0, TaskAttemptEndReason.OTHER, null);
+    assertNull(tezUmbilical.getTask(new ContainerContext(slot1)));
+    taskAttemptListener.unregisterRunningContainer(containerId1, 0, ContainerEndReason.OTHER, null);
+    assertTrue(tezUmbilical.getTask(new ContainerContext(slot0)).shouldDie());
+  }
+
   @Test (timeout = 5000)
   public void testTaskEventRouting() throws Exception {
     List<TezEvent> events =  Arrays.asList(
@@ -19,6 +19,7 @@
 package org.apache.tez.dag.app.dag.impl;
 
 import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.app.dag.DAG;
 import org.apache.tez.dag.app.dag.DAGScheduler;
 import org.apache.tez.dag.app.dag.TaskAttempt;
@@ -35,7 +36,9 @@ import com.google.common.collect.Lists;
 
 import static org.mockito.Mockito.*;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TestDAGScheduler {
 
@@ -86,6 +89,74 @@ public class TestDAGScheduler {
     Assert.assertEquals(45, mockEventHandler.event.getPriorityLowLimit());
   }
   
+  @Test(timeout=5000)
+  public void testDAGSchedulerCriticalPath() {
+    MockEventHandler mockEventHandler = new MockEventHandler();
+    DAG mockDag = mock(DAG.class);
+    // v0 -> v1 -> v2 and v3 -> v2
+    Vertex v0 = createMockVertex(mockDag, 0, 0);
+    Vertex v1 = createMockVertex(mockDag, 1, 1);
+    Vertex v2 = createMockVertex(mockDag, 2, 2);
+    Vertex v3 = createMockVertex(mockDag, 3, 0);
+    v0.getOutputVertices().put(v1, null);
+    v1.getOutputVertices().put(v2, null);
+    v3.getOutputVertices().put(v2, null);
+    Map<TezVertexID, Vertex> vertices = new HashMap<TezVertexID, Vertex>();
+    for (Vertex v : Lists.newArrayList(v0, v1, v2, v3)) {
+      vertices.put(v.getVertexId(), v);
+    }
+    when(mockDag.getVertices()).thenReturn(vertices);
+
+    DAGScheduler scheduler = new DAGSchedulerCriticalPath(mockDag, mockEventHandler);
+    // No durations yet: the longest chain first, ties by distance from root
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v0, 3);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v3, 6);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v1, 9);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v2, 12);
+
+    // v3 turns out to be much slower than the v0 -> v1 chain
+    completeAttempt(scheduler, v0, 10);
+    completeAttempt(scheduler, v3, 1000);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v3, 3);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v0, 6);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v1, 9);
+    scheduleAndCheckPriority(scheduler, mockEventHandler, v2, 12);
+  }
+
+  private Vertex createMockVertex(DAG mockDag, int id, int distanceFromRoot) {
+    TezVertexID vId = TezVertexID.fromString("vertex_1436907267600_195589_1_0" + id);
+    Vertex mockVertex = mock(Vertex.class);
+    when(mockVertex.getVertexId()).thenReturn(vId);
+    when(mockVertex.getDistanceFromRoot()).thenReturn(distanceFromRoot);
+    when(mockVertex.getOutputVertices()).thenReturn(new HashMap<Vertex, Edge>());
+    when(mockDag.getVertex(vId)).thenReturn(mockVertex);
+    return mockVertex;
+  }
+
+  private void scheduleAndCheckPriority(DAGScheduler scheduler,
+      MockEventHandler mockEventHandler, Vertex vertex, int priorityLowLimit) {
+    TezVertexID vId = vertex.getVertexId();
+    TaskAttempt mockAttempt = mock(TaskAttempt.class);
+    when(mockAttempt.getVertexID()).thenReturn(vId);
+    when(mockAttempt.getID()).thenReturn(
+        TezTaskAttemptID.getInstance(TezTaskID.getInstance(vId, 0), 0));
+    scheduler.scheduleTaskEx(new DAGEventSchedulerUpdate(
+        DAGEventSchedulerUpdate.UpdateType.TA_SCHEDULE, mockAttempt));
+    Assert.assertEquals(priorityLowLimit, mockEventHandler.event.getPriorityLowLimit());
+    Assert.assertEquals(priorityLowLimit - 2, mockEventHandler.event.getPriorityHighLimit());
+  }
+
+  private void completeAttempt(DAGScheduler scheduler, Vertex vertex, long duration) {
+    TezVertexID vId = vertex.getVertexId();
+    TaskAttempt mockAttempt = mock(TaskAttempt.class);
+    when(mockAttempt.getVertexID()).thenReturn(vId);
+    when(mockAttempt.getState()).thenReturn(TaskAttemptState.SUCCEEDED);
+    when(mockAttempt.getLaunchTime()).thenReturn(1000L);
+    when(mockAttempt.getFinishTime()).thenReturn(1000L + duration);
+    scheduler.taskCompletedEx(new DAGEventSchedulerUpdate(
+        DAGEventSchedulerUpdate.UpdateType.TA_COMPLETED, mockAttempt));
+  }
+
   @Test(timeout=5000)
   public void testConcurrencyLimit() {
     MockEventHandler mockEventHandler = new MockEventHandler();
@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tez.dag.app.dag.impl.VertexImpl.EventInfo;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputFailedEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.junit.Test;
+
+public class TestOnDemandRouteEventStore {
+
+  private final TezVertexID vertexId = TezVertexID.getInstance(TezDAGID.getInstance("1", 1, 1), 1);
+  private final Edge edge = mock(Edge.class);
+
+  @Test(timeout = 5000)
+  public void testEventsOfDestinationTask() {
+    OnDemandRouteEventStore store = new OnDemandRouteEventStore();
+    // ids 0, 2 and 4 go to any task, 1 to task 1 and 3 to task 0
+    store.add(createEventInfo(0, -1));
+    store.add(createEventInfo(1, 1));
+    store.add(createEventInfo(2, -1));
+    store.add(createEventInfo(0, 0));
+    store.add(createEventInfo(3, -1));
+    assertEquals(5, store.size());
+
+    assertArrayEquals(new int[] { 0, 2, 3, 4 }, getEventIds(store, 0, 0));
+    assertArrayEquals(new int[] { 0, 1, 2, 4 }, getEventIds(store, 1, 0));
+    assertArrayEquals(new int[] { 0, 2, 4 }, getEventIds(store, 2, 0));
+    // Resuming from an event id
+    assertArrayEquals(new int[] { 3, 4 }, getEventIds(store, 0, 3));
+    assertArrayEquals(new int[] { 2, 4 }, getEventIds(store, 1, 2));
+    assertArrayEquals(new int[0], getEventIds(store, 1, 5));
+
+    // Events added later are not seen by an existing cursor
+    OnDemandRouteEventStore.Cursor cursor = store.getEvents(1, 4);
+    store.add(createEventInfo(1, 1));
+    assertEquals(5, cursor.getLimit());
+    assertEquals(4, cursor.peekId());
+    assertSame(store.get(4), cursor.next());
+    assertEquals(5, cursor.peekId());
+    assertNull(cursor.next());
+    assertArrayEquals(new int[] { 5 }, getEventIds(store, 1, 5));
+  }
+
+  @Test(timeout = 5000)
+  public void testObsoleteDataMovementEvents() {
+    OnDemandRouteEventStore store = new OnDemandRouteEventStore();
+    EventInfo first = createEventInfo(0, -1);
+    EventInfo second = createEventInfo(0, -1);
+    EventInfo otherTask = createEventInfo(1, -1);
+    EventInfo otherEdge = new EventInfo(first.tezEvent, mock(Edge.class), 0, -1);
+    store.add(first);
+    store.add(second);
+    store.add(otherTask);
+    store.add(otherEdge);
+    EventInfo inputFailed = new EventInfo(new TezEvent(InputFailedEvent.create(0, 0),
+        first.tezEvent.getSourceInfo()), edge, 0, -1);
+    store.add(inputFailed);
+
+    assertTrue(store.obsoleteDataMovementEvents(edge, getAttemptId(0)));
+    assertTrue(first.isObsolete);
+    assertTrue(second.isObsolete);
+    assertFalse(otherTask.isObsolete);
+    assertFalse(otherEdge.isObsolete);
+    assertFalse(inputFailed.isObsolete);
+    assertFalse(store.obsoleteDataMovementEvents(edge, getAttemptId(2)));
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentReads() throws Exception {
+    final OnDemandRouteEventStore store = new OnDemandRouteEventStore();
+    final int numEvents = 100000;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final int taskIndex = i;
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            int nextId = 0;
+            while (nextId < numEvents) {
+              OnDemandRouteEventStore.Cursor cursor = store.getEvents(taskIndex, nextId);
+              EventInfo eventInfo;
+              while ((eventInfo = cursor.next()) != null) {
+                // Every other event goes to any task, the others round robin to one task
+                int id = eventInfo.eventTaskIndex;
+                if (id < nextId || (id % 2 == 1 && (id / 2) % 4 != taskIndex)) {
+                  throw new AssertionError("Unexpected event " + id + " for " + taskIndex);
+                }
+                if (id % 2 == 0 && id > nextId + 1) {
+                  throw new AssertionError("Missed events before " + id + " for " + taskIndex);
+                }
+                nextId = id + 1;
+              }
+              nextId = Math.max(nextId, cursor.getLimit());
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+    for (int id = 0; id < numEvents; id++) {
+      int destinationTaskIndex = id % 2 == 0 ? -1 : (id / 2) % 4;
+      store.add(new EventInfo(createEventInfo(0, -1).tezEvent, edge, id, destinationTaskIndex));
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentFirstEventOfTask() throws Exception {
+    final OnDemandRouteEventStore store = new OnDemandRouteEventStore();
+    final int numTasks = 100000;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    // Follows the writer, which adds the first and only event of every task in turn
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int taskIndex = 0; taskIndex < numTasks; taskIndex++) {
+            while (true) {
+              OnDemandRouteEventStore.Cursor cursor = store.getEvents(taskIndex, 0);
+              EventInfo eventInfo = cursor.next();
+              if (eventInfo != null) {
+                assertEquals(taskIndex, eventInfo.eventTaskIndex);
+                assertNull(cursor.next());
+                break;
+              }
+              if (cursor.getLimit() > taskIndex) {
+                throw new AssertionError("Missed the event of task " + taskIndex + ", limit="
+                    + cursor.getLimit());
+              }
+            }
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    reader.start();
+    for (int taskIndex = 0; taskIndex < numTasks && failure.get() == null; taskIndex++) {
+      store.add(new EventInfo(createEventInfo(0, -1).tezEvent, edge, taskIndex, taskIndex));
+    }
+    reader.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  private int[] getEventIds(OnDemandRouteEventStore store, int taskIndex, int fromEventId) {
+    List<Integer> ids = new ArrayList<Integer>();
+    OnDemandRouteEventStore.Cursor cursor = store.getEvents(taskIndex, fromEventId);
+    while (cursor.peekId() < cursor.getLimit()) {
+      int id = cursor.peekId();
+      assertSame(store.get(id), cursor.next());
+      ids.add(id);
+    }
+    assertNull(cursor.next());
+    int[] result = new int[ids.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = ids.get(i);
+    }
+    return result;
+  }
+
+  private EventInfo createEventInfo(int srcTaskIndex, int destinationTaskIndex) {
+    EventMetaData srcMeta = new EventMetaData(EventProducerConsumerType.OUTPUT, "v2", "v1",
+        getAttemptId(srcTaskIndex));
+    DataMovementEvent dmEvent = DataMovementEvent.create(0, ByteBuffer.wrap(new byte[0]));
+    return new EventInfo(new TezEvent(dmEvent, srcMeta), edge, srcTaskIndex,
+        destinationTaskIndex);
+  }
+
+  private TezTaskAttemptID getAttemptId(int taskIndex) {
+    return TezTaskAttemptID.getInstance(TezTaskID.getInstance(vertexId, taskIndex), 0);
+  }
+}
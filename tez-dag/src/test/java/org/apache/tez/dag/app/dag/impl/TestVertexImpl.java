@@ -3973,6 +3973,46 @@ public class TestVertexImpl {
 
   }
 
+  @Test(timeout = 5000)
+  public void testCountersOfSucceededAndRescheduledTasks() {
+    initAllVertices(VertexState.INITED);
+
+    VertexImpl v = vertices.get("vertex2");
+    startVertex(v);
+
+    TezTaskID t1 = TezTaskID.getInstance(v.getVertexId(), 0);
+    TezTaskID t2 = TezTaskID.getInstance(v.getVertexId(), 1);
+    ((TaskImpl) v.getTask(t1)).setCounters(createCounters(1));
+    ((TaskImpl) v.getTask(t2)).setCounters(createCounters(10));
+
+    dispatcher.getEventHandler().handle(
+        new VertexEventTaskCompleted(t1, TaskState.SUCCEEDED));
+    dispatcher.await();
+    Assert.assertEquals(11, v.getAllCounters().findCounter("g", "c").getValue());
+
+    // The rerun reports its own counters, the ones of the first run are taken back
+    dispatcher.getEventHandler().handle(new VertexEventTaskReschedule(t1));
+    dispatcher.await();
+    // Counted as a running task until the rerun reports
+    Assert.assertEquals(11, v.getAllCounters().findCounter("g", "c").getValue());
+    ((TaskImpl) v.getTask(t1)).setCounters(createCounters(5));
+    Assert.assertEquals(15, v.getAllCounters().findCounter("g", "c").getValue());
+
+    dispatcher.getEventHandler().handle(
+        new VertexEventTaskCompleted(t1, TaskState.SUCCEEDED));
+    dispatcher.getEventHandler().handle(
+        new VertexEventTaskCompleted(t2, TaskState.SUCCEEDED));
+    dispatcher.await();
+    Assert.assertEquals(VertexState.SUCCEEDED, v.getState());
+    Assert.assertEquals(15, v.getAllCounters().findCounter("g", "c").getValue());
+  }
+
+  private static TezCounters createCounters(long value) {
+    TezCounters counters = new TezCounters();
+    counters.findCounter("g", "c").setValue(value);
+    return counters;
+  }
+
   @Test(timeout = 5000)
   public void testVertexSuccessToRunningAfterTaskScheduler() {
     // For downstream failures
@@ -0,0 +1,330 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.speculation.legacy;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
+import org.apache.tez.dag.api.oldrecords.TaskState;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.dag.Task;
+import org.apache.tez.dag.app.dag.TaskAttempt;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.app.dag.impl.Edge;
+import org.apache.tez.dag.app.rm.TaskSchedulerManager;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.impl.IOStatistics;
+import org.apache.tez.runtime.api.impl.TaskStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestQuantileTaskRuntimeEstimator {
+
+  private static final String INPUT_NAME = "input";
+  private static final NodeId NODE = NodeId.newInstance("node", 0);
+  private static final NodeId SLOW_NODE = NodeId.newInstance("slownode", 0);
+
+  @Test(timeout = 5000)
+  public void testRuntimeSamples() {
+    QuantileTaskRuntimeEstimator.RuntimeSamples samples =
+        new QuantileTaskRuntimeEstimator.RuntimeSamples();
+    Assert.assertTrue(Double.isNaN(samples.quantile(0.5)));
+    for (int i = 100; i >= 1; i--) {
+      samples.add(i);
+    }
+    Assert.assertEquals(100, samples.size());
+    Assert.assertEquals(1, samples.quantile(0), 0);
+    Assert.assertEquals(50, samples.quantile(0.5), 0);
+    Assert.assertEquals(90, samples.quantile(0.9), 0);
+    Assert.assertEquals(100, samples.quantile(1), 0);
+  }
+
+  /**
+   * A vertex where one task has 10 times the input of the others, and another one runs on a node
+   * 5 times slower than the others. Only the latter is worth speculating.
+   */
+  @Test(timeout = 20000)
+  public void testSkewedVertex() {
+    SpeculationSimulator legacy = new SpeculationSimulator(
+        LegacyTaskRuntimeEstimator.class, Integer.MAX_VALUE);
+    List<TezTaskID> tasks = addSkewedTasks(legacy);
+    legacy.run();
+    Assert.assertTrue(legacy.speculatedTasks.contains(tasks.get(0)));
+    Assert.assertTrue(legacy.speculatedTasks.contains(tasks.get(1)));
+
+    SpeculationSimulator quantile = new SpeculationSimulator(
+        QuantileTaskRuntimeEstimator.class, Integer.MAX_VALUE);
+    tasks = addSkewedTasks(quantile);
+    quantile.run();
+    Assert.assertEquals(Collections.singletonList(tasks.get(1)), quantile.speculatedTasks);
+    // The speculative attempt on a regular node won
+    Assert.assertEquals(TaskAttemptState.SUCCEEDED,
+        quantile.getAttemptState(TezTaskAttemptID.getInstance(tasks.get(1), 1)));
+  }
+
+  @Test(timeout = 20000)
+  public void testLimitByHeadroom() {
+    SpeculationSimulator simulator = new SpeculationSimulator(
+        QuantileTaskRuntimeEstimator.class, 0);
+    List<TezTaskID> tasks = addSkewedTasks(simulator);
+    simulator.run();
+    Assert.assertTrue(simulator.speculatedTasks.isEmpty());
+    Assert.assertEquals(TaskAttemptState.SUCCEEDED,
+        simulator.getAttemptState(TezTaskAttemptID.getInstance(tasks.get(1), 0)));
+  }
+
+  // The task with the large input first, then the one on the slow node, then the regular ones
+  private static List<TezTaskID> addSkewedTasks(SpeculationSimulator simulator) {
+    List<TezTaskID> tasks = new ArrayList<TezTaskID>();
+    tasks.add(simulator.addTask(100000, 10000, NODE));
+    tasks.add(simulator.addTask(50000, 1000, SLOW_NODE));
+    for (int i = 0; i < 18; i++) {
+      tasks.add(simulator.addTask(10000 + i * 100, 1000, NODE));
+    }
+    return tasks;
+  }
+
+  /**
+   * Replays a trace of task attempts, their runtime, input size and node, through a
+   * {@link LegacySpeculator} and the estimator it is configured with. The attempts report their
+   * progress and input statistics every second. Speculative attempts run on a regular node and
+   * take as long as the trace says for their input size. The first attempt of a task to finish
+   * wins, the others are killed.
+   */
+  private static class SpeculationSimulator {
+    final Map<TezTaskID, SimTask> tasks = new LinkedHashMap<TezTaskID, SimTask>();
+    final List<TezTaskID> speculatedTasks = new ArrayList<TezTaskID>();
+    long now = 1000000;
+    long finishTime = -1;
+
+    private final TezVertexID vertexId = TezVertexID.fromString("vertex_1436907267600_1_1_00");
+    private final Vertex vertex = mock(Vertex.class);
+    private final LegacySpeculator speculator;
+    private final Map<TezTaskID, Task> mockTasks = new LinkedHashMap<TezTaskID, Task>();
+
+    SpeculationSimulator(Class<? extends TaskRuntimeEstimator> estimatorClass,
+        int headroomInTasks) {
+      Configuration conf = new Configuration(false);
+      conf.set(TezConfiguration.TEZ_AM_SPECULATION_ESTIMATOR_CLASS, estimatorClass.getName());
+      conf.setBoolean(TezConfiguration.TEZ_AM_SPECULATION_LIMIT_BY_HEADROOM, true);
+
+      when(vertex.getTask(any(TezTaskID.class))).thenAnswer(new Answer<Task>() {
+        @Override
+        public Task answer(InvocationOnMock invocation) {
+          return mockTasks.get(invocation.getArguments()[0]);
+        }
+      });
+      when(vertex.getTasks()).thenReturn(mockTasks);
+      when(vertex.getTotalTasks()).thenAnswer(new Answer<Integer>() {
+        @Override
+        public Integer answer(InvocationOnMock invocation) {
+          return tasks.size();
+        }
+      });
+      when(vertex.getCompletedTasks()).thenAnswer(new Answer<Integer>() {
+        @Override
+        public Integer answer(InvocationOnMock invocation) {
+          int completed = 0;
+          for (SimTask task : tasks.values()) {
+            completed += task.state == TaskState.SUCCEEDED ? 1 : 0;
+          }
+          return completed;
+        }
+      });
+      when(vertex.getInputVertices()).thenReturn(new HashMap<Vertex, Edge>());
+      when(vertex.getAdditionalInputs()).thenReturn(Collections.singletonMap(INPUT_NAME,
+          null));
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) {
+          TezTaskID taskId = (TezTaskID) invocation.getArguments()[0];
+          speculatedTasks.add(taskId);
+          SimTask task = tasks.get(taskId);
+          addAttempt(task, task.regularRuntime, NODE);
+          return null;
+        }
+      }).when(vertex).scheduleSpeculativeTask(any(TezTaskID.class));
+      when(vertex.getTaskResource()).thenReturn(Resource.newInstance(1024, 1));
+
+      AppContext context = mock(AppContext.class);
+      when(context.getClock()).thenReturn(new Clock() {
+        @Override
+        public long getTime() {
+          return now;
+        }
+      });
+      TaskSchedulerManager taskScheduler = mock(TaskSchedulerManager.class);
+      when(taskScheduler.getAvailableResources(anyInt())).thenReturn(
+          Resource.newInstance(headroomInTasks == Integer.MAX_VALUE ? Integer.MAX_VALUE
+              : headroomInTasks * 1024, Integer.MAX_VALUE));
+      when(context.getTaskScheduler()).thenReturn(taskScheduler);
+      speculator = new LegacySpeculator(conf, context, vertex);
+    }
+
+    TezTaskID addTask(long runtime, long inputSize, NodeId node) {
+      SimTask task = new SimTask(TezTaskID.getInstance(vertexId, tasks.size()), inputSize,
+          node == SLOW_NODE ? runtime / 5 : runtime);
+      tasks.put(task.id, task);
+      mockTasks.put(task.id, task.mockTask);
+      addAttempt(task, runtime, node);
+      return task.id;
+    }
+
+    private void addAttempt(SimTask task, long runtime, NodeId node) {
+      SimAttempt attempt = new SimAttempt(
+          TezTaskAttemptID.getInstance(task.id, task.attempts.size()), now, runtime,
+          task.inputSize, node);
+      task.attempts.put(attempt.id, attempt.mockAttempt);
+      speculator.notifyAttemptStarted(attempt.id, now);
+    }
+
+    TaskAttemptState getAttemptState(TezTaskAttemptID attemptId) {
+      return tasks.get(attemptId.getTaskID()).simAttempts.get(attemptId).state;
+    }
+
+    void run() {
+      while (finishTime < 0) {
+        now += 1000;
+        boolean allSucceeded = true;
+        for (SimTask task : tasks.values()) {
+          for (TaskAttempt mockAttempt : new ArrayList<TaskAttempt>(task.attempts.values())) {
+            SimAttempt attempt = task.simAttempts.get(mockAttempt.getID());
+            if (attempt.state != TaskAttemptState.RUNNING) {
+              continue;
+            }
+            if (now >= attempt.start + attempt.runtime) {
+              attempt.state = TaskAttemptState.SUCCEEDED;
+              task.state = TaskState.SUCCEEDED;
+              for (SimAttempt other : task.simAttempts.values()) {
+                if (other != attempt && other.state == TaskAttemptState.RUNNING) {
+                  other.state = TaskAttemptState.KILLED;
+                }
+              }
+            }
+            speculator.notifyAttemptStatusUpdate(attempt.id, attempt.state, now);
+          }
+          allSucceeded &= task.state == TaskState.SUCCEEDED;
+        }
+        if (allSucceeded) {
+          finishTime = now;
+        }
+      }
+    }
+
+    private class SimTask {
+      final TezTaskID id;
+      final long inputSize;
+      // How long an attempt on a regular node takes
+      final long regularRuntime;
+      TaskState state = TaskState.RUNNING;
+      final Map<TezTaskAttemptID, TaskAttempt> attempts =
+          new LinkedHashMap<TezTaskAttemptID, TaskAttempt>();
+      final Map<TezTaskAttemptID, SimAttempt> simAttempts =
+          new HashMap<TezTaskAttemptID, SimAttempt>();
+      final Task mockTask = mock(Task.class);
+
+      SimTask(TezTaskID id, long inputSize, long regularRuntime) {
+        this.id = id;
+        this.inputSize = inputSize;
+        this.regularRuntime = regularRuntime;
+        when(mockTask.getTaskId()).thenReturn(id);
+        when(mockTask.getAttempts()).thenReturn(attempts);
+        when(mockTask.getAttempt(any(TezTaskAttemptID.class))).thenAnswer(
+            new Answer<TaskAttempt>() {
+              @Override
+              public TaskAttempt answer(InvocationOnMock invocation) {
+                return attempts.get(invocation.getArguments()[0]);
+              }
+            });
+        when(mockTask.getState()).thenAnswer(new Answer<TaskState>() {
+          @Override
+          public TaskState answer(InvocationOnMock invocation) {
+            return state;
+          }
+        });
+      }
+    }
+
+    private class SimAttempt {
+      final TezTaskAttemptID id;
+      final long start;
+      final long runtime;
+      final long inputSize;
+      TaskAttemptState state = TaskAttemptState.RUNNING;
+      final TaskAttempt mockAttempt = mock(TaskAttempt.class);
+
+      SimAttempt(TezTaskAttemptID id, long start, long runtime, long inputSize, NodeId node) {
+        this.id = id;
+        this.start = start;
+        this.runtime = runtime;
+        this.inputSize = inputSize;
+        when(mockAttempt.getID()).thenReturn(id);
+        when(mockAttempt.getNodeId()).thenReturn(node);
+        when(mockAttempt.getState()).thenAnswer(new Answer<TaskAttemptState>() {
+          @Override
+          public TaskAttemptState answer(InvocationOnMock invocation) {
+            return state;
+          }
+        });
+        when(mockAttempt.getProgress()).thenAnswer(new Answer<Float>() {
+          @Override
+          public Float answer(InvocationOnMock invocation) {
+            return getProgress();
+          }
+        });
+        when(mockAttempt.getStatistics()).thenAnswer(new Answer<TaskStatistics>() {
+          @Override
+          public TaskStatistics answer(InvocationOnMock invocation) {
+            TaskStatistics statistics = new TaskStatistics();
+            IOStatistics inputStatistics = new IOStatistics();
+            inputStatistics.setDataSize((long) (SimAttempt.this.inputSize * getProgress()));
+            statistics.addIO(INPUT_NAME, inputStatistics);
+            return statistics;
+          }
+        });
+        tasks.get(id.getTaskID()).simAttempts.put(id, this);
+      }
+
+      float getProgress() {
+        return state == TaskAttemptState.SUCCEEDED ? 1.0f
+            : Math.min(1.0f, (float) (now - start) / runtime);
+      }
+    }
+  }
+}
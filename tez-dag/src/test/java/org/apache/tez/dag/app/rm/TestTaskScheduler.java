@@ -37,6 +37,7 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -80,6 +81,8 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -87,6 +90,8 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 @SuppressWarnings("deprecation")
 public class TestTaskScheduler {
 
+  private static final Logger LOG = LoggerFactory.getLogger(TestTaskScheduler.class);
+
   static ContainerSignatureMatcher containerSignatureMatcher = new AlwaysMatchesContainerMatcher();
   private ExecutorService contextCallbackExecutor;
 
@@ -1694,6 +1699,191 @@ public class TestTaskScheduler {
     verify(mockRMClient, times(3)).addContainerRequest(requestCaptor.capture());
   }
 
+  @Test(timeout=5000)
+  public void testTaskRequestIndex() throws Exception {
+    TezAMRMClientAsync<CookieContainerRequest> mockRMClient =
+        new AMRMClientAsyncForTest(new AMRMClientForTest(), 100);
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezConfiguration.TEZ_AM_CONTAINER_REUSE_ENABLED, true);
+    TaskSchedulerContext mockApp = setupMockTaskSchedulerContext("host", 0, "", conf);
+    TaskSchedulerContextDrainable drainableAppCallback = createDrainableContext(mockApp);
+    TaskSchedulerWithDrainableContext scheduler =
+        new TaskSchedulerWithDrainableContext(drainableAppCallback, mockRMClient);
+    scheduler.initialize();
+    scheduler.start();
+
+    Resource resource = Resource.newInstance(1024, 1);
+    Priority priority1 = Priority.newInstance(1);
+    Priority priority2 = Priority.newInstance(2);
+    Object signature1 = new Object();
+    Object signature2 = new Object();
+    ContainerId containerId = ContainerId.newInstance(
+        ApplicationAttemptId.newInstance(ApplicationId.newInstance(1, 1), 1), 1);
+    Object task1 = new Object();
+    Object task2 = new Object();
+    Object task3 = new Object();
+    scheduler.allocateTask(task1, resource, new String[] {"host1"}, null, priority2,
+        signature1, null);
+    scheduler.allocateTask(task2, resource, null, null, priority2, signature2, null);
+    scheduler.allocateTask(task3, resource, containerId, priority1, signature1, null);
+
+    YarnTaskSchedulerService.TaskRequestIndex index = scheduler.taskRequestIndex;
+    assertEquals(priority1, index.getHighestPriority());
+    assertEquals(1, index.getRequestCount(priority1));
+    assertEquals(2, index.getRequestCount(priority2));
+    assertEquals(task1, index.getFirstRequest(priority2).getCookie().getTask());
+    assertEquals(Sets.newHashSet(signature1, signature2),
+        Sets.newHashSet(index.getContainerSignatures(priority2)));
+    assertEquals(task3,
+        index.getAffinitizedRequests(containerId).iterator().next().getCookie().getTask());
+
+    // Requesting again replaces the request
+    scheduler.allocateTask(task1, resource, null, null, priority2, signature2, null);
+    assertEquals(2, index.getRequestCount(priority2));
+    assertEquals(task2, index.getFirstRequest(priority2).getCookie().getTask());
+    assertEquals(Collections.singleton(signature2),
+        Sets.newHashSet(index.getContainerSignatures(priority2)));
+
+    scheduler.deallocateTask(task3, true, null, null);
+    assertEquals(priority2, index.getHighestPriority());
+    assertEquals(0, index.getRequestCount(priority1));
+    assertTrue(index.getAffinitizedRequests(containerId).isEmpty());
+    scheduler.deallocateTask(task1, true, null, null);
+    scheduler.deallocateTask(task2, true, null, null);
+    Assert.assertNull(index.getHighestPriority());
+    assertTrue(index.getContainerSignatures(priority2).isEmpty());
+
+    AppFinalStatus finalStatus = new AppFinalStatus(FinalApplicationStatus.SUCCEEDED, "", "");
+    when(mockApp.getFinalAppStatus()).thenReturn(finalStatus);
+    scheduler.shutdown();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test(timeout=5000)
+  public void testSessionWarmPoolRequests() throws Exception {
+    TezAMRMClientAsync<CookieContainerRequest> mockRMClient = mock(TezAMRMClientAsync.class);
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezConfiguration.TEZ_AM_CONTAINER_REUSE_ENABLED, true);
+    conf.setBoolean(TezConfiguration.TEZ_AM_SESSION_WARM_POOL_ENABLED, true);
+    TaskSchedulerContext mockApp = setupMockTaskSchedulerContext("host", 0, "", true, conf);
+    TaskSchedulerContextDrainable drainableAppCallback = createDrainableContext(mockApp);
+    TaskSchedulerWithDrainableContext scheduler =
+        new TaskSchedulerWithDrainableContext(drainableAppCallback, mockRMClient);
+    scheduler.initialize();
+    RegisterApplicationMasterResponse mockRegResponse =
+        mock(RegisterApplicationMasterResponse.class);
+    when(mockRMClient.registerApplicationMaster(anyString(), anyInt(), anyString()))
+        .thenReturn(mockRegResponse);
+    when(mockRMClient.getAvailableResources()).thenReturn(Resource.newInstance(4000, 4));
+    scheduler.start();
+
+    Resource resource = Resource.newInstance(1024, 1);
+    Priority priority = Priority.newInstance(1);
+    Object task1 = new Object();
+    Object task2 = new Object();
+    scheduler.allocateTask(task1, resource, null, null, priority, null, null);
+    scheduler.allocateTask(task2, resource, null, null, priority, null, null);
+    scheduler.deallocateTask(task1, true, null, null);
+    scheduler.deallocateTask(task2, true, null, null);
+    scheduler.dagComplete();
+
+    // Nothing asked for the pool while a DAG runs
+    scheduler.getProgress();
+    assertTrue(scheduler.warmContainerRequests.isEmpty());
+
+    when(mockApp.getAMState()).thenReturn(TaskSchedulerContext.AMState.IDLE);
+    scheduler.getProgress();
+    assertEquals(2, scheduler.warmContainerRequests.size());
+    for (CookieContainerRequest warmRequest : scheduler.warmContainerRequests) {
+      assertEquals(resource, warmRequest.getCapability());
+      assertEquals(YarnTaskSchedulerService.WARM_CONTAINER_PRIORITY, warmRequest.getPriority());
+    }
+    // Already requested
+    scheduler.getProgress();
+    assertEquals(2, scheduler.warmContainerRequests.size());
+    verify(mockRMClient, times(4)).addContainerRequest((CookieContainerRequest) any());
+
+    // The requests of the next DAG take over
+    when(mockApp.getAMState()).thenReturn(TaskSchedulerContext.AMState.RUNNING_APP);
+    scheduler.allocateTask(new Object(), resource, null, null, priority, null, null);
+    assertTrue(scheduler.warmContainerRequests.isEmpty());
+    verify(mockRMClient, times(4)).removeContainerRequest((CookieContainerRequest) any());
+
+    AppFinalStatus finalStatus = new AppFinalStatus(FinalApplicationStatus.SUCCEEDED, "", "");
+    when(mockApp.getFinalAppStatus()).thenReturn(finalStatus);
+    scheduler.shutdown();
+  }
+
+  /**
+   * Runs 100k tasks on 1000 reused containers, and logs how long it takes. The containers are
+   * allocated for the tasks of a first vertex. The tasks of the second vertex are all requested
+   * at once, each affinitized to one of the containers, and get them as the tasks running in them
+   * finish.
+   */
+  @Test
+  public void testMatchingScale() throws Exception {
+    int numTasks = 100000;
+    int numHosts = 10;
+    int numContainers = 1000;
+    TezAMRMClientAsync<CookieContainerRequest> rmClient =
+        new AMRMClientAsyncForTest(new AMRMClientForTest(), 100);
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezConfiguration.TEZ_AM_CONTAINER_REUSE_ENABLED, true);
+    conf.setLong(TezConfiguration.TEZ_AM_CONTAINER_REUSE_LOCALITY_DELAY_ALLOCATION_MILLIS, 0);
+    TaskSchedulerContext mockApp = setupMockTaskSchedulerContext("host", 0, "", conf);
+    TaskSchedulerContextDrainable drainableAppCallback = createDrainableContext(mockApp);
+    TaskSchedulerWithDrainableContext scheduler =
+        new TaskSchedulerWithDrainableContext(drainableAppCallback, rmClient);
+    scheduler.initialize();
+    scheduler.start();
+
+    Resource resource = Resource.newInstance(1024, 1);
+    Priority priority1 = Priority.newInstance(1);
+    Priority priority2 = Priority.newInstance(2);
+    List<Container> containers = new ArrayList<Container>(numContainers);
+    for (int i = 0; i < numContainers; i++) {
+      String host = "host" + (i % numHosts);
+      scheduler.allocateTask("v1task" + i, resource, new String[] {host}, null, priority1,
+          null, null);
+      containers.add(createContainer(i, host, resource, priority1));
+    }
+    scheduler.onContainersAllocated(containers);
+    while (drainableAppCallback.count.get() < numContainers) {
+      Thread.sleep(10);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < numTasks; i++) {
+      scheduler.allocateTask("v2task" + i, resource, containers.get(i % numContainers).getId(),
+          priority2, null, null);
+    }
+    long allocateNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    int finished = 0;
+    while (finished < numTasks + numContainers) {
+      List<Object> runningTasks;
+      synchronized (scheduler) {
+        runningTasks = new ArrayList<Object>(scheduler.taskAllocations.keySet());
+      }
+      if (runningTasks.isEmpty()) {
+        Thread.sleep(10);
+        continue;
+      }
+      for (Object task : runningTasks) {
+        scheduler.deallocateTask(task, true, null, null);
+        finished++;
+      }
+    }
+    long reuseNanos = System.nanoTime() - start;
+
+    LOG.info("Matching " + numTasks + " tasks to " + numContainers + " containers. Requests: "
+        + (allocateNanos / 1000000) + " ms, reuse: " + (reuseNanos / 1000000) + " ms");
+    AppFinalStatus finalStatus = new AppFinalStatus(FinalApplicationStatus.SUCCEEDED, "", "");
+    when(mockApp.getFinalAppStatus()).thenReturn(finalStatus);
+    scheduler.shutdown();
+  }
+
   private Container createContainer(int id, String host, Resource resource,
       Priority priority) {
     ContainerId containerID = ContainerId.newInstance(
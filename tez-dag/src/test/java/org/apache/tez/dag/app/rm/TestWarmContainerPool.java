@@ -0,0 +1,87 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.rm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.junit.Test;
+
+public class TestWarmContainerPool {
+
+  private static final Resource SMALL = Resource.newInstance(1024, 1);
+  private static final Resource LARGE = Resource.newInstance(4096, 2);
+
+  @Test(timeout = 5000)
+  public void testTargetSizeFollowsPeakDemand() {
+    WarmContainerPool pool = new WarmContainerPool(60000, 100);
+    assertEquals(0, pool.getTargetSize(SMALL, 0));
+
+    // 3 small tasks at once, then 1 more after they end
+    for (int i = 0; i < 3; i++) {
+      pool.taskRequested(SMALL);
+    }
+    for (int i = 0; i < 3; i++) {
+      pool.taskEnded(SMALL);
+    }
+    pool.taskRequested(SMALL);
+    pool.taskRequested(LARGE);
+    pool.dagCompleted(1000);
+    assertEquals(3, pool.getTargetSize(SMALL, 1000));
+    assertEquals(1, pool.getTargetSize(LARGE, 1000));
+
+    // The next DAG needs no large containers
+    for (int i = 0; i < 5; i++) {
+      pool.taskRequested(SMALL);
+    }
+    pool.dagCompleted(2000);
+    assertEquals(4, pool.getTargetSize(SMALL, 2000));
+    assertEquals(1, pool.getTargetSize(LARGE, 2000));
+    pool.dagCompleted(3000);
+    assertEquals(2, pool.getTargetSize(SMALL, 3000));
+    assertEquals(0, pool.getTargetSize(LARGE, 3000));
+  }
+
+  @Test(timeout = 5000)
+  public void testTargetSizeFollowsDagArrivals() {
+    WarmContainerPool pool = new WarmContainerPool(60000, 100);
+    for (int dag = 0; dag < 3; dag++) {
+      for (int i = 0; i < 10; i++) {
+        pool.taskRequested(SMALL);
+      }
+      pool.dagCompleted(dag * 10000);
+    }
+    // A DAG every 10 seconds
+    assertEquals(10, pool.getTargetSize(SMALL, 20000));
+    // Nothing for a minute. About two in three odds of a DAG within the next one.
+    assertEquals(6, pool.getTargetSize(SMALL, 80000));
+    // Nothing for an hour
+    assertEquals(0, pool.getTargetSize(SMALL, 20000 + 3600000));
+  }
+
+  @Test(timeout = 5000)
+  public void testTargetSizeIsCapped() {
+    WarmContainerPool pool = new WarmContainerPool(60000, 5);
+    for (int i = 0; i < 10; i++) {
+      pool.taskRequested(SMALL);
+    }
+    pool.dagCompleted(0);
+    assertEquals(5, pool.getTargetSize(SMALL, 0));
+  }
+}
@@ -34,6 +34,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -120,8 +121,8 @@ public class TestAMContainer {
     wc.verifyState(AMContainerState.LAUNCHING);
     wc.verifyNoOutgoingEvents();
     assertEquals(wc.taskAttemptID, wc.amContainer.getCurrentTaskAttempt());
-    assertTrue(wc.amContainer.getCurrentTaskAttemptAllocationTime() > 0);
-    assertTrue(wc.amContainer.getCurrentTaskAttemptAllocationTime() >= currTime);
+    assertTrue(wc.amContainer.getTaskAttemptAllocationTime(wc.taskAttemptID) > 0);
+    assertTrue(wc.amContainer.getTaskAttemptAllocationTime(wc.taskAttemptID) >= currTime);
     
     // Container Launched
     wc.containerLaunched();
@@ -398,6 +399,66 @@ public class TestAMContainer {
     assertEquals(2, wc.amContainer.getAllTaskAttempts().size());
   }
 
+  @SuppressWarnings("rawtypes")
+  @Test (timeout=5000)
+  public void testMultipleSlotsTaskFlow() {
+    Configuration conf = new Configuration(false);
+    conf.setInt(TezConfiguration.TEZ_TASK_CONTAINER_SLOTS, 2);
+    WrappedContainer wc = new WrappedContainer(false, null, 1, conf);
+    TezTaskAttemptID taID2 = TezTaskAttemptID.getInstance(wc.taskID, 2);
+    TezTaskAttemptID taID3 = TezTaskAttemptID.getInstance(wc.taskID, 3);
+
+    wc.launchContainer();
+    wc.assignTaskAttempt(wc.taskAttemptID);
+    wc.assignTaskAttempt(taID2);
+    wc.verifyState(AMContainerState.LAUNCHING);
+    wc.verifyNoOutgoingEvents();
+    assertEquals(Arrays.asList(wc.taskAttemptID, taID2), wc.amContainer.getCurrentTaskAttempts());
+
+    wc.containerLaunched();
+    wc.verifyState(AMContainerState.RUNNING);
+    verify(wc.tal, times(2)).registerTaskAttempt(any(AMContainerTask.class), eq(wc.containerID),
+        eq(0));
+
+    // The freed slot takes the next attempt while the other one keeps running
+    wc.taskAttemptSucceeded(wc.taskAttemptID);
+    wc.verifyState(AMContainerState.RUNNING);
+    verifyUnregisterTaskAttempt(wc.tal, wc.taskAttemptID, 0, TaskAttemptEndReason.OTHER, null);
+    wc.assignTaskAttempt(taID3);
+    wc.verifyState(AMContainerState.RUNNING);
+    wc.verifyNoOutgoingEvents();
+    assertEquals(Arrays.asList(taID2, taID3), wc.amContainer.getCurrentTaskAttempts());
+
+    wc.taskAttemptSucceeded(taID2);
+    wc.verifyState(AMContainerState.RUNNING);
+    wc.taskAttemptSucceeded(taID3);
+    wc.verifyState(AMContainerState.IDLE);
+    assertNull(wc.amContainer.getCurrentTaskAttempt());
+    assertEquals(3, wc.amContainer.getAllTaskAttempts().size());
+    assertFalse(wc.amContainer.isInErrorState());
+
+    // An attempt beyond the slots of the container stops it
+    TezTaskAttemptID taID4 = TezTaskAttemptID.getInstance(wc.taskID, 4);
+    TezTaskAttemptID taID5 = TezTaskAttemptID.getInstance(wc.taskID, 5);
+    TezTaskAttemptID taID6 = TezTaskAttemptID.getInstance(wc.taskID, 6);
+    wc.assignTaskAttempt(taID4);
+    wc.assignTaskAttempt(taID5);
+    wc.verifyState(AMContainerState.RUNNING);
+    wc.assignTaskAttempt(taID6);
+    wc.verifyState(AMContainerState.STOP_REQUESTED);
+    verifyUnregisterRunningContainer(wc.tal, wc.containerID, 0, ContainerEndReason.FRAMEWORK_ERROR,
+        "Multiple simultaneous taskAttempt");
+    // 1 for NM stop request. 3 TERMINATING to TaskAttempt.
+    List<Event> outgoingEvents = wc.verifyCountAndGetOutgoingEvents(5);
+    verifyUnOrderedOutgoingEventTypes(outgoingEvents,
+        ContainerLauncherEventType.CONTAINER_STOP_REQUEST,
+        TaskAttemptEventType.TA_CONTAINER_TERMINATING,
+        TaskAttemptEventType.TA_CONTAINER_TERMINATING,
+        TaskAttemptEventType.TA_CONTAINER_TERMINATING,
+        AMNodeEventType.N_CONTAINER_COMPLETED);
+    assertTrue(wc.amContainer.isInErrorState());
+  }
+
   @SuppressWarnings("rawtypes")
   @Test (timeout=5000)
   public void testMultipleAllocationsAtLaunching() {
@@ -1246,8 +1307,13 @@ public class TestAMContainer {
 
     public AMContainerImpl amContainer;
 
-    @SuppressWarnings("deprecation") // ContainerId
     public WrappedContainer(boolean shouldProfile, String profileString, int cIdInt) {
+      this(shouldProfile, profileString, cIdInt, new Configuration(false));
+    }
+
+    @SuppressWarnings("deprecation") // ContainerId
+    public WrappedContainer(boolean shouldProfile, String profileString, int cIdInt,
+        Configuration conf) {
       applicationID = ApplicationId.newInstance(rmIdentifier, 1);
       appAttemptID = ApplicationAttemptId.newInstance(applicationID, 1);
       containerID = ContainerId.newInstance(appAttemptID, cIdInt);
@@ -1277,7 +1343,6 @@ public class TestAMContainer {
       eventHandler = mock(EventHandler.class);
       historyEventHandler = mock(HistoryEventHandler.class);
 
-      Configuration conf = new Configuration(false);
       appContext = mock(AppContext.class);
       doReturn(new HashMap<ApplicationAccessType, String>()).when(appContext)
       .getApplicationACLs();
@@ -349,6 +349,40 @@ public class TestRecoveryService {
     verify(dagFos, times(2)).hflush();
   }
 
+  @Test(timeout=10000)
+  public void testRecoveryGroupCommit() throws Exception {
+    setup(true, new String[][] {
+      {TezConfiguration.DAG_RECOVERY_GROUP_COMMIT_ENABLED, "true"},
+      {TezConfiguration.DAG_RECOVERY_MAX_UNFLUSHED_EVENTS, "10"},
+      {TezConfiguration.DAG_RECOVERY_FLUSH_INTERVAL_SECS, "-1"}
+    });
+    // Queued before the writer starts, written in batches of at most 10 events
+    for (int i = 0; i < 25; ++i) {
+      recoveryService.handle(new DAGHistoryEvent(dagId,
+          new DAGStartedEvent(dagId, startTime, "nobody", "test-dag")));
+    }
+    recoveryService.start();
+    recoveryService.await();
+    assertEquals(25, recoveryService.processedRecoveryEventCounter.get());
+    verify(dagFos, times(3)).hflush();
+
+    // Flushed by the time the call returns
+    DAGPlan dagPlan = DAGPlan.newBuilder().setName("test_dag").build();
+    recoveryService.handle(new DAGHistoryEvent(dagId, new DAGSubmittedEvent(
+        dagId, startTime, dagPlan, appAttemptId, null, "nobody", conf, null, "default")));
+    assertEquals(26, recoveryService.processedRecoveryEventCounter.get());
+    verify(summaryFos, times(1)).hflush();
+    verify(dagFos, times(4)).hflush();
+
+    recoveryService.handle(new DAGHistoryEvent(dagId,
+        new DAGFinishedEvent(dagId, 1L, 2L, DAGState.SUCCEEDED, "diag", null, "user", "dag1",
+            null, appAttemptId, null)));
+    verify(dagFos, times(5)).hflush();
+    assertFalse(recoveryService.outputStreamMap.containsKey(dagId));
+
+    recoveryService.stop();
+  }
+
   private void waitForDrain(int limit) throws Exception {
     long maxTime = System.currentTimeMillis() + limit;
     while (!recoveryService.eventQueue.isEmpty()) {
@@ -21,8 +21,6 @@ package org.apache.tez.auxservices;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 
 import org.apache.hadoop.io.ReadaheadPool;
@@ -34,10 +32,13 @@ import org.slf4j.LoggerFactory;
 
 import static org.apache.hadoop.io.nativeio.NativeIO.POSIX.POSIX_FADV_DONTNEED;
 
-import org.jboss.netty.channel.DefaultFileRegion;
-
-import com.google.common.annotations.VisibleForTesting;
+import io.netty.channel.DefaultFileRegion;
 
+/**
+ * A {@link DefaultFileRegion} which issues readahead requests ahead of the transfer and
+ * drops the region from the OS cache once it has been fully sent. The region (and the
+ * underlying file) is released by Netty once the write completes.
+ */
 public class FadvisedFileRegion extends DefaultFileRegion {
 
   private static final Logger LOG = LoggerFactory.getLogger(FadvisedFileRegion.class);
@@ -47,29 +48,18 @@ public class FadvisedFileRegion extends DefaultFileRegion {
   private final ReadaheadPool readaheadPool;
   private final FileDescriptor fd;
   private final String identifier;
-  private final long count;
-  private final long position;
-  private final int shuffleBufferSize;
-  private final boolean shuffleTransferToAllowed;
-  private final FileChannel fileChannel;
 
   private ReadaheadRequest readaheadRequest;
 
   public FadvisedFileRegion(RandomAccessFile file, long position, long count,
                             boolean manageOsCache, int readaheadLength, ReadaheadPool readaheadPool,
-                            String identifier, int shuffleBufferSize,
-                            boolean shuffleTransferToAllowed) throws IOException {
+                            String identifier) throws IOException {
     super(file.getChannel(), position, count);
     this.manageOsCache = manageOsCache;
     this.readaheadLength = readaheadLength;
     this.readaheadPool = readaheadPool;
     this.fd = file.getFD();
     this.identifier = identifier;
-    this.fileChannel = file.getChannel();
-    this.count = count;
-    this.position = position;
-    this.shuffleBufferSize = shuffleBufferSize;
-    this.shuffleTransferToAllowed = shuffleTransferToAllowed;
   }
 
   @Override
@@ -77,78 +67,22 @@ public class FadvisedFileRegion extends DefaultFileRegion {
       throws IOException {
     if (readaheadPool != null && readaheadLength > 0) {
       readaheadRequest = readaheadPool.readaheadStream(identifier, fd,
-          getPosition() + position, readaheadLength,
-          getPosition() + getCount(), readaheadRequest);
-    }
-
-    if(this.shuffleTransferToAllowed) {
-      return super.transferTo(target, position);
-    } else {
-      return customShuffleTransfer(target, position);
-    }
-  }
-
-  /**
-   * This method transfers data using local buffer. It transfers data from
-   * a disk to a local buffer in memory, and then it transfers data from the
-   * buffer to the target. This is used only if transferTo is disallowed in
-   * the configuration file. super.TransferTo does not perform well on Windows
-   * due to a small IO request generated. customShuffleTransfer can control
-   * the size of the IO requests by changing the size of the intermediate
-   * buffer.
-   */
-  @VisibleForTesting
-  long customShuffleTransfer(WritableByteChannel target, long position)
-      throws IOException {
-    long actualCount = this.count - position;
-    if (actualCount < 0 || position < 0) {
-      throw new IllegalArgumentException(
-          "position out of range: " + position +
-              " (expected: 0 - " + (this.count - 1) + ')');
+          position() + position, readaheadLength,
+          position() + count(), readaheadRequest);
     }
-    if (actualCount == 0) {
-      return 0L;
-    }
-
-    long trans = actualCount;
-    int readSize;
-    ByteBuffer byteBuffer = ByteBuffer.allocate(this.shuffleBufferSize);
-
-    while(trans > 0L &&
-        (readSize = fileChannel.read(byteBuffer, this.position+position)) > 0) {
-      //adjust counters and buffer limit
-      if(readSize < trans) {
-        trans -= readSize;
-        position += readSize;
-        byteBuffer.flip();
-      } else {
-        //We can read more than we need if the actualCount is not multiple
-        //of the byteBuffer size and file is big enough. In that case we cannot
-        //use flip method but we need to set buffer limit manually to trans.
-        byteBuffer.limit((int)trans);
-        byteBuffer.position(0);
-        position += trans;
-        trans = 0;
-      }
-
-      //write data to the target
-      while(byteBuffer.hasRemaining()) {
-        target.write(byteBuffer);
-      }
-
-      byteBuffer.clear();
-    }
-
-    return actualCount - trans;
+    return super.transferTo(target, position);
   }
 
-
   @Override
-  public void releaseExternalResources() {
+  protected void deallocate() {
     if (readaheadRequest != null) {
       readaheadRequest.cancel();
     }
-    super.releaseExternalResources();
+    // The file is closed by super.deallocate(), advise the OS before that
+    if (transfered() >= count()) {
+      transferSuccessful();
+    }
+    super.deallocate();
   }
 
   /**
@@ -156,10 +90,10 @@ public class FadvisedFileRegion extends DefaultFileRegion {
    * we don't need the region to be cached anymore.
    */
   public void transferSuccessful() {
-    if (manageOsCache && getCount() > 0) {
+    if (manageOsCache && count() > 0) {
       try {
         NativeIO.POSIX.getCacheManipulator().posixFadviseIfPossible(identifier,
-            fd, getPosition(), getCount(), POSIX_FADV_DONTNEED);
+            fd, position(), count(), POSIX_FADV_DONTNEED);
       } catch (Throwable t) {
         LOG.warn("Failed to manage OS cache for " + identifier, t);
       }
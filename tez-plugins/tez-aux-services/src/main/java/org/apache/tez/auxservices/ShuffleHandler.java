@@ -18,19 +18,19 @@
 
 package org.apache.tez.auxservices;
 
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static org.fusesource.leveldbjni.JniDBFactory.asString;
 import static org.fusesource.leveldbjni.JniDBFactory.bytes;
-import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
-import static org.jboss.netty.handler.codec.http.HttpMethod.GET;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
-import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -40,14 +40,16 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -99,46 +101,6 @@ import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBException;
 import org.iq80.leveldb.Logger;
 import org.iq80.leveldb.Options;
-import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFactory;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
-import org.jboss.netty.channel.ChannelHandler;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.ChannelStateEvent;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.channel.socket.nio.NioServerBossPool;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioWorkerPool;
-import org.jboss.netty.handler.codec.frame.TooLongFrameException;
-import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
-import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.QueryStringDecoder;
-import org.jboss.netty.handler.ssl.SslHandler;
-import org.jboss.netty.handler.stream.ChunkedWriteHandler;
-import org.jboss.netty.handler.timeout.IdleState;
-import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
-import org.jboss.netty.handler.timeout.IdleStateEvent;
-import org.jboss.netty.handler.timeout.IdleStateHandler;
-import org.jboss.netty.util.CharsetUtil;
-import org.jboss.netty.util.HashedWheelTimer;
-import org.jboss.netty.util.ThreadNameDeterminer;
-import org.jboss.netty.util.Timer;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -149,8 +111,56 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
 public class ShuffleHandler extends AuxiliaryService {
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ShuffleHandler.class);
@@ -179,8 +189,10 @@ public class ShuffleHandler extends AuxiliaryService {
   private static final String INDEX_FILE_NAME = "file.out.index";
 
   private int port;
-  private ChannelFactory selector;
-  private final ChannelGroup accepted = new DefaultChannelGroup();
+  private EventLoopGroup bossGroup;
+  private EventLoopGroup workerGroup;
+  private ByteBufAllocator allocator;
+  private final ChannelGroup accepted = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
   protected HttpPipelineFactory pipelineFact;
   private int sslFileBufferSize;
 
@@ -247,6 +259,10 @@ public class ShuffleHandler extends AuxiliaryService {
   public static final boolean WINDOWS_DEFAULT_SHUFFLE_TRANSFERTO_ALLOWED =
       false;
   private static final String TIMEOUT_HANDLER = "timeout";
+  private static final AttributeKey<Queue<FullHttpRequest>> PENDING_REQUESTS =
+      AttributeKey.valueOf("tez.shuffle.pendingRequests");
+  private static final AttributeKey<Boolean> REJECTED =
+      AttributeKey.valueOf("tez.shuffle.rejected");
   /* the maximum number of files a single GET request can
    open simultaneously during shuffle
    */
@@ -256,10 +272,15 @@ public class ShuffleHandler extends AuxiliaryService {
   public static final String SHUFFLE_LISTEN_QUEUE_SIZE = "tez.shuffle.listen.queue.size";
   public static final int DEFAULT_SHUFFLE_LISTEN_QUEUE_SIZE = 128;
 
+  /* Allocate shuffle headers and (for SSL) file chunks from pooled direct buffers
+   */
+  public static final String SHUFFLE_POOLED_ALLOCATOR_ENABLED =
+      "tez.shuffle.pooled.allocator.enabled";
+  public static final boolean DEFAULT_SHUFFLE_POOLED_ALLOCATOR_ENABLED = true;
+
   boolean connectionKeepAliveEnabled = false;
   private int connectionKeepAliveTimeOut;
   private int mapOutputMetaInfoCacheSize;
-  private Timer timer;
 
   @Metrics(about="Shuffle output metrics", context="mapred", name="tez")
   static class ShuffleMetrics implements ChannelFutureListener {
@@ -296,20 +317,24 @@ public class ShuffleHandler extends AuxiliaryService {
     @Override
     public void operationComplete(ChannelFuture future) throws Exception {
       if (!future.isSuccess()) {
-        future.getChannel().close();
+        future.channel().close();
         return;
       }
       int waitCount = this.reduceContext.getMapsToWait().decrementAndGet();
       if (waitCount == 0) {
         metrics.operationComplete(future);
+        // End the response, this also readies the encoder for the next request
+        ChannelFuture lastContentFuture =
+            future.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
         // Let the idle timer handler close keep-alive connections
         if (reduceContext.getKeepAlive()) {
-          ChannelPipeline pipeline = future.getChannel().getPipeline();
+          ChannelPipeline pipeline = future.channel().pipeline();
           TimeoutHandler timeoutHandler =
               (TimeoutHandler) pipeline.get(TIMEOUT_HANDLER);
           timeoutHandler.setEnabledTimeout(true);
+          pipelineFact.getSHUFFLE().requestCompleted(reduceContext.getCtx());
         } else {
-          future.getChannel().close();
+          lastContentFuture.addListener(ChannelFutureListener.CLOSE);
         }
       } else {
         pipelineFact.getSHUFFLE().sendMap(reduceContext);
@@ -318,7 +343,7 @@ public class ShuffleHandler extends AuxiliaryService {
   }
 
   /**
-   * Maintain parameters per messageReceived() Netty context.
+   * Maintain parameters per channelRead0() Netty context.
    * Allows sendMapOutput calls from operationComplete()
    */
   private static class ReduceContext {
@@ -326,7 +351,7 @@ public class ShuffleHandler extends AuxiliaryService {
     private List<String> mapIds;
     private AtomicInteger mapsToWait;
     private AtomicInteger mapsToSend;
-    private Range reduceRange;
+    private List<Range> reduceRanges;
     private ChannelHandlerContext ctx;
     private String user;
     private Map<String, Shuffle.MapOutputInfo> infoMap;
@@ -334,13 +359,13 @@ public class ShuffleHandler extends AuxiliaryService {
     private String dagId;
     private final boolean keepAlive;
 
-    public ReduceContext(List<String> mapIds, Range reduceRange,
+    public ReduceContext(List<String> mapIds, List<Range> reduceRanges,
                          ChannelHandlerContext context, String usr,
                          Map<String, Shuffle.MapOutputInfo> mapOutputInfoMap,
                          String jobId, String dagId, boolean keepAlive) {
 
       this.mapIds = mapIds;
-      this.reduceRange = reduceRange;
+      this.reduceRanges = reduceRanges;
       this.dagId = dagId;
       /**
       * Atomic count for tracking the no. of map outputs that are yet to
@@ -362,8 +387,11 @@ public class ShuffleHandler extends AuxiliaryService {
       this.keepAlive = keepAlive;
     }
 
-    public Range getReduceRange() {
-      return reduceRange;
+    /**
+     * @return the partition range to send for each entry of {@link #getMapIds()}
+     */
+    public List<Range> getReduceRanges() {
+      return reduceRanges;
     }
 
     public ChannelHandlerContext getCtx() {
@@ -511,23 +539,16 @@ public class ShuffleHandler extends AuxiliaryService {
     maxSessionOpenFiles = conf.getInt(SHUFFLE_MAX_SESSION_OPEN_FILES,
         DEFAULT_SHUFFLE_MAX_SESSION_OPEN_FILES);
 
-    final String BOSS_THREAD_NAME_PREFIX = "Tez Shuffle Handler Boss #";
-    NioServerBossPool bossPool = new NioServerBossPool(Executors.newCachedThreadPool(), 1, new ThreadNameDeterminer() {
-      @Override
-      public String determineThreadName(String currentThreadName, String proposedThreadName) throws Exception {
-        return BOSS_THREAD_NAME_PREFIX + currentThreadName.substring(currentThreadName.lastIndexOf('-') + 1);
-      }
-    });
-
-    final String WORKER_THREAD_NAME_PREFIX = "Tez Shuffle Handler Worker #";
-    NioWorkerPool workerPool = new NioWorkerPool(Executors.newCachedThreadPool(), maxShuffleThreads, new ThreadNameDeterminer() {
-      @Override
-      public String determineThreadName(String currentThreadName, String proposedThreadName) throws Exception {
-        return WORKER_THREAD_NAME_PREFIX + currentThreadName.substring(currentThreadName.lastIndexOf('-') + 1);
-      }
-    });
+    allocator = conf.getBoolean(SHUFFLE_POOLED_ALLOCATOR_ENABLED,
+        DEFAULT_SHUFFLE_POOLED_ALLOCATOR_ENABLED) ?
+        PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
 
-    selector = new NioServerSocketChannelFactory(bossPool, workerPool);
+    ThreadFactory bossFactory = new ThreadFactoryBuilder()
+        .setNameFormat("Tez Shuffle Handler Boss #%d").build();
+    ThreadFactory workerFactory = new ThreadFactoryBuilder()
+        .setNameFormat("Tez Shuffle Handler Worker #%d").build();
+    bossGroup = new NioEventLoopGroup(1, bossFactory);
+    workerGroup = new NioEventLoopGroup(maxShuffleThreads, workerFactory);
     super.serviceInit(new YarnConfiguration(conf));
   }
 
@@ -538,26 +559,6 @@ public class ShuffleHandler extends AuxiliaryService {
     userRsrc = new ConcurrentHashMap<String,String>();
     secretManager = new JobTokenSecretManager();
     recoverState(conf);
-    ServerBootstrap bootstrap = new ServerBootstrap(selector);
-    // Timer is shared across entire factory and must be released separately
-    timer = new HashedWheelTimer();
-    try {
-      pipelineFact = new HttpPipelineFactory(conf, timer);
-    } catch (Exception ex) {
-      throw new RuntimeException(ex);
-    }
-    bootstrap.setOption("backlog", conf.getInt(SHUFFLE_LISTEN_QUEUE_SIZE,
-        DEFAULT_SHUFFLE_LISTEN_QUEUE_SIZE));
-    bootstrap.setOption("child.keepAlive", true);
-    bootstrap.setPipelineFactory(pipelineFact);
-    port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
-    Channel ch = bootstrap.bind(new InetSocketAddress(port));
-    accepted.add(ch);
-    port = ((InetSocketAddress)ch.getLocalAddress()).getPort();
-    conf.set(SHUFFLE_PORT_CONFIG_KEY, Integer.toString(port));
-    pipelineFact.SHUFFLE.setPort(port);
-    LOG.info(getName() + " listening on port " + port);
-    super.serviceStart();
 
     sslFileBufferSize = conf.getInt(SUFFLE_SSL_FILE_BUFFER_SIZE_KEY,
                                     DEFAULT_SUFFLE_SSL_FILE_BUFFER_SIZE);
@@ -570,22 +571,44 @@ public class ShuffleHandler extends AuxiliaryService {
     mapOutputMetaInfoCacheSize =
         Math.max(1, conf.getInt(SHUFFLE_MAPOUTPUT_META_INFO_CACHE_SIZE,
           DEFAULT_SHUFFLE_MAPOUTPUT_META_INFO_CACHE_SIZE));
+
+    try {
+      pipelineFact = new HttpPipelineFactory(conf);
+    } catch (Exception ex) {
+      throw new RuntimeException(ex);
+    }
+    ServerBootstrap bootstrap = new ServerBootstrap()
+        .group(bossGroup, workerGroup)
+        .channel(NioServerSocketChannel.class)
+        .option(ChannelOption.SO_BACKLOG, conf.getInt(SHUFFLE_LISTEN_QUEUE_SIZE,
+            DEFAULT_SHUFFLE_LISTEN_QUEUE_SIZE))
+        .option(ChannelOption.ALLOCATOR, allocator)
+        .handler(new ConnectionLimitHandler())
+        .childOption(ChannelOption.SO_KEEPALIVE, true)
+        .childOption(ChannelOption.ALLOCATOR, allocator)
+        .childHandler(pipelineFact);
+    port = conf.getInt(SHUFFLE_PORT_CONFIG_KEY, DEFAULT_SHUFFLE_PORT);
+    Channel ch = bootstrap.bind(new InetSocketAddress(port)).syncUninterruptibly().channel();
+    accepted.add(ch);
+    port = ((InetSocketAddress)ch.localAddress()).getPort();
+    conf.set(SHUFFLE_PORT_CONFIG_KEY, Integer.toString(port));
+    pipelineFact.SHUFFLE.setPort(port);
+    LOG.info(getName() + " listening on port " + port);
+    super.serviceStart();
   }
 
   @Override
   protected void serviceStop() throws Exception {
     accepted.close().awaitUninterruptibly(10, TimeUnit.SECONDS);
-    if (selector != null) {
-      ServerBootstrap bootstrap = new ServerBootstrap(selector);
-      bootstrap.releaseExternalResources();
+    if (bossGroup != null) {
+      bossGroup.shutdownGracefully(0, 10, TimeUnit.SECONDS).awaitUninterruptibly();
+    }
+    if (workerGroup != null) {
+      workerGroup.shutdownGracefully(0, 10, TimeUnit.SECONDS).awaitUninterruptibly();
     }
     if (pipelineFact != null) {
       pipelineFact.destroy();
     }
-    if (timer != null) {
-      // Release this shared timer resource
-      timer.stop();
-    }
     if (stateDb != null) {
       stateDb.close();
     }
@@ -792,29 +815,55 @@ public class ShuffleHandler extends AuxiliaryService {
     }
   }
 
-  static class TimeoutHandler extends IdleStateAwareChannelHandler {
+  /**
+   * Runs on the single boss thread for every accepted connection, so that the
+   * connection limit is applied in accept order. Child channels only become
+   * active later on their own worker threads.
+   */
+  @ChannelHandler.Sharable
+  class ConnectionLimitHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      Channel child = (Channel) msg;
+      if ((maxShuffleConnections > 0) && (accepted.size() >= maxShuffleConnections)) {
+        LOG.info(String.format("Current number of shuffle connections (%d) is " +
+            "greater than or equal to the max allowed shuffle connections (%d)",
+            accepted.size(), maxShuffleConnections));
+        child.attr(REJECTED).set(Boolean.TRUE);
+      } else {
+        accepted.add(child);
+      }
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  static class TimeoutHandler extends IdleStateHandler {
 
     private boolean enabledTimeout;
 
+    TimeoutHandler(int connectionKeepAliveTimeOut) {
+      super(0, connectionKeepAliveTimeOut, 0);
+    }
+
     void setEnabledTimeout(boolean enabledTimeout) {
       this.enabledTimeout = enabledTimeout;
     }
 
     @Override
-    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
-      if (e.getState() == IdleState.WRITER_IDLE && enabledTimeout) {
-        e.getChannel().close();
+    protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
+      if (e.state() == IdleState.WRITER_IDLE && enabledTimeout) {
+        ctx.channel().close();
       }
     }
   }
 
-  class HttpPipelineFactory implements ChannelPipelineFactory {
+  class HttpPipelineFactory extends ChannelInitializer<SocketChannel> {
 
     final Shuffle SHUFFLE;
     private SSLFactory sslFactory;
-    private final ChannelHandler idleStateHandler;
 
-    public HttpPipelineFactory(Configuration conf, Timer timer) throws Exception {
+    public HttpPipelineFactory(Configuration conf) throws Exception {
       SHUFFLE = getShuffle(conf);
       if (conf.getBoolean(SHUFFLE_SSL_ENABLED_KEY,
                           SHUFFLE_SSL_ENABLED_DEFAULT)) {
@@ -822,7 +871,6 @@ public class ShuffleHandler extends AuxiliaryService {
         sslFactory = new SSLFactory(SSLFactory.Mode.SERVER, conf);
         sslFactory.init();
       }
-      this.idleStateHandler = new IdleStateHandler(timer, 0, connectionKeepAliveTimeOut, 0);
     }
 
     public Shuffle getSHUFFLE() {
@@ -836,19 +884,17 @@ public class ShuffleHandler extends AuxiliaryService {
     }
 
     @Override
-    public ChannelPipeline getPipeline() throws Exception {
-      ChannelPipeline pipeline = Channels.pipeline();
+    protected void initChannel(SocketChannel ch) throws Exception {
+      ChannelPipeline pipeline = ch.pipeline();
       if (sslFactory != null) {
         pipeline.addLast("ssl", new SslHandler(sslFactory.createSSLEngine()));
       }
       pipeline.addLast("decoder", new HttpRequestDecoder());
-      pipeline.addLast("aggregator", new HttpChunkAggregator(1 << 16));
+      pipeline.addLast("aggregator", new HttpObjectAggregator(1 << 16));
       pipeline.addLast("encoder", new HttpResponseEncoder());
       pipeline.addLast("chunking", new ChunkedWriteHandler());
       pipeline.addLast("shuffle", SHUFFLE);
-      pipeline.addLast("idle", idleStateHandler);
-      pipeline.addLast(TIMEOUT_HANDLER, new TimeoutHandler());
-      return pipeline;
+      pipeline.addLast(TIMEOUT_HANDLER, new TimeoutHandler(connectionKeepAliveTimeOut));
       // TODO factor security manager into pipeline
       // TODO factor out encode/decode to permit binary shuffle
       // TODO factor out decode of index to permit alt. models
@@ -879,7 +925,8 @@ public class ShuffleHandler extends AuxiliaryService {
     }
   }
 
-  class Shuffle extends SimpleChannelUpstreamHandler {
+  @ChannelHandler.Sharable
+  class Shuffle extends SimpleChannelInboundHandler<FullHttpRequest> {
 
     private static final int MAX_WEIGHT = 10 * 1024 * 1024;
     private static final int EXPIRE_AFTER_ACCESS_MINUTES = 5;
@@ -953,51 +1000,109 @@ public class ShuffleHandler extends AuxiliaryService {
       return ret;
     }
 
-    private Range splitReduces(List<String> reduceq) {
-      if (null == reduceq || reduceq.size() != 1) {
+    /**
+     * Parses the reduce parameter. It is either a single partition range that applies to
+     * every map, or a comma separated list with one range per entry of the map parameter,
+     * e.g. <code>reduce=0-3,7,9-10&amp;map=attempt_a,attempt_b,attempt_c</code>.
+     * @return one range per map id, or null if the parameter is missing or malformed
+     */
+    private List<Range> splitReduces(List<String> reduceq, List<String> mapIds) {
+      if (null == reduceq || reduceq.size() != 1 || null == mapIds) {
         return null;
       }
-      String[] reduce = reduceq.get(0).split("-");
-      int first = Integer.parseInt(reduce[0]);
-      int last = first;
-      if (reduce.length > 1) {
-        last = Integer.parseInt(reduce[1]);
+      List<Range> ranges = new ArrayList<Range>();
+      for (String s : reduceq.get(0).split(",")) {
+        String[] reduce = s.split("-");
+        int first = Integer.parseInt(reduce[0]);
+        int last = first;
+        if (reduce.length > 1) {
+          last = Integer.parseInt(reduce[1]);
+        }
+        if (first < 0 || last < first) {
+          return null;
+        }
+        ranges.add(new Range(first, last));
+      }
+      if (ranges.size() == 1) {
+        return Collections.nCopies(mapIds.size(), ranges.get(0));
+      }
+      return ranges.size() == mapIds.size() ? ranges : null;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      if (ctx.channel().attr(REJECTED).get() != null) {
+        ctx.channel().close();
+        return;
       }
-      return new Range(first, last);
+      super.channelActive(ctx);
     }
 
     @Override
-    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent evt)
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      Queue<FullHttpRequest> pending = ctx.channel().attr(PENDING_REQUESTS).getAndRemove();
+      if (pending != null) {
+        FullHttpRequest request;
+        while ((request = pending.poll()) != null) {
+          ReferenceCountUtil.release(request);
+        }
+      }
+      super.channelInactive(ctx);
+    }
+
+    /**
+     * Requests pipelined on a keep-alive connection are queued and served
+     * strictly one after another, so that the map outputs of different
+     * responses are never interleaved on the wire.
+     */
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request)
         throws Exception {
+      Queue<FullHttpRequest> pending = ctx.channel().attr(PENDING_REQUESTS).get();
+      if (pending == null) {
+        pending = new ArrayDeque<FullHttpRequest>();
+        ctx.channel().attr(PENDING_REQUESTS).set(pending);
+      }
+      // SimpleChannelInboundHandler releases the request once this returns
+      request.retain();
+      pending.add(request);
+      if (pending.size() == 1) {
+        processRequest(ctx, request);
+      }
+    }
 
-      if ((maxShuffleConnections > 0) && (accepted.size() >= maxShuffleConnections)) {
-        LOG.info(String.format("Current number of shuffle connections (%d) is " +
-            "greater than or equal to the max allowed shuffle connections (%d)",
-            accepted.size(), maxShuffleConnections));
-        evt.getChannel().close();
+    /**
+     * Called once the response to the request at the head of the pending
+     * queue has been fully written on a keep-alive connection.
+     */
+    void requestCompleted(ChannelHandlerContext ctx) throws Exception {
+      Queue<FullHttpRequest> pending = ctx.channel().attr(PENDING_REQUESTS).get();
+      if (pending == null) {
         return;
       }
-      accepted.add(evt.getChannel());
-      super.channelOpen(ctx, evt);
+      ReferenceCountUtil.release(pending.poll());
+      FullHttpRequest next = pending.peek();
+      if (next != null) {
+        processRequest(ctx, next);
+      }
     }
 
-    @Override
-    public void messageReceived(ChannelHandlerContext ctx, MessageEvent evt)
+    private void processRequest(ChannelHandlerContext ctx, HttpRequest request)
         throws Exception {
-      HttpRequest request = (HttpRequest) evt.getMessage();
       if (request.getMethod() != GET) {
           sendError(ctx, METHOD_NOT_ALLOWED);
           return;
       }
       // Check whether the shuffle version is compatible
       if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME.equals(
-          request.getHeader(ShuffleHeader.HTTP_HEADER_NAME))
+          request.headers().get(ShuffleHeader.HTTP_HEADER_NAME))
           || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION.equals(
-              request.getHeader(ShuffleHeader.HTTP_HEADER_VERSION))) {
+              request.headers().get(ShuffleHeader.HTTP_HEADER_VERSION))) {
         sendError(ctx, "Incompatible shuffle request version", BAD_REQUEST);
+        return;
       }
       final Map<String,List<String>> q =
-        new QueryStringDecoder(request.getUri()).getParameters();
+        new QueryStringDecoder(request.getUri()).parameters();
       final List<String> keepAliveList = q.get("keepAlive");
       final List<String> dagCompletedQ = q.get("dagAction");
       boolean keepAliveParam = false;
@@ -1009,22 +1114,22 @@ public class ShuffleHandler extends AuxiliaryService {
         }
       }
       final List<String> mapIds = splitMaps(q.get("map"));
-      final Range reduceRange = splitReduces(q.get("reduce"));
+      final List<Range> reduceRanges = splitReduces(q.get("reduce"), mapIds);
       final List<String> jobQ = q.get("job");
       final List<String> dagIdQ = q.get("dag");
       if (LOG.isDebugEnabled()) {
         LOG.debug("RECV: " + request.getUri() +
             "\n  mapId: " + mapIds +
-            "\n  reduceId: " + reduceRange +
+            "\n  reduceId: " + reduceRanges +
             "\n  jobId: " + jobQ +
             "\n  dagId: " + dagIdQ +
             "\n  keepAlive: " + keepAliveParam);
       }
       // If the request is for Dag Deletion, process the request and send OK.
-      if (deleteDagDirectories(evt, dagCompletedQ, jobQ, dagIdQ))  {
+      if (deleteDagDirectories(ctx, dagCompletedQ, jobQ, dagIdQ))  {
         return;
       }
-      if (mapIds == null || reduceRange == null || jobQ == null || dagIdQ == null) {
+      if (mapIds == null || reduceRanges == null || jobQ == null || dagIdQ == null) {
         sendError(ctx, "Required param job, dag, map and reduce", BAD_REQUEST);
         return;
       }
@@ -1038,7 +1143,7 @@ public class ShuffleHandler extends AuxiliaryService {
       // on log4j.properties by uncommenting the setting
       if (AUDITLOG.isDebugEnabled()) {
         AUDITLOG.debug("shuffle for " + jobQ.get(0) + " mapper: " + mapIds
-                         + " reducer: " + reduceRange);
+                         + " reducer: " + reduceRanges);
       }
       String jobId;
       String dagId;
@@ -1070,26 +1175,25 @@ public class ShuffleHandler extends AuxiliaryService {
 
       Map<String, MapOutputInfo> mapOutputInfoMap =
           new HashMap<String, MapOutputInfo>();
-      Channel ch = evt.getChannel();
-      ChannelPipeline pipeline = ch.getPipeline();
+      Channel ch = ctx.channel();
+      ChannelPipeline pipeline = ch.pipeline();
       TimeoutHandler timeoutHandler = (TimeoutHandler)pipeline.get(TIMEOUT_HANDLER);
       timeoutHandler.setEnabledTimeout(false);
       String user = userRsrc.get(jobId);
 
       try {
-        populateHeaders(mapIds, jobId, dagId, user, reduceRange,
+        populateHeaders(mapIds, jobId, dagId, user, reduceRanges,
           response, keepAliveParam, mapOutputInfoMap);
       } catch(IOException e) {
-        ch.write(response);
         LOG.error("Shuffle error in populating headers :", e);
         String errorMessage = getErrorMessage(e);
         sendError(ctx,errorMessage , INTERNAL_SERVER_ERROR);
         return;
       }
       ch.write(response);
-      //Initialize one ReduceContext object per messageReceived call
+      //Initialize one ReduceContext object per request
       boolean keepAlive = keepAliveParam || connectionKeepAliveEnabled;
-      ReduceContext reduceContext = new ReduceContext(mapIds, reduceRange, ctx,
+      ReduceContext reduceContext = new ReduceContext(mapIds, reduceRanges, ctx,
           user, mapOutputInfoMap, jobId, dagId, keepAlive);
       for (int i = 0; i < Math.min(maxSessionOpenFiles, mapIds.size()); i++) {
         ChannelFuture nextMap = sendMap(reduceContext);
@@ -1099,7 +1203,7 @@ public class ShuffleHandler extends AuxiliaryService {
       }
     }
 
-    private boolean deleteDagDirectories(MessageEvent evt,
+    private boolean deleteDagDirectories(ChannelHandlerContext ctx,
                                          List<String> dagCompletedQ, List<String> jobQ,
                                          List<String> dagIdQ) {
       if (jobQ == null || jobQ.isEmpty()) {
@@ -1116,8 +1220,9 @@ public class ShuffleHandler extends AuxiliaryService {
         } catch (IOException e) {
           LOG.warn("Encountered exception during dag delete "+ e);
         }
-        evt.getChannel().write(new DefaultHttpResponse(HTTP_1_1, OK));
-        evt.getChannel().close();
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+        HttpHeaders.setContentLength(response, 0);
+        ctx.channel().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
         return true;
       }
       return false;
@@ -1125,7 +1230,7 @@ public class ShuffleHandler extends AuxiliaryService {
 
     /**
      * Calls sendMapOutput for the mapId pointed by ReduceContext.mapsToSend
-     * and increments it. This method is first called by messageReceived()
+     * and increments it. This method is first called by channelRead0()
      * maxSessionOpenFiles times and then on the completion of every
      * sendMapOutput operation. This limits the number of open files on a node,
      * which can get really large(exhausting file descriptors on the NM) if all
@@ -1151,9 +1256,9 @@ public class ShuffleHandler extends AuxiliaryService {
           }
           nextMap = sendMapOutput(
               reduceContext.getCtx(),
-              reduceContext.getCtx().getChannel(),
+              reduceContext.getCtx().channel(),
               reduceContext.getUser(), mapId,
-              reduceContext.getReduceRange(), info);
+              reduceContext.getReduceRanges().get(nextIndex), info);
           if (null == nextMap) {
             sendError(reduceContext.getCtx(), NOT_FOUND);
             return null;
@@ -1235,7 +1340,7 @@ public class ShuffleHandler extends AuxiliaryService {
 
     protected void populateHeaders(List<String> mapIds, String jobId,
                                    String dagId, String user,
-                                   Range reduceRange,
+                                   List<Range> reduceRanges,
                                    HttpResponse response,
                                    boolean keepAliveParam,
                                    Map<String, MapOutputInfo> mapOutputInfoMap)
@@ -1244,22 +1349,26 @@ public class ShuffleHandler extends AuxiliaryService {
       long contentLength = 0;
       // Content-Length only needs calculated for keep-alive keep alive
       if (connectionKeepAliveEnabled || keepAliveParam) {
-        contentLength = getContentLength(mapIds, jobId, dagId, user, reduceRange, mapOutputInfoMap);
+        contentLength = getContentLength(mapIds, jobId, dagId, user, reduceRanges, mapOutputInfoMap);
       }
 
       // Now set the response headers.
       setResponseHeaders(response, keepAliveParam, contentLength);
     }
 
-    long getContentLength(List<String> mapIds, String jobId, String dagId, String user, Range reduceRange, Map<String, MapOutputInfo> mapOutputInfoMap) throws IOException {
+    long getContentLength(List<String> mapIds, String jobId, String dagId, String user, List<Range> reduceRanges, Map<String, MapOutputInfo> mapOutputInfoMap) throws IOException {
       long contentLength = 0;
-      // Reduce count is written once per mapId
-      int reduceCountVSize = WritableUtils.getVIntSize(reduceRange.getLast() - reduceRange.getFirst() + 1);
-      for (String mapId : mapIds) {
-        contentLength += reduceCountVSize;
-        MapOutputInfo outputInfo = getMapOutputInfo(dagId, mapId, jobId, user);
-        if (mapOutputInfoMap.size() < mapOutputMetaInfoCacheSize) {
-          mapOutputInfoMap.put(mapId, outputInfo);
+      for (int i = 0; i < mapIds.size(); i++) {
+        String mapId = mapIds.get(i);
+        Range reduceRange = reduceRanges.get(i);
+        // Reduce count is written once per (mapId, range)
+        contentLength += WritableUtils.getVIntSize(reduceRange.getLast() - reduceRange.getFirst() + 1);
+        MapOutputInfo outputInfo = mapOutputInfoMap.get(mapId);
+        if (outputInfo == null) {
+          outputInfo = getMapOutputInfo(dagId, mapId, jobId, user);
+          if (mapOutputInfoMap.size() < mapOutputMetaInfoCacheSize) {
+            mapOutputInfoMap.put(mapId, outputInfo);
+          }
         }
         for (int reduce = reduceRange.getFirst(); reduce <= reduceRange.getLast(); reduce++) {
           TezIndexRecord indexRecord = outputInfo.spillRecord.getIndex(reduce);
@@ -1275,9 +1384,9 @@ public class ShuffleHandler extends AuxiliaryService {
 
     protected void setResponseHeaders(HttpResponse response, boolean keepAliveParam, long contentLength) {
       if (connectionKeepAliveEnabled || keepAliveParam) {
-        response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(contentLength));
-        response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-        response.setHeader(HttpHeaders.Values.KEEP_ALIVE, "timeout=" + connectionKeepAliveTimeOut);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(contentLength));
+        response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        response.headers().set(HttpHeaders.Values.KEEP_ALIVE, "timeout=" + connectionKeepAliveTimeOut);
         if (LOG.isDebugEnabled()) {
           LOG.debug("Content Length in shuffle : " + contentLength);
         }
@@ -1285,7 +1394,7 @@ public class ShuffleHandler extends AuxiliaryService {
         if (LOG.isDebugEnabled()) {
           LOG.debug("Setting connection close header...");
         }
-        response.setHeader(HttpHeaders.Names.CONNECTION, CONNECTION_CLOSE);
+        response.headers().set(HttpHeaders.Names.CONNECTION, CONNECTION_CLOSE);
       }
     }
 
@@ -1311,7 +1420,7 @@ public class ShuffleHandler extends AuxiliaryService {
       String enc_str = SecureShuffleUtils.buildMsgFrom(requestUri);
       // hash from the fetcher
       String urlHashStr =
-        request.getHeader(SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+        request.headers().get(SecureShuffleUtils.HTTP_HEADER_URL_HASH);
       if (urlHashStr == null) {
         LOG.info("Missing header hash for " + appid);
         throw new IOException("fetcher cannot be authenticated");
@@ -1327,11 +1436,11 @@ public class ShuffleHandler extends AuxiliaryService {
       String reply =
         SecureShuffleUtils.generateHash(urlHashStr.getBytes(Charsets.UTF_8),
             tokenSecret);
-      response.setHeader(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH, reply);
+      response.headers().set(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH, reply);
       // Put shuffle version into http header
-      response.setHeader(ShuffleHeader.HTTP_HEADER_NAME,
+      response.headers().set(ShuffleHeader.HTTP_HEADER_NAME,
           ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
-      response.setHeader(ShuffleHeader.HTTP_HEADER_VERSION,
+      response.headers().set(ShuffleHeader.HTTP_HEADER_VERSION,
           ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
       if (LOG.isDebugEnabled()) {
         int len = reply.length();
@@ -1346,10 +1455,11 @@ public class ShuffleHandler extends AuxiliaryService {
       TezIndexRecord firstIndex = null;
       TezIndexRecord lastIndex = null;
 
-      DataOutputBuffer dobRange = new DataOutputBuffer();
+      // The reduce count and all shuffle headers go out in a single buffer
+      ByteBuf headers = ctx.alloc().buffer();
+      ByteBufOutputStream headerOut = new ByteBufOutputStream(headers);
       // Indicate how many record to be written
-      WritableUtils.writeVInt(dobRange, reduceRange.getLast() - reduceRange.getFirst() + 1);
-      ch.write(wrappedBuffer(dobRange.getData(), 0, dobRange.getLength()));
+      WritableUtils.writeVInt(headerOut, reduceRange.getLast() - reduceRange.getFirst() + 1);
       for (int reduce = reduceRange.getFirst(); reduce <= reduceRange.getLast(); reduce++) {
         TezIndexRecord index = outputInfo.spillRecord.getIndex(reduce);
         // Records are only valid if they have a non-zero part length
@@ -1361,9 +1471,7 @@ public class ShuffleHandler extends AuxiliaryService {
         }
 
         ShuffleHeader header = new ShuffleHeader(mapId, index.getPartLength(), index.getRawLength(), reduce);
-        DataOutputBuffer dob = new DataOutputBuffer();
-        header.write(dob);
-        ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+        header.write(headerOut);
       }
 
       final long rangeOffset = firstIndex.getStartOffset();
@@ -1374,33 +1482,26 @@ public class ShuffleHandler extends AuxiliaryService {
         spill = SecureIOUtils.openForRandomRead(spillFile, "r", user, null);
       } catch (FileNotFoundException e) {
         LOG.info(spillFile + " not found");
+        headers.release();
         return null;
       }
+      ch.write(headers);
       ChannelFuture writeFuture;
-      if (ch.getPipeline().get(SslHandler.class) == null) {
+      if (ch.pipeline().get(SslHandler.class) == null && shuffleTransferToAllowed) {
+        // Released by the transport once written, which also records the
+        // successful transfer with the OS cache manager
         final FadvisedFileRegion partition = new FadvisedFileRegion(spill,
             rangeOffset, rangePartLength, manageOsCache, readaheadLength,
-            readaheadPool, spillFile.getAbsolutePath(),
-            shuffleBufferSize, shuffleTransferToAllowed);
-        writeFuture = ch.write(partition);
-        writeFuture.addListener(new ChannelFutureListener() {
-            // TODO error handling; distinguish IO/connection failures,
-            //      attribute to appropriate spill output
-          @Override
-          public void operationComplete(ChannelFuture future) {
-            if (future.isSuccess()) {
-              partition.transferSuccessful();
-            }
-            partition.releaseExternalResources();
-          }
-        });
+            readaheadPool, spillFile.getAbsolutePath());
+        writeFuture = ch.writeAndFlush(partition);
       } else {
         // HTTPS cannot be done with zero copy.
         final FadvisedChunkedFile chunk = new FadvisedChunkedFile(spill,
-            rangeOffset, rangePartLength, sslFileBufferSize,
+            rangeOffset, rangePartLength,
+            ch.pipeline().get(SslHandler.class) == null ? shuffleBufferSize : sslFileBufferSize,
             manageOsCache, readaheadLength, readaheadPool,
             spillFile.getAbsolutePath());
-        writeFuture = ch.write(chunk);
+        writeFuture = ch.writeAndFlush(chunk);
       }
       metrics.shuffleConnections.incr();
       metrics.shuffleOutputBytes.incr(rangePartLength); // optimistic
@@ -1414,25 +1515,24 @@ public class ShuffleHandler extends AuxiliaryService {
 
     protected void sendError(ChannelHandlerContext ctx, String message,
         HttpResponseStatus status) {
-      HttpResponse response = new DefaultHttpResponse(HTTP_1_1, status);
-      response.setHeader(CONTENT_TYPE, "text/plain; charset=UTF-8");
+      FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status,
+          Unpooled.copiedBuffer(message, CharsetUtil.UTF_8));
+      response.headers().set(CONTENT_TYPE, "text/plain; charset=UTF-8");
+      HttpHeaders.setContentLength(response, response.content().readableBytes());
       // Put shuffle version into http header
-      response.setHeader(ShuffleHeader.HTTP_HEADER_NAME,
+      response.headers().set(ShuffleHeader.HTTP_HEADER_NAME,
           ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
-      response.setHeader(ShuffleHeader.HTTP_HEADER_VERSION,
+      response.headers().set(ShuffleHeader.HTTP_HEADER_VERSION,
           ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
-      response.setContent(
-        ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8));
 
       // Close the connection as soon as the error message is sent.
-      ctx.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+      ctx.channel().writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
     }
 
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
         throws Exception {
-      Channel ch = e.getChannel();
-      Throwable cause = e.getCause();
+      Channel ch = ctx.channel();
       if (cause instanceof TooLongFrameException) {
         sendError(ctx, BAD_REQUEST);
         return;
@@ -1449,8 +1549,7 @@ public class ShuffleHandler extends AuxiliaryService {
       }
 
       LOG.error("Shuffle error: ", cause);
-      if (ch.isConnected()) {
-        LOG.error("Shuffle error " + e);
+      if (ch.isActive()) {
         sendError(ctx, INTERNAL_SERVER_ERROR);
       }
     }
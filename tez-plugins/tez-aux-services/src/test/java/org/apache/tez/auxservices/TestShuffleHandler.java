@@ -21,9 +21,9 @@ package org.apache.tez.auxservices;
 //import static org.apache.hadoop.test.MetricsAsserts.assertGauge;
 //import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
 import static org.junit.Assert.assertTrue;
-import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
-import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.buffer.Unpooled.wrappedBuffer;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.mock;
@@ -36,6 +36,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URL;
@@ -47,6 +48,8 @@ import java.util.Map;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.Checksum;
 
+import com.google.common.base.Charsets;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -55,6 +58,7 @@ import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.nativeio.NativeIO;
 import org.apache.hadoop.mapred.JobID;
 import org.apache.hadoop.mapred.MapTask;
@@ -63,6 +67,8 @@ import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.hadoop.metrics2.MetricsSystem;
 import org.apache.hadoop.metrics2.impl.MetricsSystemImpl;
 import org.apache.hadoop.security.UserGroupInformation;
@@ -75,19 +81,21 @@ import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.server.api.ApplicationInitializationContext;
 import org.apache.hadoop.yarn.server.api.ApplicationTerminationContext;
 import org.apache.hadoop.yarn.server.records.Version;
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.socket.SocketChannel;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.AbstractChannel;
-import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.HttpMethod;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AttributeKey;
+import io.netty.util.DefaultAttributeMap;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
@@ -118,7 +126,7 @@ public class TestShuffleHandler {
         }
         @Override
         protected void populateHeaders(List<String> mapIds, String jobId,
-                                       String dagId, String user, Range reduceRange,
+                                       String dagId, String user, List<Range> reduceRanges,
                                        HttpResponse response,
                                        boolean keepAliveParam,
                                        Map<String, MapOutputInfo> infoMap) throws IOException {
@@ -133,12 +141,12 @@ public class TestShuffleHandler {
               new ShuffleHeader("attempt_12345_1_m_1_0", 5678, 5678, 1);
           DataOutputBuffer dob = new DataOutputBuffer();
           header.write(dob);
-          ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+          ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
           dob = new DataOutputBuffer();
           for (int i = 0; i < 100; ++i) {
             header.write(dob);
           }
-          return ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+          return ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
         }
       };
     }
@@ -154,8 +162,8 @@ public class TestShuffleHandler {
         protected void verifyRequest(String appid, ChannelHandlerContext ctx,
             HttpRequest request, HttpResponse response, URL requestUri)
             throws IOException {
-          SocketChannel channel = (SocketChannel)(ctx.getChannel());
-          socketKeepAlive = channel.getConfig().isKeepAlive();
+          SocketChannel channel = (SocketChannel)(ctx.channel());
+          socketKeepAlive = channel.config().isKeepAlive();
         }
       };
     }
@@ -242,7 +250,7 @@ public class TestShuffleHandler {
           }
           @Override
           protected void populateHeaders(List<String> mapIds, String jobId,
-                                         String dagId, String user, Range reduceRange,
+                                         String dagId, String user, List<Range> reduceRanges,
                                          HttpResponse response,
                                          boolean keepAliveParam,
                                          Map<String, MapOutputInfo> infoMap) throws IOException {
@@ -266,19 +274,19 @@ public class TestShuffleHandler {
                 new ShuffleHeader("attempt_12345_1_m_1_0", 5678, 5678, 1);
             DataOutputBuffer dob = new DataOutputBuffer();
             header.write(dob);
-            ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
             dob = new DataOutputBuffer();
             for (int i = 0; i < 100000; ++i) {
               header.write(dob);
             }
-            return ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            return ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
           }
           @Override
           protected void sendError(ChannelHandlerContext ctx,
               HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error());
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
           @Override
@@ -286,7 +294,7 @@ public class TestShuffleHandler {
               HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error());
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
         };
@@ -358,7 +366,7 @@ public class TestShuffleHandler {
           @Override
           protected void populateHeaders(List<String> mapIds, String jobId,
                                          String dagId, String user,
-                                         Range reduceRange,
+                                         List<Range> reduceRanges,
                                          HttpResponse response,
                                          boolean keepAliveParam,
                                          Map<String, MapOutputInfo> infoMap)
@@ -387,7 +395,7 @@ public class TestShuffleHandler {
           protected ChannelFuture sendMapOutput(ChannelHandlerContext ctx,
                                                 Channel ch, String user, String mapId, Range reduceRange,
                                                 MapOutputInfo info) throws IOException {
-            lastSocketAddress.setAddress(ch.getRemoteAddress());
+            lastSocketAddress.setAddress(ch.remoteAddress());
             HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
 
             // send a shuffle header and a lot of data down the channel
@@ -396,12 +404,12 @@ public class TestShuffleHandler {
                 new ShuffleHeader("attempt_12345_1_m_1_0", 5678, 5678, 1);
             DataOutputBuffer dob = new DataOutputBuffer();
             header.write(dob);
-            ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
             dob = new DataOutputBuffer();
             for (int i = 0; i < 100000; ++i) {
               header.write(dob);
             }
-            return ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            return ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
           }
 
           @Override
@@ -409,7 +417,7 @@ public class TestShuffleHandler {
               HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error());
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
 
@@ -418,7 +426,7 @@ public class TestShuffleHandler {
               HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error());
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
         };
@@ -503,7 +511,8 @@ public class TestShuffleHandler {
       conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
           ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
       conn.connect();
-      conn.getInputStream();
+      // No map outputs exist, only the response status is of interest here
+      conn.getResponseCode();
       Assert.assertTrue("socket should be set KEEP_ALIVE",
           shuffleHandler.isSocketKeepAlive());
     } finally {
@@ -575,7 +584,7 @@ public class TestShuffleHandler {
           }
           @Override
           protected void populateHeaders(List<String> mapIds, String jobId,
-                                         String dagId, String user, Range reduceRange,
+                                         String dagId, String user, List<Range> reduceRanges,
                                          HttpResponse response,
                                          boolean keepAliveParam,
                                          Map<String, MapOutputInfo> infoMap) throws IOException {
@@ -598,12 +607,12 @@ public class TestShuffleHandler {
                 new ShuffleHeader("dummy_header", 5678, 5678, 1);
             DataOutputBuffer dob = new DataOutputBuffer();
             header.write(dob);
-            ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
             dob = new DataOutputBuffer();
             for (int i=0; i<100000; ++i) {
               header.write(dob);
             }
-            return ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            return ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
           }
         };
       }
@@ -611,7 +620,8 @@ public class TestShuffleHandler {
     shuffleHandler.init(conf);
     shuffleHandler.start();
 
-    // setup connections
+    // setup connections, kept alive so that the first two still count
+    // against the limit if the client retries the rejected one
     int connAttempts = 3;
     HttpURLConnection conns[] = new HttpURLConnection[connAttempts];
 
@@ -619,7 +629,7 @@ public class TestShuffleHandler {
       String URLstring = "http://127.0.0.1:"
            + shuffleHandler.getConfig().get(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY)
            + "/mapOutput?job=job_12345_1&dag=1&reduce=1&map=attempt_12345_1_m_"
-           + i + "_0";
+           + i + "_0&keepAlive=true";
       URL url = new URL(URLstring);
       conns[i] = (HttpURLConnection)url.openConnection();
       conns[i].setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
@@ -1002,7 +1012,7 @@ public class TestShuffleHandler {
         return new Shuffle(conf) {
           @Override
           protected void populateHeaders(List<String> mapIds,
-                                         String outputBaseStr, String dagId, String user, Range reduceRange,
+                                         String outputBaseStr, String dagId, String user, List<Range> reduceRanges,
                                          HttpResponse response,
                                          boolean keepAliveParam, Map<String, MapOutputInfo> infoMap)
               throws IOException {
@@ -1021,7 +1031,7 @@ public class TestShuffleHandler {
               HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error(message));
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
           @Override
@@ -1033,7 +1043,7 @@ public class TestShuffleHandler {
                 new ShuffleHeader("attempt_12345_1_m_1_0", 5678, 5678, 1);
             DataOutputBuffer dob = new DataOutputBuffer();
             header.write(dob);
-            return ch.write(wrappedBuffer(dob.getData(), 0, dob.getLength()));
+            return ch.writeAndFlush(wrappedBuffer(dob.getData(), 0, dob.getLength()));
           }
         };
       }
@@ -1108,7 +1118,7 @@ public class TestShuffleHandler {
                                    HttpResponseStatus status) {
             if (failures.size() == 0) {
               failures.add(new Error(message));
-              ctx.getChannel().close();
+              ctx.channel().close();
             }
           }
         };
@@ -1161,6 +1171,241 @@ public class TestShuffleHandler {
     }
   }
 
+  /**
+   * Two requests pipelined on one keep-alive connection must be answered in
+   * order, each with its own complete response.
+   */
+  @Test(timeout = 10000)
+  public void testPipelinedRequests() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+    conf.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_AUTHENTICATION,
+        "simple");
+    UserGroupInformation.setConfiguration(conf);
+    File absLogDir = new File("target", TestShuffleHandler.class.
+        getSimpleName() + "PipelineDir").getAbsoluteFile();
+    conf.set(YarnConfiguration.NM_LOCAL_DIRS, absLogDir.getAbsolutePath());
+    ApplicationId appId = ApplicationId.newInstance(12345, 1);
+    String appAttemptId = "attempt_12345_1_m_1_0";
+    String user = "randomUser";
+    int[] partitionLengths = new int[] { 1000, 70000 };
+    createMapOutput(absLogDir, user, appId.toString(), appAttemptId,
+        partitionLengths, conf);
+
+    ShuffleHandler shuffleHandler = new ShuffleHandler() {
+      @Override
+      protected Shuffle getShuffle(Configuration conf) {
+        return new Shuffle(conf) {
+          @Override
+          protected void verifyRequest(String appid, ChannelHandlerContext ctx,
+              HttpRequest request, HttpResponse response, URL requestUri)
+              throws IOException {
+            // Do nothing.
+          }
+        };
+      }
+    };
+    shuffleHandler.init(conf);
+    Socket socket = null;
+    try {
+      shuffleHandler.start();
+      DataOutputBuffer outputBuffer = new DataOutputBuffer();
+      Token<JobTokenIdentifier> jt =
+          new Token<JobTokenIdentifier>("identifier".getBytes(),
+              "password".getBytes(), new Text(user), new Text("shuffleService"));
+      jt.write(outputBuffer);
+      shuffleHandler
+        .initializeApplication(new ApplicationInitializationContext(user,
+          appId, ByteBuffer.wrap(outputBuffer.getData(), 0,
+            outputBuffer.getLength())));
+
+      socket = new Socket("127.0.0.1", Integer.parseInt(
+          shuffleHandler.getConfig().get(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY)));
+      socket.setSoTimeout(5000);
+      StringBuilder requests = new StringBuilder();
+      for (int reduce = 0; reduce < partitionLengths.length; reduce++) {
+        requests.append("GET /mapOutput?job=job_12345_0001&dag=1&reduce=")
+            .append(reduce).append("&map=").append(appAttemptId)
+            .append("&keepAlive=true HTTP/1.1\r\n")
+            .append("Host: 127.0.0.1\r\n")
+            .append(ShuffleHeader.HTTP_HEADER_NAME).append(": ")
+            .append(ShuffleHeader.DEFAULT_HTTP_HEADER_NAME).append("\r\n")
+            .append(ShuffleHeader.HTTP_HEADER_VERSION).append(": ")
+            .append(ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION).append("\r\n\r\n");
+      }
+      socket.getOutputStream().write(requests.toString().getBytes(Charsets.UTF_8));
+      socket.getOutputStream().flush();
+
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      for (int reduce = 0; reduce < partitionLengths.length; reduce++) {
+        Assert.assertEquals("HTTP/1.1 200 OK", readLine(in));
+        long contentLength = -1;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+          if (line.toLowerCase().startsWith("content-length:")) {
+            contentLength = Long.parseLong(line.substring(15).trim());
+          }
+        }
+        Assert.assertEquals(1, WritableUtils.readVInt(in));
+        ShuffleHeader header = new ShuffleHeader();
+        header.readFields(in);
+        Assert.assertEquals(appAttemptId, header.getMapId());
+        Assert.assertEquals(reduce, header.getPartition());
+        Assert.assertEquals(partitionLengths[reduce], header.getCompressedLength());
+        Assert.assertEquals(WritableUtils.getVIntSize(1) + header.writeLength()
+            + partitionLengths[reduce], contentLength);
+        byte[] data = new byte[partitionLengths[reduce]];
+        in.readFully(data);
+        for (byte b : data) {
+          Assert.assertEquals((byte) ('a' + reduce), b);
+        }
+      }
+    } finally {
+      if (socket != null) {
+        socket.close();
+      }
+      shuffleHandler.stop();
+      FileUtil.fullyDelete(absLogDir);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testPartitionRangePerMap() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY, 0);
+    conf.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_AUTHENTICATION,
+        "simple");
+    UserGroupInformation.setConfiguration(conf);
+    File absLogDir = new File("target", TestShuffleHandler.class.
+        getSimpleName() + "RangePerMapDir").getAbsoluteFile();
+    conf.set(YarnConfiguration.NM_LOCAL_DIRS, absLogDir.getAbsolutePath());
+    ApplicationId appId = ApplicationId.newInstance(12345, 1);
+    String[] attempts = new String[] { "attempt_12345_1_m_1_0", "attempt_12345_1_m_2_0" };
+    String user = "randomUser";
+    int[] partitionLengths = new int[] { 100, 200, 300, 400 };
+    for (String attempt : attempts) {
+      createMapOutput(absLogDir, user, appId.toString(), attempt,
+          partitionLengths, conf);
+    }
+
+    ShuffleHandler shuffleHandler = new ShuffleHandler() {
+      @Override
+      protected Shuffle getShuffle(Configuration conf) {
+        return new Shuffle(conf) {
+          @Override
+          protected void verifyRequest(String appid, ChannelHandlerContext ctx,
+              HttpRequest request, HttpResponse response, URL requestUri)
+              throws IOException {
+            // Do nothing.
+          }
+        };
+      }
+    };
+    shuffleHandler.init(conf);
+    try {
+      shuffleHandler.start();
+      DataOutputBuffer outputBuffer = new DataOutputBuffer();
+      Token<JobTokenIdentifier> jt =
+          new Token<JobTokenIdentifier>("identifier".getBytes(),
+              "password".getBytes(), new Text(user), new Text("shuffleService"));
+      jt.write(outputBuffer);
+      shuffleHandler
+        .initializeApplication(new ApplicationInitializationContext(user,
+          appId, ByteBuffer.wrap(outputBuffer.getData(), 0,
+            outputBuffer.getLength())));
+      String baseUrl = "http://127.0.0.1:"
+          + shuffleHandler.getConfig().get(ShuffleHandler.SHUFFLE_PORT_CONFIG_KEY)
+          + "/mapOutput?job=job_12345_0001&dag=1&keepAlive=true";
+
+      // One range per map, the same map may be asked for more than once
+      String[] maps = new String[] { attempts[0], attempts[1], attempts[0] };
+      int[][] ranges = new int[][] { { 0, 1 }, { 2, 2 }, { 3, 3 } };
+      HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl
+          + "&reduce=0-1,2,3&map=" + StringUtils.join(",", maps)).openConnection();
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      Assert.assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+      long expectedLength = 0;
+      DataInputStream in = new DataInputStream(conn.getInputStream());
+      for (int i = 0; i < maps.length; i++) {
+        int count = WritableUtils.readVInt(in);
+        Assert.assertEquals(ranges[i][1] - ranges[i][0] + 1, count);
+        expectedLength += WritableUtils.getVIntSize(count);
+        ShuffleHeader[] headers = new ShuffleHeader[count];
+        for (int j = 0; j < count; j++) {
+          headers[j] = new ShuffleHeader();
+          headers[j].readFields(in);
+          Assert.assertEquals(maps[i], headers[j].getMapId());
+          Assert.assertEquals(ranges[i][0] + j, headers[j].getPartition());
+          expectedLength += headers[j].writeLength();
+        }
+        for (ShuffleHeader header : headers) {
+          byte[] data = new byte[(int) header.getCompressedLength()];
+          in.readFully(data);
+          Assert.assertEquals(partitionLengths[header.getPartition()], data.length);
+          for (byte b : data) {
+            Assert.assertEquals((byte) ('a' + header.getPartition()), b);
+          }
+          expectedLength += data.length;
+        }
+      }
+      Assert.assertEquals(expectedLength, conn.getContentLengthLong());
+      in.close();
+
+      // Range count has to match the map count unless a single range is given
+      conn = (HttpURLConnection) new URL(baseUrl + "&reduce=0,1,2&map="
+          + StringUtils.join(",", attempts)).openConnection();
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_NAME,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+      conn.setRequestProperty(ShuffleHeader.HTTP_HEADER_VERSION,
+          ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+      Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, conn.getResponseCode());
+    } finally {
+      shuffleHandler.stop();
+      FileUtil.fullyDelete(absLogDir);
+    }
+  }
+
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c == -1) {
+        throw new EOFException("Connection closed after " + sb);
+      }
+      if (c != '\r') {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void createMapOutput(File logDir, String user, String appId,
+      String appAttemptId, int[] partitionLengths, Configuration conf)
+      throws IOException {
+    File appAttemptDir = new File(StringUtils.join(Path.SEPARATOR,
+        new String[] { logDir.getAbsolutePath(),
+            ShuffleHandler.USERCACHE, user,
+            ShuffleHandler.APPCACHE, appId, "dag_1/" + "output",
+            appAttemptId }));
+    appAttemptDir.mkdirs();
+    TezSpillRecord spillRecord = new TezSpillRecord(partitionLengths.length);
+    FileOutputStream out = new FileOutputStream(new File(appAttemptDir, "file.out"));
+    long offset = 0;
+    for (int i = 0; i < partitionLengths.length; i++) {
+      byte[] data = new byte[partitionLengths[i]];
+      Arrays.fill(data, (byte) ('a' + i));
+      out.write(data);
+      spillRecord.putIndex(new TezIndexRecord(offset, data.length, data.length), i);
+      offset += data.length;
+    }
+    out.close();
+    spillRecord.writeToFile(new Path(
+        new File(appAttemptDir, "file.out.index").getAbsolutePath()), conf);
+  }
+
   @Test(timeout = 4000)
   public void testSendMapCount() throws Exception {
     final List<ShuffleHandler.ReduceMapFileCount> listenerList =
@@ -1168,29 +1413,29 @@ public class TestShuffleHandler {
 
     final ChannelHandlerContext mockCtx =
         mock(ChannelHandlerContext.class);
-    final MessageEvent mockEvt = mock(MessageEvent.class);
-    final Channel mockCh = mock(AbstractChannel.class);
+    final Channel mockCh = mock(Channel.class);
     final ChannelPipeline mockPipeline = Mockito.mock(ChannelPipeline.class);
+    final DefaultAttributeMap channelAttributes = new DefaultAttributeMap();
 
     // Mock HttpRequest and ChannelFuture
-    final HttpRequest mockHttpRequest = createMockHttpRequest();
+    final FullHttpRequest mockHttpRequest = createMockHttpRequest();
     final ChannelFuture mockFuture = createMockChannelFuture(mockCh,
         listenerList);
     final ShuffleHandler.TimeoutHandler timerHandler =
-        new ShuffleHandler.TimeoutHandler();
+        new ShuffleHandler.TimeoutHandler(5);
 
     // Mock Netty Channel Context and Channel behavior
-    Mockito.doReturn(mockCh).when(mockCtx).getChannel();
-    Mockito.when(mockCh.getPipeline()).thenReturn(mockPipeline);
+    Mockito.doReturn(mockCh).when(mockCtx).channel();
+    Mockito.when(mockCh.pipeline()).thenReturn(mockPipeline);
     Mockito.when(mockPipeline.get(Mockito.any(String.class))).thenReturn(timerHandler);
-    when(mockCtx.getChannel()).thenReturn(mockCh);
+    Mockito.doAnswer(new Answer() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return channelAttributes.attr((AttributeKey) invocation.getArguments()[0]);
+      }
+    }).when(mockCh).attr(Mockito.any(AttributeKey.class));
     Mockito.doReturn(mockFuture).when(mockCh).write(Mockito.any(Object.class));
-    when(mockCh.write(Object.class)).thenReturn(mockFuture);
-
-    //Mock MessageEvent behavior
-    Mockito.doReturn(mockCh).when(mockEvt).getChannel();
-    when(mockEvt.getChannel()).thenReturn(mockCh);
-    Mockito.doReturn(mockHttpRequest).when(mockEvt).getMessage();
+    Mockito.doReturn(mockFuture).when(mockCh).writeAndFlush(Mockito.any(Object.class));
 
     final ShuffleHandler sh = new MockShuffleHandler();
     Configuration conf = new Configuration();
@@ -1200,7 +1445,7 @@ public class TestShuffleHandler {
     sh.start();
     int maxOpenFiles =conf.getInt(ShuffleHandler.SHUFFLE_MAX_SESSION_OPEN_FILES,
         ShuffleHandler.DEFAULT_SHUFFLE_MAX_SESSION_OPEN_FILES);
-    sh.getShuffle(conf).messageReceived(mockCtx, mockEvt);
+    sh.getShuffle(conf).channelRead0(mockCtx, mockHttpRequest);
     assertTrue("Number of Open files should not exceed the configured " +
             "value!-Not Expected",
         listenerList.size() <= maxOpenFiles);
@@ -1216,7 +1461,7 @@ public class TestShuffleHandler {
   public ChannelFuture createMockChannelFuture(Channel mockCh,
       final List<ShuffleHandler.ReduceMapFileCount> listenerList) {
     final ChannelFuture mockFuture = mock(ChannelFuture.class);
-    when(mockFuture.getChannel()).thenReturn(mockCh);
+    when(mockFuture.channel()).thenReturn(mockCh);
     Mockito.doReturn(true).when(mockFuture).isSuccess();
     Mockito.doAnswer(new Answer() {
       @Override
@@ -1233,9 +1478,13 @@ public class TestShuffleHandler {
     return mockFuture;
   }
 
-  public HttpRequest createMockHttpRequest() {
-    HttpRequest mockHttpRequest = mock(HttpRequest.class);
+  public FullHttpRequest createMockHttpRequest() {
+    FullHttpRequest mockHttpRequest = mock(FullHttpRequest.class);
+    HttpHeaders headers = new DefaultHttpHeaders();
+    headers.set(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    headers.set(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
     Mockito.doReturn(HttpMethod.GET).when(mockHttpRequest).getMethod();
+    Mockito.doReturn(headers).when(mockHttpRequest).headers();
     Mockito.doAnswer(new Answer() {
       @Override
       public Object answer(InvocationOnMock invocation) throws Throwable {
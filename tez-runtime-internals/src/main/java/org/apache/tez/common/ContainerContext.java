@@ -29,6 +29,9 @@ import org.apache.hadoop.io.Writable;
 // TODO EVENTUALLY unit tests for functionality.
 public class ContainerContext implements Writable {
 
+  // Separates the container identifier from the slot in the identifier of a slot of a container
+  private static final char SLOT_SEPARATOR = '#';
+
   String containerIdentifier;
 
   public ContainerContext() {
@@ -43,6 +46,22 @@ public class ContainerContext implements Writable {
     return containerIdentifier;
   }
 
+  /**
+   * @return the identifier a slot of the container asks for tasks and heartbeats with. The first
+   *         slot uses the identifier of the container.
+   */
+  public static String getSlotIdentifier(String containerIdentifier, int slot) {
+    return slot == 0 ? containerIdentifier : containerIdentifier + SLOT_SEPARATOR + slot;
+  }
+
+  /**
+   * @return the identifier of the container of a slot, given the identifier of the slot
+   */
+  public static String getContainerIdentifier(String slotIdentifier) {
+    int separatorIndex = slotIdentifier.lastIndexOf(SLOT_SEPARATOR);
+    return separatorIndex < 0 ? slotIdentifier : slotIdentifier.substring(0, separatorIndex);
+  }
+
   @Override
   public void readFields(DataInput in) throws IOException {
     this.containerIdentifier = Text.readString(in);
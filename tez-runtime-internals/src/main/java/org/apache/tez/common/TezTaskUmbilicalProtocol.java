@@ -41,7 +41,7 @@ import org.apache.tez.runtime.common.security.JobTokenSelector;
 //@ProtocolInfo(protocolName = "TezTaskUmbilicalProtocol", protocolVersion = 1)
 public interface TezTaskUmbilicalProtocol extends VersionedProtocol {
 
-  public static final long versionID = 19L;
+  public static final long versionID = 20L;
 
   ContainerTask getTask(ContainerContext containerContext) throws IOException;
 
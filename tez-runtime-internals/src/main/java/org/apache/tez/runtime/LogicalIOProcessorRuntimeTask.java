@@ -93,6 +93,7 @@ import org.apache.tez.runtime.api.impl.TezInputContextImpl;
 import org.apache.tez.runtime.api.impl.TezMergedInputContextImpl;
 import org.apache.tez.runtime.api.impl.TezOutputContextImpl;
 import org.apache.tez.runtime.api.impl.TezUmbilical;
+import org.apache.tez.runtime.common.objectregistry.ObjectRegistryImpl;
 import org.apache.tez.runtime.common.resources.MemoryDistributor;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -214,7 +215,9 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
     initialMemoryDistributor = new MemoryDistributor(numInputs, numOutputs, tezConf);
     this.startedInputsMap = startedInputsMap;
     this.inputReadyTracker = new InputReadyTracker();
-    this.objectRegistry = objectRegistry;
+    // Reports the use of a container registry to the counters of this task
+    this.objectRegistry = objectRegistry instanceof ObjectRegistryImpl ?
+        ((ObjectRegistryImpl) objectRegistry).forTask(tezCounters) : objectRegistry;
     this.ExecutionContext = ExecutionContext;
     this.memAvailable = memAvailable;
     this.hadoopShim = hadoopShim;
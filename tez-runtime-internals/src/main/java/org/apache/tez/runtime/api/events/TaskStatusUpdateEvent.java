@@ -33,22 +33,37 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
   private float progress;
   boolean progressNotified;
   private TaskStatistics statistics;
+  private boolean counterDeltas;
 
   public TaskStatusUpdateEvent() {
   }
 
   public TaskStatusUpdateEvent(TezCounters tezCounters, float progress, TaskStatistics statistics, 
       boolean progressNotified) {
+    this(tezCounters, progress, statistics, progressNotified, false);
+  }
+
+  public TaskStatusUpdateEvent(TezCounters tezCounters, float progress, TaskStatistics statistics,
+      boolean progressNotified, boolean counterDeltas) {
     this.tezCounters = tezCounters;
     this.progress = progress;
     this.statistics = statistics;
     this.progressNotified = progressNotified;
+    this.counterDeltas = counterDeltas;
   }
 
   public TezCounters getCounters() {
     return tezCounters;
   }
 
+  /**
+   * @return true if the counters only hold the changes since the previous update of the task,
+   *         to be added to the counters received before, instead of replacing them
+   */
+  public boolean isCounterDeltas() {
+    return counterDeltas;
+  }
+
   public float getProgress() {
     return progress;
   }
@@ -65,6 +80,7 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
   public void write(DataOutput out) throws IOException {
     out.writeFloat(progress);
     out.writeBoolean(progressNotified);
+    out.writeBoolean(counterDeltas);
     if (tezCounters != null) {
       out.writeBoolean(true);
       tezCounters.write(out);
@@ -83,6 +99,7 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
   public void readFields(DataInput in) throws IOException {
     progress = in.readFloat();
     progressNotified = in.readBoolean();
+    counterDeltas = in.readBoolean();
     if (in.readBoolean()) {
       tezCounters = new TezCounters();
       tezCounters.readFields(in);
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.StringInterner;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+
+/**
+ * Compact encoding of the events of a heartbeat. The events of a heartbeat mostly come from, or
+ * go to, a handful of inputs and outputs, so the metadata of the events is written once in a
+ * dictionary, along with the vertex names it refers to, and every event refers to its entries.
+ * Event types, times and dictionary references are written as variable length numbers, times
+ * relative to the first event of the heartbeat.
+ * <p/>
+ * Each batch of events is self-contained, so that a heartbeat can be re-sent or lost without
+ * the task and the AM having to agree on the state of a dictionary.
+ */
+final class CompactEventEncoding {
+
+  private CompactEventEncoding() {
+  }
+
+  static void writeEvents(DataOutput out, List<TezEvent> events) throws IOException {
+    Map<String, Integer> names = new HashMap<String, Integer>();
+    List<String> nameList = new ArrayList<String>();
+    Map<EventMetaData, Integer> metaData = new HashMap<EventMetaData, Integer>();
+    List<EventMetaData> metaDataList = new ArrayList<EventMetaData>();
+    for (TezEvent event : events) {
+      addMetaData(event.getSourceInfo(), metaData, metaDataList, names, nameList);
+      addMetaData(event.getDestinationInfo(), metaData, metaDataList, names, nameList);
+    }
+
+    WritableUtils.writeVInt(out, nameList.size());
+    for (String name : nameList) {
+      Text.writeString(out, name);
+    }
+    WritableUtils.writeVInt(out, metaDataList.size());
+    for (EventMetaData meta : metaDataList) {
+      WritableUtils.writeVInt(out, meta.getEventGenerator().ordinal());
+      writeReference(out, meta.getTaskVertexName(), names);
+      writeReference(out, meta.getEdgeVertexName(), names);
+      TezTaskAttemptID attemptId = meta.getTaskAttemptID();
+      if (attemptId != null) {
+        out.writeBoolean(true);
+        attemptId.write(out);
+      } else {
+        out.writeBoolean(false);
+      }
+    }
+
+    WritableUtils.writeVInt(out, events.size());
+    long baseTime = events.isEmpty() ? 0 : events.get(0).getEventReceivedTime();
+    WritableUtils.writeVLong(out, baseTime);
+    for (TezEvent event : events) {
+      if (event.getEvent() == null) {
+        WritableUtils.writeVInt(out, 0);
+      } else {
+        WritableUtils.writeVInt(out, event.getEventType().ordinal() + 1);
+        WritableUtils.writeVLong(out, event.getEventReceivedTime() - baseTime);
+        event.serializeEventBody(out);
+      }
+      writeReference(out, event.getSourceInfo(), metaData);
+      writeReference(out, event.getDestinationInfo(), metaData);
+    }
+  }
+
+  static List<TezEvent> readEvents(DataInput in) throws IOException {
+    int nameCount = WritableUtils.readVInt(in);
+    String[] names = new String[nameCount];
+    for (int i = 0; i < nameCount; i++) {
+      names[i] = StringInterner.weakIntern(Text.readString(in));
+    }
+    int metaDataCount = WritableUtils.readVInt(in);
+    EventMetaData[] metaData = new EventMetaData[metaDataCount];
+    EventProducerConsumerType[] types = EventProducerConsumerType.values();
+    for (int i = 0; i < metaDataCount; i++) {
+      EventProducerConsumerType type = types[WritableUtils.readVInt(in)];
+      String taskVertexName = readReference(in, names);
+      String edgeVertexName = readReference(in, names);
+      TezTaskAttemptID attemptId = in.readBoolean()
+          ? TezTaskAttemptID.readTezTaskAttemptID(in) : null;
+      metaData[i] = new EventMetaData(type, taskVertexName, edgeVertexName, attemptId);
+    }
+
+    int eventCount = WritableUtils.readVInt(in);
+    long baseTime = WritableUtils.readVLong(in);
+    List<TezEvent> events = new ArrayList<TezEvent>(eventCount);
+    EventType[] eventTypes = EventType.values();
+    for (int i = 0; i < eventCount; i++) {
+      TezEvent event = new TezEvent();
+      int eventType = WritableUtils.readVInt(in);
+      if (eventType != 0) {
+        event.setEventReceivedTime(baseTime + WritableUtils.readVLong(in));
+        event.deserializeEventBody(eventTypes[eventType - 1], in);
+      }
+      event.setSourceInfo(readReference(in, metaData));
+      event.setDestinationInfo(readReference(in, metaData));
+      events.add(event);
+    }
+    return events;
+  }
+
+  private static void addMetaData(EventMetaData meta, Map<EventMetaData, Integer> metaData,
+      List<EventMetaData> metaDataList, Map<String, Integer> names, List<String> nameList) {
+    if (meta == null || metaData.containsKey(meta)) {
+      return;
+    }
+    metaData.put(meta, metaDataList.size());
+    metaDataList.add(meta);
+    addName(meta.getTaskVertexName(), names, nameList);
+    addName(meta.getEdgeVertexName(), names, nameList);
+  }
+
+  private static void addName(String name, Map<String, Integer> names, List<String> nameList) {
+    if (name != null && !names.containsKey(name)) {
+      names.put(name, nameList.size());
+      nameList.add(name);
+    }
+  }
+
+  // 0 stands for null, otherwise the index in the dictionary plus one
+  private static <T> void writeReference(DataOutput out, T value, Map<T, Integer> dictionary)
+      throws IOException {
+    WritableUtils.writeVInt(out, value == null ? 0 : dictionary.get(value) + 1);
+  }
+
+  private static <T> T readReference(DataInput in, T[] dictionary) throws IOException {
+    int reference = WritableUtils.readVInt(in);
+    return reference == 0 ? null : dictionary[reference - 1];
+  }
+}
@@ -150,6 +150,13 @@ public class TezEvent implements Writable {
     out.writeBoolean(true);
     out.writeInt(eventType.ordinal());
     out.writeLong(eventReceivedTime);
+    serializeEventBody(out);
+  }
+
+  /**
+   * Write the event itself, without its type, time and metadata.
+   */
+  void serializeEventBody(DataOutput out) throws IOException {
     if (eventType.equals(EventType.TASK_STATUS_UPDATE_EVENT)) {
       // TODO NEWTEZ convert to PB
       TaskStatusUpdateEvent sEvt = (TaskStatusUpdateEvent) event;
@@ -240,8 +247,16 @@ public class TezEvent implements Writable {
       event = null;
       return;
     }
-    eventType = EventType.values()[in.readInt()];
+    EventType type = EventType.values()[in.readInt()];
     eventReceivedTime = in.readLong();
+    deserializeEventBody(type, in);
+  }
+
+  /**
+   * Read an event of the given type written by {@link #serializeEventBody(DataOutput)}.
+   */
+  void deserializeEventBody(EventType type, DataInput in) throws IOException {
+    eventType = type;
     if (eventType.equals(EventType.TASK_STATUS_UPDATE_EVENT)) {
       // TODO NEWTEZ convert to PB
       event = new TaskStatusUpdateEvent();
@@ -39,6 +39,7 @@ public class TezHeartbeatRequest implements Writable {
   private int preRoutedStartIndex;
   private int maxEvents;
   private long requestId;
+  private boolean compactEncoding;
 
   public TezHeartbeatRequest() {
   }
@@ -83,13 +84,30 @@ public class TezHeartbeatRequest implements Writable {
     return currentTaskAttemptID;
   }
 
+  /**
+   * @return true if the events are sent with the {@link CompactEventEncoding}, which the
+   *         response should then use as well
+   */
+  public boolean isCompactEncoding() {
+    return compactEncoding;
+  }
+
+  public void setCompactEncoding(boolean compactEncoding) {
+    this.compactEncoding = compactEncoding;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
+    out.writeBoolean(compactEncoding);
     if (events != null) {
       out.writeBoolean(true);
-      out.writeInt(events.size());
-      for (TezEvent e : events) {
-        e.write(out);
+      if (compactEncoding) {
+        CompactEventEncoding.writeEvents(out, events);
+      } else {
+        out.writeInt(events.size());
+        for (TezEvent e : events) {
+          e.write(out);
+        }
       }
     } else {
       out.writeBoolean(false);
@@ -109,13 +127,18 @@ public class TezHeartbeatRequest implements Writable {
 
   @Override
   public void readFields(DataInput in) throws IOException {
+    compactEncoding = in.readBoolean();
     if (in.readBoolean()) {
-      int eventsCount = in.readInt();
-      events = new ArrayList<TezEvent>(eventsCount);
-      for (int i = 0; i < eventsCount; ++i) {
-        TezEvent e = new TezEvent();
-        e.readFields(in);
-        events.add(e);
+      if (compactEncoding) {
+        events = CompactEventEncoding.readEvents(in);
+      } else {
+        int eventsCount = in.readInt();
+        events = new ArrayList<TezEvent>(eventsCount);
+        for (int i = 0; i < eventsCount; ++i) {
+          TezEvent e = new TezEvent();
+          e.readFields(in);
+          events.add(e);
+        }
       }
     }
     if (in.readBoolean()) {
@@ -140,6 +163,7 @@ public class TezHeartbeatRequest implements Writable {
         + ", maxEventsToGet=" + maxEvents
         + ", taskAttemptId=" + currentTaskAttemptID
         + ", eventCount=" + (events != null ? events.size() : 0)
+        + ", compactEncoding=" + compactEncoding
         + " }";
   }
 }
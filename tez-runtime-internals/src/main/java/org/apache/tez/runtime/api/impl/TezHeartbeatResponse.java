@@ -34,6 +34,7 @@ public class TezHeartbeatResponse implements Writable {
   private List<TezEvent> events;
   private int nextFromEventId;
   private int nextPreRoutedEventId;
+  private boolean compactEncoding;
 
   public TezHeartbeatResponse() {
   }
@@ -62,6 +63,10 @@ public class TezHeartbeatResponse implements Writable {
     return nextPreRoutedEventId;
   }
 
+  public boolean isCompactEncoding() {
+    return compactEncoding;
+  }
+
   public void setEvents(List<TezEvent> events) {
     this.events = Collections.unmodifiableList(events);
   }
@@ -82,17 +87,29 @@ public class TezHeartbeatResponse implements Writable {
     this.nextPreRoutedEventId = nextPreRoutedEventId;
   }
 
+  /**
+   * Send the events with the {@link CompactEventEncoding}, usually when the request did.
+   */
+  public void setCompactEncoding(boolean compactEncoding) {
+    this.compactEncoding = compactEncoding;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
     out.writeLong(lastRequestId);
     out.writeBoolean(shouldDie);
     out.writeInt(nextFromEventId);
     out.writeInt(nextPreRoutedEventId);
+    out.writeBoolean(compactEncoding);
     if(events != null) {
       out.writeBoolean(true);
-      out.writeInt(events.size());
-      for (TezEvent e : events) {
-        e.write(out);
+      if (compactEncoding) {
+        CompactEventEncoding.writeEvents(out, events);
+      } else {
+        out.writeInt(events.size());
+        for (TezEvent e : events) {
+          e.write(out);
+        }
       }
     } else {
       out.writeBoolean(false);
@@ -105,13 +122,18 @@ public class TezHeartbeatResponse implements Writable {
     shouldDie = in.readBoolean();
     nextFromEventId = in.readInt();
     nextPreRoutedEventId = in.readInt();
+    compactEncoding = in.readBoolean();
     if(in.readBoolean()) {
-      int eventCount = in.readInt();
-      events = new ArrayList<TezEvent>(eventCount);
-      for (int i = 0; i < eventCount; ++i) {
-        TezEvent e = new TezEvent();
-        e.readFields(in);
-        events.add(e);
+      if (compactEncoding) {
+        events = CompactEventEncoding.readEvents(in);
+      } else {
+        int eventCount = in.readInt();
+        events = new ArrayList<TezEvent>(eventCount);
+        for (int i = 0; i < eventCount; ++i) {
+          TezEvent e = new TezEvent();
+          e.readFields(in);
+          events.add(e);
+        }
       }
     }
   }
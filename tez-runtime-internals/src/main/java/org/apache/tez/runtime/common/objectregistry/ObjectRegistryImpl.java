@@ -18,14 +18,26 @@
 
 package org.apache.tez.runtime.common.objectregistry;
 
-import java.util.AbstractMap;
+import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.runtime.api.ObjectRegistry;
 
+import com.google.common.base.Preconditions;
+
+/**
+ * Object registry of a container, shared by the tasks it runs. Objects cached with a weight
+ * count against a budget, set aside from the memory of the container, and are evicted in LRU or
+ * LFU order to stay within it. They may also be held through soft references, in which case the
+ * garbage collector may release them first. Objects cached without a weight are only dropped at
+ * the end of their life-cycle.
+ */
 public class ObjectRegistryImpl implements ObjectRegistry {
   
   public enum ObjectLifeCycle {
@@ -40,36 +52,126 @@ public class ObjectRegistryImpl implements ObjectRegistry {
     VERTEX,
   }
 
-  private Map<String, Map.Entry<Object, ObjectLifeCycle>> objectCache =
-      new HashMap<String, Entry<Object, ObjectLifeCycle>>();
+  public enum EvictionPolicy {
+    /** Evict the least recently used object first
+     */
+    LRU,
+    /** Evict the least frequently used object first, the least recently used among equals
+     */
+    LFU,
+  }
+
+  private static class CacheEntry {
+    final ObjectLifeCycle lifeCycle;
+    final long weight;
+    // One of these is set
+    final Object value;
+    final SoftReference<Object> softValue;
+    long lastAccess;
+    long numAccesses;
+
+    CacheEntry(ObjectLifeCycle lifeCycle, Object value, long weight, boolean softReference) {
+      this.lifeCycle = lifeCycle;
+      this.weight = weight;
+      this.value = softReference ? null : value;
+      this.softValue = softReference ? new SoftReference<Object>(value) : null;
+    }
+
+    Object getValue() {
+      return softValue != null ? softValue.get() : value;
+    }
+  }
+
+  private final Map<String, CacheEntry> objectCache = new HashMap<String, CacheEntry>();
+  // Budget of weighted objects, unbounded if <= 0
+  private final long maxWeight;
+  private final EvictionPolicy evictionPolicy;
+  private final boolean softReferences;
+  private long totalWeight = 0;
+  private long accessSequence = 0;
+
+  public ObjectRegistryImpl() {
+    this(0, EvictionPolicy.LRU, false);
+  }
+
+  /**
+   * @param maxWeight total weight of the objects cached with a weight, unbounded if <= 0
+   * @param evictionPolicy order in which weighted objects are evicted
+   * @param softReferences whether to hold weighted objects through soft references
+   */
+  public ObjectRegistryImpl(long maxWeight, EvictionPolicy evictionPolicy,
+      boolean softReferences) {
+    this.maxWeight = maxWeight;
+    this.evictionPolicy = evictionPolicy;
+    this.softReferences = softReferences;
+  }
+
+  /**
+   * @return a view of the registry for a task, which reports the hits, misses and evictions the
+   * task sees to its counters
+   */
+  public ObjectRegistry forTask(TezCounters counters) {
+    return new TaskObjectRegistry(counters);
+  }
 
   private synchronized Object add(ObjectLifeCycle lifeCycle,
       String key, Object value) {
-    Map.Entry<Object, ObjectLifeCycle> oldEntry =
-        objectCache.put(key,
-            new AbstractMap.SimpleImmutableEntry<Object, ObjectLifeCycle>(
-                value, lifeCycle));
-    return oldEntry != null ? oldEntry.getKey() : null;
+    return add(lifeCycle, key, value, 0, null);
+  }
+
+  private synchronized Object add(ObjectLifeCycle lifeCycle, String key, Object value,
+      long weight, TaskObjectRegistry task) {
+    CacheEntry oldEntry = remove(key);
+    if (weight > 0 && maxWeight > 0 && weight > maxWeight) {
+      // Would evict everything else and still not fit
+      recordEviction(task);
+    } else {
+      CacheEntry entry = new CacheEntry(lifeCycle, value, weight, weight > 0 && softReferences);
+      touch(entry);
+      objectCache.put(key, entry);
+      totalWeight += weight;
+      evictIfNeeded(key, task);
+    }
+    return oldEntry != null ? oldEntry.getValue() : null;
   }
 
   @Override
   public synchronized Object get(String key) {
-    Map.Entry<Object, ObjectLifeCycle> entry =
-        objectCache.get(key);
-    return entry != null ? entry.getKey() : null;
+    return get(key, null);
+  }
+
+  private synchronized Object get(String key, TaskObjectRegistry task) {
+    CacheEntry entry = objectCache.get(key);
+    Object value = entry != null ? entry.getValue() : null;
+    if (value == null) {
+      if (entry != null) {
+        // Released by the garbage collector
+        remove(key);
+        recordEviction(task);
+      }
+      if (task != null) {
+        task.misses.increment(1);
+      }
+      return null;
+    }
+    touch(entry);
+    if (task != null) {
+      task.hits.increment(1);
+    }
+    return value;
   }
 
   @Override
   public synchronized boolean delete(String key) {
-    return (null != objectCache.remove(key));
+    return (null != remove(key));
   }
 
   public synchronized void clearCache(ObjectLifeCycle lifeCycle) {
-    Iterator<Entry<String, Entry<Object, ObjectLifeCycle>>> it =
-      objectCache.entrySet().iterator();
+    Iterator<Entry<String, CacheEntry>> it = objectCache.entrySet().iterator();
     while (it.hasNext()) {
-      Entry<String, Entry<Object, ObjectLifeCycle>> entry = it.next();
-      if (entry.getValue().getValue().equals(lifeCycle)) {
+      CacheEntry entry = it.next().getValue();
+      if (entry.lifeCycle.equals(lifeCycle)) {
+        totalWeight -= entry.weight;
         it.remove();
       }
     }
@@ -90,4 +192,137 @@ public class ObjectRegistryImpl implements ObjectRegistry {
     return add(ObjectLifeCycle.SESSION, key, value);
   }
 
+  @Override
+  public Object cacheForVertex(String key, Object value, long weight) {
+    return addWeighted(ObjectLifeCycle.VERTEX, key, value, weight, null);
+  }
+
+  @Override
+  public Object cacheForDAG(String key, Object value, long weight) {
+    return addWeighted(ObjectLifeCycle.DAG, key, value, weight, null);
+  }
+
+  @Override
+  public Object cacheForSession(String key, Object value, long weight) {
+    return addWeighted(ObjectLifeCycle.SESSION, key, value, weight, null);
+  }
+
+  synchronized long getTotalWeight() {
+    return totalWeight;
+  }
+
+  private Object addWeighted(ObjectLifeCycle lifeCycle, String key, Object value, long weight,
+      TaskObjectRegistry task) {
+    Preconditions.checkArgument(weight > 0, "Weight should be > 0, was " + weight);
+    return add(lifeCycle, key, value, weight, task);
+  }
+
+  private CacheEntry remove(String key) {
+    CacheEntry entry = objectCache.remove(key);
+    if (entry != null) {
+      totalWeight -= entry.weight;
+    }
+    return entry;
+  }
+
+  private void touch(CacheEntry entry) {
+    entry.lastAccess = ++accessSequence;
+    entry.numAccesses++;
+  }
+
+  /**
+   * Evict weighted objects other than the one just added until the budget is met. The registry
+   * holds few, large objects, so a scan for each eviction is cheap enough.
+   */
+  private void evictIfNeeded(String addedKey, TaskObjectRegistry task) {
+    while (maxWeight > 0 && totalWeight > maxWeight) {
+      String victimKey = null;
+      CacheEntry victim = null;
+      for (Entry<String, CacheEntry> e : objectCache.entrySet()) {
+        CacheEntry entry = e.getValue();
+        if (entry.weight == 0 || e.getKey().equals(addedKey)) {
+          continue;
+        }
+        if (entry.getValue() == null) {
+          // Already released by the garbage collector
+          victimKey = e.getKey();
+          break;
+        }
+        if (victim == null || isEvictedBefore(entry, victim)) {
+          victimKey = e.getKey();
+          victim = entry;
+        }
+      }
+      if (victimKey == null) {
+        return;
+      }
+      remove(victimKey);
+      recordEviction(task);
+    }
+  }
+
+  private boolean isEvictedBefore(CacheEntry entry, CacheEntry other) {
+    if (evictionPolicy == EvictionPolicy.LFU && entry.numAccesses != other.numAccesses) {
+      return entry.numAccesses < other.numAccesses;
+    }
+    return entry.lastAccess < other.lastAccess;
+  }
+
+  private static void recordEviction(TaskObjectRegistry task) {
+    if (task != null) {
+      task.evictions.increment(1);
+    }
+  }
+
+  private class TaskObjectRegistry implements ObjectRegistry {
+    private final TezCounter hits;
+    private final TezCounter misses;
+    private final TezCounter evictions;
+
+    TaskObjectRegistry(TezCounters counters) {
+      this.hits = counters.findCounter(TaskCounter.OBJECT_REGISTRY_HITS);
+      this.misses = counters.findCounter(TaskCounter.OBJECT_REGISTRY_MISSES);
+      this.evictions = counters.findCounter(TaskCounter.OBJECT_REGISTRY_EVICTIONS);
+    }
+
+    @Override
+    public Object cacheForVertex(String key, Object value) {
+      return ObjectRegistryImpl.this.cacheForVertex(key, value);
+    }
+
+    @Override
+    public Object cacheForDAG(String key, Object value) {
+      return ObjectRegistryImpl.this.cacheForDAG(key, value);
+    }
+
+    @Override
+    public Object cacheForSession(String key, Object value) {
+      return ObjectRegistryImpl.this.cacheForSession(key, value);
+    }
+
+    @Override
+    public Object cacheForVertex(String key, Object value, long weight) {
+      return addWeighted(ObjectLifeCycle.VERTEX, key, value, weight, this);
+    }
+
+    @Override
+    public Object cacheForDAG(String key, Object value, long weight) {
+      return addWeighted(ObjectLifeCycle.DAG, key, value, weight, this);
+    }
+
+    @Override
+    public Object cacheForSession(String key, Object value, long weight) {
+      return addWeighted(ObjectLifeCycle.SESSION, key, value, weight, this);
+    }
+
+    @Override
+    public Object get(String key) {
+      return ObjectRegistryImpl.this.get(key, this);
+    }
+
+    @Override
+    public boolean delete(String key) {
+      return ObjectRegistryImpl.this.delete(key);
+    }
+  }
 }
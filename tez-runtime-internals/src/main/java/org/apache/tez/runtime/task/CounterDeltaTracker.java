@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.task;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tez.common.counters.CounterGroup;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+
+/**
+ * Keeps the counter values the AM acknowledged, to send only what changed since then. Used by
+ * the heartbeat thread of a task, which sends one request at a time.
+ * <p/>
+ * The values sent by a request only become the baseline once the AM responds to that request.
+ * The deltas of a request which failed are sent again, as part of the next deltas.
+ */
+class CounterDeltaTracker {
+
+  // Values acknowledged by the AM, by group name and counter name
+  private final Map<String, Map<String, Long>> sentValues =
+      new HashMap<String, Map<String, Long>>();
+  // Values sent by the last deltas, until the AM acknowledges them
+  private Map<String, Map<String, Long>> pendingValues = null;
+  // Request which carries the pending values, -1 until it is sent
+  private long pendingRequestId = -1;
+
+  /**
+   * @return the counters which were added or changed since the values the AM acknowledged,
+   *         with the amount by which they changed, to be added to the counters the AM already
+   *         has. Null if nothing changed.
+   */
+  TezCounters getDeltas(TezCounters counters) {
+    TezCounters deltas = null;
+    pendingValues = new HashMap<String, Map<String, Long>>();
+    pendingRequestId = -1;
+    for (CounterGroup group : counters) {
+      Map<String, Long> groupValues = sentValues.get(group.getName());
+      Map<String, Long> pendingGroupValues = null;
+      CounterGroup deltaGroup = null;
+      for (TezCounter counter : group) {
+        // Read once, the task may be updating it
+        long value = counter.getValue();
+        Long sentValue = groupValues == null ? null : groupValues.get(counter.getName());
+        if (sentValue != null && sentValue == value) {
+          continue;
+        }
+        if (pendingGroupValues == null) {
+          pendingGroupValues = new HashMap<String, Long>();
+          pendingValues.put(group.getName(), pendingGroupValues);
+        }
+        pendingGroupValues.put(counter.getName(), value);
+        if (deltas == null) {
+          deltas = new TezCounters();
+        }
+        if (deltaGroup == null) {
+          deltaGroup = deltas.addGroup(group.getName(), group.getDisplayName());
+        }
+        deltaGroup.addCounter(counter.getName(), counter.getDisplayName(),
+            sentValue == null ? value : value - sentValue);
+      }
+    }
+    return deltas;
+  }
+
+  /**
+   * Record the request which carries the last deltas. A request sent after the one which
+   * carried them means that one failed, and they are dropped.
+   */
+  void requestSent(long requestId) {
+    if (pendingValues == null) {
+      return;
+    }
+    if (pendingRequestId < 0) {
+      pendingRequestId = requestId;
+    } else {
+      pendingValues = null;
+      pendingRequestId = -1;
+    }
+  }
+
+  /**
+   * The AM processed the request: the values it carried become the baseline of the next deltas.
+   */
+  void acknowledge(long requestId) {
+    if (pendingValues == null || pendingRequestId != requestId) {
+      return;
+    }
+    for (Map.Entry<String, Map<String, Long>> entry : pendingValues.entrySet()) {
+      Map<String, Long> groupValues = sentValues.get(entry.getKey());
+      if (groupValues == null) {
+        groupValues = new HashMap<String, Long>();
+        sentValues.put(entry.getKey(), groupValues);
+      }
+      groupValues.putAll(entry.getValue());
+    }
+    pendingValues = null;
+    pendingRequestId = -1;
+  }
+}
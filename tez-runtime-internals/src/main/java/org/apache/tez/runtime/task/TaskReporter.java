@@ -37,6 +37,7 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.hadoop.util.ShutdownHookManager;
 import org.apache.tez.common.TezTaskUmbilicalProtocol;
 import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.dag.api.TezException;
 import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.runtime.RuntimeTask;
@@ -80,6 +81,8 @@ public class TaskReporter implements TaskReporterInterface {
   private final int maxEventsToGet;
   private final AtomicLong requestCounter;
   private final String containerIdStr;
+  private final boolean compactEncoding;
+  private final boolean counterDeltas;
 
   private final ListeningExecutorService heartbeatExecutor;
 
@@ -88,12 +91,22 @@ public class TaskReporter implements TaskReporterInterface {
 
   public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
       long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+    this(umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+        containerIdStr, TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING_DEFAULT,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS_DEFAULT);
+  }
+
+  public TaskReporter(TezTaskUmbilicalProtocol umbilical, long amPollInterval,
+      long sendCounterInterval, int maxEventsToGet, AtomicLong requestCounter,
+      String containerIdStr, boolean compactEncoding, boolean counterDeltas) {
     this.umbilical = umbilical;
     this.pollInterval = amPollInterval;
     this.sendCounterInterval = sendCounterInterval;
     this.maxEventsToGet = maxEventsToGet;
     this.requestCounter = requestCounter;
     this.containerIdStr = containerIdStr;
+    this.compactEncoding = compactEncoding;
+    this.counterDeltas = counterDeltas;
     ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("TaskHeartbeatThread").build());
     heartbeatExecutor = MoreExecutors.listeningDecorator(executor);
@@ -106,7 +119,7 @@ public class TaskReporter implements TaskReporterInterface {
   public synchronized void registerTask(RuntimeTask task,
       ErrorReporter errorReporter) {
     currentCallable = new HeartbeatCallable(task, umbilical, pollInterval, sendCounterInterval,
-        maxEventsToGet, requestCounter, containerIdStr);
+        maxEventsToGet, requestCounter, containerIdStr, compactEncoding, counterDeltas);
     ListenableFuture<Boolean> future = heartbeatExecutor.submit(currentCallable);
     Futures.addCallback(future, new HeartbeatCallback(errorReporter));
   }
@@ -145,6 +158,9 @@ public class TaskReporter implements TaskReporterInterface {
     private final long sendCounterInterval;
     private final int maxEventsToGet;
     private final String containerIdStr;
+    private final boolean compactEncoding;
+    // Null unless only the changes of the counters are sent
+    private final CounterDeltaTracker counterDeltaTracker;
 
     private final AtomicLong requestCounter;
 
@@ -170,12 +186,23 @@ public class TaskReporter implements TaskReporterInterface {
     public HeartbeatCallable(RuntimeTask task,
         TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
         int maxEventsToGet, AtomicLong requestCounter, String containerIdStr) {
+      this(task, umbilical, amPollInterval, sendCounterInterval, maxEventsToGet, requestCounter,
+          containerIdStr, TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING_DEFAULT,
+          TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS_DEFAULT);
+    }
+
+    public HeartbeatCallable(RuntimeTask task,
+        TezTaskUmbilicalProtocol umbilical, long amPollInterval, long sendCounterInterval,
+        int maxEventsToGet, AtomicLong requestCounter, String containerIdStr,
+        boolean compactEncoding, boolean counterDeltas) {
 
       this.pollInterval = amPollInterval;
       this.sendCounterInterval = sendCounterInterval;
       this.maxEventsToGet = maxEventsToGet;
       this.requestCounter = requestCounter;
       this.containerIdStr = containerIdStr;
+      this.compactEncoding = compactEncoding;
+      this.counterDeltaTracker = counterDeltas ? new CounterDeltaTracker() : null;
 
       this.task = task;
       this.umbilical = umbilical;
@@ -263,6 +290,10 @@ public class TaskReporter implements TaskReporterInterface {
       int maxEvents = Math.min(maxEventsToGet, task.getMaxEventsToHandle());
       TezHeartbeatRequest request = new TezHeartbeatRequest(requestId, events, fromPreRoutedEventId,
           containerIdStr, task.getTaskAttemptID(), fromEventId, maxEvents);
+      request.setCompactEncoding(compactEncoding);
+      if (counterDeltaTracker != null) {
+        counterDeltaTracker.requestSent(requestId);
+      }
       if (LOG.isDebugEnabled()) {
         LOG.debug("Sending heartbeat to AM, request=" + request);
       }
@@ -283,6 +314,9 @@ public class TaskReporter implements TaskReporterInterface {
         throw new TezException("AM and Task out of sync" + ", responseReqId="
             + response.getLastRequestId() + ", expectedReqId=" + requestId);
       }
+      if (counterDeltaTracker != null) {
+        counterDeltaTracker.acknowledge(requestId);
+      }
 
       // The same umbilical is used by multiple tasks. Problematic in the case where multiple tasks
       // are running using the same umbilical.
@@ -339,7 +373,8 @@ public class TaskReporter implements TaskReporterInterface {
     private boolean taskSucceeded(TezTaskAttemptID taskAttemptID) throws IOException, TezException {
       // Ensure only one final event is ever sent.
       if (!finalEventQueued.getAndSet(true)) {
-        TezEvent statusUpdateEvent = new TezEvent(getStatusUpdateEvent(true), updateEventMetadata);
+        TezEvent statusUpdateEvent = new TezEvent(getStatusUpdateEvent(true, true),
+            updateEventMetadata);
         TezEvent taskCompletedEvent = new TezEvent(new TaskAttemptCompletedEvent(),
             updateEventMetadata);
         return !heartbeat(Lists.newArrayList(statusUpdateEvent, taskCompletedEvent)).shouldDie;
@@ -349,12 +384,28 @@ public class TaskReporter implements TaskReporterInterface {
       }
     }
     
+    @VisibleForTesting
+    CounterDeltaTracker getCounterDeltaTracker() {
+      return counterDeltaTracker;
+    }
+
     @VisibleForTesting
     TaskStatusUpdateEvent getStatusUpdateEvent(boolean sendCounters) {
+      return getStatusUpdateEvent(sendCounters, false);
+    }
+
+    /**
+     * @param finalUpdate whether this is the last update of the task, which always carries all
+     *          the counters so that the AM ends up with all of them
+     */
+    @VisibleForTesting
+    TaskStatusUpdateEvent getStatusUpdateEvent(boolean sendCounters, boolean finalUpdate) {
       TezCounters counters = null;
       TaskStatistics stats = null;
       float progress = 0;
       boolean progressNotified = false;
+      // The updates without counters then leave the counters the AM has as they are
+      boolean deltas = counterDeltaTracker != null && !finalUpdate;
       if (task.hasInitialized()) {
         progress = task.getProgress();
         progressNotified = task.getAndClearProgressNotification();
@@ -362,9 +413,12 @@ public class TaskReporter implements TaskReporterInterface {
           // send these potentially large objects at longer intervals to avoid overloading the AM
           counters = task.getCounters();
           stats = task.getTaskStatistics();
+          if (deltas) {
+            counters = counterDeltaTracker.getDeltas(counters);
+          }
         }
       }
-      return new TaskStatusUpdateEvent(counters, progress, stats, progressNotified);
+      return new TaskStatusUpdateEvent(counters, progress, stats, progressNotified, deltas);
     }
 
     /**
@@ -401,7 +455,7 @@ public class TaskReporter implements TaskReporterInterface {
               srcMeta == null ? updateEventMetadata : srcMeta));
         }
         try {
-          tezEvents.add(new TezEvent(getStatusUpdateEvent(true), updateEventMetadata));
+          tezEvents.add(new TezEvent(getStatusUpdateEvent(true, true), updateEventMetadata));
         } catch (Exception e) {
           // Counter may exceed limitation
           LOG.warn("Error when get constructing TaskStatusUpdateEvent. Not sending it out");
@@ -29,9 +29,14 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -78,8 +83,11 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -100,6 +108,9 @@ public class TezChild {
   private final int amHeartbeatInterval;
   private final long sendCounterInterval;
   private final int maxEventsToGet;
+  private final boolean compactHeartbeats;
+  private final boolean counterDeltas;
+  private final int numSlots;
   private final String workingDir;
 
   private final ListeningExecutorService executor;
@@ -114,13 +125,22 @@ public class TezChild {
   private final String user;
   private final boolean updateSysCounters;
 
-  private Multimap<String, String> startedInputsMap = HashMultimap.create();
+  private Multimap<String, String> startedInputsMap = newStartedInputsMap();
   private final boolean ownUmbilical;
 
   private final TezTaskUmbilicalProtocol umbilical;
-  private TaskReporterInterface taskReporter;
-  private int taskCount = 0;
+  // One per slot
+  private final List<TaskReporterInterface> taskReporters =
+      new CopyOnWriteArrayList<TaskReporterInterface>();
   private TezVertexID lastVertexID;
+  // Of the tasks running in the slots
+  private final Multiset<TezVertexID> runningVertexIDs = HashMultiset.create();
+  // The AM tracks credential changes per container, so the slots share the UGI
+  private UserGroupInformation childUGI = null;
+  // Of the tasks running in the slots. File systems of a UGI are closed once no task uses it.
+  private final Multiset<UserGroupInformation> runningUGIs = HashMultiset.create();
+  // Slots ask for tasks one at a time, so that the UGI is set up in the order the AM sends tasks
+  private final Object getTaskLock = new Object();
   private final HadoopShim hadoopShim;
   private final TezExecutors sharedExecutor;
 
@@ -160,7 +180,21 @@ public class TezChild {
     maxEventsToGet = defaultConf.getInt(TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
 
-    ExecutorService executor = Executors.newFixedThreadPool(1, new ThreadFactoryBuilder()
+    compactHeartbeats = defaultConf.getBoolean(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COMPACT_ENCODING_DEFAULT);
+
+    counterDeltas = defaultConf.getBoolean(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_COUNTER_DELTAS_DEFAULT);
+
+    numSlots = defaultConf.getInt(TezConfiguration.TEZ_TASK_CONTAINER_SLOTS,
+        TezConfiguration.TEZ_TASK_CONTAINER_SLOTS_DEFAULT);
+    Preconditions.checkArgument(numSlots >= 1, TezConfiguration.TEZ_TASK_CONTAINER_SLOTS
+        + " should be >= 1");
+
+    // Each slot has one task, or one request for a task, running at a time
+    ExecutorService executor = Executors.newFixedThreadPool(numSlots, new ThreadFactoryBuilder()
         .setDaemon(true).setNameFormat("TezChild").build());
     this.executor = MoreExecutors.listeningDecorator(executor);
 
@@ -201,40 +235,92 @@ public class TezChild {
   }
   
   public ContainerExecutionResult run() throws IOException, InterruptedException, TezException {
+    if (numSlots == 1) {
+      return runSlot(0);
+    }
 
-    ContainerContext containerContext = new ContainerContext(containerIdString);
+    // A slot only finishes when it fails, or when the container is asked to die. Either way, the
+    // container is done.
+    ExecutorService slotExecutor = Executors.newFixedThreadPool(numSlots,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("TezChild Slot #%d").build());
+    CompletionService<ContainerExecutionResult> slotCompletionService =
+        new ExecutorCompletionService<ContainerExecutionResult>(slotExecutor);
+    try {
+      for (int slot = 0; slot < numSlots; slot++) {
+        final int slotToRun = slot;
+        slotCompletionService.submit(new Callable<ContainerExecutionResult>() {
+          @Override
+          public ContainerExecutionResult call() throws Exception {
+            return runSlot(slotToRun);
+          }
+        });
+      }
+      Future<ContainerExecutionResult> firstFinished = slotCompletionService.take();
+      try {
+        return firstFinished.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        LOG.error("Error running tasks in container {}", containerIdString, cause);
+        return new ContainerExecutionResult(ContainerExecutionResult.ExitStatus.EXECUTION_FAILURE,
+            cause, "Execution Exception while running tasks: " + cause.getMessage());
+      }
+    } finally {
+      shutdown();
+      slotExecutor.shutdownNow();
+    }
+  }
+
+  private ContainerExecutionResult runSlot(int slot)
+      throws IOException, InterruptedException, TezException {
+
+    String slotIdString = ContainerContext.getSlotIdentifier(containerIdString, slot);
+    ContainerContext containerContext = new ContainerContext(slotIdString);
     ContainerReporter containerReporter = new ContainerReporter(umbilical, containerContext,
         getTaskMaxSleepTime);
 
-    taskReporter = new TaskReporter(umbilical, amHeartbeatInterval,
-        sendCounterInterval, maxEventsToGet, heartbeatCounter, containerIdString);
+    // The AM expects the heartbeats of each slot in sequence
+    TaskReporterInterface taskReporter = new TaskReporter(umbilical, amHeartbeatInterval,
+        sendCounterInterval, maxEventsToGet, slot == 0 ? heartbeatCounter : new AtomicLong(0),
+        slotIdString, compactHeartbeats, counterDeltas);
+    taskReporters.add(taskReporter);
+    if (isShutdown.get()) {
+      taskReporter.shutdown();
+    }
 
-    UserGroupInformation childUGI = null;
+    // Tasks running side by side can't have log files of their own
+    boolean perTaskLogs = numSlots == 1;
+    int taskCount = 0;
 
     while (!executor.isTerminated() && !isShutdown.get()) {
-      if (taskCount > 0) {
+      if (taskCount > 0 && perTaskLogs) {
         TezUtilsInternal.updateLoggers("");
       }
-      ListenableFuture<ContainerTask> getTaskFuture = executor.submit(containerReporter);
       boolean error = false;
       ContainerTask containerTask = null;
-      try {
-        containerTask = getTaskFuture.get();
-      } catch (ExecutionException e) {
-        error = true;
-        Throwable cause = e.getCause();
-        LOG.error("Error fetching new work for container {}", containerIdString,
-            cause);
-        return new ContainerExecutionResult(ContainerExecutionResult.ExitStatus.EXECUTION_FAILURE,
-            cause, "Execution Exception while fetching new work: " + e.getMessage());
-      } catch (InterruptedException e) {
-        error = true;
-        LOG.info("Interrupted while waiting for new work for container {}", containerIdString);
-        return new ContainerExecutionResult(ContainerExecutionResult.ExitStatus.INTERRUPTED, e,
-            "Interrupted while waiting for new work");
-      } finally {
-        if (error) {
-          shutdown();
+      UserGroupInformation taskUGI = null;
+      synchronized (getTaskLock) {
+        ListenableFuture<ContainerTask> getTaskFuture = executor.submit(containerReporter);
+        try {
+          containerTask = getTaskFuture.get();
+        } catch (ExecutionException e) {
+          error = true;
+          Throwable cause = e.getCause();
+          LOG.error("Error fetching new work for container {}", containerIdString,
+              cause);
+          return new ContainerExecutionResult(ContainerExecutionResult.ExitStatus.EXECUTION_FAILURE,
+              cause, "Execution Exception while fetching new work: " + e.getMessage());
+        } catch (InterruptedException e) {
+          error = true;
+          LOG.info("Interrupted while waiting for new work for container {}", containerIdString);
+          return new ContainerExecutionResult(ContainerExecutionResult.ExitStatus.INTERRUPTED, e,
+              "Interrupted while waiting for new work");
+        } finally {
+          if (error) {
+            shutdown();
+          }
+        }
+        if (!containerTask.shouldDie()) {
+          taskUGI = taskStarting(containerTask);
         }
       }
       if (containerTask.shouldDie()) {
@@ -252,19 +338,21 @@ public class TezChild {
             containerTask.getTaskSpec().getTaskAttemptID().toString());
         TezUtilsInternal.setHadoopCallerContext(hadoopShim,
             containerTask.getTaskSpec().getTaskAttemptID());
-        TezUtilsInternal.updateLoggers(loggerAddend);
-        FileSystem.clearStatistics();
+        if (perTaskLogs) {
+          TezUtilsInternal.updateLoggers(loggerAddend);
+          // The statistics are global. Not cleared under tasks running in other slots.
+          FileSystem.clearStatistics();
+        }
 
-        childUGI = handleNewTaskCredentials(containerTask, childUGI);
-        handleNewTaskLocalResources(containerTask, childUGI);
-        cleanupOnTaskChanged(containerTask);
+        handleNewTaskLocalResources(containerTask, taskUGI);
+        TezVertexID vertexID = cleanupOnTaskChanged(containerTask);
 
         // Execute the Actual Task
-        TezTaskRunner2 taskRunner = new TezTaskRunner2(defaultConf, childUGI,
+        TezTaskRunner2 taskRunner = new TezTaskRunner2(defaultConf, taskUGI,
             localDirs, containerTask.getTaskSpec(), appAttemptNumber,
-            serviceConsumerMetadata, serviceProviderEnvMap, startedInputsMap, taskReporter,
-            executor, objectRegistry, pid, executionContext, memAvailable, updateSysCounters,
-            hadoopShim, sharedExecutor);
+            serviceConsumerMetadata, serviceProviderEnvMap, getStartedInputsMap(), taskReporter,
+            executor, objectRegistry, pid, executionContext, memAvailable / numSlots,
+            updateSysCounters, hadoopShim, sharedExecutor);
         boolean shouldDie;
         try {
           TaskRunner2Result result = taskRunner.run();
@@ -284,7 +372,7 @@ public class TezChild {
                 e, "TaskExecutionFailure: " + e.getMessage());
           }
         } finally {
-          FileSystem.closeAllForUGI(childUGI);
+          taskEnded(vertexID, taskUGI);
         }
       }
     }
@@ -328,7 +416,7 @@ public class TezChild {
    * @throws IOException
    * @throws TezException
    */
-  private void handleNewTaskLocalResources(ContainerTask containerTask,
+  private synchronized void handleNewTaskLocalResources(ContainerTask containerTask,
       UserGroupInformation ugi) throws IOException, TezException {
 
     final Map<String, TezLocalResource> additionalResources = containerTask.getAdditionalResources();
@@ -361,26 +449,64 @@ public class TezChild {
   }
 
   /**
-   * Cleans entries from the object registry, and resets the startedInputsMap if required
+   * Cleans entries from the object registry, and resets the startedInputsMap if required. Entries
+   * are kept while tasks of their vertex or DAG still run in other slots.
    * 
    * @param containerTask
    *          the new task specification. Must be a valid task
+   * @return the vertex of the task
    */
-  private void cleanupOnTaskChanged(ContainerTask containerTask) {
+  private synchronized TezVertexID cleanupOnTaskChanged(ContainerTask containerTask) {
     Preconditions.checkState(!containerTask.shouldDie());
     Preconditions.checkState(containerTask.getTaskSpec() != null);
     TezVertexID newVertexID = containerTask.getTaskSpec().getTaskAttemptID().getTaskID()
         .getVertexID();
     if (lastVertexID != null) {
-      if (!lastVertexID.equals(newVertexID)) {
+      if (!lastVertexID.equals(newVertexID) && !runningVertexIDs.contains(lastVertexID)) {
         objectRegistry.clearCache(ObjectRegistryImpl.ObjectLifeCycle.VERTEX);
       }
-      if (!lastVertexID.getDAGId().equals(newVertexID.getDAGId())) {
+      if (!lastVertexID.getDAGId().equals(newVertexID.getDAGId())
+          && !isDagRunning(lastVertexID)) {
         objectRegistry.clearCache(ObjectRegistryImpl.ObjectLifeCycle.DAG);
-        startedInputsMap = HashMultimap.create();
+        startedInputsMap = newStartedInputsMap();
       }
     }
     lastVertexID = newVertexID;
+    runningVertexIDs.add(newVertexID);
+    return newVertexID;
+  }
+
+  private synchronized UserGroupInformation taskStarting(ContainerTask containerTask) {
+    childUGI = handleNewTaskCredentials(containerTask, childUGI);
+    runningUGIs.add(childUGI);
+    return childUGI;
+  }
+
+  private synchronized void taskEnded(TezVertexID vertexID, UserGroupInformation taskUGI)
+      throws IOException {
+    runningVertexIDs.remove(vertexID);
+    runningUGIs.remove(taskUGI);
+    if (!runningUGIs.contains(taskUGI)) {
+      FileSystem.closeAllForUGI(taskUGI);
+    }
+  }
+
+  private boolean isDagRunning(TezVertexID vertexID) {
+    for (TezVertexID runningVertexID : runningVertexIDs.elementSet()) {
+      if (runningVertexID.getDAGId().equals(vertexID.getDAGId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private synchronized Multimap<String, String> getStartedInputsMap() {
+    return startedInputsMap;
+  }
+
+  private static Multimap<String, String> newStartedInputsMap() {
+    // Shared by the tasks running in the slots
+    return Multimaps.synchronizedSetMultimap(HashMultimap.<String, String>create());
   }
 
   public void shutdown() {
@@ -393,7 +519,7 @@ public class TezChild {
         LOG.info("Cancelling pending runnables during TezChild shutdown for containerId={}", containerIdString);
         ((FutureTask)r).cancel(false);
       }
-      if (taskReporter != null) {
+      for (TaskReporterInterface taskReporter : taskReporters) {
         taskReporter.shutdown();
       }
       if (ownUmbilical) {
@@ -467,13 +593,29 @@ public class TezChild {
 
     TezUtilsInternal.setSecurityUtilConfigration(LOG, conf);
 
-    // singleton of ObjectRegistry for this JVM
-    ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl();
+    // singleton of ObjectRegistry for this JVM. The memory set aside for weighted objects is
+    // taken out of what tasks get to distribute among their inputs, outputs and processor.
+    float objectRegistryFraction = conf.getFloat(
+        TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_MEMORY_FRACTION,
+        TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_MEMORY_FRACTION_DEFAULT);
+    Preconditions.checkArgument(objectRegistryFraction >= 0 && objectRegistryFraction < 1,
+        TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_MEMORY_FRACTION + " should be in [0, 1), was "
+            + objectRegistryFraction);
+    long objectRegistryMemory = (long) (memAvailable * objectRegistryFraction);
+    ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl(objectRegistryMemory,
+        ObjectRegistryImpl.EvictionPolicy.valueOf(conf.getTrimmed(
+            TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_EVICTION_POLICY,
+            TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_EVICTION_POLICY_DEFAULT).toUpperCase()),
+        conf.getBoolean(TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_SOFT_REFERENCES,
+            TezConfiguration.TEZ_TASK_OBJECT_REGISTRY_SOFT_REFERENCES_DEFAULT));
+    if (objectRegistryMemory > 0) {
+      LOG.info("Set aside " + objectRegistryMemory + " bytes for the object registry");
+    }
 
     return new TezChild(conf, host, port, containerIdentifier, tokenIdentifier,
         attemptNumber, workingDirectory, localDirs, serviceProviderEnvMap, objectRegistry, pid,
-        executionContext, credentials, memAvailable, user, tezUmbilical, updateSysCounters,
-        hadoopShim);
+        executionContext, credentials, memAvailable - objectRegistryMemory, user, tezUmbilical,
+        updateSysCounters, hadoopShim);
   }
 
   public static void main(String[] args) throws IOException, InterruptedException, TezException {
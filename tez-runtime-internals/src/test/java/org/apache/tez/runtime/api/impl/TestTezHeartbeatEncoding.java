@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestTezHeartbeatEncoding {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestTezHeartbeatEncoding.class);
+
+  private final TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(
+      TezTaskID.fromString("task_1454468251169_866787_1_02_000003"), 0);
+
+  @Test(timeout = 5000)
+  public void testRequestRoundTrip() throws IOException {
+    for (boolean compact : new boolean[] { false, true }) {
+      List<TezEvent> events = createEvents(10);
+      TezHeartbeatRequest request = createRequest(events, compact);
+      for (TezHeartbeatRequest actual : roundTrip(request, TezHeartbeatRequest.class)) {
+        assertEquals(compact, actual.isCompactEncoding());
+        assertEquals(request.getRequestId(), actual.getRequestId());
+        assertEquals(request.getContainerIdentifier(), actual.getContainerIdentifier());
+        assertEquals(request.getCurrentTaskAttemptID(), actual.getCurrentTaskAttemptID());
+        assertEquals(request.getStartIndex(), actual.getStartIndex());
+        assertEquals(request.getPreRoutedStartIndex(), actual.getPreRoutedStartIndex());
+        assertEquals(request.getMaxEvents(), actual.getMaxEvents());
+        assertEventsEqual(events, actual.getEvents());
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testResponseRoundTrip() throws IOException {
+    for (boolean compact : new boolean[] { false, true }) {
+      List<TezEvent> events = createEvents(10);
+      TezHeartbeatResponse response = new TezHeartbeatResponse(events);
+      response.setCompactEncoding(compact);
+      response.setLastRequestId(7);
+      response.setNextFromEventId(100);
+      response.setNextPreRoutedEventId(3);
+      for (TezHeartbeatResponse actual : roundTrip(response, TezHeartbeatResponse.class)) {
+        assertEquals(compact, actual.isCompactEncoding());
+        assertEquals(7, actual.getLastRequestId());
+        assertEquals(100, actual.getNextFromEventId());
+        assertEquals(3, actual.getNextPreRoutedEventId());
+        assertEventsEqual(events, actual.getEvents());
+      }
+
+      // No events at all
+      response = new TezHeartbeatResponse();
+      response.setCompactEncoding(compact);
+      response.setShouldDie();
+      for (TezHeartbeatResponse actual : roundTrip(response, TezHeartbeatResponse.class)) {
+        assertTrue(actual.shouldDie());
+        assertNull(actual.getEvents());
+      }
+      response = new TezHeartbeatResponse(new ArrayList<TezEvent>());
+      response.setCompactEncoding(compact);
+      for (TezHeartbeatResponse actual : roundTrip(response, TezHeartbeatResponse.class)) {
+        assertTrue(actual.getEvents().isEmpty());
+      }
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testCompactEncodingSize() throws IOException {
+    List<TezEvent> events = createEvents(100);
+    int size = serialize(createRequest(events, false)).getLength();
+    int compactSize = serialize(createRequest(events, true)).getLength();
+    LOG.info("Heartbeat of " + events.size() + " events: " + size + " bytes, compact: "
+        + compactSize + " bytes");
+    assertTrue("Compact encoding is " + compactSize + " bytes, instead of " + size,
+        compactSize < size * 2 / 3);
+  }
+
+  /**
+   * Measures how many heartbeats of a task sending events the AM can read and answer per
+   * second, with each encoding.
+   */
+  @Ignore
+  @Test
+  public void testHeartbeatThroughput() throws IOException {
+    List<TezEvent> requestEvents = createEvents(50);
+    List<TezEvent> responseEvents = createEvents(50);
+    int iterations = 50000;
+    for (boolean compact : new boolean[] { false, true, false, true }) {
+      DataOutputBuffer requestBytes = serialize(createRequest(requestEvents, compact));
+      TezHeartbeatResponse response = new TezHeartbeatResponse(responseEvents);
+      response.setCompactEncoding(compact);
+      DataInputBuffer in = new DataInputBuffer();
+      DataOutputBuffer out = new DataOutputBuffer();
+      long bytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        in.reset(requestBytes.getData(), requestBytes.getLength());
+        new TezHeartbeatRequest().readFields(in);
+        out.reset();
+        response.write(out);
+        bytes += requestBytes.getLength() + out.getLength();
+      }
+      long elapsedNanos = System.nanoTime() - start;
+      LOG.info("Compact encoding: " + compact + ", heartbeats per second: "
+          + (iterations * 1000000000L / elapsedNanos) + ", bytes per heartbeat: "
+          + (bytes / iterations));
+    }
+  }
+
+  private TezHeartbeatRequest createRequest(List<TezEvent> events, boolean compact) {
+    TezHeartbeatRequest request = new TezHeartbeatRequest(5, events, 2,
+        "container_1454468251169_866787_01_000004", attemptId, 10, 500);
+    request.setCompactEncoding(compact);
+    return request;
+  }
+
+  // Data movement events of a couple of outputs and a status update, like a finishing task sends
+  private List<TezEvent> createEvents(int dataMovementEvents) {
+    long time = System.currentTimeMillis();
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    for (int i = 0; i < dataMovementEvents; i++) {
+      String destinationVertex = i % 2 == 0 ? "Reducer 2" : "Reducer 3";
+      EventMetaData srcInfo = new EventMetaData(EventProducerConsumerType.OUTPUT, "Map 1",
+          destinationVertex, attemptId);
+      EventMetaData destInfo = new EventMetaData(EventProducerConsumerType.INPUT,
+          destinationVertex, "Map 1", null);
+      TezEvent event = new TezEvent(DataMovementEvent.create(i, i, 0,
+          ByteBuffer.wrap(new byte[] { 1, 2, 3, (byte) i })), srcInfo, time + i);
+      event.setDestinationInfo(destInfo);
+      events.add(event);
+    }
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.OUTPUT_RECORDS).setValue(1000);
+    events.add(new TezEvent(new TaskStatusUpdateEvent(counters, 0.5f, null, true),
+        new EventMetaData(EventProducerConsumerType.SYSTEM, "Map 1", "", attemptId), time));
+    return events;
+  }
+
+  private DataOutputBuffer serialize(Writable writable) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    writable.write(out);
+    return out;
+  }
+
+  // Reads back from a DataInputBuffer and from a plain stream, which take different code paths
+  private <T extends Writable> List<T> roundTrip(Writable writable, Class<T> clazz)
+      throws IOException {
+    DataOutputBuffer out = serialize(writable);
+    List<T> results = new ArrayList<T>();
+    try {
+      T fromBuffer = clazz.newInstance();
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(out.getData(), out.getLength());
+      fromBuffer.readFields(in);
+      assertEquals(out.getLength(), in.getPosition());
+      results.add(fromBuffer);
+      T fromStream = clazz.newInstance();
+      fromStream.readFields(new DataInputStream(
+          new ByteArrayInputStream(out.getData(), 0, out.getLength())));
+      results.add(fromStream);
+    } catch (ReflectiveOperationException e) {
+      throw new IOException(e);
+    }
+    return results;
+  }
+
+  private void assertEventsEqual(List<TezEvent> expectedList, List<TezEvent> actualList) {
+    assertEquals(expectedList.size(), actualList.size());
+    for (int i = 0; i < expectedList.size(); i++) {
+      TezEvent expected = expectedList.get(i);
+      TezEvent actual = actualList.get(i);
+      assertEquals(expected.getEventType(), actual.getEventType());
+      assertEquals(expected.getEventReceivedTime(), actual.getEventReceivedTime());
+      assertEquals(expected.getSourceInfo(), actual.getSourceInfo());
+      assertEquals(expected.getDestinationInfo(), actual.getDestinationInfo());
+      if (expected.getEvent() instanceof DataMovementEvent) {
+        DataMovementEvent dmeExpected = (DataMovementEvent) expected.getEvent();
+        DataMovementEvent dmeActual = (DataMovementEvent) actual.getEvent();
+        assertEquals(dmeExpected.getSourceIndex(), dmeActual.getSourceIndex());
+        assertEquals(dmeExpected.getTargetIndex(), dmeActual.getTargetIndex());
+        assertEquals(dmeExpected.getUserPayload(), dmeActual.getUserPayload());
+      } else {
+        TaskStatusUpdateEvent tsuExpected = (TaskStatusUpdateEvent) expected.getEvent();
+        TaskStatusUpdateEvent tsuActual = (TaskStatusUpdateEvent) actual.getEvent();
+        assertEquals(tsuExpected.getCounters(), tsuActual.getCounters());
+        assertEquals(tsuExpected.getProgress(), tsuActual.getProgress(), 0);
+      }
+    }
+  }
+}
@@ -18,7 +18,10 @@
 
 package org.apache.tez.runtime.common.objectregistry;
 
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.runtime.api.ObjectRegistry;
+import org.apache.tez.runtime.common.objectregistry.ObjectRegistryImpl.EvictionPolicy;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -68,4 +71,93 @@ public class TestObjectRegistry {
     Assert.assertNotNull(objectRegistry.get(one));
     Assert.assertNull(objectRegistry.get(two));
   }
+
+  @Test(timeout = 5000)
+  public void testLRUEviction() {
+    ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl(100, EvictionPolicy.LRU, false);
+    objectRegistry.cacheForSession("unweighted", "unweighted");
+    objectRegistry.cacheForDAG("a", "a", 40);
+    objectRegistry.cacheForVertex("b", "b", 40);
+    Assert.assertEquals(80, objectRegistry.getTotalWeight());
+    Assert.assertEquals("a", objectRegistry.get("a"));
+
+    // b is the least recently used
+    objectRegistry.cacheForDAG("c", "c", 40);
+    Assert.assertNull(objectRegistry.get("b"));
+    Assert.assertEquals("a", objectRegistry.get("a"));
+    Assert.assertEquals("c", objectRegistry.get("c"));
+    Assert.assertEquals(80, objectRegistry.getTotalWeight());
+
+    // Too large to be cached at all
+    Assert.assertEquals("c", objectRegistry.cacheForDAG("c", "c2", 101));
+    Assert.assertNull(objectRegistry.get("c"));
+    Assert.assertEquals("a", objectRegistry.get("a"));
+    Assert.assertEquals(40, objectRegistry.getTotalWeight());
+
+    // Unweighted objects are never evicted
+    objectRegistry.cacheForSession("d", "d", 100);
+    Assert.assertNull(objectRegistry.get("a"));
+    Assert.assertEquals("unweighted", objectRegistry.get("unweighted"));
+
+    objectRegistry.clearCache(ObjectRegistryImpl.ObjectLifeCycle.SESSION);
+    Assert.assertEquals(0, objectRegistry.getTotalWeight());
+  }
+
+  @Test(timeout = 5000)
+  public void testLFUEviction() {
+    ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl(100, EvictionPolicy.LFU, false);
+    objectRegistry.cacheForDAG("a", "a", 40);
+    objectRegistry.cacheForDAG("b", "b", 40);
+    objectRegistry.get("a");
+    objectRegistry.get("a");
+    objectRegistry.get("b");
+    objectRegistry.get("a");
+
+    // b is the most recently used, but the least frequently used
+    objectRegistry.cacheForDAG("c", "c", 40);
+    Assert.assertNull(objectRegistry.get("b"));
+    Assert.assertEquals("a", objectRegistry.get("a"));
+    Assert.assertEquals("c", objectRegistry.get("c"));
+  }
+
+  @Test(timeout = 5000)
+  public void testTaskCounters() {
+    ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl(100, EvictionPolicy.LRU, true);
+    TezCounters counters1 = new TezCounters();
+    TezCounters counters2 = new TezCounters();
+    ObjectRegistry task1 = objectRegistry.forTask(counters1);
+    ObjectRegistry task2 = objectRegistry.forTask(counters2);
+
+    Assert.assertNull(task1.get("a"));
+    String a = "a";
+    task1.cacheForVertex("a", a, 60);
+    Assert.assertEquals(a, task2.get("a"));
+    Assert.assertEquals(a, task2.get("a"));
+    task2.cacheForVertex("b", "b", 60);
+    Assert.assertNull(task1.get("a"));
+
+    Assert.assertEquals(0, counters1.findCounter(TaskCounter.OBJECT_REGISTRY_HITS).getValue());
+    Assert.assertEquals(2, counters1.findCounter(TaskCounter.OBJECT_REGISTRY_MISSES).getValue());
+    Assert.assertEquals(0,
+        counters1.findCounter(TaskCounter.OBJECT_REGISTRY_EVICTIONS).getValue());
+    Assert.assertEquals(2, counters2.findCounter(TaskCounter.OBJECT_REGISTRY_HITS).getValue());
+    Assert.assertEquals(0, counters2.findCounter(TaskCounter.OBJECT_REGISTRY_MISSES).getValue());
+    Assert.assertEquals(1,
+        counters2.findCounter(TaskCounter.OBJECT_REGISTRY_EVICTIONS).getValue());
+  }
+
+  @Test(timeout = 5000)
+  public void testInvalidWeight() {
+    ObjectRegistry objectRegistry = new ObjectRegistryImpl();
+    try {
+      objectRegistry.cacheForDAG("a", "a", 0);
+      Assert.fail("Expected a failure for a weight of 0");
+    } catch (IllegalArgumentException e) {
+    }
+    // Unbounded
+    objectRegistry.cacheForDAG("a", "a", Long.MAX_VALUE / 2);
+    objectRegistry.cacheForDAG("b", "b", Long.MAX_VALUE / 2);
+    Assert.assertEquals("a", objectRegistry.get("a"));
+    Assert.assertEquals("b", objectRegistry.get("b"));
+  }
 }
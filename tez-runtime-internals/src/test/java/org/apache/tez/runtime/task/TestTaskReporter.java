@@ -37,6 +37,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import com.google.common.collect.Lists;
 
 import org.apache.tez.common.TezTaskUmbilicalProtocol;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.dag.records.TezTaskAttemptID;
@@ -217,6 +218,68 @@ public class TestTaskReporter {
 
   }
 
+  @Test(timeout = 5000)
+  public void testStatusUpdateCounterDeltas() throws Exception {
+    LogicalIOProcessorRuntimeTask mockTask = mock(LogicalIOProcessorRuntimeTask.class);
+    doReturn("vertexName").when(mockTask).getVertexName();
+    doReturn(mock(TezTaskAttemptID.class)).when(mockTask).getTaskAttemptID();
+    doReturn(true).when(mockTask).hasInitialized();
+    TezCounters counters = new TezCounters();
+    doReturn(counters).when(mockTask).getCounters();
+    TaskReporter.HeartbeatCallable heartbeatCallable =
+        new TaskReporter.HeartbeatCallable(mockTask, mock(TezTaskUmbilicalProtocol.class),
+            100000, 100000, 5, new AtomicLong(0), "containerIdStr", false, true);
+
+    CounterDeltaTracker tracker = heartbeatCallable.getCounterDeltaTracker();
+
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(10);
+    counters.findCounter("g", "c").setValue(0);
+    TaskStatusUpdateEvent event = heartbeatCallable.getStatusUpdateEvent(true);
+    Assert.assertTrue(event.isCounterDeltas());
+    // The first update has all the counters, even the ones without a value
+    Assert.assertEquals(counters, event.getCounters());
+    tracker.requestSent(1);
+    tracker.acknowledge(1);
+
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).increment(5);
+    counters.findCounter("g", "d").setValue(3);
+    event = heartbeatCallable.getStatusUpdateEvent(true);
+    Assert.assertTrue(event.isCounterDeltas());
+    Assert.assertEquals(2, event.getCounters().countCounters());
+    Assert.assertEquals(5,
+        event.getCounters().findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).getValue());
+    Assert.assertEquals(3, event.getCounters().findCounter("g", "d").getValue());
+    // The request is lost, its deltas are sent again with the next ones
+    tracker.requestSent(2);
+    tracker.requestSent(3);
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).increment(1);
+    event = heartbeatCallable.getStatusUpdateEvent(true);
+    Assert.assertEquals(2, event.getCounters().countCounters());
+    Assert.assertEquals(6,
+        event.getCounters().findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).getValue());
+    Assert.assertEquals(3, event.getCounters().findCounter("g", "d").getValue());
+    // Only the response to the request which carried them acknowledges them
+    tracker.requestSent(4);
+    tracker.acknowledge(3);
+    event = heartbeatCallable.getStatusUpdateEvent(true);
+    Assert.assertEquals(2, event.getCounters().countCounters());
+    tracker.requestSent(5);
+    tracker.acknowledge(5);
+
+    // Nothing changed
+    event = heartbeatCallable.getStatusUpdateEvent(true);
+    Assert.assertTrue(event.isCounterDeltas());
+    Assert.assertNull(event.getCounters());
+    event = heartbeatCallable.getStatusUpdateEvent(false);
+    Assert.assertTrue(event.isCounterDeltas());
+    Assert.assertNull(event.getCounters());
+
+    // The final update has all of them
+    event = heartbeatCallable.getStatusUpdateEvent(true, true);
+    Assert.assertFalse(event.isCounterDeltas());
+    Assert.assertSame(counters, event.getCounters());
+  }
+
   private List<TezEvent> createEvents(int numEvents) {
     List<TezEvent> list = Lists.newArrayListWithCapacity(numEvents);
     for (int i = 0; i < numEvents; i++) {
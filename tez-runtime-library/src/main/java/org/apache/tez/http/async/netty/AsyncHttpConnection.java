@@ -20,12 +20,16 @@ package org.apache.tez.http.async.netty;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FluentCaseInsensitiveStringsMap;
 import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Request;
 import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
 import org.apache.commons.io.IOUtils;
 import org.apache.tez.http.BaseHttpConnection;
 import org.apache.tez.http.HttpConnectionParams;
@@ -35,6 +39,13 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
 import org.apache.tez.util.StopWatch;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.SocketChannel;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +55,7 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class AsyncHttpConnection extends BaseHttpConnection {
@@ -59,10 +71,14 @@ public class AsyncHttpConnection extends BaseHttpConnection {
   private final URL url;
 
   private static volatile AsyncHttpClient httpAsyncClient;
+  private static CallbackChannelFactory channelFactory;
 
-  private final TezBodyDeferringAsyncHandler handler;
-  private final PipedOutputStream pos; //handler would write to this as and when it receives chunks
-  private final PipedInputStream pis; //connected to pos, which can be used by fetchers
+  // The connection whose response the callbacks of the client run for, on its I/O thread
+  private static final ThreadLocal<Channel> callbackChannel = new ThreadLocal<Channel>();
+
+  private TezBodyDeferringAsyncHandler handler;
+  private PipedOutputStream pos; //handler would write to this as and when it receives chunks
+  private PipedInputStream pis; //connected to pos, which can be used by fetchers
 
   private Response response;
   private ListenableFuture<Response> responseFuture;
@@ -78,6 +94,13 @@ public class AsyncHttpConnection extends BaseHttpConnection {
         if (httpAsyncClient == null) {
           LOG.info("Initializing AsyncClient (TezBodyDeferringAsyncHandler)");
           AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder();
+          // Connections are made by a factory of our own, so that the callbacks can tell the
+          // connection they run for and suspend reads from it
+          channelFactory = new CallbackChannelFactory();
+          NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+          providerConfig.addProperty(NettyAsyncHttpProviderConfig.SOCKET_CHANNEL_FACTORY,
+              channelFactory);
+          builder.setAsyncHttpClientProviderConfig(providerConfig);
           if (httpConnParams.isSslShuffle()) {
             //Configure SSL
             SSLFactory sslFactory = httpConnParams.getSslFactory();
@@ -119,9 +142,6 @@ public class AsyncHttpConnection extends BaseHttpConnection {
     }
 
     initClient(httpConnParams);
-    pos = new PipedOutputStream();
-    pis = new PipedInputStream(pos, httpConnParams.getBufferSize());
-    handler = new TezBodyDeferringAsyncHandler(pos, url, UNIT_CONNECT_TIMEOUT);
   }
 
   @VisibleForTesting
@@ -139,16 +159,10 @@ public class AsyncHttpConnection extends BaseHttpConnection {
    * @throws IOException upon connection failure
    */
   public boolean connect() throws IOException, InterruptedException {
-    computeEncHash();
-
-    RequestBuilder rb = new RequestBuilder();
-    rb.setHeader(SecureShuffleUtils.HTTP_HEADER_URL_HASH, encHash);
-    rb.setHeader(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
-    rb.setHeader(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
-    Request request = rb.setUrl(url.toString()).build();
-
-    //for debugging
-    LOG.debug("Request url={}, encHash={}, id={}", url, encHash);
+    Request request = buildRequest();
+    pos = new PipedOutputStream();
+    pis = new PipedInputStream(pos, httpConnParams.getBufferSize());
+    handler = new TezBodyDeferringAsyncHandler(pos, url, UNIT_CONNECT_TIMEOUT);
 
     try {
       //Blocks calling thread until it receives headers, but have the option to defer response body
@@ -175,18 +189,63 @@ public class AsyncHttpConnection extends BaseHttpConnection {
     return true;
   }
 
+  /**
+   * Send the request without waiting for the response. The response is handed to
+   * <code>asyncHandler</code> on the I/O threads of the client as it arrives, its headers
+   * should be checked with {@link #validate(FluentCaseInsensitiveStringsMap)}.
+   *
+   * @return future of the value produced by the handler
+   * @throws IOException if the request could not be sent
+   */
+  public <T> ListenableFuture<T> execute(AsyncHandler<T> asyncHandler) throws IOException {
+    return httpAsyncClient.executeRequest(buildRequest(), asyncHandler);
+  }
+
+  /**
+   * @return the connection of the response handed to the callback of an
+   *         {@link #execute(AsyncHandler)} handler this is called from, null outside of the
+   *         callbacks. Reads from it can be suspended and resumed with
+   *         {@link Channel#setReadable(boolean)}, from any thread.
+   */
+  public static Channel getCallbackChannel() {
+    return callbackChannel.get();
+  }
+
+  private Request buildRequest() throws IOException {
+    computeEncHash();
+
+    RequestBuilder rb = new RequestBuilder();
+    rb.setHeader(SecureShuffleUtils.HTTP_HEADER_URL_HASH, encHash);
+    rb.setHeader(ShuffleHeader.HTTP_HEADER_NAME, ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+    rb.setHeader(ShuffleHeader.HTTP_HEADER_VERSION, ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+
+    //for debugging
+    LOG.debug("Request url={}, encHash={}, id={}", url, encHash);
+    return rb.setUrl(url.toString()).build();
+  }
+
   public void validate() throws IOException {
+    validate(response.getHeaders());
+  }
+
+  /**
+   * Validate the headers of a response to the request sent by {@link #connect()} or
+   * {@link #execute(AsyncHandler)}
+   *
+   * @throws IOException if the response is not from a compatible, authenticated server
+   */
+  public void validate(FluentCaseInsensitiveStringsMap headers) throws IOException {
     stopWatch.reset().start();
     // get the shuffle version
     if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME
-        .equals(response.getHeader(ShuffleHeader.HTTP_HEADER_NAME))
+        .equals(headers.getFirstValue(ShuffleHeader.HTTP_HEADER_NAME))
         || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION
-        .equals(response.getHeader(ShuffleHeader.HTTP_HEADER_VERSION))) {
+        .equals(headers.getFirstValue(ShuffleHeader.HTTP_HEADER_VERSION))) {
       throw new IOException("Incompatible shuffle response version");
     }
 
     // get the replyHash which is HMac of the encHash we sent to the server
-    String replyHash = response.getHeader(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+    String replyHash = headers.getFirstValue(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
     if (replyHash == null) {
       throw new IOException("security validation of TT Map output failed");
     }
@@ -213,6 +272,9 @@ public class AsyncHttpConnection extends BaseHttpConnection {
   public void close() {
     httpAsyncClient.close();
     httpAsyncClient = null;
+    // The client leaves a factory it was given alone
+    channelFactory.releaseExternalResources();
+    channelFactory = null;
   }
   /**
    * Cleanup the connection.
@@ -230,4 +292,36 @@ public class AsyncHttpConnection extends BaseHttpConnection {
     response = null;
   }
 
+  /**
+   * Makes the connections of the client with a handler in front of the ones of the client, which
+   * tells the callbacks run for a response the connection it is read from.
+   */
+  private static final class CallbackChannelFactory extends NioClientSocketChannelFactory {
+
+    CallbackChannelFactory() {
+      super(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+              .setDaemon(true).setNameFormat("AsyncHttpClient-Boss #%d").build()),
+          Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+              .setDaemon(true).setNameFormat("AsyncHttpClient-Worker #%d").build()));
+    }
+
+    @Override
+    public SocketChannel newChannel(ChannelPipeline pipeline) {
+      pipeline.addFirst("callbackChannel", new SimpleChannelUpstreamHandler() {
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+          // The callbacks run from within, on this thread
+          callbackChannel.set(ctx.getChannel());
+          try {
+            ctx.sendUpstream(e);
+          } finally {
+            callbackChannel.remove();
+          }
+        }
+      });
+      return super.newChannel(pipeline);
+    }
+  }
+
 }
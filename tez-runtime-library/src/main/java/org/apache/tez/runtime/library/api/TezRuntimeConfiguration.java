@@ -154,6 +154,37 @@ public class TezRuntimeConfiguration {
   public static final boolean
       TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT = false;
 
+  /**
+   * Where the PipelinedSorter allocates its sort buffers (the serialized key/values as well
+   * as the per record metadata). Valid values:
+   *    - HEAP ( default ) - on the Java heap.
+   *    - DIRECT - in direct (off-heap) buffers. -XX:MaxDirectMemorySize has to be large
+   *    enough to accommodate @link{#TEZ_RUNTIME_IO_SORT_MB}.
+   *    - MAPPED - in memory mapped files on the local dirs, paged by the OS.
+   * Off-heap buffers keep large sort buffers out of the old generation, at the cost of
+   * copying keys before comparing them. They take @link{#TEZ_RUNTIME_IO_SORT_MB} outside of
+   * the heap, and are not part of the memory the output is given out of the task's heap.
+   * {@link org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter.SortBufferType}
+   */
+  @ConfigurationProperty
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE = TEZ_RUNTIME_PREFIX +
+      "pipelined.sorter.buffer.type";
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE_DEFAULT = "HEAP";
+
+  /**
+   * Setting this to true makes the PipelinedSorter store an 8 byte normalized key prefix
+   * next to the partition in the per record metadata, when the key comparator implements
+   * {@link org.apache.tez.runtime.library.common.comparator.NormalizedKeyComparator}.
+   * Most comparisons then become a single long comparison and spans are radix sorted
+   * on the prefix, at the cost of 8 extra bytes of metadata per record.
+   * Ignored for comparators that do not provide a normalized key.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED =
+      TEZ_RUNTIME_PREFIX + "pipelined.sorter.normalized-key.enabled";
+  public static final boolean
+      TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED_DEFAULT = false;
+
   /**
    * String value.
    * Which sorter implementation to use.
@@ -233,6 +264,42 @@ public class TezRuntimeConfiguration {
       "shuffle.parallel.copies";
   public static final int TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES_DEFAULT = 20;
 
+  /**
+   * Whether the shuffle adapts the number of concurrent fetchers to the observed throughput,
+   * and orders and throttles source hosts by their measured throughput and latency.
+   * {@link #TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES} becomes the upper bound of the fetcher pool.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.adaptive.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED_DEFAULT = false;
+
+  /**
+   * Lower bound of the adaptive fetcher pool.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.adaptive.min.fetchers";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS_DEFAULT = 2;
+
+  /**
+   * Interval over which the adaptive fetcher pool measures the shuffle throughput before
+   * resizing itself by one fetcher.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.adaptive.window.ms";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS_DEFAULT = 1000;
+
+  /**
+   * A source host whose throughput is below this fraction of the median host throughput is
+   * considered slow, and is fetched from by a single fetcher at a time.
+   */
+  @ConfigurationProperty(type = "float")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.adaptive.slow.host.fraction";
+  public static final float TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION_DEFAULT = 0.25f;
+
   @ConfigurationProperty(type = "integer")
   public static final String TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT = TEZ_RUNTIME_PREFIX +
       "shuffle.fetch.failures.limit";
@@ -345,6 +412,16 @@ public class TezRuntimeConfiguration {
   public final static int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT
       = 20;
 
+  /**
+   * Maximum number of distinct partition ranges of one host that a fetcher requests in a
+   * single HTTP request. Values above 1 batch the (attempt, partition range)
+   * tuples of a host into one streamed response, and need the tez_shuffle auxiliary service.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES =
+      TEZ_RUNTIME_PREFIX + "shuffle.fetch.max.partition.ranges";
+  public static final int TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES_DEFAULT = 1;
+
   @ConfigurationProperty(type = "boolean")
   public static final String TEZ_RUNTIME_SHUFFLE_NOTIFY_READERROR = TEZ_RUNTIME_PREFIX +
       "shuffle.notify.readerror";
@@ -383,6 +460,18 @@ public class TezRuntimeConfiguration {
       "shuffle.use.async.http";
   public static final boolean TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP_DEFAULT = false;
 
+  /**
+   * Boolean value. Fetch unordered inputs without blocking a thread per connection, when
+   * shuffle.use.async.http is enabled as well: the responses of all fetches are received by the
+   * few I/O threads of the async http client, and streamed into the fetched inputs by the fetcher
+   * threads as the data arrives. A fetcher thread is then only held while there is data to
+   * process, rather than for the duration of the fetch.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING = TEZ_RUNTIME_PREFIX +
+      "shuffle.fetch.non.blocking";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_DEFAULT = false;
+
   @ConfigurationProperty(type = "boolean")
   public static final String TEZ_RUNTIME_SHUFFLE_ENABLE_SSL = TEZ_RUNTIME_PREFIX +
       "shuffle.ssl.enable";
@@ -411,6 +500,37 @@ public class TezRuntimeConfiguration {
   public static final float TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT_DEFAULT =
       0.25f;
 
+  /**
+   * Boolean value. Back in-memory shuffle inputs with buffers carved out of large slabs which are
+   * pooled and reused across fetches, instead of allocating a new byte array for every fetched
+   * input. Allocations are rounded up to a power of two, and accounted as such against the
+   * shuffle memory limits.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED = TEZ_RUNTIME_PREFIX +
+      "shuffle.memory.pool.enabled";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED_DEFAULT = false;
+
+  /**
+   * Boolean value. Allocate the slabs of the shuffle memory pool off-heap, with direct buffers.
+   * Requires tez.runtime.shuffle.memory.pool.enabled. The JVM must allow enough direct memory
+   * (-XX:MaxDirectMemorySize) for the shuffle memory limit, and the container must have room for
+   * it outside the heap. Slabs are kept for reuse until the input is closed.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP = TEZ_RUNTIME_PREFIX +
+      "shuffle.memory.pool.off.heap";
+  public static final boolean TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP_DEFAULT = false;
+
+  /**
+   * Integer value. Size in bytes of the slabs of the shuffle memory pool, rounded up to a power
+   * of two. Inputs larger than a slab are allocated on their own, outside of the pool.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE = TEZ_RUNTIME_PREFIX +
+      "shuffle.memory.pool.slab.size";
+  public static final int TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE_DEFAULT = 4 * 1024 * 1024;
+
   // Rename to fraction
   @ConfigurationProperty(type = "float")
   public static final String TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT = TEZ_RUNTIME_PREFIX +
@@ -482,6 +602,17 @@ public class TezRuntimeConfiguration {
   public static final String TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH = TEZ_RUNTIME_PREFIX + "optimize.local.fetch";
   public static final boolean TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH_DEFAULT = true;
 
+  /**
+   * Expert level setting. When local fetch is optimized (see
+   * tez.runtime.optimize.local.fetch), memory map the local map output segments instead of
+   * reading them through the FileSystem. The segment checksum is verified once when the
+   * segment is first read rather than on every read.
+   */
+  @ConfigurationProperty(type = "boolean")
+  public static final String TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED =
+      TEZ_RUNTIME_PREFIX + "local.fetch.mmap.enabled";
+  public static final boolean TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED_DEFAULT = false;
+
   /**
    * Expert level setting. Enable pipelined shuffle in ordered outputs and in unordered
    * partitioned outputs. In ordered cases, it works with PipelinedSorter.
@@ -503,6 +634,21 @@ public class TezRuntimeConfiguration {
       TEZ_RUNTIME_PREFIX + "enable.final-merge.in.output";
   public static final boolean TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT_DEFAULT = true;
 
+  /**
+   * Number of threads used by ordered (defaultsorter/pipelinedsorter) outputs to merge
+   * partitions concurrently during the final merge. Each partition is given a region of the
+   * final output as large as its spills, and merged directly into it with positional writes.
+   * The unused end of a region is left as a hole in the file. A partition which outgrows its
+   * region, e.g. because of compression, is merged into a file of its own, which is then copied
+   * after the regions. A value of 1 merges partitions one after the other, directly into the
+   * final output.
+   * Partitions are always merged one at a time when a combiner is run during the final merge.
+   */
+  @ConfigurationProperty(type = "integer")
+  public static final String TEZ_RUNTIME_FINAL_MERGE_THREADS =
+      TEZ_RUNTIME_PREFIX + "final-merge.threads";
+  public static final int TEZ_RUNTIME_FINAL_MERGE_THREADS_DEFAULT = 1;
+
 
   /**
    * Share data fetched between tasks running on the same host if applicable
@@ -559,14 +705,22 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(
         TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_BUFFER_SIZE_MB);
     tezRuntimeKeys.add(TEZ_RUNTIME_UNORDERED_OUTPUT_MAX_PER_BUFFER_SIZE_BYTES);
     tezRuntimeKeys.add(TEZ_RUNTIME_PARTITIONER_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_COMBINER_CLASS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_FAILURES_LIMIT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_NOTIFY_READERROR);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_CONNECT_TIMEOUT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_ENABLED);
@@ -577,6 +731,9 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_VERIFY_DISK_CHECKSUM);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_FETCH_BUFFER_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP);
+    tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MERGE_PERCENT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_MEMTOMEM_SEGMENTS);
     tezRuntimeKeys.add(TEZ_RUNTIME_SHUFFLE_ENABLE_MEMTOMEM);
@@ -601,8 +758,10 @@ public class TezRuntimeConfiguration {
     tezRuntimeKeys.add(TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT);
+    tezRuntimeKeys.add(TEZ_RUNTIME_FINAL_MERGE_THREADS);
     tezRuntimeKeys.add(TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS);
     tezRuntimeKeys.add(TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH);
+    tezRuntimeKeys.add(TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED);
     tezRuntimeKeys.add(TEZ_RUNTIME_OPTIMIZE_SHARED_FETCH);
     tezRuntimeKeys.add(TEZ_RUNTIME_CONVERT_USER_PAYLOAD_TO_HISTORY_TEXT);
     tezRuntimeKeys.add(TEZ_RUNTIME_SORTER_CLASS);
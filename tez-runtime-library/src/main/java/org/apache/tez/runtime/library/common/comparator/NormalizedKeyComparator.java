@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.comparator;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.classification.InterfaceStability.Unstable;
+import org.apache.hadoop.io.RawComparator;
+
+@Unstable
+@Private
+public interface NormalizedKeyComparator<KEY> extends RawComparator {
+  /**
+   * Returns a fixed width, byte order preserving prefix of the key, which allows
+   * sorters to order most keys with a single long comparison (or a radix sort) without
+   * touching the serialized key.
+   *
+   * Normalized keys are compared as unsigned longs. The implicit assumption is that
+   *
+   * getNormalizedKey(k1) < getNormalizedKey(k2) implies k1 < k2
+   *
+   * getNormalizedKey(k1) == getNormalizedKey(k2) does not imply ordering, but requires
+   * actual key comparisons.
+   *
+   * @param key
+   * @return normalized key prefix
+   */
+  long getNormalizedKey(KEY key);
+}
@@ -25,7 +25,7 @@ import org.apache.hadoop.io.WritableComparator;
 @Public
 @Unstable
 public final class TezBytesComparator extends WritableComparator implements
-    ProxyComparator<BytesWritable> {
+    ProxyComparator<BytesWritable>, NormalizedKeyComparator<BytesWritable> {
 
   public TezBytesComparator() {
     super(BytesWritable.class);
@@ -60,4 +60,17 @@ public final class TezBytesComparator extends WritableComparator implements
     return prefix;
   }
 
+  /**
+   * First 8 bytes of the key in big-endian order, zero padded for shorter keys.
+   */
+  @Override
+  public long getNormalizedKey(BytesWritable key) {
+    final int len = Math.min(key.getLength(), 8);
+    final byte[] content = key.getBytes();
+    long prefix = 0;
+    for (int i = 0; i < len; i++) {
+      prefix |= (content[i] & 0xffL) << (56 - (i << 3));
+    }
+    return prefix;
+  }
 }
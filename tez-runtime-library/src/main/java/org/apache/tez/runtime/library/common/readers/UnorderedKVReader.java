@@ -40,6 +40,8 @@ import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.InMemoryRead
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
+import org.apache.tez.runtime.library.common.shuffle.LocalBufferFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.LocalDiskFetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
 
 @Unstable
@@ -221,7 +223,14 @@ public class UnorderedKVReader<K, V> extends KeyValueReader {
       MemoryFetchedInput mfi = (MemoryFetchedInput) fetchedInput;
 
       return new InMemoryReader(null, mfi.getInputAttemptIdentifier(),
-          mfi.getBytes(), 0, (int) mfi.getActualSize());
+          mfi.getBuffer(), (int) mfi.getActualSize());
+    } else if (fetchedInput instanceof LocalBufferFetchedInput) {
+      return IFile.Reader.openSegment(((LocalBufferFetchedInput) fetchedInput).getSegment(),
+          codec, null, null, ifileBufferSize);
+    } else if (fetchedInput instanceof LocalDiskFetchedInput
+        && ((LocalDiskFetchedInput) fetchedInput).isMemoryMapped()) {
+      return IFile.Reader.openSegment(((LocalDiskFetchedInput) fetchedInput).getMappedSegment(),
+          codec, null, null, ifileBufferSize);
     } else {
       return new IFile.Reader(fetchedInput.getInputStream(),
           fetchedInput.getCompressedSize(), codec, null, null, ifileReadAhead,
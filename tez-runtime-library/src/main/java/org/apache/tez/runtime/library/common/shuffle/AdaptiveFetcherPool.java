@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the fetcher pool of a shuffle and decides which source host is fetched from next,
+ * based on the throughput and latency observed per host.
+ * <ul>
+ *   <li>The number of concurrent fetchers is tuned by hill climbing on the aggregate shuffle
+ *   throughput: once per window, while the pool was saturated, the target moves by one fetcher,
+ *   and the direction reverses whenever the previous move lowered the throughput. This backs off
+ *   when the local disk or NIC is saturated and grows while more fetchers still help.</li>
+ *   <li>A host far below the median host throughput, or whose fetches keep failing, is slow and
+ *   is served by a single fetcher at a time, leaving the other fetchers to hosts that keep
+ *   up.</li>
+ *   <li>Hosts are served local host first, then hosts without measurements yet, then by
+ *   decreasing throughput, slow hosts last.</li>
+ * </ul>
+ * Hosts are tracked by name. The pool is thread safe.
+ */
+@Private
+public class AdaptiveFetcherPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptiveFetcherPool.class);
+
+  // Throughput changes within this fraction are treated as noise
+  private static final double THROUGHPUT_TOLERANCE = 0.05;
+  // Weight of the latest sample in the latency moving average
+  private static final double LATENCY_WEIGHT = 0.25;
+  // Completed fetches before the throughput of a host is trusted
+  private static final int MIN_HOST_SAMPLES = 2;
+
+  @VisibleForTesting
+  static class HostStats {
+    long bytes;
+    long busyNanos;
+    int fetches;
+    int failures;
+    int activeFetchers;
+    double latencyMillis;
+    boolean slow;
+
+    /** @return bytes per second of a single fetcher of this host */
+    double getThroughput() {
+      return busyNanos == 0 ? 0 : bytes * (double) TimeUnit.SECONDS.toNanos(1) / busyNanos;
+    }
+
+    boolean isMeasured() {
+      return fetches >= MIN_HOST_SAMPLES;
+    }
+  }
+
+  private final String logIdentifier;
+  private final String localHostName;
+  private final int minFetchers;
+  private final int maxFetchers;
+  private final long windowNanos;
+  private final float slowHostFraction;
+
+  private final TezCounter fetchTimeCounter;
+  private final TezCounter peakFetchersCounter;
+  private final TezCounter poolResizesCounter;
+  private final TezCounter slowHostsCounter;
+
+  private final Map<String, HostStats> hostStats = new HashMap<String, HostStats>();
+
+  private int targetFetchers;
+  private int activeFetchers;
+  private int peakFetchers;
+  private int step = -1;
+  private long windowStartNanos;
+  private long windowBytes;
+  private boolean windowSaturated;
+  private double lastWindowThroughput = -1;
+
+  public AdaptiveFetcherPool(Configuration conf, String logIdentifier, int maxFetchers,
+      String localHostName, TezCounters counters) {
+    this.logIdentifier = logIdentifier;
+    this.localHostName = localHostName;
+    this.maxFetchers = Math.max(1, maxFetchers);
+    this.minFetchers = Math.min(this.maxFetchers, Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS_DEFAULT)));
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS_DEFAULT));
+    this.slowHostFraction = conf.getFloat(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION_DEFAULT);
+    Preconditions.checkArgument(slowHostFraction >= 0 && slowHostFraction <= 1,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_SLOW_HOST_FRACTION
+            + "=" + slowHostFraction + " should be between 0 and 1");
+    this.fetchTimeCounter = counters.findCounter(TaskCounter.SHUFFLE_FETCH_TIME);
+    this.peakFetchersCounter = counters.findCounter(TaskCounter.SHUFFLE_PEAK_FETCHERS);
+    this.poolResizesCounter = counters.findCounter(TaskCounter.SHUFFLE_FETCHER_POOL_RESIZES);
+    this.slowHostsCounter = counters.findCounter(TaskCounter.SHUFFLE_SLOW_HOSTS);
+    // Start from the configured parallelism, the first move probes fewer fetchers
+    this.targetFetchers = this.maxFetchers;
+    this.windowStartNanos = nanoTime();
+    LOG.info(logIdentifier + ": adaptive fetcher pool with minFetchers=" + minFetchers
+        + ", maxFetchers=" + this.maxFetchers + ", windowMs="
+        + TimeUnit.NANOSECONDS.toMillis(windowNanos) + ", slowHostFraction=" + slowHostFraction);
+  }
+
+  /**
+   * @return the number of fetchers which should currently run concurrently
+   */
+  public synchronized int getTargetFetchers() {
+    return targetFetchers;
+  }
+
+  /**
+   * @return false if the host already has as many fetchers as it is allowed
+   */
+  public synchronized boolean canFetchFrom(String host) {
+    HostStats stats = hostStats.get(host);
+    return stats == null || !stats.slow || stats.activeFetchers == 0;
+  }
+
+  /**
+   * Orders two hosts by preference.
+   * @return a negative value if <code>host1</code> should be fetched from before
+   * <code>host2</code>, a positive value for the opposite
+   */
+  public synchronized int compareHosts(String host1, String host2) {
+    boolean local1 = host1.equals(localHostName);
+    boolean local2 = host2.equals(localHostName);
+    if (local1 != local2) {
+      return local1 ? -1 : 1;
+    }
+    HostStats stats1 = hostStats.get(host1);
+    HostStats stats2 = hostStats.get(host2);
+    boolean slow1 = stats1 != null && stats1.slow;
+    boolean slow2 = stats2 != null && stats2.slow;
+    if (slow1 != slow2) {
+      return slow1 ? 1 : -1;
+    }
+    boolean measured1 = stats1 != null && stats1.isMeasured();
+    boolean measured2 = stats2 != null && stats2.isMeasured();
+    if (measured1 != measured2) {
+      // Hosts without measurements go first, so that every host gets measured
+      return measured1 ? 1 : -1;
+    }
+    if (!measured1) {
+      return 0;
+    }
+    return Double.compare(stats2.getThroughput(), stats1.getThroughput());
+  }
+
+  public synchronized void fetchStarted(String host) {
+    getStats(host).activeFetchers++;
+    activeFetchers++;
+    if (activeFetchers >= targetFetchers) {
+      windowSaturated = true;
+    }
+    if (activeFetchers > peakFetchers) {
+      peakFetchers = activeFetchers;
+      peakFetchersCounter.setValue(peakFetchers);
+    }
+  }
+
+  public synchronized void bytesFetched(String host, long bytes) {
+    getStats(host).bytes += bytes;
+    windowBytes += bytes;
+  }
+
+  public synchronized void fetchFailed(String host) {
+    HostStats stats = getStats(host);
+    stats.failures++;
+    updateSlow(host, stats);
+  }
+
+  /**
+   * Records the end of a fetch started with {@link #fetchStarted(String)}, and resizes the pool
+   * at the end of a window.
+   */
+  public synchronized void fetchCompleted(String host, long elapsedNanos) {
+    HostStats stats = getStats(host);
+    stats.activeFetchers = Math.max(0, stats.activeFetchers - 1);
+    activeFetchers = Math.max(0, activeFetchers - 1);
+    stats.fetches++;
+    stats.busyNanos += elapsedNanos;
+    double elapsedMillis = elapsedNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    stats.latencyMillis = stats.fetches == 1 ? elapsedMillis
+        : (1 - LATENCY_WEIGHT) * stats.latencyMillis + LATENCY_WEIGHT * elapsedMillis;
+    fetchTimeCounter.increment(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+    updateSlow(host, stats);
+    maybeResize();
+  }
+
+  @VisibleForTesting
+  synchronized HostStats getHostStats(String host) {
+    return hostStats.get(host);
+  }
+
+  @VisibleForTesting
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  private HostStats getStats(String host) {
+    HostStats stats = hostStats.get(host);
+    if (stats == null) {
+      stats = new HostStats();
+      hostStats.put(host, stats);
+    }
+    return stats;
+  }
+
+  private void updateSlow(String host, HostStats stats) {
+    boolean slow;
+    if (stats.failures > 0 && stats.failures >= stats.fetches) {
+      slow = true;
+    } else if (stats.isMeasured()) {
+      slow = stats.getThroughput() < slowHostFraction * getMedianThroughput();
+    } else {
+      slow = false;
+    }
+    if (slow != stats.slow) {
+      stats.slow = slow;
+      if (slow) {
+        slowHostsCounter.increment(1);
+      }
+      LOG.info(logIdentifier + ": host " + host + (slow ? " is slow" : " recovered")
+          + ", throughput=" + (long) stats.getThroughput() + " B/s, latency="
+          + (long) stats.latencyMillis + " ms, fetches=" + stats.fetches
+          + ", failures=" + stats.failures);
+    }
+  }
+
+  private double getMedianThroughput() {
+    List<Double> throughputs = new ArrayList<Double>(hostStats.size());
+    for (HostStats stats : hostStats.values()) {
+      if (stats.isMeasured()) {
+        throughputs.add(stats.getThroughput());
+      }
+    }
+    if (throughputs.isEmpty()) {
+      return 0;
+    }
+    Collections.sort(throughputs);
+    return throughputs.get(throughputs.size() / 2);
+  }
+
+  private void maybeResize() {
+    long now = nanoTime();
+    long elapsed = now - windowStartNanos;
+    if (elapsed < windowNanos) {
+      return;
+    }
+    if (windowSaturated) {
+      // Only a saturated pool says something about the right number of fetchers
+      double throughput = windowBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+      if (lastWindowThroughput >= 0
+          && throughput < lastWindowThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+        step = -step;
+      }
+      int target = targetFetchers + step;
+      if (target < minFetchers || target > maxFetchers) {
+        step = -step;
+        target = targetFetchers + step;
+      }
+      target = Math.max(minFetchers, Math.min(maxFetchers, target));
+      if (target != targetFetchers) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(logIdentifier + ": resizing fetcher pool from " + targetFetchers + " to "
+              + target + ", throughput=" + (long) throughput + " B/s, previous="
+              + (long) lastWindowThroughput + " B/s");
+        }
+        targetFetchers = target;
+        poolResizesCounter.increment(1);
+      }
+      lastWindowThroughput = throughput;
+    }
+    windowStartNanos = now;
+    windowBytes = 0;
+    // Set again by the fetches the scheduler starts to refill the pool
+    windowSaturated = false;
+  }
+}
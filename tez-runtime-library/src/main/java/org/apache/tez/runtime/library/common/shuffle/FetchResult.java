@@ -18,7 +18,13 @@
 
 package org.apache.tez.runtime.library.common.shuffle;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Iterables;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.InputHost.PartitionToInputs;
 
 public class FetchResult {
 
@@ -27,6 +33,7 @@ public class FetchResult {
   private final int partition;
   private final int partitionCount;
   private final Iterable<InputAttemptIdentifier> pendingInputs;
+  private final List<PartitionToInputs> pendingPartitionRanges;
   private final String additionalInfo;
 
   public FetchResult(String host, int port, int partition, int partitionCount,
@@ -41,6 +48,29 @@ public class FetchResult {
     this.partition = partition;
     this.partitionCount = partitionCount;
     this.pendingInputs = pendingInputs;
+    this.pendingPartitionRanges = null;
+    this.additionalInfo = additionalInfo;
+  }
+
+  /**
+   * Result of a fetch which covered several partition ranges of the host.
+   * @param pendingPartitionRanges the inputs which were not fetched, grouped by the
+   *                               partition range they were requested for
+   */
+  public FetchResult(String host, int port, List<PartitionToInputs> pendingPartitionRanges,
+      String additionalInfo) {
+    this.host = host;
+    this.port = port;
+    PartitionToInputs first = pendingPartitionRanges.isEmpty() ? null : pendingPartitionRanges.get(0);
+    this.partition = first == null ? 0 : first.getPartition();
+    this.partitionCount = first == null ? 1 : first.getPartitionCount();
+    List<Iterable<InputAttemptIdentifier>> inputs =
+        new ArrayList<Iterable<InputAttemptIdentifier>>(pendingPartitionRanges.size());
+    for (PartitionToInputs range : pendingPartitionRanges) {
+      inputs.add(range.getInputs());
+    }
+    this.pendingInputs = Iterables.concat(inputs);
+    this.pendingPartitionRanges = pendingPartitionRanges;
     this.additionalInfo = additionalInfo;
   }
 
@@ -64,6 +94,22 @@ public class FetchResult {
     return pendingInputs;
   }
 
+  /**
+   * @return the pending inputs grouped by partition range. A result for a single range
+   * is returned as one group.
+   */
+  public List<PartitionToInputs> getPendingPartitionRanges() {
+    if (pendingPartitionRanges != null) {
+      return pendingPartitionRanges;
+    }
+    if (pendingInputs == null) {
+      return Collections.emptyList();
+    }
+    List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+    Iterables.addAll(inputs, pendingInputs);
+    return Collections.singletonList(new PartitionToInputs(partition, partitionCount, inputs));
+  }
+
   public String getAdditionalInfo() {
     return additionalInfo;
   }
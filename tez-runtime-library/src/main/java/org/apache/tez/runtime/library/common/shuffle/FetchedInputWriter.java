@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a map output, which arrives in chunks from a non-blocking connection, to its
+ * {@link FetchedInput}. The IFile header and checksum are verified as the chunks go by, the
+ * same way {@link ShuffleUtils#shuffleToMemory} and {@link ShuffleUtils#shuffleToDisk} verify
+ * them when reading from a stream.
+ * <ul>
+ *   <li>Uncompressed data is copied straight into the buffer of a {@link MemoryFetchedInput}.
+ *   Compressed data is collected and decompressed into it once complete.</li>
+ *   <li>A {@link DiskFetchedInput} gets the IFile as is, header and checksum included.</li>
+ * </ul>
+ */
+class FetchedInputWriter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FetchedInputWriter.class);
+
+  private final FetchedInput fetchedInput;
+  private final long compressedLength;
+  // Offset of the checksum which trails the data
+  private final long dataEnd;
+  private final CompressionCodec codec;
+  private final boolean verifyChecksum;
+
+  private final byte[] header = new byte[IFile.HEADER_LENGTH];
+  private final byte[] checksum = new byte[IFile.CHECKSUM_SIZE];
+  private final DataChecksum sum;
+
+  private OutputStream output;
+  private ByteBuffer memory;
+  private byte[] compressed;
+  private byte[] scratch;
+  private long position;
+
+  FetchedInputWriter(FetchedInput fetchedInput, long compressedLength, CompressionCodec codec,
+      boolean verifyDiskChecksum) throws IOException {
+    if (compressedLength < IFile.HEADER_LENGTH + IFile.CHECKSUM_SIZE) {
+      throw new IOException("Invalid length " + compressedLength + " of "
+          + fetchedInput.getInputAttemptIdentifier());
+    }
+    this.fetchedInput = fetchedInput;
+    this.compressedLength = compressedLength;
+    this.dataEnd = compressedLength - IFile.CHECKSUM_SIZE;
+    this.codec = codec;
+    if (fetchedInput.getType() == Type.MEMORY) {
+      this.verifyChecksum = true;
+    } else if (fetchedInput.getType() == Type.DISK) {
+      this.verifyChecksum = verifyDiskChecksum;
+      this.output = fetchedInput.getOutputStream();
+    } else {
+      throw new TezUncheckedException("Bad fetchedInput type while fetching shuffle data " +
+          fetchedInput);
+    }
+    this.sum = DataChecksum.newDataChecksum(DataChecksum.Type.CRC32, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Consume the bytes of the map output from <code>buffer</code>. Bytes which follow the map
+   * output are left in the buffer.
+   */
+  void write(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining() && position < compressedLength) {
+      if (compressed != null) {
+        int n = (int) Math.min(buffer.remaining(), compressedLength - position);
+        buffer.get(compressed, (int) position, n);
+        position += n;
+      } else if (position < IFile.HEADER_LENGTH) {
+        int n = (int) Math.min(buffer.remaining(), IFile.HEADER_LENGTH - position);
+        buffer.get(header, (int) position, n);
+        position += n;
+        if (position == IFile.HEADER_LENGTH) {
+          headerRead();
+        }
+      } else if (position < dataEnd) {
+        writeData(buffer, (int) Math.min(buffer.remaining(), dataEnd - position));
+      } else {
+        int n = (int) Math.min(buffer.remaining(), compressedLength - position);
+        buffer.get(checksum, (int) (position - dataEnd), n);
+        if (output != null) {
+          output.write(checksum, (int) (position - dataEnd), n);
+        }
+        position += n;
+      }
+    }
+  }
+
+  boolean isComplete() {
+    return position == compressedLength;
+  }
+
+  /**
+   * Verify the checksum and complete the write, once all the bytes of the map output were
+   * written.
+   */
+  void finish() throws IOException {
+    if (!isComplete()) {
+      throw new EOFException("Read " + position + " of " + compressedLength + " bytes for "
+          + fetchedInput.getInputAttemptIdentifier());
+    }
+    if (compressed != null) {
+      ShuffleUtils.shuffleToMemory(memory, new ByteArrayInputStream(compressed),
+          (int) fetchedInput.getActualSize(), (int) compressedLength, codec, false, 0, LOG,
+          fetchedInput.getInputAttemptIdentifier());
+      compressed = null;
+      return;
+    }
+    if (verifyChecksum && !sum.compare(checksum, 0)) {
+      throw new ChecksumException("Checksum Error for " + fetchedInput.getInputAttemptIdentifier()
+          + ", length=" + compressedLength, 0);
+    }
+    if (memory != null && memory.remaining() != IFile.HEADER_LENGTH) {
+      throw new EOFException("Read " + memory.position() + " of "
+          + (memory.limit() - IFile.HEADER_LENGTH) + " bytes for "
+          + fetchedInput.getInputAttemptIdentifier());
+    }
+    if (output != null) {
+      output.close();
+      output = null;
+    }
+  }
+
+  /**
+   * Release the resources of an incomplete write. The fetched input itself is left to the caller
+   * to abort.
+   */
+  void abort() {
+    ShuffleUtils.ioCleanup(output);
+    output = null;
+    compressed = null;
+  }
+
+  private void headerRead() throws IOException {
+    boolean isCompressed = IFile.Reader.isCompressedFlagEnabled(header);
+    if (fetchedInput.getType() == Type.MEMORY) {
+      memory = ((MemoryFetchedInput) fetchedInput).getBuffer();
+      if (isCompressed && codec != null) {
+        compressed = new byte[(int) compressedLength];
+        System.arraycopy(header, 0, compressed, 0, header.length);
+      }
+    } else {
+      output.write(header);
+    }
+  }
+
+  private void writeData(ByteBuffer buffer, int length) throws IOException {
+    if (memory != null && length > memory.remaining() - IFile.HEADER_LENGTH) {
+      throw new IOException("Unexpected extra bytes for "
+          + fetchedInput.getInputAttemptIdentifier());
+    }
+    byte[] bytes;
+    int offset;
+    if (buffer.hasArray()) {
+      bytes = buffer.array();
+      offset = buffer.arrayOffset() + buffer.position();
+      buffer.position(buffer.position() + length);
+    } else {
+      if (scratch == null || scratch.length < length) {
+        scratch = new byte[length];
+      }
+      buffer.get(scratch, 0, length);
+      bytes = scratch;
+      offset = 0;
+    }
+    if (verifyChecksum) {
+      sum.update(bytes, offset, length);
+    }
+    if (memory != null) {
+      memory.put(bytes, offset, length);
+    } else {
+      output.write(bytes, offset, length);
+    }
+    position += length;
+  }
+}
@@ -19,31 +19,50 @@
 package org.apache.tez.runtime.library.common.shuffle;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.annotations.VisibleForTesting;
-
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import org.jboss.netty.channel.Channel;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.tez.http.BaseHttpConnection;
 import org.apache.tez.http.HttpConnectionParams;
+import org.apache.tez.http.async.netty.AsyncHttpConnection;
 import org.apache.tez.runtime.library.common.CompositeInputAttemptIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +80,7 @@ import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.InputHost.PartitionToInputs;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
@@ -165,6 +185,11 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private int port;
   private int partition;
   private int partitionCount;
+  // Partition ranges fetched from the host, more than one when requests are batched
+  private List<PartitionToInputs> partitionRanges;
+  // Partition range of each input, keyed like srcAttemptsRemaining
+  private final Map<String, PartitionToInputs> inputToPartitionRange =
+      new HashMap<String, PartitionToInputs>();
 
   // Maps from the pathComponents (unique per srcTaskId) to the specific taskId
   private final Map<PathPartition, InputAttemptIdentifier> pathToAttemptMap;
@@ -176,6 +201,9 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   private HttpConnectionParams httpConnectionParams;
 
   private final boolean localDiskFetchEnabled;
+  private final boolean localDiskFetchMmapEnabled;
+  private final LocalShuffleBufferRegistry localBufferRegistry =
+      LocalShuffleBufferRegistry.getInstance();
   private final boolean sharedFetchEnabled;
 
   private final LocalDirAllocator localDirAllocator;
@@ -190,6 +218,11 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
   private final boolean verifyDiskChecksum;
 
+  private boolean nonBlocking = false;
+  // Processes the responses of non-blocking fetches
+  private Executor nonBlockingExecutor;
+  private volatile NonBlockingFetch nonBlockingFetch;
+
   private final boolean isDebugEnabled = LOG.isDebugEnabled();
 
   private Fetcher(FetcherCallback fetcherCallback, HttpConnectionParams params,
@@ -214,6 +247,9 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     this.conf = conf;
 
     this.localDiskFetchEnabled = localDiskFetchEnabled;
+    this.localDiskFetchMmapEnabled = conf != null && conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED_DEFAULT);
     this.sharedFetchEnabled = sharedFetchEnabled;
 
     this.fetcherIdentifier = fetcherIdGen.getAndIncrement();
@@ -247,43 +283,99 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
   @Override
   public FetchResult callInternal() throws Exception {
-    boolean multiplex = (this.sharedFetchEnabled && this.localDiskFetchEnabled);
-
     if (srcAttempts.size() == 0) {
       return new FetchResult(host, port, partition, partitionCount, srcAttempts);
     }
 
+    boolean multiplex = prepareFetch();
+
+    HostFetchResult hostFetchResult;
+
+    if (isLocalDiskFetch()) {
+      hostFetchResult = setupLocalDiskFetch();
+    } else if (multiplex) {
+      hostFetchResult = doSharedFetch();
+    } else{
+      hostFetchResult = doHttpFetch();
+    }
+
+    return completeFetch(hostFetchResult, multiplex);
+  }
+
+  /**
+   * @return true if the inputs are to be fetched by {@link #fetchNonBlocking()}, instead of
+   * by calling the fetcher
+   */
+  public boolean isNonBlocking() {
+    return nonBlocking && asyncHttp && !srcAttempts.isEmpty() && !isLocalDiskFetch()
+        && !isMultiplex();
+  }
+
+  /**
+   * Fetch the inputs over http without holding a thread while the data is transferred. The
+   * response is received on the I/O threads of the shared async http client, and processed on
+   * the executor given to {@link FetcherBuilder#setNonBlocking(boolean, Executor)}.
+   *
+   * @return future of the result, as returned by {@link #callInternal()}
+   */
+  public ListenableFuture<FetchResult> fetchNonBlocking() {
+    Preconditions.checkState(isNonBlocking(), "Fetcher for %s cannot fetch non-blocking", host);
+    prepareFetch();
+    NonBlockingFetch fetch = new NonBlockingFetch();
+    nonBlockingFetch = fetch;
+    fetch.start();
+    return fetch.result;
+  }
+
+  private boolean isLocalDiskFetch() {
+    return localDiskFetchEnabled && host.equals(localHostname) && port == shufflePort;
+  }
+
+  // Shared fetches are done only if all of the inputs are shared
+  private boolean isMultiplex() {
+    boolean multiplex = (this.sharedFetchEnabled && this.localDiskFetchEnabled);
+    for (InputAttemptIdentifier in : srcAttempts) {
+      multiplex &= in.isShared();
+    }
+    return multiplex;
+  }
+
+  /**
+   * Build the lookup structures for the inputs to be fetched
+   *
+   * @return true if a shared fetch is to be done
+   */
+  private boolean prepareFetch() {
+    boolean multiplex = isMultiplex();
+
     populateRemainingMap(srcAttempts);
     for (InputAttemptIdentifier in : srcAttemptsRemaining.values()) {
       if (in instanceof CompositeInputAttemptIdentifier) {
         CompositeInputAttemptIdentifier cin = (CompositeInputAttemptIdentifier)in;
+        int firstPartition = getPartitionRange(cin).getPartition();
         for (int i = 0; i < cin.getInputIdentifierCount(); i++) {
-          pathToAttemptMap.put(new PathPartition(cin.getPathComponent(), partition + i), cin.expand(i));
+          pathToAttemptMap.put(new PathPartition(cin.getPathComponent(), firstPartition + i), cin.expand(i));
         }
       } else {
         pathToAttemptMap.put(new PathPartition(in.getPathComponent(), 0), in);
       }
-
-      // do only if all of them are shared fetches
-      multiplex &= in.isShared();
     }
 
     if (multiplex) {
-      Preconditions.checkArgument(partition == 0,
-          "Shared fetches cannot be done for partitioned input"
-              + "- partition is non-zero (%d)", partition);
-    }
-
-    HostFetchResult hostFetchResult;
-
-    if (localDiskFetchEnabled && host.equals(localHostname) && port == shufflePort) {
-      hostFetchResult = setupLocalDiskFetch();
-    } else if (multiplex) {
-      hostFetchResult = doSharedFetch();
-    } else{
-      hostFetchResult = doHttpFetch();
+      for (PartitionToInputs range : partitionRanges) {
+        Preconditions.checkArgument(range.getPartition() == 0,
+            "Shared fetches cannot be done for partitioned input"
+                + "- partition is non-zero (%d)", range.getPartition());
+      }
     }
+    return multiplex;
+  }
 
+  /**
+   * Report the failed inputs of a fetch and shut the fetcher down
+   */
+  private FetchResult completeFetch(HostFetchResult hostFetchResult, boolean multiplex)
+      throws IOException {
     if (hostFetchResult.failedInputs != null && hostFetchResult.failedInputs.length > 0) {
       if (!isShutDown.get()) {
         LOG.warn("copyInputs failed for tasks " + Arrays.toString(hostFetchResult.failedInputs));
@@ -448,8 +540,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       lock = getLock();
       if (lock == null) {
         // re-queue until we get a lock
-        return new HostFetchResult(new FetchResult(host, port, partition, partitionCount,
-            srcAttemptsRemaining.values(), "Requeuing as we didn't get a lock"), null, false);
+        return new HostFetchResult(createFetchResult("Requeuing as we didn't get a lock"), null, false);
       } else {
         if (findInputs() == srcAttemptsRemaining.size()) {
           // double checked after lock
@@ -474,8 +565,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     if (isShutDown.get()) {
       // if any exception was due to shut-down don't bother firing any more
       // requests
-      return new HostFetchResult(new FetchResult(host, port, partition, partitionCount,
-          srcAttemptsRemaining.values()), null, false);
+      return new HostFetchResult(createFetchResult(null), null, false);
     }
     // no more caching
     return doHttpFetch();
@@ -486,12 +576,31 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     return doHttpFetch(null);
   }
 
+  private URL createUrl(Collection<InputAttemptIdentifier> attempts) throws IOException {
+    StringBuilder baseURI;
+    if (partitionRanges.size() == 1) {
+      baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host, port, partition,
+          partitionCount, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle());
+    } else {
+      // One range per attempt, in the order the attempts are listed in the url
+      int[] partitions = new int[attempts.size()];
+      int[] partitionCounts = new int[attempts.size()];
+      int i = 0;
+      for (InputAttemptIdentifier attempt : attempts) {
+        PartitionToInputs range = getPartitionRange(attempt);
+        partitions[i] = range.getPartition();
+        partitionCounts[i++] = range.getPartitionCount();
+      }
+      baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host, port, partitions,
+          partitionCounts, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle());
+    }
+    return ShuffleUtils.constructInputURL(baseURI.toString(), attempts,
+        httpConnectionParams.isKeepAlive());
+  }
+
   private HostFetchResult setupConnection(Collection<InputAttemptIdentifier> attempts) {
     try {
-      StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host,
-          port, partition, partitionCount, appId.toString(), dagIdentifier, httpConnectionParams.isSslShuffle());
-      this.url = ShuffleUtils.constructInputURL(baseURI.toString(), attempts,
-          httpConnectionParams.isKeepAlive());
+      this.url = createUrl(attempts);
 
       httpConnection = ShuffleUtils.getHttpConnection(asyncHttp, url, httpConnectionParams,
           logIdentifier, jobTokenSecretMgr);
@@ -514,7 +623,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         failedFetches = srcAttemptsRemaining.values().
             toArray(new InputAttemptIdentifier[srcAttemptsRemaining.values().size()]);
       }
-      return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), failedFetches, true);
+      return new HostFetchResult(createFetchResult(null), failedFetches, true);
     }
     if (isShutDown.get()) {
       // shutdown would have no effect if in the process of establishing the connection.
@@ -522,7 +631,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       if (isDebugEnabled) {
         LOG.debug("Detected fetcher has been shutdown after connection establishment. Returning");
       }
-      return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), null, false);
+      return new HostFetchResult(createFetchResult(null), null, false);
     }
 
     try {
@@ -544,7 +653,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         InputAttemptIdentifier firstAttempt = attempts.iterator().next();
         LOG.warn("Fetch Failure from host while connecting: " + host + ", attempt: " + firstAttempt
             + " Informing ShuffleManager: ", e);
-        return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()),
+        return new HostFetchResult(createFetchResult(null),
             new InputAttemptIdentifier[] { firstAttempt }, false);
       }
     } catch (InterruptedException e) {
@@ -572,7 +681,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       if (isDebugEnabled) {
         LOG.debug("Detected fetcher has been shutdown after opening stream. Returning");
       }
-      return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), null, false);
+      return new HostFetchResult(createFetchResult(null), null, false);
     }
     // After this point, closing the stream and connection, should cause a
     // SocketException,
@@ -592,7 +701,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
           LOG.debug("Fetcher already shutdown. Aborting queued fetches for " +
               srcAttemptsRemaining.size() + " inputs");
         }
-        return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), null,
+        return new HostFetchResult(createFetchResult(null), null,
             false);
       }
       try {
@@ -605,7 +714,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
             LOG.debug("Fetcher already shutdown. Aborting reconnection and queued fetches for " +
                 srcAttemptsRemaining.size() + " inputs");
           }
-          return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), null,
+          return new HostFetchResult(createFetchResult(null), null,
               false);
         }
         // Connect again.
@@ -623,7 +732,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       }
       failedInputs = null;
     }
-    return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()), failedInputs,
+    return new HostFetchResult(createFetchResult(null), failedInputs,
         false);
   }
 
@@ -646,34 +755,45 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         break;
       }
       InputAttemptIdentifier srcAttemptId = iterator.next().getValue();
-      for (int curPartition = 0; curPartition < partitionCount; curPartition++) {
-        int reduceId = curPartition + partition;
+      PartitionToInputs range = getPartitionRange(srcAttemptId);
+      for (int curPartition = 0; curPartition < range.getPartitionCount(); curPartition++) {
+        int reduceId = curPartition + range.getPartition();
         srcAttemptId = pathToAttemptMap.get(new PathPartition(srcAttemptId.getPathComponent(), reduceId));
         long startTime = System.currentTimeMillis();
 
         FetchedInput fetchedInput = null;
         try {
           TezIndexRecord idxRecord;
-          // for missing files, this will throw an exception
-          idxRecord = getTezIndexRecord(srcAttemptId, reduceId);
-
-          fetchedInput = new LocalDiskFetchedInput(idxRecord.getStartOffset(),
-              idxRecord.getRawLength(), idxRecord.getPartLength(), srcAttemptId,
-              getShuffleInputFileName(srcAttemptId.getPathComponent(), null),
-              conf,
-              new FetchedInputCallback() {
-                @Override
-                public void fetchComplete(FetchedInput fetchedInput) {
-                }
-
-                @Override
-                public void fetchFailed(FetchedInput fetchedInput) {
-                }
-
-                @Override
-                public void freeResources(FetchedInput fetchedInput) {
-                }
-              });
+          FetchedInputCallback noopCallback = new FetchedInputCallback() {
+            @Override
+            public void fetchComplete(FetchedInput fetchedInput) {
+            }
+
+            @Override
+            public void fetchFailed(FetchedInput fetchedInput) {
+            }
+
+            @Override
+            public void freeResources(FetchedInput fetchedInput) {
+            }
+          };
+          // Output of a task in this process may have been kept in memory
+          LocalShuffleBufferRegistry.ShuffleBuffer localBuffer =
+              localBufferRegistry.isEnabled() ?
+                  localBufferRegistry.get(srcAttemptId.getPathComponent()) : null;
+          if (localBuffer != null) {
+            idxRecord = localBuffer.getIndex(reduceId);
+            fetchedInput = new LocalBufferFetchedInput(localBuffer.getSegment(reduceId),
+                idxRecord.getRawLength(), srcAttemptId, noopCallback);
+          } else {
+            // for missing files, this will throw an exception
+            idxRecord = getTezIndexRecord(srcAttemptId, reduceId);
+
+            fetchedInput = new LocalDiskFetchedInput(idxRecord.getStartOffset(),
+                idxRecord.getRawLength(), idxRecord.getPartLength(), srcAttemptId,
+                getShuffleInputFileName(srcAttemptId.getPathComponent(), null),
+                conf, noopCallback, localDiskFetchMmapEnabled);
+          }
           if (isDebugEnabled) {
             LOG.debug("fetcher" + " about to shuffle output of srcAttempt (direct disk)" + srcAttemptId
                 + " decomp: " + idxRecord.getRawLength() + " len: " + idxRecord.getPartLength()
@@ -724,7 +844,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     } else {
       // nothing needs to be done to requeue remaining entries
     }
-    return new HostFetchResult(new FetchResult(host, port, partition, partitionCount, srcAttemptsRemaining.values()),
+    return new HostFetchResult(createFetchResult(null),
         failedFetches, false);
   }
 
@@ -793,6 +913,11 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
   }
 
   private void shutdownInternal(boolean disconnect) {
+    // Not under the isShutDown lock, the fetch may be in a callback which shuts down the fetcher
+    NonBlockingFetch fetch = nonBlockingFetch;
+    if (fetch != null) {
+      fetch.cancel();
+    }
     // Synchronizing on isShutDown to ensure we don't run into a parallel close
     // Can't synchronize on the main class itself since that would cause the
     // shutdown request to block
@@ -892,7 +1017,8 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
         // Do some basic sanity verification
         if (!verifySanity(mapOutputStat.compressedLength, mapOutputStat.decompressedLength,
-            responsePartition, mapOutputStat.srcAttemptId, pathComponent)) {
+            responsePartition, getPartitionRange(inputAttemptIdentifier),
+            mapOutputStat.srcAttemptId, pathComponent)) {
           if (!isShutDown.get()) {
             srcAttemptId = mapOutputStat.srcAttemptId;
             if (srcAttemptId == null) {
@@ -947,7 +1073,7 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
         }
 
         if (fetchedInput.getType() == Type.MEMORY) {
-          ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBytes(),
+          ShuffleUtils.shuffleToMemory(((MemoryFetchedInput) fetchedInput).getBuffer(),
               input, (int) decompressedLength, (int) compressedLength, codec,
               ifileReadAhead, ifileReadAheadLength, LOG,
               fetchedInput.getInputAttemptIdentifier());
@@ -1029,6 +1155,544 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     }
   }
 
+  /**
+   * Fetch of the inputs which does not block a thread. The I/O threads of the async http client
+   * only queue the parts of the response as they arrive. They are parsed on the fetcher executor,
+   * one at a time and in order, and the bytes of every map output are handed to a
+   * {@link FetchedInputWriter}, so that disk writes, decompression and the callbacks of the
+   * shuffle manager do not hold up the I/O threads. Failures are handled the same way as by
+   * {@link #doHttpFetch(CachingCallBack)}, except that a read timeout fails the input instead of
+   * reconnecting.
+   */
+  private final class NonBlockingFetch implements AsyncHandler<FetchResult> {
+    // Map ids are short, anything longer is not a shuffle header
+    private static final int MAX_HEADER_LENGTH = 4096;
+    // Bytes received but not processed yet, above which the connection is no longer read from
+    // until the executor catches up to half of them
+    private static final long MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final SettableFuture<FetchResult> result = SettableFuture.create();
+    // Tasks run serially, the lock only guards against a concurrent shutdown
+    private final ReentrantLock lock = new ReentrantLock();
+    // Callbacks of the http client waiting to be processed on the executor, guarded by itself
+    private final ArrayDeque<Runnable> pendingTasks = new ArrayDeque<Runnable>();
+    private boolean draining;
+    private long pendingBytes;
+    // The connection reads were suspended on, null while it is read from
+    private Channel pausedChannel;
+    private final Runnable drainTasks = new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          Runnable task;
+          synchronized (pendingTasks) {
+            task = pendingTasks.poll();
+            if (task == null) {
+              draining = false;
+              return;
+            }
+          }
+          task.run();
+        }
+      }
+    };
+    private final DataOutputBuffer headerBytes = new DataOutputBuffer();
+    private final DataInputBuffer headerIn = new DataInputBuffer();
+    private final List<MapOutputStat> mapOutputStats = new ArrayList<MapOutputStat>();
+
+    private AsyncHttpConnection connection;
+    private volatile Future<FetchResult> responseFuture;
+    private volatile boolean done;
+    private boolean connected;
+
+    // State of the map output being read
+    private InputAttemptIdentifier inputAttemptIdentifier;
+    private InputAttemptIdentifier srcAttemptId;
+    private long startTime;
+    // Headers still to be read, -1 while the partition count is not known yet
+    private int headersLeft;
+    private int nextMapOutputStat;
+    private MapOutputStat mapOutputStat;
+    private FetchedInput fetchedInput;
+    private FetchedInputWriter writer;
+
+    void start() {
+      lock.lock();
+      try {
+        url = createUrl(srcAttemptsRemaining.values());
+        connection = new AsyncHttpConnection(url, httpConnectionParams, logIdentifier,
+            jobTokenSecretMgr);
+      } catch (IOException e) {
+        connectFailed(e);
+        return;
+      } finally {
+        release();
+      }
+      try {
+        responseFuture = connection.execute(this);
+      } catch (IOException e) {
+        onThrowable(e);
+      }
+    }
+
+    /**
+     * Complete the fetch on shutdown. If a callback is running, it completes the fetch once done.
+     */
+    void cancel() {
+      if (done) {
+        return;
+      }
+      if (lock.tryLock()) {
+        try {
+          complete(null, false);
+        } finally {
+          lock.unlock();
+        }
+      }
+      Future<FetchResult> future = responseFuture;
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+
+    @Override
+    public STATE onStatusReceived(HttpResponseStatus responseStatus) {
+      if (done || isShutDown.get()) {
+        return STATE.ABORT;
+      }
+      final int rc = responseStatus.getStatusCode();
+      if (rc != HttpURLConnection.HTTP_OK) {
+        final String statusText = responseStatus.getStatusText();
+        submit(new Runnable() {
+          @Override
+          public void run() {
+            lock.lock();
+            try {
+              if (!done) {
+                connectFailed(new IOException("Got invalid response code " + rc + " from " + url
+                    + ": " + statusText));
+              }
+            } finally {
+              release();
+            }
+          }
+        }, 0);
+        return STATE.ABORT;
+      }
+      return STATE.CONTINUE;
+    }
+
+    @Override
+    public STATE onHeadersReceived(final HttpResponseHeaders headers) {
+      if (done || isShutDown.get()) {
+        return STATE.ABORT;
+      }
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          headersReceived(headers);
+        }
+      }, 0);
+      return STATE.CONTINUE;
+    }
+
+    private void headersReceived(HttpResponseHeaders headers) {
+      lock.lock();
+      try {
+        if (done || isShutDown.get()) {
+          return;
+        }
+        connected = true;
+        try {
+          connection.validate(headers.getHeaders());
+        } catch (IOException e) {
+          // Penalize only the first map, as for a read error while connecting
+          InputAttemptIdentifier firstAttempt = srcAttemptsRemaining.values().iterator().next();
+          LOG.warn("Fetch Failure from host while connecting: " + host + ", attempt: "
+              + firstAttempt + " Informing ShuffleManager: ", e);
+          complete(new InputAttemptIdentifier[] { firstAttempt }, false);
+          return;
+        }
+        startMapOutput();
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+      if (done || isShutDown.get()) {
+        return STATE.ABORT;
+      }
+      // The bytes are a copy, which stays valid once the callback returns
+      final ByteBuffer buffer = ByteBuffer.wrap(bodyPart.getBodyPartBytes());
+      final int length = buffer.remaining();
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            bodyPartReceived(buffer);
+          } finally {
+            processed(length);
+          }
+        }
+      }, length);
+      pauseIfBehind();
+      return done ? STATE.ABORT : STATE.CONTINUE;
+    }
+
+    private void bodyPartReceived(ByteBuffer buffer) {
+      lock.lock();
+      try {
+        if (done || isShutDown.get()) {
+          return;
+        }
+        try {
+          read(buffer);
+        } catch (IOException e) {
+          readFailed(e);
+        } catch (InternalError e) {
+          // Thrown by some of the codecs on decompression failures
+          readFailed(new IOException(e));
+        }
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    public FetchResult onCompleted() {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          completed();
+        }
+      }, 0);
+      return null;
+    }
+
+    private void completed() {
+      lock.lock();
+      try {
+        if (!done) {
+          if (inputAttemptIdentifier != null) {
+            readFailed(new EOFException("Premature end of response from " + host + ", "
+                + srcAttemptsRemaining.size() + " inputs left"));
+          } else {
+            complete(null, false);
+          }
+        }
+      } finally {
+        release();
+      }
+    }
+
+    @Override
+    public void onThrowable(final Throwable t) {
+      if (isShutDown.get()) {
+        // Most likely the cancellation by a shutdown, which might hold locks a callback waits for
+        cancel();
+        return;
+      }
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          failed(t);
+        }
+      }, 0);
+    }
+
+    private void failed(Throwable t) {
+      lock.lock();
+      try {
+        if (done) {
+          return;
+        }
+        IOException e = t instanceof IOException ? (IOException) t : new IOException(t);
+        if (connected) {
+          readFailed(e);
+        } else {
+          connectFailed(e);
+        }
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Queue a callback of the http client to be processed on the executor, after the ones queued
+     * before it.
+     */
+    private void submit(Runnable task, int bytes) {
+      synchronized (pendingTasks) {
+        pendingTasks.add(task);
+        pendingBytes += bytes;
+        if (draining) {
+          return;
+        }
+        draining = true;
+      }
+      try {
+        nonBlockingExecutor.execute(drainTasks);
+      } catch (RejectedExecutionException e) {
+        // The executor is shut down along with the fetch, which has to complete regardless
+        drainTasks.run();
+      }
+    }
+
+    private void processed(int bytes) {
+      synchronized (pendingTasks) {
+        pendingBytes -= bytes;
+        if (pendingBytes <= MAX_PENDING_BYTES / 2) {
+          resumeReading();
+        }
+      }
+    }
+
+    /**
+     * Stop reading from the connection while the executor is too far behind, to bound the memory
+     * taken by the queued parts of the response, without holding up the I/O thread. Reading
+     * resumes once the executor caught up.
+     */
+    private void pauseIfBehind() {
+      Channel channel = AsyncHttpConnection.getCallbackChannel();
+      if (channel == null) {
+        return;
+      }
+      synchronized (pendingTasks) {
+        // Suspended and resumed under the lock, so that a resume is never overtaken
+        if (pausedChannel == null && pendingBytes > MAX_PENDING_BYTES && !done) {
+          pausedChannel = channel;
+          channel.setReadable(false);
+        }
+      }
+    }
+
+    // Must be called with the lock of pendingTasks held
+    private void resumeReading() {
+      if (pausedChannel != null) {
+        pausedChannel.setReadable(true);
+        pausedChannel = null;
+      }
+    }
+
+    private void release() {
+      lock.unlock();
+      // A shutdown which found the lock taken leaves the completion to the holder
+      if (!done && isShutDown.get() && lock.tryLock()) {
+        try {
+          complete(null, false);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    private void read(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining() && !done) {
+        if (writer != null) {
+          writer.write(buffer);
+          if (writer.isComplete()) {
+            mapOutputRead();
+          }
+        } else if (inputAttemptIdentifier == null) {
+          // All inputs were read, nothing else is expected
+          buffer.position(buffer.limit());
+        } else {
+          readHeader(buffer);
+        }
+      }
+    }
+
+    /**
+     * Read the partition count or the next shuffle header of the map output. The bytes of a
+     * header split across chunks are buffered until the header is complete.
+     */
+    private void readHeader(ByteBuffer buffer) throws IOException {
+      // Bytes of the header from earlier chunks, the header is read from the chunk directly
+      // when there are none
+      int buffered = headerBytes.getLength();
+      boolean direct = buffered == 0 && buffer.hasArray();
+      int start;
+      int length;
+      if (direct) {
+        start = buffer.arrayOffset() + buffer.position();
+        length = buffer.remaining();
+        headerIn.reset(buffer.array(), start, length);
+      } else {
+        start = -buffered;
+        length = Math.min(buffer.remaining(), MAX_HEADER_LENGTH - buffered);
+        if (length <= 0) {
+          throw new IOException("Invalid shuffle header from " + host);
+        }
+        appendHeaderBytes(buffer.duplicate(), length);
+        headerIn.reset(headerBytes.getData(), headerBytes.getLength());
+      }
+      ShuffleHeader header = null;
+      try {
+        if (headersLeft < 0) {
+          headersLeft = WritableUtils.readVInt(headerIn);
+        } else {
+          header = new ShuffleHeader();
+          header.readFields(headerIn);
+        }
+      } catch (EOFException e) {
+        // Keep the partial header for the next chunk
+        if (direct) {
+          appendHeaderBytes(buffer, length);
+        } else {
+          buffer.position(buffer.position() + length);
+        }
+        return;
+      }
+      // Consume only the bytes of the chunk which were part of the header
+      buffer.position(buffer.position() + headerIn.getPosition() - start);
+      headerBytes.reset();
+      if (header != null) {
+        headerRead(header);
+      } else if (headersLeft == 0) {
+        startMapOutputData();
+      }
+    }
+
+    private void appendHeaderBytes(ByteBuffer buffer, int length) throws IOException {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      headerBytes.write(bytes, 0, length);
+    }
+
+    private void headerRead(ShuffleHeader header) {
+      String pathComponent = header.getMapId();
+      srcAttemptId = pathComponent.startsWith(InputAttemptIdentifier.PATH_PREFIX)
+          ? pathToAttemptMap.get(new PathPartition(pathComponent, header.getPartition())) : null;
+      if (srcAttemptId == null) {
+        LOG.warn("Invalid src id " + pathComponent + ", partition: " + header.getPartition()
+            + " while fetching " + inputAttemptIdentifier);
+        // Don't know which one was bad, so consider all of them as bad
+        complete(srcAttemptsRemaining.values()
+            .toArray(new InputAttemptIdentifier[srcAttemptsRemaining.size()]), false);
+        return;
+      }
+      headersLeft--;
+      if (header.getCompressedLength() != 0) {
+        // Do some basic sanity verification
+        if (!verifySanity(header.getCompressedLength(), header.getUncompressedLength(),
+            header.getPartition(), getPartitionRange(inputAttemptIdentifier), srcAttemptId,
+            pathComponent)) {
+          complete(new InputAttemptIdentifier[] { srcAttemptId }, false);
+          return;
+        }
+        mapOutputStats.add(new MapOutputStat(srcAttemptId, header.getUncompressedLength(),
+            header.getCompressedLength(), header.getPartition()));
+      }
+      if (headersLeft == 0) {
+        startMapOutputData();
+      }
+    }
+
+    private void startMapOutput() {
+      mapOutputStats.clear();
+      nextMapOutputStat = 0;
+      srcAttemptId = null;
+      if (srcAttemptsRemaining.isEmpty()) {
+        inputAttemptIdentifier = null;
+        return;
+      }
+      inputAttemptIdentifier = srcAttemptsRemaining.values().iterator().next();
+      startTime = System.currentTimeMillis();
+      // Multiple partitions are fetched with a composite fetch
+      headersLeft = compositeFetch ? -1 : 1;
+    }
+
+    private void startMapOutputData() {
+      if (nextMapOutputStat == mapOutputStats.size()) {
+        srcAttemptsRemaining.remove(inputAttemptIdentifier.toString());
+        startMapOutput();
+        return;
+      }
+      mapOutputStat = mapOutputStats.get(nextMapOutputStat++);
+      srcAttemptId = mapOutputStat.srcAttemptId;
+      try {
+        fetchedInput = inputManager.allocate(mapOutputStat.decompressedLength,
+            mapOutputStat.compressedLength, srcAttemptId);
+        if (isDebugEnabled) {
+          LOG.debug("fetcher" + " about to shuffle output of srcAttempt " + srcAttemptId
+              + " decomp: " + mapOutputStat.decompressedLength + " len: "
+              + mapOutputStat.compressedLength + " to " + fetchedInput.getType());
+        }
+        writer = new FetchedInputWriter(fetchedInput, mapOutputStat.compressedLength, codec,
+            verifyDiskChecksum);
+      } catch (IOException e) {
+        readFailed(e);
+      }
+    }
+
+    private void mapOutputRead() throws IOException {
+      writer.finish();
+      writer = null;
+      FetchedInput input = fetchedInput;
+      fetchedInput = null;
+      fetcherCallback.fetchSucceeded(host, srcAttemptId, input, mapOutputStat.compressedLength,
+          mapOutputStat.decompressedLength, System.currentTimeMillis() - startTime);
+      startMapOutputData();
+    }
+
+    private void connectFailed(Throwable t) {
+      // If connect did not succeed, just mark all the maps as failed,
+      // indirectly penalizing the host
+      LOG.warn("Failed to connect to " + host + " for " + srcAttemptsRemaining.size()
+          + " inputs", t);
+      complete(srcAttemptsRemaining.values()
+          .toArray(new InputAttemptIdentifier[srcAttemptsRemaining.size()]), true);
+    }
+
+    private void readFailed(IOException ioe) {
+      if (srcAttemptId == null || fetchedInput == null) {
+        LOG.info("fetcher" + " failed to read map header" + srcAttemptId, ioe);
+        if (srcAttemptId == null) {
+          complete(srcAttemptsRemaining.values()
+              .toArray(new InputAttemptIdentifier[srcAttemptsRemaining.size()]), false);
+        } else {
+          complete(new InputAttemptIdentifier[] { srcAttemptId }, false);
+        }
+        return;
+      }
+      LOG.warn("Failed to shuffle output of " + srcAttemptId + " from " + host, ioe);
+      complete(new InputAttemptIdentifier[] { srcAttemptId }, false);
+    }
+
+    private void complete(InputAttemptIdentifier[] failedInputs, boolean connectFailed) {
+      if (done) {
+        return;
+      }
+      done = true;
+      synchronized (pendingTasks) {
+        // The next part read aborts the response, the queued ones are dropped
+        resumeReading();
+      }
+      if (writer != null) {
+        writer.abort();
+        writer = null;
+      }
+      cleanupFetchedInput(fetchedInput);
+      fetchedInput = null;
+      if (isShutDown.get()) {
+        if (isDebugEnabled && failedInputs != null) {
+          LOG.debug("Fetcher already shutdown. Not reporting fetch failures for: " +
+              failedInputs.length + " failed inputs");
+        }
+        failedInputs = null;
+        connectFailed = false;
+      }
+      try {
+        result.set(completeFetch(new HostFetchResult(createFetchResult(null), failedInputs,
+            connectFailed), false));
+      } catch (IOException | RuntimeException e) {
+        result.setException(e);
+      }
+    }
+  }
+
   /**
    * Check connection needs to be re-established.
    *
@@ -1066,12 +1730,14 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
    * @param compressedLength
    * @param decompressedLength
    * @param fetchPartition
+   * @param expectedRange the partition range requested for the input being read
    * @param srcAttemptId
    * @param pathComponent
    * @return true/false, based on if the verification succeeded or not
    */
   private boolean verifySanity(long compressedLength, long decompressedLength,
-      int fetchPartition, InputAttemptIdentifier srcAttemptId, String pathComponent) {
+      int fetchPartition, PartitionToInputs expectedRange, InputAttemptIdentifier srcAttemptId,
+      String pathComponent) {
     if (compressedLength < 0 || decompressedLength < 0) {
       // wrongLengthErrs.increment(1);
       LOG.warn(" invalid lengths in input header -> headerPathComponent: "
@@ -1081,7 +1747,8 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       return false;
     }
 
-    if (fetchPartition < this.partition || fetchPartition >= this.partition + this.partitionCount) {
+    if (fetchPartition < expectedRange.getPartition()
+        || fetchPartition >= expectedRange.getPartition() + expectedRange.getPartitionCount()) {
       // wrongReduceErrs.increment(1);
       LOG.warn(" data for the wrong reduce -> headerPathComponent: "
           + pathComponent + "nextRemainingSrcAttemptId: "
@@ -1093,6 +1760,35 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
     return true;
   }
   
+  private PartitionToInputs getPartitionRange(InputAttemptIdentifier input) {
+    PartitionToInputs range = inputToPartitionRange.get(input.toString());
+    return range != null ? range : partitionRanges.get(0);
+  }
+
+  /**
+   * Result carrying the inputs which are still to be fetched. With batched partition
+   * ranges they are grouped by range, so that each of them is requeued for its own range.
+   */
+  private FetchResult createFetchResult(String additionalInfo) {
+    if (partitionRanges.size() == 1) {
+      return new FetchResult(host, port, partition, partitionCount,
+          srcAttemptsRemaining.values(), additionalInfo);
+    }
+    List<PartitionToInputs> pending = new ArrayList<PartitionToInputs>(partitionRanges.size());
+    for (PartitionToInputs range : partitionRanges) {
+      List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+      for (InputAttemptIdentifier input : range.getInputs()) {
+        if (srcAttemptsRemaining.containsKey(input.toString())) {
+          inputs.add(input);
+        }
+      }
+      if (!inputs.isEmpty()) {
+        pending.add(new PartitionToInputs(range.getPartition(), range.getPartitionCount(), inputs));
+      }
+    }
+    return new FetchResult(host, port, pending, additionalInfo);
+  }
+
   private InputAttemptIdentifier getNextRemainingAttempt() {
     if (srcAttemptsRemaining.size() > 0) {
       return srcAttemptsRemaining.values().iterator().next();
@@ -1136,6 +1832,18 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
       return this;
     }
 
+    /**
+     * @param executor processes the responses of non-blocking fetches, typically the executor
+     *                 the blocking fetches run on
+     */
+    public FetcherBuilder setNonBlocking(boolean nonBlocking, Executor executor) {
+      Preconditions.checkArgument(!nonBlocking || executor != null,
+          "Non-blocking fetches need an executor");
+      fetcher.nonBlocking = nonBlocking;
+      fetcher.nonBlockingExecutor = executor;
+      return this;
+    }
+
     public FetcherBuilder setCompressionParameters(CompressionCodec codec) {
       fetcher.codec = codec;
       return this;
@@ -1149,11 +1857,35 @@ public class Fetcher extends CallableWithNdc<FetchResult> {
 
     public FetcherBuilder assignWork(String host, int port, int partition, int partitionCount,
         List<InputAttemptIdentifier> inputs) {
+      return assignWork(host, port, Collections.singletonList(
+          new PartitionToInputs(partition, partitionCount, inputs)));
+    }
+
+    /**
+     * Assigns several partition ranges of the same host, which are fetched with a single
+     * request. Needs the Tez shuffle handler when more than one range is given.
+     */
+    public FetcherBuilder assignWork(String host, int port, List<PartitionToInputs> ranges) {
+      Preconditions.checkArgument(!ranges.isEmpty(), "No partition range assigned");
+      Preconditions.checkArgument(ranges.size() == 1 || fetcher.compositeFetch,
+          "Multiple partition ranges need composite fetch");
       fetcher.host = host;
       fetcher.port = port;
-      fetcher.partition = partition;
-      fetcher.partitionCount = partitionCount;
-      fetcher.srcAttempts = inputs;
+      fetcher.partition = ranges.get(0).getPartition();
+      fetcher.partitionCount = ranges.get(0).getPartitionCount();
+      fetcher.partitionRanges = ranges;
+      if (ranges.size() == 1) {
+        fetcher.srcAttempts = ranges.get(0).getInputs();
+      } else {
+        List<InputAttemptIdentifier> inputs = new ArrayList<InputAttemptIdentifier>();
+        for (PartitionToInputs range : ranges) {
+          for (InputAttemptIdentifier input : range.getInputs()) {
+            inputs.add(input);
+            fetcher.inputToPartitionRange.put(input.toString(), range);
+          }
+        }
+        fetcher.srcAttempts = inputs;
+      }
       workAssigned = true;
       return this;
     }
@@ -119,6 +119,23 @@ public class InputHost extends HostPort {
     return null;
   }
 
+  /**
+   * Drains up to <code>maxRanges</code> partition ranges in one go, so that they can be
+   * fetched from this host with a single request.
+   * @return the drained ranges, empty if nothing is pending
+   */
+  public synchronized List<PartitionToInputs> clearAndGetPartitionRanges(int maxRanges) {
+    List<PartitionToInputs> ranges = new ArrayList<PartitionToInputs>();
+    while (ranges.size() < maxRanges) {
+      PartitionToInputs range = clearAndGetOnePartitionRange();
+      if (range == null) {
+        break;
+      }
+      ranges.add(range);
+    }
+    return ranges;
+  }
+
   public String toDetailedString() {
     return "HostPort=" + super.toString() + ", InputDetails=" +
         partitionToInputs;
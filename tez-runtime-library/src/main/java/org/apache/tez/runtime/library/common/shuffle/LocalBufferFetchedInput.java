@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.tez.common.io.ByteBufferInputStream;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Input read in place from the output of a task in the same process, as registered with the
+ * {@link LocalShuffleBufferRegistry}. Like {@link LocalDiskFetchedInput}, it is of type
+ * DISK_DIRECT since it is not copied and takes none of the shuffle memory.
+ */
+public class LocalBufferFetchedInput extends FetchedInput {
+
+  private final ByteBuffer segment;
+
+  public LocalBufferFetchedInput(ByteBuffer segment, long actualSize,
+      InputAttemptIdentifier inputAttemptIdentifier, FetchedInputCallback callbackHandler) {
+    super(Type.DISK_DIRECT, actualSize, segment.remaining(), inputAttemptIdentifier,
+        callbackHandler);
+    this.segment = segment;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("Output Stream is not supported for " + this.toString());
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new ByteBufferInputStream(getSegment());
+  }
+
+  /**
+   * @return the IFile segment of the input. The registered output is not modified.
+   */
+  public ByteBuffer getSegment() {
+    return segment.duplicate();
+  }
+
+  @Override
+  public void commit() {
+    if (state == State.PENDING) {
+      state = State.COMMITTED;
+      notifyFetchComplete();
+    }
+  }
+
+  @Override
+  public void abort() {
+    if (state == State.PENDING) {
+      state = State.ABORTED;
+      notifyFetchFailure();
+    }
+  }
+
+  @Override
+  public void free() {
+    Preconditions.checkState(
+        state == State.COMMITTED || state == State.ABORTED,
+        "FetchedInput can only be freed after it is committed or aborted");
+    if (state == State.COMMITTED) {
+      state = State.FREED;
+      notifyFreedResource();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LocalBufferFetchedInput [actualSize=" + actualSize +
+        ", compressedSize=" + compressedSize +
+        ", inputAttemptIdentifier=" + inputAttemptIdentifier +
+        ", type=" + type +
+        ", id=" + id +
+        ", state=" + state + "]";
+  }
+}
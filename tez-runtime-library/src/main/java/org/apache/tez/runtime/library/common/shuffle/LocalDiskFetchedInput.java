@@ -21,6 +21,8 @@ package org.apache.tez.runtime.library.common.shuffle;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -30,23 +32,44 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.tez.common.io.ByteBufferInputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
 
 public class LocalDiskFetchedInput extends FetchedInput {
   private static final Logger LOG = LoggerFactory.getLogger(LocalDiskFetchedInput.class);
 
   private final Path inputFile;
-  private final FileSystem localFS;
+  private final LocalFileSystem localFS;
   private final long startOffset;
+  private final boolean memoryMapped;
+  // Lazily mapped on first access, unmapped when the input is freed
+  private MappedByteBuffer mappedSegment;
 
   public LocalDiskFetchedInput(long startOffset, long actualSize, long compressedSize,
                                InputAttemptIdentifier inputAttemptIdentifier, Path inputFile,
                                Configuration conf, FetchedInputCallback callbackHandler)
       throws IOException {
+    this(startOffset, actualSize, compressedSize, inputAttemptIdentifier, inputFile, conf,
+        callbackHandler, false);
+  }
+
+  /**
+   * @param memoryMapped whether to read the segment through a read-only memory mapping of the
+   *                     local file instead of a FileSystem stream
+   */
+  public LocalDiskFetchedInput(long startOffset, long actualSize, long compressedSize,
+                               InputAttemptIdentifier inputAttemptIdentifier, Path inputFile,
+                               Configuration conf, FetchedInputCallback callbackHandler,
+                               boolean memoryMapped)
+      throws IOException {
     super(Type.DISK_DIRECT, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
     this.startOffset = startOffset;
     this.inputFile = inputFile;
+    this.memoryMapped = memoryMapped && compressedSize <= Integer.MAX_VALUE;
     localFS = FileSystem.getLocal(conf);
   }
 
@@ -57,11 +80,38 @@ public class LocalDiskFetchedInput extends FetchedInput {
 
   @Override
   public InputStream getInputStream() throws IOException {
+    if (memoryMapped) {
+      return new ByteBufferInputStream(getMappedSegment().duplicate());
+    }
     FSDataInputStream inputStream = localFS.open(inputFile);
     inputStream.seek(startOffset);
     return new BoundedInputStream(inputStream, compressedSize);
   }
 
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * Get the segment of the local file backing this input, mapped read-only into memory.
+   * Only valid when the input was created as memory mapped, and until it is freed.
+   */
+  public synchronized ByteBuffer getMappedSegment() throws IOException {
+    Preconditions.checkState(memoryMapped, "Input is not memory mapped " + this);
+    Preconditions.checkState(state != State.FREED, "Input has already been freed " + this);
+    if (mappedSegment == null) {
+      mappedSegment = IFile.mapSegment(localFS.pathToFile(inputFile), startOffset, compressedSize);
+    }
+    return mappedSegment;
+  }
+
+  private synchronized void unmapSegment() {
+    if (mappedSegment != null) {
+      NativeIO.POSIX.munmap(mappedSegment);
+      mappedSegment = null;
+    }
+  }
+
   @Override
   public void commit() {
     if (state == State.PENDING) {
@@ -74,6 +124,7 @@ public class LocalDiskFetchedInput extends FetchedInput {
   public void abort() {
     if (state == State.PENDING) {
       state = State.ABORTED;
+      unmapSegment();
       notifyFetchFailure();
     }
   }
@@ -85,6 +136,7 @@ public class LocalDiskFetchedInput extends FetchedInput {
         "FetchedInput can only be freed after it is committed or aborted");
     if (state == State.COMMITTED) { // ABORTED would have already called cleanup
       state = State.FREED;
+      unmapSegment();
       notifyFreedResource();
     }
   }
@@ -95,6 +147,7 @@ public class LocalDiskFetchedInput extends FetchedInput {
         ", offset" + startOffset +
         ", actualSize=" + actualSize +
         ", compressedSize=" + compressedSize +
+        ", memoryMapped=" + memoryMapped +
         ", inputAttemptIdentifier=" + inputAttemptIdentifier +
         ", type=" + type +
         ", id=" + id +
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stream for the final output of a task, which is kept in memory while it is smaller than the
+ * limit of the {@link LocalShuffleBufferRegistry}, and moves over to the output file otherwise.
+ */
+@InterfaceAudience.Private
+public class LocalShuffleBufferOutputStream extends OutputStream {
+
+  private final FileSystem fs;
+  private final Path outputPath;
+  private final long memoryLimit;
+  private DataOutputBuffer buffer = new DataOutputBuffer();
+  private OutputStream fileOut;
+  private boolean closed = false;
+
+  public LocalShuffleBufferOutputStream(FileSystem fs, Path outputPath, long memoryLimit) {
+    this.fs = fs;
+    this.outputPath = outputPath;
+    this.memoryLimit = memoryLimit;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    maybeMoveToFile(1);
+    getTarget().write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    maybeMoveToFile(len);
+    getTarget().write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    getTarget().flush();
+  }
+
+  public boolean isInMemory() {
+    return fileOut == null;
+  }
+
+  /**
+   * Close the stream, and register the output with the registry if it is still in memory.
+   * Otherwise, or if it does not fit in the registry, the output file and the index file are
+   * written.
+   *
+   * @return true if the output was registered
+   */
+  public boolean commit(LocalShuffleBufferRegistry registry, OutputContext outputContext,
+      TezSpillRecord spillRecord, Path indexPath, Configuration conf) throws IOException {
+    Preconditions.checkState(!closed, "Output already committed to " + outputPath);
+    closed = true;
+    if (isInMemory() && registry.register(outputContext.getApplicationId(),
+        outputContext.getDagIdentifier(), outputContext.getUniqueIdentifier(), buffer.getData(),
+        buffer.getLength(), spillRecord)) {
+      buffer = null;
+      return true;
+    }
+    if (isInMemory()) {
+      moveToFile();
+    }
+    fileOut.close();
+    spillRecord.writeToFile(indexPath, conf);
+    return false;
+  }
+
+  /**
+   * Drop the output, e.g. on failure.
+   */
+  public void abort() {
+    closed = true;
+    buffer = null;
+    IOUtils.closeStream(fileOut);
+  }
+
+  private OutputStream getTarget() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed for " + outputPath);
+    }
+    return isInMemory() ? buffer : fileOut;
+  }
+
+  private void maybeMoveToFile(int len) throws IOException {
+    if (isInMemory() && !closed && (long) buffer.getLength() + len > memoryLimit) {
+      moveToFile();
+    }
+  }
+
+  private void moveToFile() throws IOException {
+    fileOut = fs.create(outputPath);
+    fileOut.write(buffer.getData(), 0, buffer.getLength());
+    buffer = null;
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Holds the final shuffle output of tasks in memory, for consumers running in the same process
+ * to read it without going through local disk. Only enabled in local mode, where all tasks of a
+ * DAG run in the app master, and bounded by a total size. An output which does not fit is
+ * written to disk as usual, and consumers fall back to reading it from there.
+ *
+ * Output is looked up by its path component, and released when its DAG completes.
+ */
+@InterfaceAudience.Private
+public class LocalShuffleBufferRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalShuffleBufferRegistry.class);
+
+  private static final LocalShuffleBufferRegistry INSTANCE = new LocalShuffleBufferRegistry();
+
+  public static LocalShuffleBufferRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * The IFile output of a task along with its index.
+   */
+  public static class ShuffleBuffer {
+    private final byte[] data;
+    private final int length;
+    private final TezSpillRecord spillRecord;
+
+    ShuffleBuffer(byte[] data, int length, TezSpillRecord spillRecord) {
+      this.data = data;
+      this.length = length;
+      this.spillRecord = spillRecord;
+    }
+
+    public TezIndexRecord getIndex(int partition) {
+      return spillRecord.getIndex(partition);
+    }
+
+    /**
+     * @return a read only view of the IFile segment of the partition
+     */
+    public ByteBuffer getSegment(int partition) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(partition);
+      return ByteBuffer.wrap(data, (int) indexRecord.getStartOffset(),
+          (int) indexRecord.getPartLength()).slice().asReadOnlyBuffer();
+    }
+
+    public int getLength() {
+      return length;
+    }
+  }
+
+  // Number of app masters in the process which enabled the registry
+  private int numUsers;
+  private long maxBytes;
+  private long maxOutputBytes;
+  private long usedBytes;
+  private final Map<String, ShuffleBuffer> buffers = new HashMap<String, ShuffleBuffer>();
+  private final Map<String, Set<String>> pathComponentsByDag =
+      new HashMap<String, Set<String>>();
+
+  @VisibleForTesting
+  LocalShuffleBufferRegistry() {
+  }
+
+  public synchronized void enable(long maxBytes, long maxOutputBytes) {
+    Preconditions.checkArgument(maxBytes >= 0, "maxBytes should be >= 0");
+    Preconditions.checkArgument(maxOutputBytes >= 0, "maxOutputBytes should be >= 0");
+    numUsers++;
+    this.maxBytes = maxBytes;
+    this.maxOutputBytes = Math.min(maxOutputBytes, Integer.MAX_VALUE);
+    LOG.info("Enabled local shuffle buffers, maxBytes=" + maxBytes
+        + ", maxOutputBytes=" + this.maxOutputBytes);
+  }
+
+  public synchronized void disable() {
+    if (numUsers == 0) {
+      return;
+    }
+    numUsers--;
+    if (numUsers == 0) {
+      buffers.clear();
+      pathComponentsByDag.clear();
+      usedBytes = 0;
+      LOG.info("Disabled local shuffle buffers");
+    }
+  }
+
+  public synchronized boolean isEnabled() {
+    return numUsers > 0;
+  }
+
+  /**
+   * @return the size up to which an output may be held in memory before it is registered
+   */
+  public synchronized long getMaxOutputBytes() {
+    return maxOutputBytes;
+  }
+
+  /**
+   * Register the final output of a task.
+   *
+   * @return false if the output does not fit in the remaining budget. It has to be written to
+   * disk by the caller in that case.
+   */
+  public synchronized boolean register(ApplicationId applicationId, int dagIdentifier,
+      String pathComponent, byte[] data, int length, TezSpillRecord spillRecord) {
+    if (!isEnabled() || usedBytes + length > maxBytes) {
+      return false;
+    }
+    ShuffleBuffer previous =
+        buffers.put(pathComponent, new ShuffleBuffer(data, length, spillRecord));
+    if (previous != null) {
+      usedBytes -= previous.getLength();
+    }
+    usedBytes += length;
+    String dagKey = getDagKey(applicationId, dagIdentifier);
+    Set<String> pathComponents = pathComponentsByDag.get(dagKey);
+    if (pathComponents == null) {
+      pathComponents = new HashSet<String>();
+      pathComponentsByDag.put(dagKey, pathComponents);
+    }
+    pathComponents.add(pathComponent);
+    return true;
+  }
+
+  /**
+   * @return the output registered for the path component, or null if it was written to disk
+   */
+  public synchronized ShuffleBuffer get(String pathComponent) {
+    return buffers.get(pathComponent);
+  }
+
+  public synchronized void dagComplete(ApplicationId applicationId, int dagIdentifier) {
+    Set<String> pathComponents = pathComponentsByDag.remove(
+        getDagKey(applicationId, dagIdentifier));
+    if (pathComponents == null) {
+      return;
+    }
+    for (String pathComponent : pathComponents) {
+      ShuffleBuffer buffer = buffers.remove(pathComponent);
+      if (buffer != null) {
+        usedBytes -= buffer.getLength();
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Released " + pathComponents.size() + " local shuffle buffers of dag "
+          + dagIdentifier + ", usedBytes=" + usedBytes);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  private static String getDagKey(ApplicationId applicationId, int dagIdentifier) {
+    return applicationId + "_" + dagIdentifier;
+  }
+}
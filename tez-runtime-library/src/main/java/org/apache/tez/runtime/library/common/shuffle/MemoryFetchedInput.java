@@ -20,22 +20,42 @@ package org.apache.tez.runtime.library.common.shuffle;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
-import org.apache.hadoop.io.BoundedByteArrayOutputStream;
-import org.apache.tez.common.io.NonSyncByteArrayInputStream;
+import org.apache.tez.common.io.ByteBufferInputStream;
+import org.apache.tez.common.io.ByteBufferOutputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 
 import com.google.common.base.Preconditions;
 
 public class MemoryFetchedInput extends FetchedInput {
 
-  private BoundedByteArrayOutputStream byteStream;
+  private ByteBuffer buffer;
+  private ByteBufferOutputStream byteStream;
+  // Set when the buffer is taken out of a pool
+  private final ShuffleMemoryPool.Chunk chunk;
 
   public MemoryFetchedInput(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier,
       FetchedInputCallback callbackHandler) {
+    this(actualSize, compressedSize, inputAttemptIdentifier, callbackHandler, null);
+  }
+
+  /**
+   * @param memoryPool pool to allocate the buffer from, a new buffer is allocated if null
+   */
+  public MemoryFetchedInput(long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier,
+      FetchedInputCallback callbackHandler, ShuffleMemoryPool memoryPool) {
     super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
-    this.byteStream = new BoundedByteArrayOutputStream((int) actualSize);
+    if (memoryPool != null) {
+      this.chunk = memoryPool.allocate((int) actualSize);
+      this.buffer = chunk.getBuffer();
+    } else {
+      this.chunk = null;
+      this.buffer = ByteBuffer.allocate((int) actualSize);
+    }
+    this.byteStream = new ByteBufferOutputStream(buffer.duplicate());
   }
 
   @Override
@@ -45,13 +65,25 @@ public class MemoryFetchedInput extends FetchedInput {
 
   @Override
   public InputStream getInputStream() {
-    return new NonSyncByteArrayInputStream(byteStream.getBuffer());
+    return new ByteBufferInputStream(buffer.duplicate());
   }
 
-  public byte[] getBytes() {
-    return byteStream.getBuffer();
+  /**
+   * @return a new view of the memory of the input, of <code>actualSize</code> bytes. It may be a
+   *         direct buffer, which is not backed by an array.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer.duplicate();
   }
-  
+
+  /**
+   * @return the number of bytes of memory held by the input, which can be more than its size
+   *         when taken out of a pool
+   */
+  public long getMemorySize() {
+    return chunk != null ? chunk.getCapacity() : actualSize;
+  }
+
   @Override
   public void commit() {
     if (state == State.PENDING) {
@@ -64,6 +96,7 @@ public class MemoryFetchedInput extends FetchedInput {
   public void abort() {
     if (state == State.PENDING) {
       state = State.ABORTED;
+      releaseMemory();
       notifyFetchFailure();
     }
   }
@@ -75,11 +108,19 @@ public class MemoryFetchedInput extends FetchedInput {
         "FetchedInput can only be freed after it is committed or aborted");
     if (state == State.COMMITTED) { // ABORTED would have already called cleanup
       state = State.FREED;
-      this.byteStream = null;
+      releaseMemory();
       notifyFreedResource();
     }
   }
 
+  private void releaseMemory() {
+    this.buffer = null;
+    this.byteStream = null;
+    if (chunk != null) {
+      chunk.release();
+    }
+  }
+
   @Override
   public String toString() {
     return "MemoryFetchedInput [inputAttemptIdentifier="
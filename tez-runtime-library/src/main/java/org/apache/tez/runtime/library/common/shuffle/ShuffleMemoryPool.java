@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Memory of the in-memory shuffle inputs, carved out of large slabs which are reused across
+ * fetches. Slabs are heap or direct buffers, split with a buddy allocator: a request is rounded
+ * up to a power of two, served from the smallest free chunk which is large enough, split in
+ * halves as needed, and merged back with its buddy once released. Heap slabs which become
+ * entirely free are left to the garbage collector, except for one which is kept for the next
+ * fetches. Direct slabs are all kept, since their memory is only given back to the system by a
+ * garbage collection or by freeing them explicitly, which the pool does once it is closed.
+ * <p/>
+ * Requests larger than a slab are allocated on their own. The pool does not limit the memory it
+ * hands out, callers account {@link Chunk#getCapacity()} against their own memory limits.
+ */
+@Private
+public class ShuffleMemoryPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ShuffleMemoryPool.class);
+
+  @VisibleForTesting
+  static final int MIN_CHUNK_SIZE = 1024;
+
+  private final boolean offHeap;
+  private final int slabSize;
+  private final int maxOrder;
+
+  // Released slabs leave a null entry, reused by the next slab
+  private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  // Free chunks of each order, identified by their slab and offset
+  private final LinkedHashSet<Long>[] freeChunks;
+
+  private long capacity;
+  private long used;
+  private long peakCapacity;
+  private long peakUsed;
+  private boolean closed = false;
+
+  private final TezCounter peakCapacityCounter;
+  private final TezCounter peakUsedCounter;
+  private final TezCounter unpooledAllocationsCounter;
+
+  @SuppressWarnings("unchecked")
+  public ShuffleMemoryPool(Configuration conf, TezCounters counters) {
+    this.offHeap = conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP_DEFAULT);
+    int configuredSlabSize = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE_DEFAULT);
+    Preconditions.checkArgument(configuredSlabSize > 0 && configuredSlabSize <= (1 << 30),
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE
+            + " should be between 1 and 2^30, found " + configuredSlabSize);
+    this.maxOrder = getOrder(configuredSlabSize);
+    this.slabSize = getChunkSize(maxOrder);
+    this.freeChunks = new LinkedHashSet[maxOrder + 1];
+    for (int i = 0; i <= maxOrder; i++) {
+      freeChunks[i] = new LinkedHashSet<Long>();
+    }
+    this.peakCapacityCounter = counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_PEAK_CAPACITY);
+    this.peakUsedCounter = counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_PEAK_USED);
+    this.unpooledAllocationsCounter =
+        counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_UNPOOLED_ALLOCATIONS);
+    LOG.info("ShuffleMemoryPool: offHeap=" + offHeap + ", slabSize=" + slabSize);
+  }
+
+  /**
+   * Allocate a chunk of at least <code>size</code> bytes, to be given back with
+   * {@link Chunk#release()}.
+   */
+  public synchronized Chunk allocate(int size) {
+    Preconditions.checkArgument(size >= 0, "Invalid size " + size);
+    Chunk chunk;
+    if (size > slabSize) {
+      unpooledAllocationsCounter.increment(1);
+      capacity += size;
+      chunk = new Chunk(newBuffer(size), size, -1, 0, -1);
+    } else {
+      int order = getOrder(size);
+      long freeChunk = takeFreeChunk(order);
+      if (freeChunk < 0) {
+        addSlab();
+        freeChunk = takeFreeChunk(order);
+      }
+      int slab = getSlab(freeChunk);
+      int offset = getOffset(freeChunk);
+      ByteBuffer buffer = slabs.get(slab).duplicate();
+      buffer.limit(offset + size).position(offset);
+      chunk = new Chunk(buffer.slice(), getChunkSize(order), slab, offset, order);
+    }
+    used += chunk.capacity;
+    if (capacity > peakCapacity) {
+      peakCapacity = capacity;
+      peakCapacityCounter.setValue(peakCapacity);
+    }
+    if (used > peakUsed) {
+      peakUsed = used;
+      peakUsedCounter.setValue(peakUsed);
+    }
+    return chunk;
+  }
+
+  /**
+   * @return the number of bytes {@link #allocate(int)} would take out of the pool for
+   *         <code>size</code> bytes
+   */
+  public int getAllocationSize(int size) {
+    return size > slabSize ? size : getChunkSize(getOrder(size));
+  }
+
+  private synchronized void release(Chunk chunk) {
+    used -= chunk.capacity;
+    if (chunk.slab < 0) {
+      capacity -= chunk.capacity;
+      freeBuffer(chunk.buffer);
+      return;
+    }
+    int order = chunk.order;
+    int offset = chunk.offset;
+    // Merge with the buddies which are free
+    while (order < maxOrder
+        && freeChunks[order].remove(getChunkId(chunk.slab, offset ^ getChunkSize(order)))) {
+      offset &= ~getChunkSize(order);
+      order++;
+    }
+    if (order == maxOrder && (closed || (!offHeap && !freeChunks[maxOrder].isEmpty()))) {
+      // Keep a single free heap slab around
+      removeSlab(chunk.slab);
+    } else {
+      freeChunks[order].add(getChunkId(chunk.slab, offset));
+    }
+  }
+
+  /**
+   * Free the slabs which are not in use. Slabs with chunks which are still in use are freed once
+   * these are released, as are slabs of later allocations, e.g. by fetches racing with shutdown.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (long freeSlab : freeChunks[maxOrder]) {
+      removeSlab(getSlab(freeSlab));
+    }
+    freeChunks[maxOrder].clear();
+  }
+
+  private long takeFreeChunk(int order) {
+    for (int i = order; i <= maxOrder; i++) {
+      if (!freeChunks[i].isEmpty()) {
+        Iterator<Long> it = freeChunks[i].iterator();
+        long chunk = it.next();
+        it.remove();
+        // Split down to the requested order, freeing the upper halves
+        while (i > order) {
+          i--;
+          freeChunks[i].add(chunk + getChunkSize(i));
+        }
+        return chunk;
+      }
+    }
+    return -1;
+  }
+
+  private void addSlab() {
+    int slab = slabs.indexOf(null);
+    if (slab < 0) {
+      slab = slabs.size();
+      slabs.add(null);
+    }
+    slabs.set(slab, newBuffer(slabSize));
+    capacity += slabSize;
+    freeChunks[maxOrder].add(getChunkId(slab, 0));
+  }
+
+  private void removeSlab(int slab) {
+    capacity -= slabSize;
+    freeBuffer(slabs.set(slab, null));
+  }
+
+  private ByteBuffer newBuffer(int size) {
+    return offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+  private void freeBuffer(ByteBuffer buffer) {
+    if (buffer.isDirect()) {
+      // Direct buffers are MappedByteBuffers, which lets their memory be released right away
+      // rather than when they are garbage collected
+      NativeIO.POSIX.munmap((MappedByteBuffer) buffer);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getCapacity() {
+    return capacity;
+  }
+
+  @VisibleForTesting
+  synchronized long getUsed() {
+    return used;
+  }
+
+  private static int getOrder(int size) {
+    if (size <= MIN_CHUNK_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1)
+        - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+  }
+
+  private static int getChunkSize(int order) {
+    return MIN_CHUNK_SIZE << order;
+  }
+
+  private static long getChunkId(int slab, int offset) {
+    return ((long) slab << 32) | offset;
+  }
+
+  private static int getSlab(long chunkId) {
+    return (int) (chunkId >>> 32);
+  }
+
+  private static int getOffset(long chunkId) {
+    return (int) chunkId;
+  }
+
+  /**
+   * Memory handed out by the pool. The bytes of a released chunk may be given to another
+   * allocation right away, so it should not be read once released.
+   */
+  public final class Chunk {
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int slab;
+    private final int offset;
+    private final int order;
+    private boolean released;
+
+    private Chunk(ByteBuffer buffer, int capacity, int slab, int offset, int order) {
+      this.buffer = buffer;
+      this.capacity = capacity;
+      this.slab = slab;
+      this.offset = offset;
+      this.order = order;
+    }
+
+    /**
+     * @return a new view of the requested bytes of the chunk, positioned at its start
+     */
+    public ByteBuffer getBuffer() {
+      return buffer.duplicate();
+    }
+
+    /**
+     * @return the number of bytes taken out of the pool, which is at least the requested size
+     */
+    public int getCapacity() {
+      return capacity;
+    }
+
+    /**
+     * Give the chunk back to the pool. Releasing it again has no effect.
+     */
+    public void release() {
+      synchronized (ShuffleMemoryPool.this) {
+        if (!released) {
+          released = true;
+          ShuffleMemoryPool.this.release(this);
+        }
+      }
+    }
+  }
+}
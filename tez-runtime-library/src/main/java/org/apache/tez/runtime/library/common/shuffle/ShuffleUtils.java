@@ -117,12 +117,20 @@ public class ShuffleUtils {
       InputStream input, int decompressedLength, int compressedLength,
       CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
       Logger LOG, InputAttemptIdentifier identifier) throws IOException {
+    shuffleToMemory(ByteBuffer.wrap(shuffleData), input, decompressedLength, compressedLength,
+        codec, ifileReadAhead, ifileReadAheadLength, LOG, identifier);
+  }
+
+  public static void shuffleToMemory(ByteBuffer shuffleData,
+      InputStream input, int decompressedLength, int compressedLength,
+      CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength,
+      Logger LOG, InputAttemptIdentifier identifier) throws IOException {
     try {
       IFile.Reader.readToMemory(shuffleData, input, compressedLength, codec,
           ifileReadAhead, ifileReadAheadLength);
       // metrics.inputBytes(shuffleData.length);
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Read " + shuffleData.length + " bytes from input for "
+        LOG.debug("Read " + shuffleData.remaining() + " bytes from input for "
             + identifier);
       }
     } catch (InternalError | IOException e) {
@@ -205,6 +213,18 @@ public class ShuffleUtils {
 
   public static StringBuilder constructBaseURIForShuffleHandler(String host,
       int port, int partition, int partitionCount, String appId, int dagIdentifier, boolean sslShuffle) {
+    return constructBaseURIForShuffleHandler(host, port, new int[] { partition },
+        new int[] { partitionCount }, appId, dagIdentifier, sslShuffle);
+  }
+
+  /**
+   * Base URI for a fetch of several partition ranges. With a single range it applies to all
+   * the inputs appended by {@link #constructInputURL(String, Collection, boolean)}, otherwise
+   * there has to be one range per input, in the same order as the inputs.
+   */
+  public static StringBuilder constructBaseURIForShuffleHandler(String host,
+      int port, int[] partitions, int[] partitionCounts, String appId, int dagIdentifier,
+      boolean sslShuffle) {
     final String http_protocol = (sslShuffle) ? "https://" : "http://";
     StringBuilder sb = new StringBuilder(http_protocol);
     sb.append(host);
@@ -216,10 +236,15 @@ public class ShuffleUtils {
     sb.append("&dag=");
     sb.append(String.valueOf(dagIdentifier));
     sb.append("&reduce=");
-    sb.append(String.valueOf(partition));
-    if (partitionCount > 1) {
-      sb.append("-");
-      sb.append(String.valueOf(partition + partitionCount - 1));
+    for (int i = 0; i < partitions.length; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      sb.append(String.valueOf(partitions[i]));
+      if (partitionCounts[i] > 1) {
+        sb.append("-");
+        sb.append(String.valueOf(partitions[i] + partitionCounts[i] - 1));
+      }
     }
     sb.append("&map=");
     return sb;
@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
@@ -70,6 +71,7 @@ import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.shuffle.AdaptiveFetcherPool;
 import org.apache.tez.runtime.library.common.shuffle.FetchResult;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
@@ -137,7 +139,11 @@ public class ShuffleManager implements FetcherCallback {
   private final Condition wakeLoop = lock.newCondition();
   
   private final int numFetchers;
+  // Sizes the fetcher pool and orders hosts when adaptive fetching is enabled, null otherwise
+  private final AdaptiveFetcherPool adaptiveFetcherPool;
   private final boolean asyncHttp;
+  // Remote fetches do not hold a fetcher thread, see Fetcher#fetchNonBlocking
+  private final boolean nonBlockingFetch;
   
   // Parameters required by Fetchers
   private final JobTokenSecretManager jobTokenSecretMgr;
@@ -154,6 +160,7 @@ public class ShuffleManager implements FetcherCallback {
   private final String srcNameTrimmed;
 
   private final int maxTaskOutputAtOnce;
+  private final int maxPartitionRangesPerFetch;
 
   private final AtomicBoolean isShutdown = new AtomicBoolean(false);
 
@@ -236,15 +243,29 @@ public class ShuffleManager implements FetcherCallback {
             TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES_DEFAULT);
     
     this.numFetchers = Math.min(maxConfiguredFetchers, numInputs);
+    if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED_DEFAULT)) {
+      this.adaptiveFetcherPool = new AdaptiveFetcherPool(conf, srcNameTrimmed, numFetchers,
+          inputContext.getExecutionContext().getHostName(), inputContext.getCounters());
+    } else {
+      this.adaptiveFetcherPool = null;
+    }
 
+    // Non-blocking fetches need the async http client. Their responses are still processed on
+    // the fetcher threads, only waiting for the data does not hold a thread.
+    this.nonBlockingFetch = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_USE_ASYNC_HTTP, false)
+        && conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING,
+            TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_NON_BLOCKING_DEFAULT);
     final ExecutorService fetcherRawExecutor;
     if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCHER_USE_SHARED_POOL,
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCHER_USE_SHARED_POOL_DEFAULT)) {
       fetcherRawExecutor = inputContext.createTezFrameworkExecutorService(numFetchers,
           "Fetcher_B {" + srcNameTrimmed + "} #%d");
     } else {
-      fetcherRawExecutor = Executors.newFixedThreadPool(numFetchers, new ThreadFactoryBuilder()
-          .setDaemon(true).setNameFormat("Fetcher_B {" + srcNameTrimmed + "} #%d").build());
+      fetcherRawExecutor = Executors.newFixedThreadPool(numFetchers,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("Fetcher_B {" + srcNameTrimmed + "} #%d").build());
     }
     this.fetcherExecutor = MoreExecutors.listeningDecorator(fetcherRawExecutor);
 
@@ -284,6 +305,10 @@ public class ShuffleManager implements FetcherCallback {
     this.maxTaskOutputAtOnce = Math.max(1, Math.min(75, conf.getInt(
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE,
         TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE_DEFAULT)));
+    // Batching partition ranges needs the tez shuffle handler to serve a range per attempt
+    this.maxPartitionRangesPerFetch = compositeFetch ? Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES_DEFAULT)) : 1;
 
     Arrays.sort(this.localDisks);
 
@@ -295,7 +320,9 @@ public class ShuffleManager implements FetcherCallback {
         + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength +", "
         + "localDiskFetchEnabled=" + localDiskFetchEnabled + ", "
         + "sharedFetchEnabled=" + sharedFetchEnabled + ", "
-        + httpConnectionParams.toString() + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce);
+        + httpConnectionParams.toString() + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce
+        + ", maxPartitionRangesPerFetch=" + maxPartitionRangesPerFetch
+        + ", nonBlockingFetch=" + nonBlockingFetch);
   }
 
   public void run() throws IOException {
@@ -320,7 +347,7 @@ public class ShuffleManager implements FetcherCallback {
       while (!isShutdown.get() && numCompletedInputs.get() < numInputs) {
         lock.lock();
         try {
-          if (runningFetchers.size() >= numFetchers || pendingHosts.isEmpty()) {
+          if (runningFetchers.size() >= getMaxFetchers() || !hasSchedulableHost()) {
             if (numCompletedInputs.get() < numInputs) {
               wakeLoop.await();
             }
@@ -341,12 +368,12 @@ public class ShuffleManager implements FetcherCallback {
         if (numCompletedInputs.get() < numInputs && !isShutdown.get()) {
           lock.lock();
           try {
-            int maxFetchersToRun = numFetchers - runningFetchers.size();
+            int maxFetchersToRun = getMaxFetchers() - runningFetchers.size();
             int count = 0;
-            while (pendingHosts.peek() != null && !isShutdown.get()) {
+            while (count < maxFetchersToRun && pendingHosts.peek() != null && !isShutdown.get()) {
               InputHost inputHost = null;
               try {
-                inputHost = pendingHosts.take();
+                inputHost = takeNextHost();
               } catch (InterruptedException e) {
                 if (isShutdown.get()) {
                   LOG.info(srcNameTrimmed + ": " + "Interrupted and hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
@@ -356,6 +383,10 @@ public class ShuffleManager implements FetcherCallback {
                   throw e;
                 }
               }
+              if (inputHost == null) {
+                // The remaining hosts have as many fetchers as they are allowed
+                break;
+              }
               if (LOG.isDebugEnabled()) {
                 LOG.debug(srcNameTrimmed + ": " + "Processing pending host: " +
                     inputHost.toDetailedString());
@@ -368,8 +399,11 @@ public class ShuffleManager implements FetcherCallback {
                       "Breaking out of ShuffleScheduler Loop");
                   break;
                 }
-                ListenableFuture<FetchResult> future = fetcherExecutor
-                    .submit(fetcher);
+                if (adaptiveFetcherPool != null) {
+                  adaptiveFetcherPool.fetchStarted(inputHost.getHost());
+                }
+                ListenableFuture<FetchResult> future = fetcher.isNonBlocking()
+                    ? fetcher.fetchNonBlocking() : fetcherExecutor.submit(fetcher);
                 Futures.addCallback(future, new FetchFutureCallback(fetcher));
                 if (++count >= maxFetchersToRun) {
                   break;
@@ -396,6 +430,48 @@ public class ShuffleManager implements FetcherCallback {
     }
   }
 
+  private int getMaxFetchers() {
+    return adaptiveFetcherPool == null ? numFetchers : adaptiveFetcherPool.getTargetFetchers();
+  }
+
+  private boolean hasSchedulableHost() {
+    if (adaptiveFetcherPool == null) {
+      return !pendingHosts.isEmpty();
+    }
+    for (InputHost inputHost : pendingHosts) {
+      if (adaptiveFetcherPool.canFetchFrom(inputHost.getHost())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Picks the next host to fetch from. Pending hosts are served in order unless adaptive
+   * fetching is enabled, in which case the preferred host which can take another fetcher is
+   * picked, or null if there is none.
+   */
+  private InputHost takeNextHost() throws InterruptedException {
+    if (adaptiveFetcherPool == null) {
+      return pendingHosts.take();
+    }
+    List<InputHost> hosts = new ArrayList<InputHost>(pendingHosts.size());
+    pendingHosts.drainTo(hosts);
+    InputHost next = null;
+    for (InputHost inputHost : hosts) {
+      if (adaptiveFetcherPool.canFetchFrom(inputHost.getHost()) && (next == null
+          || adaptiveFetcherPool.compareHosts(inputHost.getHost(), next.getHost()) < 0)) {
+        next = inputHost;
+      }
+    }
+    for (InputHost inputHost : hosts) {
+      if (inputHost != next) {
+        pendingHosts.add(inputHost);
+      }
+    }
+    return next;
+  }
+
   private boolean validateInputAttemptForPipelinedShuffle(InputAttemptIdentifier input) {
     //For pipelined shuffle.
     //TODO: TEZ-2132 for error handling. As of now, fail fast if there is a different attempt
@@ -445,65 +521,76 @@ public class ShuffleManager implements FetcherCallback {
       fetcherBuilder.setCompressionParameters(codec);
     }
     fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    fetcherBuilder.setNonBlocking(nonBlockingFetch, fetcherExecutor);
 
     // Remove obsolete inputs from the list being given to the fetcher. Also
     // remove from the obsolete list.
-    PartitionToInputs pendingInputsOfOnePartitionRange = inputHost
-        .clearAndGetOnePartitionRange();
+    List<PartitionToInputs> pendingPartitionRanges =
+        inputHost.clearAndGetPartitionRanges(maxPartitionRangesPerFetch);
+    List<PartitionToInputs> assignedPartitionRanges =
+        new ArrayList<PartitionToInputs>(pendingPartitionRanges.size());
     int includedMaps = 0;
-    for (Iterator<InputAttemptIdentifier> inputIter =
-        pendingInputsOfOnePartitionRange.getInputs().iterator();
-            inputIter.hasNext();) {
-      InputAttemptIdentifier input = inputIter.next();
-
-      //For pipelined shuffle.
-      if (!validateInputAttemptForPipelinedShuffle(input)) {
-        continue;
-      }
+    for (PartitionToInputs pendingInputsOfOnePartitionRange : pendingPartitionRanges) {
+      for (Iterator<InputAttemptIdentifier> inputIter =
+          pendingInputsOfOnePartitionRange.getInputs().iterator();
+              inputIter.hasNext();) {
+        InputAttemptIdentifier input = inputIter.next();
+
+        //For pipelined shuffle.
+        if (!validateInputAttemptForPipelinedShuffle(input)) {
+          continue;
+        }
 
-      // Avoid adding attempts which have already completed.
-      boolean alreadyCompleted;
-      if (input instanceof CompositeInputAttemptIdentifier) {
-        CompositeInputAttemptIdentifier compositeInput = (CompositeInputAttemptIdentifier)input;
-        int nextClearBit = completedInputSet.nextClearBit(compositeInput.getInputIdentifier());
-        int maxClearBit = compositeInput.getInputIdentifier() + compositeInput.getInputIdentifierCount();
-        alreadyCompleted = nextClearBit > maxClearBit;
-      } else {
-          alreadyCompleted = completedInputSet.get(input.getInputIdentifier());
-      }
-      // Avoid adding attempts which have already completed or have been marked as OBSOLETE
-      if (alreadyCompleted || obsoletedInputs.contains(input)) {
-        inputIter.remove();
-        continue;
-      }
+        // Avoid adding attempts which have already completed.
+        boolean alreadyCompleted;
+        if (input instanceof CompositeInputAttemptIdentifier) {
+          CompositeInputAttemptIdentifier compositeInput = (CompositeInputAttemptIdentifier)input;
+          int nextClearBit = completedInputSet.nextClearBit(compositeInput.getInputIdentifier());
+          int maxClearBit = compositeInput.getInputIdentifier() + compositeInput.getInputIdentifierCount();
+          alreadyCompleted = nextClearBit > maxClearBit;
+        } else {
+            alreadyCompleted = completedInputSet.get(input.getInputIdentifier());
+        }
+        // Avoid adding attempts which have already completed or have been marked as OBSOLETE
+        if (alreadyCompleted || obsoletedInputs.contains(input)) {
+          inputIter.remove();
+          continue;
+        }
 
-      // Check if max threshold is met
-      if (includedMaps >= maxTaskOutputAtOnce) {
-        inputIter.remove();
-        //add to inputHost
-        inputHost.addKnownInput(pendingInputsOfOnePartitionRange.getPartition(),
-            pendingInputsOfOnePartitionRange.getPartitionCount(), input);
-      } else {
-        includedMaps++;
+        // Check if max threshold is met, it applies across all the batched ranges
+        if (includedMaps >= maxTaskOutputAtOnce) {
+          inputIter.remove();
+          //add to inputHost
+          inputHost.addKnownInput(pendingInputsOfOnePartitionRange.getPartition(),
+              pendingInputsOfOnePartitionRange.getPartitionCount(), input);
+        } else {
+          includedMaps++;
+        }
+      }
+      if (!pendingInputsOfOnePartitionRange.getInputs().isEmpty()) {
+        assignedPartitionRanges.add(pendingInputsOfOnePartitionRange);
       }
     }
+    if (assignedPartitionRanges.isEmpty()) {
+      // Nothing left to fetch, the fetcher completes right away
+      assignedPartitionRanges.add(pendingPartitionRanges.get(0));
+    }
     if (inputHost.getNumPendingPartitions() > 0) {
       pendingHosts.add(inputHost); //add it to queue
     }
-    for(InputAttemptIdentifier input : pendingInputsOfOnePartitionRange.getInputs()) {
-      ShuffleEventInfo eventInfo = shuffleInfoEventsMap.get(input.getInputIdentifier());
-      if (eventInfo != null) {
-        eventInfo.scheduledForDownload = true;
+    for (PartitionToInputs pendingInputsOfOnePartitionRange : assignedPartitionRanges) {
+      for(InputAttemptIdentifier input : pendingInputsOfOnePartitionRange.getInputs()) {
+        ShuffleEventInfo eventInfo = shuffleInfoEventsMap.get(input.getInputIdentifier());
+        if (eventInfo != null) {
+          eventInfo.scheduledForDownload = true;
+        }
       }
     }
-    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(),
-        pendingInputsOfOnePartitionRange.getPartition(),
-        pendingInputsOfOnePartitionRange.getPartitionCount(),
-            pendingInputsOfOnePartitionRange.getInputs());
+    fetcherBuilder.assignWork(inputHost.getHost(), inputHost.getPort(), assignedPartitionRanges);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Created Fetcher for host: " + inputHost.getHost()
           + ", info: " + inputHost.getAdditionalInfo()
-          + ", with inputs: " + pendingInputsOfOnePartitionRange);
+          + ", with inputs: " + assignedPartitionRanges);
     }
     return fetcherBuilder.build();
   }
@@ -644,6 +731,9 @@ public class ShuffleManager implements FetcherCallback {
       FetchedInput fetchedInput, long fetchedBytes, long decompressedLength, long copyDuration)
       throws IOException {
     int inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
+    if (adaptiveFetcherPool != null) {
+      adaptiveFetcherPool.bytesFetched(host, fetchedBytes);
+    }
 
     // Count irrespective of whether this is a copy of an already fetched input
     lock.lock();
@@ -790,6 +880,9 @@ public class ShuffleManager implements FetcherCallback {
         + "InputIdentifier: " + srcAttemptIdentifier + ", connectFailed: "
         + connectFailed);
     failedShufflesCounter.increment(1);
+    if (adaptiveFetcherPool != null) {
+      adaptiveFetcherPool.fetchFailed(host);
+    }
     inputContext.notifyProgress();
     if (srcAttemptIdentifier == null) {
       reportFatalError(null, "Received fetchFailure for an unknown src (null)");
@@ -986,12 +1079,16 @@ public class ShuffleManager implements FetcherCallback {
   private class FetchFutureCallback implements FutureCallback<FetchResult> {
 
     private final Fetcher fetcher;
+    private final long startNanos = System.nanoTime();
     
     public FetchFutureCallback(Fetcher fetcher) {
       this.fetcher = fetcher;
     }
     
     private void doBookKeepingForFetcherComplete() {
+      if (adaptiveFetcherPool != null) {
+        adaptiveFetcherPool.fetchCompleted(fetcher.getHost(), System.nanoTime() - startNanos);
+      }
       lock.lock();
       try {
         runningFetchers.remove(fetcher);
@@ -1015,8 +1112,10 @@ public class ShuffleManager implements FetcherCallback {
               result.getPort());
           InputHost inputHost = knownSrcHosts.get(identifier);
           assert inputHost != null;
-          for (InputAttemptIdentifier input : pendingInputs) {
-            inputHost.addKnownInput(result.getPartition(), result.getPartitionCount(), input);
+          for (PartitionToInputs range : result.getPendingPartitionRanges()) {
+            for (InputAttemptIdentifier input : range.getInputs()) {
+              inputHost.addKnownInput(range.getPartition(), range.getPartitionCount(), input);
+            }
           }
           inputHost.setAdditionalInfo(result.getAdditionalInfo());
           pendingHosts.add(inputHost);
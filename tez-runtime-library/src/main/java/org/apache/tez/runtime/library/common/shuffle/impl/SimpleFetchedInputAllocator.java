@@ -37,6 +37,7 @@ import org.apache.tez.runtime.library.common.shuffle.FetchedInput.Type;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputCallback;
 import org.apache.tez.runtime.library.common.shuffle.MemoryFetchedInput;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleMemoryPool;
 
 
 /**
@@ -62,6 +63,8 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   private final long initialMemoryAvailable;
 
   private final String srcNameTrimmed;
+  // Memory of the in-memory inputs, null if they get their own buffers
+  private final ShuffleMemoryPool memoryPool;
   
   private volatile long usedMemory = 0;
 
@@ -70,7 +73,18 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
                                      Configuration conf,
                                      long maxTaskAvailableMemory,
                                      long memoryAvailable) {
+    this(srcNameTrimmed, uniqueIdentifier, dagID, conf, maxTaskAvailableMemory, memoryAvailable,
+        null);
+  }
+
+  public SimpleFetchedInputAllocator(String srcNameTrimmed,
+                                     String uniqueIdentifier, int dagID,
+                                     Configuration conf,
+                                     long maxTaskAvailableMemory,
+                                     long memoryAvailable,
+                                     ShuffleMemoryPool memoryPool) {
     this.srcNameTrimmed = srcNameTrimmed;
+    this.memoryPool = memoryPool;
     this.conf = conf;    
     this.maxAvailableTaskMemory = maxTaskAvailableMemory;
     this.initialMemoryAvailable = memoryAvailable;
@@ -139,17 +153,19 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
     if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
+        || this.usedMemory + getMemorySize(actualSize) > this.memoryLimit) {
       return new DiskFetchedInput(actualSize, compressedSize,
           inputAttemptIdentifier, this, conf, localDirAllocator,
           fileNameAllocator);
     } else {
-      this.usedMemory += actualSize;
+      MemoryFetchedInput fetchedInput = new MemoryFetchedInput(actualSize, compressedSize,
+          inputAttemptIdentifier, this, memoryPool);
+      this.usedMemory += fetchedInput.getMemorySize();
       if (LOG.isDebugEnabled()) {
         LOG.info(srcNameTrimmed + ": " + "Used memory after allocating " + actualSize + " : " +
             usedMemory);
       }
-      return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this);
+      return fetchedInput;
     }
   }
 
@@ -197,7 +213,7 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     case DISK:
       break;
     case MEMORY:
-      unreserve(fetchedInput.getActualSize());
+      unreserve(((MemoryFetchedInput) fetchedInput).getMemorySize());
       break;
     default:
       throw new TezUncheckedException("InputType: " + fetchedInput.getType()
@@ -205,6 +221,10 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
   }
 
+  private long getMemorySize(long actualSize) {
+    return memoryPool != null ? memoryPool.getAllocationSize((int) actualSize) : actualSize;
+  }
+
   private synchronized void unreserve(long size) {
     this.usedMemory -= size;
     if (LOG.isDebugEnabled()) {
@@ -24,6 +24,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -52,6 +54,7 @@ import org.apache.tez.runtime.library.exceptions.FetcherReadTimeoutException;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   
@@ -79,9 +82,10 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   private final String applicationId;
  private final int dagId;
   private final MapHost mapHost;
-
-  private final int minPartition;
-  private final int maxPartition;
+  // Hosts of the partition ranges fetched in one request, more than one when batched
+  private final List<MapHost> mapHosts;
+  // Host of each input, keyed like remaining, when requests are batched
+  private final Map<String, MapHost> inputToMapHost = new HashMap<String, MapHost>();
 
   // Decompression of map-outputs
   private final CompressionCodec codec;
@@ -131,12 +135,51 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
                                boolean sslShuffle,
                                boolean verifyDiskChecksum,
                                boolean compositeFetch) {
+    this(httpConnectionParams, scheduler, allocator, exceptionReporter, jobTokenSecretMgr,
+        ifileReadAhead, ifileReadAheadLength, codec, conf, localDiskFetchEnabled, localHostname,
+        shufflePort, srcNameTrimmed, Collections.singletonList(mapHost), ioErrsCounter,
+        wrongLengthErrsCounter, badIdErrsCounter, wrongMapErrsCounter, connectionErrsCounter,
+        wrongReduceErrsCounter, applicationId, dagId, asyncHttp, sslShuffle, verifyDiskChecksum,
+        compositeFetch);
+  }
+
+  /**
+   * Fetcher for several partition ranges of the same host, which are requested together. All
+   * the {@link MapHost}s have to be for the same host and port, and the Tez shuffle handler is
+   * needed when there is more than one.
+   */
+  public FetcherOrderedGrouped(HttpConnectionParams httpConnectionParams,
+                               ShuffleScheduler scheduler,
+                               FetchedInputAllocatorOrderedGrouped allocator,
+                               ExceptionReporter exceptionReporter, JobTokenSecretManager jobTokenSecretMgr,
+                               boolean ifileReadAhead, int ifileReadAheadLength,
+                               CompressionCodec codec,
+                               Configuration conf,
+                               boolean localDiskFetchEnabled,
+                               String localHostname,
+                               int shufflePort,
+                               String srcNameTrimmed,
+                               List<MapHost> mapHosts,
+                               TezCounter ioErrsCounter,
+                               TezCounter wrongLengthErrsCounter,
+                               TezCounter badIdErrsCounter,
+                               TezCounter wrongMapErrsCounter,
+                               TezCounter connectionErrsCounter,
+                               TezCounter wrongReduceErrsCounter,
+                               String applicationId,
+                               int dagId,
+                               boolean asyncHttp,
+                               boolean sslShuffle,
+                               boolean verifyDiskChecksum,
+                               boolean compositeFetch) {
+    Preconditions.checkArgument(!mapHosts.isEmpty(), "No host assigned");
+    Preconditions.checkArgument(mapHosts.size() == 1 || compositeFetch,
+        "Multiple partition ranges need composite fetch");
     this.scheduler = scheduler;
     this.allocator = allocator;
     this.exceptionReporter = exceptionReporter;
-    this.mapHost = mapHost;
-    this.minPartition = this.mapHost.getPartitionId();
-    this.maxPartition = this.minPartition + this.mapHost.getPartitionCount() - 1;
+    this.mapHost = mapHosts.get(0);
+    this.mapHosts = mapHosts;
     this.id = nextId.incrementAndGet();
     this.jobTokenSecretManager = jobTokenSecretMgr;
 
@@ -174,14 +217,19 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
   protected void fetchNext() throws InterruptedException, IOException {
     try {
       if (localDiskFetchEnabled && mapHost.getHost().equals(localShuffleHost) && mapHost.getPort() == localShufflePort) {
-        setupLocalDiskFetch(mapHost);
+        for (MapHost host : mapHosts) {
+          remaining = null;
+          setupLocalDiskFetch(host);
+        }
       } else {
         // Shuffle
         copyFromHost(mapHost);
       }
     } finally {
       cleanupCurrentConnection(false);
-      scheduler.freeHost(mapHost);
+      for (MapHost host : mapHosts) {
+        scheduler.freeHost(host);
+      }
     }
   }
 
@@ -245,7 +293,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     // reset retryStartTime for a new host
     retryStartTime = 0;
     // Get completed maps on 'host'
-    List<InputAttemptIdentifier> srcAttempts = scheduler.getMapsForHost(host);
+    List<InputAttemptIdentifier> srcAttempts = mapHosts.size() == 1
+        ? scheduler.getMapsForHost(host) : getMapsForBatchedHosts();
     // Sanity check to catch hosts with only 'OBSOLETE' maps,
     // especially at the tail of large jobs
     if (srcAttempts.size() == 0) {
@@ -253,7 +302,9 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
     }
     if(LOG.isDebugEnabled()) {
       LOG.debug("Fetcher " + id + " going to fetch from " + host + " for: "
-        + srcAttempts + ", partition range: " + minPartition + "-" + maxPartition);
+        + srcAttempts + ", partition range: " + host.getPartitionId() + "-"
+        + (host.getPartitionId() + host.getPartitionCount() - 1)
+        + ", batched partition ranges: " + mapHosts.size());
     }
     populateRemainingMap(srcAttempts);
     // Construct the url and connect
@@ -313,7 +364,7 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
         } else {
           LOG.warn("copyMapOutput failed for tasks " + Arrays.toString(failedTasks));
           for (InputAttemptIdentifier left : failedTasks) {
-            scheduler.copyFailed(left, host, true, false, false);
+            scheduler.copyFailed(left, getMapHost(left, host), true, false, false);
           }
         }
       }
@@ -335,8 +386,23 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       throws IOException {
     boolean connectSucceeded = false;
     try {
-      StringBuilder baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host.getHost(),
-          host.getPort(), host.getPartitionId(), host.getPartitionCount(), applicationId, dagId, sslShuffle);
+      StringBuilder baseURI;
+      if (mapHosts.size() == 1) {
+        baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host.getHost(),
+            host.getPort(), host.getPartitionId(), host.getPartitionCount(), applicationId, dagId, sslShuffle);
+      } else {
+        // One range per attempt, in the order the attempts are listed in the url
+        int[] partitions = new int[attempts.size()];
+        int[] partitionCounts = new int[attempts.size()];
+        int i = 0;
+        for (InputAttemptIdentifier attempt : attempts) {
+          MapHost rangeHost = getMapHost(attempt, host);
+          partitions[i] = rangeHost.getPartitionId();
+          partitionCounts[i++] = rangeHost.getPartitionCount();
+        }
+        baseURI = ShuffleUtils.constructBaseURIForShuffleHandler(host.getHost(), host.getPort(),
+            partitions, partitionCounts, applicationId, dagId, sslShuffle);
+      }
       URL url = ShuffleUtils.constructInputURL(baseURI.toString(), attempts, httpConnectionParams.isKeepAlive());
       httpConnection = ShuffleUtils.getHttpConnection(asyncHttp, url, httpConnectionParams,
           logIdentifier, jobTokenSecretManager);
@@ -376,7 +442,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
       for (InputAttemptIdentifier left : remaining.values()) {
         // Need to be handling temporary glitches ..
         // Report read error to the AM to trigger source failure heuristics
-        scheduler.copyFailed(left, host, connectSucceeded, !connectSucceeded, false);
+        scheduler.copyFailed(left, getMapHost(left, host), connectSucceeded, !connectSucceeded,
+            false);
       }
       return false;
     }
@@ -393,13 +460,40 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
         isFirst = false;
         continue;
       }
-      scheduler.putBackKnownMapOutput(host, left);
+      scheduler.putBackKnownMapOutput(getMapHost(left, host), left);
     }
     if (first != null) { // Empty remaining list.
-      scheduler.putBackKnownMapOutput(host, first);
+      scheduler.putBackKnownMapOutput(getMapHost(first, host), first);
     }
   }
 
+  /**
+   * Takes the maps of all the batched hosts, up to the limit of task outputs of a single fetch.
+   * An input listed under more than one of the partition ranges is left to a later fetch for
+   * all but the first of them, since the fetched outputs are tracked by input.
+   */
+  private List<InputAttemptIdentifier> getMapsForBatchedHosts() {
+    List<InputAttemptIdentifier> srcAttempts = new ArrayList<InputAttemptIdentifier>();
+    int maxTaskOutputAtOnce = scheduler.getMaxTaskOutputAtOnce();
+    for (MapHost host : mapHosts) {
+      for (InputAttemptIdentifier srcAttempt :
+          scheduler.getMapsForHost(host, maxTaskOutputAtOnce - srcAttempts.size())) {
+        if (inputToMapHost.containsKey(srcAttempt.toString())) {
+          scheduler.putBackKnownMapOutput(host, srcAttempt);
+        } else {
+          inputToMapHost.put(srcAttempt.toString(), host);
+          srcAttempts.add(srcAttempt);
+        }
+      }
+    }
+    return srcAttempts;
+  }
+
+  private MapHost getMapHost(InputAttemptIdentifier srcAttempt, MapHost defaultHost) {
+    MapHost host = inputToMapHost.get(srcAttempt.toString());
+    return host != null ? host : defaultHost;
+  }
+
   private static InputAttemptIdentifier[] EMPTY_ATTEMPT_ID_ARRAY = new InputAttemptIdentifier[0];
 
   private static class MapOutputStat {
@@ -485,7 +579,7 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
 
         // Do some basic sanity verification
         if (!verifySanity(mapOutputStat.compressedLength, mapOutputStat.decompressedLength, mapOutputStat.forReduce,
-            remaining, mapOutputStat.srcAttemptId)) {
+            getMapHost(inputAttemptIdentifier, host), mapOutputStat.srcAttemptId)) {
           if (!stopped) {
             srcAttemptId = mapOutputStat.srcAttemptId;
             if (srcAttemptId == null) {
@@ -642,12 +736,12 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
    * @param compressedLength
    * @param decompressedLength
    * @param forReduce
-   * @param remaining
+   * @param rangeHost the host the input was requested from, with its partition range
    * @param srcAttemptId
    * @return true/false, based on if the verification succeeded or not
    */
   private boolean verifySanity(long compressedLength, long decompressedLength,
-      int forReduce, Map<String, InputAttemptIdentifier> remaining, InputAttemptIdentifier srcAttemptId) {
+      int forReduce, MapHost rangeHost, InputAttemptIdentifier srcAttemptId) {
     if (compressedLength < 0 || decompressedLength < 0) {
       wrongLengthErrs.increment(1);
       LOG.warn(logIdentifier + " invalid lengths in map output header: id: " +
@@ -658,11 +752,13 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
 
     // partitionId verification. Isn't availalbe here because it is encoded into
     // URI
-    if (forReduce < minPartition || forReduce > maxPartition) {
+    int firstPartition = rangeHost.getPartitionId();
+    int lastPartition = firstPartition + rangeHost.getPartitionCount() - 1;
+    if (forReduce < firstPartition || forReduce > lastPartition) {
       wrongReduceErrs.increment(1);
       LOG.warn(logIdentifier + " data for the wrong partition map: " + srcAttemptId + " len: "
           + compressedLength + " decomp len: " + decompressedLength + " for partition " + forReduce
-          + ", expected partition range: " + minPartition + "-" + maxPartition);
+          + ", expected partition range: " + firstPartition + "-" + lastPartition);
       return false;
     }
     return true;
@@ -689,7 +785,8 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
 
     if(LOG.isDebugEnabled()) {
       LOG.debug("Fetcher " + id + " going to fetch (local disk) from " + host + " for: "
-          + srcAttempts + ", partition range: " + minPartition + "-" + maxPartition);
+          + srcAttempts + ", partition range: " + host.getPartitionId() + "-"
+          + (host.getPartitionId() + host.getPartitionCount() - 1));
     }
 
     // List of maps to be fetched yet
@@ -706,12 +803,12 @@ class FetcherOrderedGrouped extends CallableWithNdc<Void> {
         MapOutput mapOutput = null;
         boolean hasFailures = false;
         // Fetch partition count number of map outputs (handles auto-reduce case)
-        for (int curPartition = minPartition; curPartition <= maxPartition; curPartition++) {
+        for (int curPartition = 0; curPartition < host.getPartitionCount(); curPartition++) {
           try {
             long startTime = System.currentTimeMillis();
 
             // Partition id is the base partition id plus the relative offset
-            int reduceId = host.getPartitionId() + curPartition - minPartition;
+            int reduceId = host.getPartitionId() + curPartition;
             srcAttemptId = scheduler.getIdentifierForFetchedOutput(srcAttemptId.getPathComponent(), reduceId);
             Path filename = getShuffleInputFileName(srcAttemptId.getPathComponent(), null);
             TezIndexRecord indexRecord = getIndexRecord(srcAttemptId.getPathComponent(), reduceId);
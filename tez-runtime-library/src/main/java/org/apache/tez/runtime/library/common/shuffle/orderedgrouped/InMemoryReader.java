@@ -19,13 +19,16 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.tez.common.io.ByteBufferInputStream;
 import org.apache.tez.common.io.NonSyncByteArrayInputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
@@ -33,6 +36,7 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile.Reader;
 
 /**
  * <code>IFile.InMemoryReader</code> to read map-outputs present in-memory.
+ * Keys and values are read in place from heap memory, and copied out of direct memory.
  */
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
@@ -134,11 +138,18 @@ public class InMemoryReader extends Reader {
 
   private final InputAttemptIdentifier taskAttemptId;
   private final MergeManager merger;
+  // Set when reading a MapOutput, whose memory is given back on close
+  private final MapOutput mapOutput;
   ByteArrayDataInput memDataIn;
   private int start;
   private int length;
   private int originalKeyPos;
 
+  // Set instead of memDataIn for memory which is not backed by an array
+  private ByteBuffer directData;
+  private DataInputStream directDataIn;
+  private byte[] directKeyBytes = new byte[0];
+
   public InMemoryReader(MergeManager merger,
       InputAttemptIdentifier taskAttemptId, byte[] data, int start,
       int length)
@@ -146,6 +157,7 @@ public class InMemoryReader extends Reader {
     super(null, length - start, null, null, null, false, 0, -1);
     this.taskAttemptId = taskAttemptId;
     this.merger = merger;
+    this.mapOutput = null;
 
     buffer = data;
     bufferSize = (int) length;
@@ -154,9 +166,52 @@ public class InMemoryReader extends Reader {
     this.length = length;
   }
 
+  /**
+   * Read <code>length</code> bytes from the position of <code>data</code>, which may be a direct
+   * buffer.
+   */
+  public InMemoryReader(MergeManager merger, InputAttemptIdentifier taskAttemptId,
+      ByteBuffer data, int length) throws IOException {
+    this(merger, taskAttemptId, data, length, null);
+  }
+
+  /**
+   * Read the memory of <code>mapOutput</code>, which is released once the reader is closed.
+   */
+  InMemoryReader(MergeManager merger, MapOutput mapOutput) throws IOException {
+    this(merger, mapOutput.getAttemptIdentifier(), mapOutput.getMemory(),
+        (int) mapOutput.getSize(), mapOutput);
+  }
+
+  private InMemoryReader(MergeManager merger, InputAttemptIdentifier taskAttemptId,
+      ByteBuffer data, int length, MapOutput mapOutput) throws IOException {
+    super(null, length, null, null, null, false, 0, -1);
+    this.taskAttemptId = taskAttemptId;
+    this.merger = merger;
+    this.mapOutput = mapOutput;
+
+    bufferSize = length;
+    this.length = length;
+    if (data.hasArray()) {
+      buffer = data.array();
+      start = data.arrayOffset() + data.position();
+      memDataIn = new ByteArrayDataInput(buffer, start, length);
+    } else {
+      directData = data.slice();
+      directData.limit(length);
+      reset(0);
+    }
+  }
+
   @Override
   public void reset(int offset) {
-    memDataIn.reset(buffer, start + offset, length);
+    if (directData != null) {
+      ByteBuffer data = directData.duplicate();
+      data.position(offset);
+      directDataIn = new DataInputStream(new ByteBufferInputStream(data));
+    } else {
+      memDataIn.reset(buffer, start + offset, length);
+    }
     bytesRead = offset;
     eof = false;
   }
@@ -181,7 +236,13 @@ public class InMemoryReader extends Reader {
     FileOutputStream fos = null;
     try {
       fos = new FileOutputStream(dumpFile);
-      fos.write(buffer, 0, bufferSize);
+      if (directData != null) {
+        byte[] data = new byte[bufferSize];
+        directData.duplicate().get(data);
+        fos.write(data);
+      } else {
+        fos.write(buffer, start, bufferSize);
+      }
     } catch (IOException ioe) {
       System.err.println("Failed to dump map-output of " + taskAttemptId);
     } finally {
@@ -197,12 +258,15 @@ public class InMemoryReader extends Reader {
 
   protected void readKeyValueLength(DataInput dIn) throws IOException {
     super.readKeyValueLength(dIn);
-    if (currentKeyLength != IFile.RLE_MARKER) {
+    if (memDataIn != null && currentKeyLength != IFile.RLE_MARKER) {
       originalKeyPos = memDataIn.getPosition();
     }
   }
 
   public KeyState readRawKey(DataInputBuffer key) throws IOException {
+    if (directData != null) {
+      return readDirectRawKey(key);
+    }
     try {
       if (!positionToNextRecord(memDataIn)) {
         return KeyState.NO_KEY;
@@ -232,6 +296,10 @@ public class InMemoryReader extends Reader {
   }
 
   public void nextRawValue(DataInputBuffer value) throws IOException {
+    if (directData != null) {
+      nextDirectRawValue(value);
+      return;
+    }
     try {
       int pos = memDataIn.getPosition();
       byte[] data = memDataIn.getData();
@@ -253,12 +321,55 @@ public class InMemoryReader extends Reader {
     }
   }
 
+  private KeyState readDirectRawKey(DataInputBuffer key) throws IOException {
+    try {
+      if (!positionToNextRecord(directDataIn)) {
+        return KeyState.NO_KEY;
+      }
+      if (currentKeyLength == IFile.RLE_MARKER) {
+        // the original key is still in directKeyBytes
+        key.reset(directKeyBytes, originalKeyLength);
+        return KeyState.SAME_KEY;
+      }
+      if (directKeyBytes.length < currentKeyLength) {
+        directKeyBytes = new byte[currentKeyLength << 1];
+      }
+      directDataIn.readFully(directKeyBytes, 0, currentKeyLength);
+      key.reset(directKeyBytes, currentKeyLength);
+      bytesRead += currentKeyLength;
+      return KeyState.NEW_KEY;
+    } catch (IOException ioe) {
+      dumpOnError();
+      throw ioe;
+    }
+  }
+
+  private void nextDirectRawValue(DataInputBuffer value) throws IOException {
+    try {
+      final byte[] valBytes = (value.getData().length < currentValueLength
+          || value.getData() == directKeyBytes)
+          ? new byte[currentValueLength << 1] : value.getData();
+      directDataIn.readFully(valBytes, 0, currentValueLength);
+      value.reset(valBytes, currentValueLength);
+      bytesRead += currentValueLength;
+      ++recNo;
+    } catch (IOException ioe) {
+      dumpOnError();
+      throw ioe;
+    }
+  }
+
   public void close() {
     // Release
     buffer = null;
+    directData = null;
+    directDataIn = null;
     // Inform the MergeManager
     if (merger != null) {
-      merger.releaseCommittedMemory(bufferSize);
+      merger.releaseCommittedMemory(mapOutput != null ? mapOutput.getMemorySize() : bufferSize);
+    }
+    if (mapOutput != null) {
+      mapOutput.releaseMemory();
     }
   }
 }
@@ -18,12 +18,12 @@
 package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
-import org.apache.hadoop.io.BoundedByteArrayOutputStream;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.tez.common.io.NonSyncDataOutputStream;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
@@ -37,7 +37,7 @@ public class InMemoryWriter extends Writer {
 
   // TODO Verify and fix counters if required.
 
-  public InMemoryWriter(BoundedByteArrayOutputStream arrayStream) {
+  public InMemoryWriter(OutputStream arrayStream) {
     super(null, null);
     this.out =
       new NonSyncDataOutputStream(new IFileOutputStream(arrayStream));
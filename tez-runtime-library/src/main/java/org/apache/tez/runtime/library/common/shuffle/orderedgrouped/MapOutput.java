@@ -19,6 +19,7 @@ package org.apache.tez.runtime.library.common.shuffle.orderedgrouped;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -27,9 +28,10 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BoundedByteArrayOutputStream;
 import org.apache.hadoop.io.FileChunk;
+import org.apache.tez.common.io.ByteBufferOutputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleMemoryPool;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 
 
@@ -88,7 +90,17 @@ abstract class MapOutput {
   public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
                                                 FetchedInputAllocatorOrderedGrouped callback, int size,
                                                 boolean primaryMapOutput)  {
-    return new InMemoryMapOutput(attemptIdentifier, callback, size, primaryMapOutput);
+    return createMemoryMapOutput(attemptIdentifier, callback, size, primaryMapOutput, null);
+  }
+
+  /**
+   * @param memoryPool pool to allocate the memory from, a new buffer is allocated if null
+   */
+  public static MapOutput createMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
+                                                FetchedInputAllocatorOrderedGrouped callback, int size,
+                                                boolean primaryMapOutput,
+                                                ShuffleMemoryPool memoryPool)  {
+    return new InMemoryMapOutput(attemptIdentifier, callback, size, primaryMapOutput, memoryPool);
   }
 
   public static MapOutput createWaitMapOutput(InputAttemptIdentifier attemptIdentifier) {
@@ -116,13 +128,31 @@ abstract class MapOutput {
     return null;
   }
 
-  public byte[] getMemory() {
+  /**
+   * @return a new view of the memory of an in-memory output, positioned at its start. It may be
+   *         a direct buffer, which is not backed by an array.
+   */
+  public ByteBuffer getMemory() {
     return null;
   }
 
-  public BoundedByteArrayOutputStream getArrayStream() {
+  public OutputStream getMemoryStream() {
     return null;
   }
+
+  /**
+   * @return the number of bytes of memory held by an in-memory output, which can be more than its
+   *         size when taken out of a pool
+   */
+  public long getMemorySize() {
+    return 0;
+  }
+
+  /**
+   * Give back the memory of an in-memory output once it is no longer read.
+   */
+  public void releaseMemory() {
+  }
   
   public OutputStream getDisk() {
     return null;
@@ -253,27 +283,52 @@ abstract class MapOutput {
   }
 
   private static class InMemoryMapOutput extends MapOutput {
-    private BoundedByteArrayOutputStream byteStream;
+    private final int size;
+    private final ByteBuffer memory;
+    private final ByteBufferOutputStream byteStream;
+    // Set when the memory is taken out of a pool
+    private final ShuffleMemoryPool.Chunk chunk;
     private InMemoryMapOutput(InputAttemptIdentifier attemptIdentifier,
                               FetchedInputAllocatorOrderedGrouped callback,
-                              long size, boolean primaryMapOutput) {
+                              int size, boolean primaryMapOutput,
+                              ShuffleMemoryPool memoryPool) {
       super(attemptIdentifier, callback, primaryMapOutput);
-      this.byteStream = new BoundedByteArrayOutputStream((int)size);
+      this.size = size;
+      if (memoryPool != null) {
+        this.chunk = memoryPool.allocate(size);
+        this.memory = chunk.getBuffer();
+      } else {
+        this.chunk = null;
+        this.memory = ByteBuffer.allocate(size);
+      }
+      this.byteStream = new ByteBufferOutputStream(memory.duplicate());
     }
 
     @Override
-    public byte[] getMemory() {
-      return byteStream.getBuffer();
+    public ByteBuffer getMemory() {
+      return memory.duplicate();
     }
 
     @Override
-    public BoundedByteArrayOutputStream getArrayStream() {
+    public OutputStream getMemoryStream() {
       return byteStream;
     }
 
     @Override
     public long getSize() {
-      return byteStream.getLimit();
+      return size;
+    }
+
+    @Override
+    public long getMemorySize() {
+      return chunk != null ? chunk.getCapacity() : size;
+    }
+
+    @Override
+    public void releaseMemory() {
+      if (chunk != null) {
+        chunk.release();
+      }
     }
 
     @Override
@@ -283,7 +338,8 @@ abstract class MapOutput {
 
     @Override
     public void abort() {
-      callback.unreserve(byteStream.getBuffer().length);
+      callback.unreserve(getMemorySize());
+      releaseMemory();
     }
 
     @Override
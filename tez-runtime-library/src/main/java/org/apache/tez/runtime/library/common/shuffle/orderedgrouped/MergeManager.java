@@ -46,6 +46,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.combine.Combiner;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleMemoryPool;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
@@ -114,6 +115,8 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   final long postMergeMemLimit;
   private long usedMemory;
   private long commitMemory;
+  // Memory of the in-memory map outputs, null if they get their own buffers
+  private final ShuffleMemoryPool memoryPool;
   private final int ioSortFactor;
   private final long maxSingleShuffleLimit;
 
@@ -146,6 +149,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private final boolean ifileReadAhead;
   private final int ifileReadAheadLength;
   private final int ifileBufferSize;
+  private final boolean localFetchMmapEnabled;
 
   // Variables for stats and logging
   private long lastInMemSegmentLogTime = -1L;
@@ -208,6 +212,9 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     }
     this.ifileBufferSize = conf.getInt("io.file.buffer.size",
         TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+    this.localFetchMmapEnabled = conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED_DEFAULT);
     
     // Figure out initial memory req start
     final float maxInMemCopyUse =
@@ -245,6 +252,13 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       this.postMergeMemLimit = maxRedBuffer;
     }
 
+    if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED_DEFAULT)) {
+      this.memoryPool = new ShuffleMemoryPool(conf, inputContext.getCounters());
+    } else {
+      this.memoryPool = null;
+    }
+
     if (LOG.isDebugEnabled()) {
       LOG.debug(
           inputContext.getSourceVertexName() + ": " + "InitialRequest: ShuffleMem=" + memLimit +
@@ -453,9 +467,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
   private synchronized MapOutput unconditionalReserve(
       InputAttemptIdentifier srcAttemptIdentifier, long requestedSize, boolean primaryMapOutput) throws
       IOException {
-    usedMemory += requestedSize;
-    return MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this, (int)requestedSize,
-        primaryMapOutput);
+    MapOutput mapOutput = MapOutput.createMemoryMapOutput(srcAttemptIdentifier, this,
+        (int)requestedSize, primaryMapOutput, memoryPool);
+    usedMemory += mapOutput.getMemorySize();
+    return mapOutput;
   }
 
   @Override
@@ -480,7 +495,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     inMemoryMapOutputs.add(mapOutput);
     trackAndLogCloseInMemoryFile(mapOutput);
 
-    commitMemory+= mapOutput.getSize();
+    commitMemory+= mapOutput.getMemorySize();
 
     if (commitMemory >= mergeThreshold) {
       startMemToDiskMerge();
@@ -558,7 +573,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
           inMemoryMergedMapOutputs.size());
     }
 
-    commitMemory += mapOutput.getSize();
+    commitMemory += mapOutput.getMemorySize();
 
     if (commitMemory >= mergeThreshold) {
       startMemToDiskMerge();
@@ -631,6 +646,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       }
       inMemoryMerger.close();
       onDiskMerger.close();
+      if (memoryPool != null) {
+        // Outputs which are still in memory are freed as they get released by the final merge
+        memoryPool.close();
+      }
 
       List<MapOutput> memory =
           new ArrayList<MapOutput>(inMemoryMergedMapOutputs);
@@ -750,8 +769,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
             continue;
           } else {
             mergeOutputSize += mo.getSize();
-            IFile.Reader reader = new InMemoryReader(MergeManager.this,
-                mo.getAttemptIdentifier(), mo.getMemory(), 0, mo.getMemory().length);
+            IFile.Reader reader = new InMemoryReader(MergeManager.this, mo);
             inMemorySegments.add(new Segment(reader,
                 (mo.isPrimaryMapOutput() ? mergedMapOutputsCounter : null)));
             lastAddedMapOutput = mo;
@@ -776,7 +794,7 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
 
       int noInMemorySegments = inMemorySegments.size();
 
-      Writer writer = new InMemoryWriter(mergedMapOutputs.getArrayStream());
+      Writer writer = new InMemoryWriter(mergedMapOutputs.getMemoryStream());
 
       LOG.info(inputContext.getSourceVertexName() + ": " + "Initiating Memory-to-Memory merge with " + noInMemorySegments +
                " segments of total-size: " + mergeOutputSize);
@@ -987,8 +1005,10 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
         }
         final Path file = fileChunk.getPath();
         approxOutputSize += size;
+        // Map outputs fetched from the local disk are read in place, map them if requested
         DiskSegment segment = new DiskSegment(rfs, file, offset, size, codec, ifileReadAhead,
-            ifileReadAheadLength, ifileBufferSize, preserve);
+            ifileReadAheadLength, ifileBufferSize, preserve, null,
+            preserve && localFetchMmapEnabled);
         inputSegments.add(segment);
       }
 
@@ -1075,18 +1095,15 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
     // closed but not yet present in inMemoryMapOutputs
     long fullSize = 0L;
     for (MapOutput mo : inMemoryMapOutputs) {
-      fullSize += mo.getMemory().length;
+      fullSize += mo.getSize();
     }
     int inMemoryMapOutputsOffset = 0;
     while((fullSize > leaveBytes) && !Thread.currentThread().isInterrupted()) {
       MapOutput mo = inMemoryMapOutputs.get(inMemoryMapOutputsOffset++);
-      byte[] data = mo.getMemory();
-      long size = data.length;
+      long size = mo.getSize();
       totalSize += size;
       fullSize -= size;
-      IFile.Reader reader = new InMemoryReader(MergeManager.this, 
-                                                   mo.getAttemptIdentifier(),
-                                                   data, 0, (int)size);
+      IFile.Reader reader = new InMemoryReader(MergeManager.this, mo);
       inMemorySegments.add(new Segment(reader,
                                             (mo.isPrimaryMapOutput() ? 
                                             mergedMapOutputsCounter : null)));
@@ -1253,7 +1270,8 @@ public class MergeManager implements FetchedInputAllocatorOrderedGrouped {
       final long fileOffset = fileChunk.getOffset();
       final boolean preserve = fileChunk.isLocalFile();
       diskSegments.add(new DiskSegment(fs, file, fileOffset, fileLength, codec, ifileReadAhead,
-                                   ifileReadAheadLength, ifileBufferSize, preserve, counter));
+                                   ifileReadAheadLength, ifileBufferSize, preserve, counter,
+                                   preserve && localFetchMmapEnabled));
     }
     if (LOG.isInfoEnabled()) {
       finalMergeLog.append(". DiskSeg: " + onDisk.length + ", " + onDiskBytes);
@@ -75,6 +75,7 @@ import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.common.shuffle.AdaptiveFetcherPool;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils.FetchStatsLogger;
 import org.apache.tez.runtime.library.common.shuffle.HostPort;
@@ -200,6 +201,8 @@ class ShuffleScheduler {
   long failedShufflesSinceLastCompletion;
 
   private final int numFetchers;
+  // Sizes the fetcher pool and orders hosts when adaptive fetching is enabled, null otherwise
+  private final AdaptiveFetcherPool adaptiveFetcherPool;
   private final Set<FetcherOrderedGrouped> runningFetchers =
       Collections.newSetFromMap(new ConcurrentHashMap<FetcherOrderedGrouped, Boolean>());
 
@@ -230,6 +233,7 @@ class ShuffleScheduler {
   private final TezCounter wrongReduceErrsCounter;
 
   private final int maxTaskOutputAtOnce;
+  private final int maxPartitionRangesPerFetch;
   private final int maxFetchFailuresBeforeReporting;
   private final boolean reportReadErrorImmediately;
   private final int maxFailedUniqueFetches;
@@ -334,6 +338,13 @@ class ShuffleScheduler {
     this.applicationId = inputContext.getApplicationId().toString();
     this.dagId = inputContext.getDagIdentifier();
     this.localHostname = inputContext.getExecutionContext().getHostName();
+    if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED_DEFAULT)) {
+      this.adaptiveFetcherPool = new AdaptiveFetcherPool(conf, srcNameTrimmed, numFetchers,
+          localHostname, inputContext.getCounters());
+    } else {
+      this.adaptiveFetcherPool = null;
+    }
     String auxiliaryService = conf.get(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID,
         TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
     final ByteBuffer shuffleMetadata =
@@ -417,6 +428,10 @@ class ShuffleScheduler {
     this.firstEventReceived = inputContext.getCounters().findCounter(TaskCounter.FIRST_EVENT_RECEIVED);
     this.lastEventReceived = inputContext.getCounters().findCounter(TaskCounter.LAST_EVENT_RECEIVED);
     this.compositeFetch = ShuffleUtils.isTezShuffleHandler(conf);
+    // Batching partition ranges needs the tez shuffle handler to serve a range per attempt
+    this.maxPartitionRangesPerFetch = compositeFetch ? Math.max(1, conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES_DEFAULT)) : 1;
 
     pipelinedShuffleInfoEventsMap = Maps.newConcurrentMap();
     LOG.info("ShuffleScheduler running for sourceVertex: "
@@ -426,6 +441,7 @@ class ShuffleScheduler {
         + ", maxFailedUniqueFetches=" + maxFailedUniqueFetches
         + ", abortFailureLimit=" + abortFailureLimit
         + ", maxTaskOutputAtOnce=" + maxTaskOutputAtOnce
+        + ", maxPartitionRangesPerFetch=" + maxPartitionRangesPerFetch
         + ", numFetchers=" + numFetchers
         + ", hostFailureFraction=" + hostFailureFraction
         + ", minFailurePerHost=" + minFailurePerHost
@@ -588,6 +604,9 @@ class ShuffleScheduler {
         failureCounts.remove(srcAttemptIdentifier);
         if (host != null) {
           hostFailures.remove(new HostPort(host.getHost(), host.getPort()));
+          if (adaptiveFetcherPool != null) {
+            adaptiveFetcherPool.bytesFetched(host.getHost(), bytesCompressed);
+          }
         }
 
         output.commit();
@@ -759,6 +778,9 @@ class ShuffleScheduler {
     failedShuffleCounter.increment(1);
     inputContext.notifyProgress();
     int failures = incrementAndGetFailureAttempt(srcAttempt);
+    if (adaptiveFetcherPool != null && host != null) {
+      adaptiveFetcherPool.fetchFailed(host.getHost());
+    }
 
     if (!isLocalFetch) {
       /**
@@ -1119,6 +1141,22 @@ class ShuffleScheduler {
     host.addKnownMap(srcAttempt);
   }
 
+  private int getMaxFetchers() {
+    return adaptiveFetcherPool == null ? numFetchers : adaptiveFetcherPool.getTargetFetchers();
+  }
+
+  private synchronized boolean hasSchedulableHost() {
+    if (adaptiveFetcherPool == null) {
+      return !pendingHosts.isEmpty();
+    }
+    for (MapHost host : pendingHosts) {
+      if (adaptiveFetcherPool.canFetchFrom(host.getHost())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public synchronized MapHost getHost() throws InterruptedException {
     while (pendingHosts.isEmpty() && remainingMaps.get() > 0) {
       if (LOG.isDebugEnabled()) {
@@ -1130,10 +1168,23 @@ class ShuffleScheduler {
     if (!pendingHosts.isEmpty()) {
 
       MapHost host = null;
-      Iterator<MapHost> iter = pendingHosts.iterator();
-      int numToPick = random.nextInt(pendingHosts.size());
-      for (int i = 0; i <= numToPick; ++i) {
-        host = iter.next();
+      if (adaptiveFetcherPool != null) {
+        // Preferred host which can take another fetcher, none if all of them are throttled
+        for (MapHost candidate : pendingHosts) {
+          if (adaptiveFetcherPool.canFetchFrom(candidate.getHost()) && (host == null
+              || adaptiveFetcherPool.compareHosts(candidate.getHost(), host.getHost()) < 0)) {
+            host = candidate;
+          }
+        }
+        if (host == null) {
+          return null;
+        }
+      } else {
+        Iterator<MapHost> iter = pendingHosts.iterator();
+        int numToPick = random.nextInt(pendingHosts.size());
+        for (int i = 0; i <= numToPick; ++i) {
+          host = iter.next();
+        }
       }
 
       pendingHosts.remove(host);
@@ -1149,6 +1200,33 @@ class ShuffleScheduler {
     }
   }
 
+  /**
+   * Pending hosts for other partition ranges of the same host and port as <code>host</code>,
+   * up to the number of ranges fetched in one request. They are marked busy, and are fetched
+   * along with <code>host</code>, which is the first of the returned list.
+   */
+  @VisibleForTesting
+  synchronized List<MapHost> getHostsToBatch(MapHost host) {
+    List<MapHost> hosts = new ArrayList<MapHost>(1);
+    hosts.add(host);
+    if (maxPartitionRangesPerFetch > 1) {
+      Iterator<MapHost> iter = pendingHosts.iterator();
+      while (iter.hasNext() && hosts.size() < maxPartitionRangesPerFetch) {
+        MapHost candidate = iter.next();
+        if (candidate.getPort() == host.getPort() && candidate.getHost().equals(host.getHost())) {
+          iter.remove();
+          candidate.markBusy();
+          hosts.add(candidate);
+        }
+      }
+    }
+    return hosts;
+  }
+
+  int getMaxTaskOutputAtOnce() {
+    return maxTaskOutputAtOnce;
+  }
+
   public InputAttemptIdentifier getIdentifierForFetchedOutput(
       String path, int reduceId) {
     return pathToIdentifierMap.get(new PathPartition(path, reduceId));
@@ -1166,6 +1244,13 @@ class ShuffleScheduler {
   }
 
   public synchronized List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
+    return getMapsForHost(host, maxTaskOutputAtOnce);
+  }
+
+  /**
+   * @param maxMaps the number of maps to take at most, the others stay with the host
+   */
+  public synchronized List<InputAttemptIdentifier> getMapsForHost(MapHost host, int maxMaps) {
     List<InputAttemptIdentifier> origList = host.getAndClearKnownMaps();
 
     ListMultimap<Integer, InputAttemptIdentifier> dedupedList = LinkedListMultimap.create();
@@ -1233,7 +1318,7 @@ class ShuffleScheduler {
     for(Integer inputIndex : dedupedList.keySet()) {
       List<InputAttemptIdentifier> attemptIdentifiers = dedupedList.get(inputIndex);
       for (InputAttemptIdentifier inputAttemptIdentifier : attemptIdentifiers) {
-        if (includedMaps++ >= maxTaskOutputAtOnce) {
+        if (includedMaps++ >= maxMaps) {
           host.addKnownMap(inputAttemptIdentifier);
         } else {
           if (inputAttemptIdentifier.canRetrieveInputInChunks()) {
@@ -1364,7 +1449,7 @@ class ShuffleScheduler {
     protected Void callInternal() throws InterruptedException {
       while (!isShutdown.get() && remainingMaps.get() > 0) {
         synchronized (ShuffleScheduler.this) {
-          if (runningFetchers.size() >= numFetchers || pendingHosts.isEmpty()) {
+          if (runningFetchers.size() >= getMaxFetchers() || !hasSchedulableHost()) {
             if (remainingMaps.get() > 0) {
               try {
                 ShuffleScheduler.this.wait();
@@ -1405,7 +1490,7 @@ class ShuffleScheduler {
 
         if (!isShutdown.get() && remainingMaps.get() > 0) {
           synchronized (ShuffleScheduler.this) {
-            int numFetchersToRun = numFetchers - runningFetchers.size();
+            int numFetchersToRun = getMaxFetchers() - runningFetchers.size();
             int count = 0;
             while (count < numFetchersToRun && !isShutdown.get() && remainingMaps.get() > 0) {
               MapHost mapHost;
@@ -1433,10 +1518,16 @@ class ShuffleScheduler {
                   LOG.debug(srcNameTrimmed + ": " + "Scheduling fetch for inputHost: {}",
                       mapHost.getHostIdentifier() + ":" + mapHost.getPartitionId());
                 }
-                FetcherOrderedGrouped fetcherOrderedGrouped = constructFetcherForHost(mapHost);
+                List<MapHost> mapHosts = getHostsToBatch(mapHost);
+                FetcherOrderedGrouped fetcherOrderedGrouped = mapHosts.size() == 1
+                    ? constructFetcherForHost(mapHost) : constructFetcherForHosts(mapHosts);
                 runningFetchers.add(fetcherOrderedGrouped);
+                if (adaptiveFetcherPool != null) {
+                  adaptiveFetcherPool.fetchStarted(mapHost.getHost());
+                }
                 ListenableFuture<Void> future = fetcherExecutor.submit(fetcherOrderedGrouped);
-                Futures.addCallback(future, new FetchFutureCallback(fetcherOrderedGrouped));
+                Futures.addCallback(future,
+                    new FetchFutureCallback(fetcherOrderedGrouped, mapHost.getHost()));
               }
             }
           }
@@ -1460,16 +1551,32 @@ class ShuffleScheduler {
         verifyDiskChecksum, compositeFetch);
   }
 
+  @VisibleForTesting
+  FetcherOrderedGrouped constructFetcherForHosts(List<MapHost> mapHosts) {
+    return new FetcherOrderedGrouped(httpConnectionParams, ShuffleScheduler.this, allocator,
+        exceptionReporter, jobTokenSecretManager, ifileReadAhead, ifileReadAheadLength,
+        codec, conf, localDiskFetchEnabled, localHostname, shufflePort, srcNameTrimmed, mapHosts,
+        ioErrsCounter, wrongLengthErrsCounter, badIdErrsCounter, wrongMapErrsCounter,
+        connectionErrsCounter, wrongReduceErrsCounter, applicationId, dagId, asyncHttp, sslShuffle,
+        verifyDiskChecksum, compositeFetch);
+  }
+
   private class FetchFutureCallback implements FutureCallback<Void> {
 
     private final FetcherOrderedGrouped fetcherOrderedGrouped;
+    private final String host;
+    private final long startNanos = System.nanoTime();
 
     public FetchFutureCallback(
-        FetcherOrderedGrouped fetcherOrderedGrouped) {
+        FetcherOrderedGrouped fetcherOrderedGrouped, String host) {
       this.fetcherOrderedGrouped = fetcherOrderedGrouped;
+      this.host = host;
     }
 
     private void doBookKeepingForFetcherComplete() {
+      if (adaptiveFetcherPool != null) {
+        adaptiveFetcherPool.fetchCompleted(host, System.nanoTime() - startNanos);
+      }
       synchronized (ShuffleScheduler.this) {
         runningFetchers.remove(fetcherOrderedGrouped);
         ShuffleScheduler.this.notifyAll();
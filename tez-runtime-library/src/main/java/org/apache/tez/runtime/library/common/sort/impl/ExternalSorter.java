@@ -18,14 +18,30 @@
 
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.tez.runtime.api.OutputStatisticsReporter;
 import org.apache.tez.runtime.library.api.IOInterruptedException;
 import org.slf4j.Logger;
@@ -33,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
@@ -48,6 +65,7 @@ import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.QuickSort;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
+import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.runtime.api.OutputContext;
@@ -59,6 +77,8 @@ import org.apache.tez.runtime.library.common.TezRuntimeUtils;
 import org.apache.tez.runtime.library.common.combine.Combiner;
 import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.DiskSegment;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
 
 import com.google.common.base.Preconditions;
@@ -131,6 +151,7 @@ public abstract class ExternalSorter {
   protected OutputStatisticsReporter statsReporter;
   protected final long[] partitionStats;
   protected final boolean finalMergeEnabled;
+  protected final int finalMergeThreads;
   protected final boolean sendEmptyPartitionDetails;
 
   // Counters
@@ -271,6 +292,12 @@ public abstract class ExternalSorter {
     this.finalMergeEnabled = conf.getBoolean(
         TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT,
         TezRuntimeConfiguration.TEZ_RUNTIME_ENABLE_FINAL_MERGE_IN_OUTPUT_DEFAULT);
+    this.finalMergeThreads = conf.getInt(
+        TezRuntimeConfiguration.TEZ_RUNTIME_FINAL_MERGE_THREADS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_FINAL_MERGE_THREADS_DEFAULT);
+    Preconditions.checkArgument(finalMergeThreads > 0,
+        TezRuntimeConfiguration.TEZ_RUNTIME_FINAL_MERGE_THREADS + "=" + finalMergeThreads
+            + " should be a positive value");
     this.sendEmptyPartitionDetails = conf.getBoolean(
         TezRuntimeConfiguration.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED,
         TezRuntimeConfiguration.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED_DEFAULT);
@@ -338,6 +365,263 @@ public abstract class ExternalSorter {
     }
   }
 
+  /**
+   * Whether the final merge can process partitions concurrently. Combiners are not expected
+   * to be thread safe, hence partitions are merged one at a time when a combiner runs.
+   */
+  protected boolean canMergePartitionsInParallel(boolean runsCombiner) {
+    return finalMergeThreads > 1 && partitions > 1 && !runsCombiner;
+  }
+
+  /**
+   * Merge the spills of all partitions into {@link #finalOutputFile} using up to
+   * {@link TezRuntimeConfiguration#TEZ_RUNTIME_FINAL_MERGE_THREADS} threads.
+   *
+   * The size of a merged partition is only known once it is written. Every partition is given
+   * a region of the final output as large as its spills, which a merge rarely exceeds, and
+   * written into it with positional writes. The unused end of a region is left as a hole. A
+   * partition which does not fit moves over to a file of its own, and is copied past the
+   * regions once all merges are done.
+   *
+   * @param spillIndexes index records of the spills, in spill order
+   * @param rle whether the writers should use RLE for repeated keys
+   * @return index records of the partitions within the final output
+   */
+  protected TezSpillRecord mergePartitionsInParallel(final List<TezSpillRecord> spillIndexes,
+      final boolean rle) throws IOException, InterruptedException {
+    final int mergeFactor =
+        this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
+            TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+    final PartitionOutputStream[] partitionOutputs = new PartitionOutputStream[partitions];
+    final ExecutorService mergePool = Executors.newFixedThreadPool(
+        Math.min(finalMergeThreads, partitions),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("FinalMerge {" + TezUtilsInternal
+                .cleanVertexName(outputContext.getDestinationVertexName()) + "} #%d")
+            .build());
+    LOG.info(outputContext.getDestinationVertexName() + ": Merging " + partitions
+        + " partitions of " + numSpills + " spills using " + finalMergeThreads + " threads");
+    RandomAccessFile finalOut =
+        new RandomAccessFile(((RawLocalFileSystem) rfs).pathToFile(finalOutputFile), "rw");
+    try {
+      final FileChannel target = finalOut.getChannel();
+      long regionStart = 0;
+      for (int i = 0; i < partitions; i++) {
+        long regionLength = 0;
+        for (int spill = 0; spill < numSpills; spill++) {
+          regionLength += spillIndexes.get(spill).getIndex(i).getPartLength();
+        }
+        partitionOutputs[i] = new PartitionOutputStream(target, regionStart, regionLength,
+            finalOutputFile.suffix("." + i));
+        regionStart += regionLength;
+      }
+      finalOut.setLength(regionStart);
+
+      List<Future<TezIndexRecord>> merges = Lists.newArrayListWithCapacity(partitions);
+      for (int i = 0; i < partitions; i++) {
+        final int partition = i;
+        merges.add(mergePool.submit(new Callable<TezIndexRecord>() {
+          @Override
+          public TezIndexRecord call() throws IOException, InterruptedException {
+            return mergePartition(partition, spillIndexes, partitionOutputs[partition],
+                mergeFactor, rle);
+          }
+        }));
+      }
+
+      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+      long end = 0;
+      for (int i = 0; i < partitions; i++) {
+        TezIndexRecord merged = getFinalMergeResult(merges.get(i));
+        PartitionOutputStream output = partitionOutputs[i];
+        if (!output.isOverflowed()) {
+          spillRec.putIndex(new TezIndexRecord(output.getRegionStart(), merged.getRawLength(),
+              merged.getPartLength()), i);
+          end = output.getRegionStart() + merged.getPartLength();
+        }
+      }
+      // Past the last region in use, which leaves no hole at the end of the file
+      for (int i = 0; i < partitions; i++) {
+        PartitionOutputStream output = partitionOutputs[i];
+        if (output.isOverflowed()) {
+          TezIndexRecord merged = getFinalMergeResult(merges.get(i));
+          LOG.info(outputContext.getDestinationVertexName() + ": Partition " + i + " of "
+              + merged.getPartLength() + " bytes exceeded its region of "
+              + output.getRegionLength() + " bytes");
+          copyInto(output.getOverflowPath(), target, end, merged.getPartLength());
+          spillRec.putIndex(new TezIndexRecord(end, merged.getRawLength(),
+              merged.getPartLength()), i);
+          end += merged.getPartLength();
+        }
+      }
+      finalOut.setLength(end);
+      return spillRec;
+    } finally {
+      mergePool.shutdownNow();
+      finalOut.close();
+      for (PartitionOutputStream output : partitionOutputs) {
+        if (output != null && output.isOverflowed()) {
+          rfs.delete(output.getOverflowPath(), false);
+        }
+      }
+    }
+  }
+
+  private TezIndexRecord mergePartition(int partition, List<TezSpillRecord> spillIndexes,
+      PartitionOutputStream output, int mergeFactor, boolean rle)
+      throws IOException, InterruptedException {
+    //create the segments to be merged
+    List<Segment> segmentList = new ArrayList<Segment>(numSpills);
+    for (int i = 0; i < numSpills; i++) {
+      TezIndexRecord indexRecord = spillIndexes.get(i).getIndex(partition);
+      DiskSegment s =
+          new DiskSegment(rfs, spillFilePaths.get(i), indexRecord.getStartOffset(),
+              indexRecord.getPartLength(), codec, ifileReadAhead,
+              ifileReadAheadLength, ifileBufferSize, true);
+      segmentList.add(i, s);
+    }
+
+    // sort the segments only if there are intermediate merges
+    boolean sortSegments = segmentList.size() > mergeFactor;
+    // intermediate merge files of concurrently merged partitions must not collide
+    TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+        keyClass, valClass, codec,
+        segmentList, mergeFactor,
+        new Path(outputContext.getUniqueIdentifier() + "_part_" + partition),
+        (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
+        progressable, sortSegments, true,
+        null, spilledRecordsCounter, additionalSpillBytesRead,
+        null); // Not using any Progress in TezMerger. Should just work.
+
+    FSDataOutputStream out = new FSDataOutputStream(
+        new BufferedOutputStream(output, ifileBufferSize), null);
+    try {
+      Writer writer =
+          new Writer(conf, out, keyClass, valClass, codec, spilledRecordsCounter, null, rle);
+      TezMerger.writeFile(kvIter, writer, progressable,
+          TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+      writer.close();
+      outputBytesWithOverheadCounter.increment(writer.getRawLength());
+      if (reportPartitionStats()) {
+        partitionStats[partition] += writer.getCompressedLength();
+      }
+      return new TezIndexRecord(0, writer.getRawLength(), writer.getCompressedLength());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes a merged partition into the region of the final output reserved for it, using
+   * positional writes so that partitions can be written concurrently. Once the partition
+   * exceeds the region, what was written so far and the rest of it go to a file of its own.
+   */
+  private class PartitionOutputStream extends OutputStream {
+    private final FileChannel target;
+    private final long regionStart;
+    private final long regionLength;
+    private final Path overflowPath;
+    private long written = 0;
+    private FileOutputStream overflow;
+
+    PartitionOutputStream(FileChannel target, long regionStart, long regionLength,
+        Path overflowPath) {
+      this.target = target;
+      this.regionStart = regionStart;
+      this.regionLength = regionLength;
+      this.overflowPath = overflowPath;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (overflow == null && written + len > regionLength) {
+        overflow = new FileOutputStream(((RawLocalFileSystem) rfs).pathToFile(overflowPath));
+        FileChannel overflowChannel = overflow.getChannel();
+        long copied = 0;
+        while (copied < written) {
+          copied += target.transferTo(regionStart + copied, written - copied, overflowChannel);
+        }
+      }
+      if (overflow != null) {
+        overflow.write(b, off, len);
+      } else {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+          target.write(buffer, regionStart + written + (len - buffer.remaining()));
+        }
+      }
+      written += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (overflow != null) {
+        overflow.close();
+      }
+    }
+
+    boolean isOverflowed() {
+      return overflow != null;
+    }
+
+    long getRegionStart() {
+      return regionStart;
+    }
+
+    long getRegionLength() {
+      return regionLength;
+    }
+
+    Path getOverflowPath() {
+      return overflowPath;
+    }
+  }
+
+  private void copyInto(Path source, FileChannel target, long position, long length)
+      throws IOException {
+    FileInputStream in = new FileInputStream(((RawLocalFileSystem) rfs).pathToFile(source));
+    try {
+      FileChannel channel = in.getChannel();
+      long copied = 0;
+      while (copied < length) {
+        long n = target.transferFrom(channel, position + copied, length - copied);
+        if (n <= 0) {
+          throw new IOException("Unexpected end of " + source + " after " + copied
+              + " bytes, expected " + length);
+        }
+        copied += n;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the bytes of all partitions of an output. This is the length of the output file,
+   * except for the holes left by {@link #mergePartitionsInParallel(List, boolean)}.
+   */
+  protected static long getOutputLength(TezSpillRecord spillRec) {
+    long length = 0;
+    for (int i = 0; i < spillRec.size(); i++) {
+      length += spillRec.getIndex(i).getPartLength();
+    }
+    return length;
+  }
+
+  private static <T> T getFinalMergeResult(Future<T> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Final merge failed", e.getCause());
+    }
+  }
+
   public InputStream getSortedStream(int partition) {
     throw new UnsupportedOperationException("getSortedStream isn't supported!");
   }
@@ -352,8 +636,11 @@ public abstract class ExternalSorter {
             TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 
             TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB_DEFAULT);
     long reqBytes = ((long) initialMemRequestMb) << 20;
+    // Off-heap sort buffers do not take any of the heap handed out by the MemoryDistributor
+    long offHeapBytes = PipelinedSorter.getOffHeapBufferBytes(conf);
     //Higher bound checks are done in individual sorter implementations
-    Preconditions.checkArgument(initialMemRequestMb > 0 && reqBytes < maxAvailableTaskMemory,
+    Preconditions.checkArgument(initialMemRequestMb > 0
+            && (offHeapBytes > 0 || reqBytes < maxAvailableTaskMemory),
         TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB + " " + initialMemRequestMb + " should be "
             + "larger than 0 and should be less than the available task memory (MB):" +
             (maxAvailableTaskMemory >> 20));
@@ -362,7 +649,7 @@ public abstract class ExternalSorter {
           + TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB + "): "
           + initialMemRequestMb);
     }
-    return reqBytes;
+    return reqBytes - offHeapBytes;
   }
 
   public int getNumSpills() {
@@ -20,10 +20,16 @@ package org.apache.tez.runtime.library.common.sort.impl;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.zip.CRC32;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -33,6 +39,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -49,6 +56,7 @@ import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.serializer.SerializationFactory;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.io.ByteBufferInputStream;
 
 /**
  * <code>IFile</code> is the simple <key-len, value-len, key, value> format
@@ -67,9 +75,36 @@ public class IFile {
   public static final DataInputBuffer REPEAT_KEY = new DataInputBuffer();
   static final byte[] HEADER = new byte[] { (byte) 'T', (byte) 'I',
     (byte) 'F' , (byte) 0};
+  public static final int HEADER_LENGTH = HEADER.length;
+  // Size of the CRC32 checksum trailing the data of every segment
+  public static final int CHECKSUM_SIZE = 4;
 
   private static final String INCOMPLETE_READ = "Requested to read %d got %d";
 
+  /**
+   * Map a segment of a local IFile (e.g. one partition of a map output) read-only into memory.
+   * The mapping stays valid after this call returns; it is released when the buffer is
+   * garbage collected or explicitly via {@link org.apache.hadoop.io.nativeio.NativeIO.POSIX#munmap}.
+   *
+   * @param file the local file
+   * @param offset start of the segment within the file
+   * @param length length of the segment, including the header and the checksum bytes
+   * @return the mapped segment
+   * @throws IOException if the segment cannot be mapped
+   */
+  public static MappedByteBuffer mapSegment(File file, long offset, long length)
+      throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Cannot map segment of length " + length + " from " + file);
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+    } finally {
+      raf.close();
+    }
+  }
+
   /**
    * <code>IFile.Writer</code> to write out intermediate map-outputs.
    */
@@ -605,6 +640,17 @@ public class IFile {
     public static void readToMemory(byte[] buffer, InputStream in, int compressedLength,
         CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength)
         throws IOException {
+      readToMemory(ByteBuffer.wrap(buffer), in, compressedLength, codec, ifileReadAhead,
+          ifileReadAheadLength);
+    }
+
+    /**
+     * Read entire ifile content to the remaining bytes of a buffer, which may be a direct
+     * buffer. The position of the buffer is not modified.
+     */
+    public static void readToMemory(ByteBuffer buffer, InputStream in, int compressedLength,
+        CompressionCodec codec, boolean ifileReadAhead, int ifileReadAheadLength)
+        throws IOException {
       boolean isCompressed = IFile.Reader.isCompressedFlagEnabled(in);
       IFileInputStream checksumIn = new IFileInputStream(in,
           compressedLength - IFile.HEADER.length, ifileReadAhead,
@@ -622,7 +668,18 @@ public class IFile {
         }
       }
       try {
-        IOUtils.readFully(in, buffer, 0, buffer.length - IFile.HEADER.length);
+        int length = buffer.remaining() - IFile.HEADER.length;
+        if (buffer.hasArray()) {
+          IOUtils.readFully(in, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        } else {
+          ByteBuffer out = buffer.duplicate();
+          byte[] buf = new byte[Math.min(length, 64 * 1024)];
+          while (out.position() < buffer.position() + length) {
+            int n = Math.min(buf.length, buffer.position() + length - out.position());
+            IOUtils.readFully(in, buf, 0, n);
+            out.put(buf, 0, n);
+          }
+        }
         /*
          * We've gotten the amount of data we were expecting. Verify the
          * decompressor has nothing more to offer. This action also forces the
@@ -837,6 +894,15 @@ public class IFile {
     public static boolean isCompressedFlagEnabled(InputStream in) throws IOException {
       byte[] header = new byte[HEADER.length];
       IOUtils.readFully(in, header, 0, HEADER.length);
+      return isCompressedFlagEnabled(header);
+    }
+
+    /**
+     * @param header the first {@link IFile#HEADER_LENGTH} bytes of an IFile
+     * @return true if the data following the header is compressed
+     * @throws IOException if the header is not an IFile header
+     */
+    public static boolean isCompressedFlagEnabled(byte[] header) throws IOException {
       verifyHeaderMagic(header);
       return (header[3] == 1);
     }
@@ -868,6 +934,47 @@ public class IFile {
       return;
     }
 
+    /**
+     * Construct an IFile Reader over a segment held in a ByteBuffer, typically a memory mapped
+     * region of a local output file (see {@link IFile#mapSegment(File, long, long)}).
+     * The checksum of the whole segment is verified once, in a single pass over the buffer,
+     * instead of being computed on every read.
+     *
+     * @param segment the segment including the header and the trailing checksum bytes. The
+     *                position of the buffer is not modified.
+     * @param codec codec
+     * @param readsCounter Counter for records read from disk
+     * @throws IOException if the segment is not a valid IFile or the checksum does not match
+     */
+    public static Reader openSegment(ByteBuffer segment, CompressionCodec codec,
+        TezCounter readsCounter, TezCounter bytesReadCounter, int bufferSize)
+        throws IOException {
+      verifySegmentChecksum(segment);
+      Reader reader = new Reader(new ByteBufferInputStream(segment.duplicate()),
+          segment.remaining(), codec, readsCounter, bytesReadCounter, false, 0, bufferSize);
+      reader.disableChecksumValidation();
+      return reader;
+    }
+
+    @VisibleForTesting
+    static void verifySegmentChecksum(ByteBuffer segment) throws IOException {
+      if (segment.remaining() < HEADER.length + CHECKSUM_SIZE) {
+        throw new IOException("Segment of length " + segment.remaining()
+            + " is too short to be a valid ifile");
+      }
+      final int checksumOffset = segment.limit() - CHECKSUM_SIZE;
+      ByteBuffer data = segment.duplicate();
+      data.position(segment.position() + HEADER.length);
+      data.limit(checksumOffset);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      int expected = segment.getInt(checksumOffset);
+      if ((int) crc.getValue() != expected) {
+        throw new ChecksumException("Checksum Error: segmentLength=" + segment.remaining()
+            + ", expected=" + expected + ", actual=" + (int) crc.getValue(), 0);
+      }
+    }
+
     public void disableChecksumValidation() {
       checksumIn.disableChecksumValidation();
     }
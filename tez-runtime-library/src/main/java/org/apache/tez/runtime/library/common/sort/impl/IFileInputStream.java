@@ -255,13 +255,15 @@ public class IFileInputStream extends InputStream {
       throw new ChecksumException("Checksum Error: " + mesg, 0);
     }
 
-    checksum(b, off, bytesRead);
-
     currentOffset += bytesRead;
 
     if (disableChecksumValidation) {
+      // The caller has already validated the data (or does not care), skip
+      // the per-read checksum bookkeeping altogether
       return bytesRead;
     }
+
+    checksum(b, off, bytesRead);
     
     if (currentOffset == dataLength) {
       //TODO: add checksumSize to currentOffset.
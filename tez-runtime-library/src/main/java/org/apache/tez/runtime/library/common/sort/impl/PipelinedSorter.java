@@ -17,12 +17,16 @@
 */
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -43,12 +47,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.tez.common.TezRuntimeFrameworkConfigs;
 import org.apache.tez.common.TezUtilsInternal;
 import org.apache.tez.common.CallableWithNdc;
 import org.apache.tez.common.io.NonSyncDataOutputStream;
 import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.library.common.comparator.NormalizedKeyComparator;
 import org.apache.tez.runtime.library.common.comparator.ProxyComparator;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.util.IndexedSortable;
@@ -62,6 +70,7 @@ import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.DiskSegment;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
 import org.apache.tez.runtime.library.utils.LocalProgress;
 import org.apache.tez.util.StopWatch;
 
@@ -86,10 +95,26 @@ public class PipelinedSorter extends ExternalSorter {
   private static final int VALSTART = 2;         // val offset in acct
   private static final int VALLEN = 3;           // val len in acct
   private static final int NMETA = 4;            // num meta ints
-  private static final int METASIZE = NMETA * 4; // size in bytes
+  private static final int PREFIX_HI = 4;        // normalized key high bits (optional)
+  private static final int PREFIX_LO = 5;        // normalized key low bits (optional)
+  private static final int NMETA_WITH_PREFIX = 6; // num meta ints with normalized keys
+  // spans smaller than this are not worth a radix pass
+  private static final int RADIX_SORT_THRESHOLD = 64;
+  private static final int RADIX_SORT_DIGITS = 12; // partition + normalized key bytes
+
+  /**
+   * Where the sort buffers are allocated.
+   * {@link TezRuntimeConfiguration#TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE}
+   */
+  public enum SortBufferType {
+    HEAP, DIRECT, MAPPED
+  }
 
   private final int minSpillsForCombine;
   private final ProxyComparator hasher;
+  private final NormalizedKeyComparator normalizer;
+  private final int nmeta;                       // num meta ints per record
+  private final int metaSize;                    // size in bytes
   // SortSpans  
   private SortSpan span;
 
@@ -116,6 +141,10 @@ public class PipelinedSorter extends ExternalSorter {
   private int bufferIndex = -1;
   private final int MIN_BLOCK_SIZE;
   private final boolean lazyAllocateMem;
+  private final SortBufferType bufferType;
+  // Total size of the sort buffers, in MB
+  private final long sortBufferMb;
+  private final LocalDirAllocator localDirAllocator;
   private final Deflater deflater;
   private final String auxiliaryService;
 
@@ -129,6 +158,15 @@ public class PipelinedSorter extends ExternalSorter {
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY, TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SORTER_LAZY_ALLOCATE_MEMORY_DEFAULT);
 
+    bufferType = SortBufferType.valueOf(this.conf.get(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE_DEFAULT).trim().toUpperCase());
+    localDirAllocator = (bufferType == SortBufferType.MAPPED) ?
+        new LocalDirAllocator(TezRuntimeFrameworkConfigs.LOCAL_DIRS) : null;
+    // Off-heap buffers are not part of the heap grant, see getOffHeapBufferBytes
+    sortBufferMb = (bufferType == SortBufferType.HEAP) ? this.availableMemoryMb :
+        (getOffHeapBufferBytes(this.conf) >> 20);
+
     if (lazyAllocateMem) {
       /**
        * When lazy-allocation is enabled, framework takes care of auto
@@ -161,7 +199,7 @@ public class PipelinedSorter extends ExternalSorter {
     auxiliaryService = conf.get(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID,
         TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
     //sanity checks
-    final long sortmb = this.availableMemoryMb;
+    final long sortmb = this.sortBufferMb;
 
     // buffers and accounting
     long maxMemLimit = sortmb << 20;
@@ -176,6 +214,21 @@ public class PipelinedSorter extends ExternalSorter {
       initialSetupLogLine.append(false);
     }
 
+    initialSetupLogLine.append(", UsingNormalizedKeys=");
+    if (this.conf.getBoolean(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED_DEFAULT)
+        && comparator instanceof NormalizedKeyComparator) {
+      normalizer = (NormalizedKeyComparator) comparator;
+      nmeta = NMETA_WITH_PREFIX;
+      initialSetupLogLine.append(true);
+    } else {
+      normalizer = null;
+      nmeta = NMETA;
+      initialSetupLogLine.append(false);
+    }
+    metaSize = nmeta * 4;
+
     LOG.info(initialSetupLogLine.toString());
 
     long totalCapacityWithoutMeta = 0;
@@ -183,7 +236,7 @@ public class PipelinedSorter extends ExternalSorter {
     int numBlocks = 0;
     while(availableMem > 0) {
       long size = Math.min(availableMem, computeBlockSize(availableMem, maxMemLimit));
-      int sizeWithoutMeta = (int) ((size) - (size % METASIZE));
+      int sizeWithoutMeta = (int) ((size) - (size % metaSize));
       totalCapacityWithoutMeta += sizeWithoutMeta;
       availableMem -= size;
       numBlocks++;
@@ -204,6 +257,7 @@ public class PipelinedSorter extends ExternalSorter {
     initialSetupLogLine.append(", lazyAllocateMem=").append(
         lazyAllocateMem);
     initialSetupLogLine.append(", minBlockSize=").append(MIN_BLOCK_SIZE);
+    initialSetupLogLine.append(", bufferType=").append(bufferType);
     initialSetupLogLine.append(", initial BLOCK_SIZE=").append(buffers.get(0).capacity());
     initialSetupLogLine.append(", finalMergeEnabled=").append(isFinalMergeEnabled());
     initialSetupLogLine.append(", pipelinedShuffle=").append(pipelinedShuffle);
@@ -234,16 +288,16 @@ public class PipelinedSorter extends ExternalSorter {
     deflater = TezCommonUtils.newBestCompressionDeflater();
   }
 
-  ByteBuffer allocateSpace() {
+  ByteBuffer allocateSpace() throws IOException {
     if (currentAllocatableMemory <= 0) {
       //No space available.
       return null;
     }
 
-    int size = computeBlockSize(currentAllocatableMemory, availableMemoryMb << 20);
+    int size = computeBlockSize(currentAllocatableMemory, sortBufferMb << 20);
     currentAllocatableMemory -= size;
-    int sizeWithoutMeta = (size) - (size % METASIZE);
-    ByteBuffer space = ByteBuffer.allocate(sizeWithoutMeta);
+    int sizeWithoutMeta = (size) - (size % metaSize);
+    ByteBuffer space = allocateBuffer(sizeWithoutMeta);
 
     buffers.add(space);
     bufferIndex++;
@@ -257,11 +311,71 @@ public class PipelinedSorter extends ExternalSorter {
         + ", Number of buffers=" + buffers.size()
         + ", currentAllocatableMemory=" + currentAllocatableMemory
         + ", currentBufferSize=" + space.capacity()
-        + ", total=" + (availableMemoryMb << 20));
+        + ", total=" + (sortBufferMb << 20));
     return space;
   }
 
 
+  private ByteBuffer allocateBuffer(int size) throws IOException {
+    switch (bufferType) {
+    case DIRECT:
+      return ByteBuffer.allocateDirect(size);
+    case MAPPED:
+      // The file only provides the backing pages, it can be unlinked as soon as it is mapped.
+      Path path = localDirAllocator.getLocalPathForWrite(
+          outputContext.getUniqueIdentifier() + "_sortbuffer_" + (bufferIndex + 1), size, conf);
+      File file = new File(path.toUri().getPath());
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(size);
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+        if (!file.delete()) {
+          LOG.warn("Unable to delete sort buffer backing file " + file);
+        }
+      }
+    default:
+      return ByteBuffer.allocate(size);
+    }
+  }
+
+  /**
+   * The MemoryDistributor hands out the heap of the task, which off-heap sort buffers do not
+   * take. These are sized by {@link TezRuntimeConfiguration#TEZ_RUNTIME_IO_SORT_MB} instead,
+   * and left out of the memory requested for the output.
+   *
+   * @return the size of the sort buffers allocated outside of the heap, 0 for heap buffers
+   */
+  static long getOffHeapBufferBytes(Configuration conf) {
+    String sorterClass = conf.get(TezRuntimeConfiguration.TEZ_RUNTIME_SORTER_CLASS,
+        TezRuntimeConfiguration.TEZ_RUNTIME_SORTER_CLASS_DEFAULT);
+    SortBufferType type = SortBufferType.valueOf(conf.get(TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE, TezRuntimeConfiguration
+        .TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE_DEFAULT).trim().toUpperCase());
+    if (!SorterImpl.PIPELINED.name().equalsIgnoreCase(sorterClass)
+        || type == SortBufferType.HEAP) {
+      return 0;
+    }
+    return ((long) conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB,
+        TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB_DEFAULT)) << 20;
+  }
+
+  /**
+   * Off-heap buffers are released explicitly instead of waiting for a GC to collect them.
+   * Must only be invoked once no span refers to the buffers any more.
+   */
+  private void releaseBuffers() {
+    for (ByteBuffer buffer : buffers) {
+      // Both DIRECT and MAPPED buffers are MappedByteBuffers: munmap frees the memory of a
+      // direct buffer and unmaps a mapped one
+      if (buffer.isDirect()) {
+        NativeIO.POSIX.munmap((MappedByteBuffer) buffer);
+      }
+    }
+    buffers.clear();
+  }
+
   @VisibleForTesting
   int computeBlockSize(long availableMem, long maxAllocatedMemory) {
     int maxBlockSize = 0;
@@ -334,7 +448,7 @@ public class PipelinedSorter extends ExternalSorter {
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (int) ((span.capacity)/(METASIZE+perItem));
+        items = (int) ((span.capacity)/(metaSize+perItem));
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
@@ -398,7 +512,7 @@ public class PipelinedSorter extends ExternalSorter {
           partition + ")");
     }
     // TBD:FIX in TEZ-2574
-    if (span.kvmeta.remaining() < METASIZE) {
+    if (span.kvmeta.remaining() < metaSize) {
       this.sort();
       if (span.length() == 0) {
         spillSingleRecord(key, value, partition);
@@ -441,11 +555,16 @@ public class PipelinedSorter extends ExternalSorter {
 
     prefix = (partition << (32 - partitionBits)) | (prefix >>> partitionBits);
 
-    /* maintain order as in PARTITION, KEYSTART, VALSTART, VALLEN */
+    /* maintain order as in PARTITION, KEYSTART, VALSTART, VALLEN, [PREFIX_HI, PREFIX_LO] */
     span.kvmeta.put(prefix);
     span.kvmeta.put(keystart);
     span.kvmeta.put(valstart);
     span.kvmeta.put(valend - valstart);
+    if (normalizer != null) {
+      final long normalizedKey = normalizer.getNormalizedKey(key);
+      span.kvmeta.put((int) (normalizedKey >>> 32));
+      span.kvmeta.put((int) normalizedKey);
+    }
     mapOutputRecordCounter.increment(1);
     outputContext.notifyProgress();
     mapOutputByteCounter.increment(valend - keystart);
@@ -657,7 +776,7 @@ public class PipelinedSorter extends ExternalSorter {
       sortmaster.shutdown();
 
       //safe to clean up
-      buffers.clear();
+      releaseBuffers();
 
 
       if(indexCacheList.isEmpty()) {
@@ -734,73 +853,80 @@ public class PipelinedSorter extends ExternalSorter {
             "numSpills: " + numSpills + ", finalOutputFile:" + finalOutputFile + ", finalIndexFile:"
                 + finalIndexFile);
       }
-      //The output stream for the final single output file
-      FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
-
-      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
-
-      for (int parts = 0; parts < partitions; parts++) {
-        //create the segments to be merged
-        List<Segment> segmentList =
-            new ArrayList<Segment>(numSpills);
-        for (int i = 0; i < numSpills; i++) {
-          Path spillFilename = spillFilePaths.get(i);
-          TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-          DiskSegment s =
-              new DiskSegment(rfs, spillFilename, indexRecord.getStartOffset(),
-                  indexRecord.getPartLength(), codec, ifileReadAhead,
-                  ifileReadAheadLength, ifileBufferSize, true);
-          segmentList.add(i, s);
-        }
+      final TezSpillRecord spillRec;
+      FSDataOutputStream finalOut = null;
+      if (canMergePartitionsInParallel(combiner != null && numSpills >= minSpillsForCombine)) {
+        spillRec = mergePartitionsInParallel(indexCacheList, merger.needsRLE());
+      } else {
+        //The output stream for the final single output file
+        finalOut = rfs.create(finalOutputFile, true, 4096);
+        spillRec = new TezSpillRecord(partitions);
+
+        for (int parts = 0; parts < partitions; parts++) {
+          //create the segments to be merged
+          List<Segment> segmentList =
+              new ArrayList<Segment>(numSpills);
+          for (int i = 0; i < numSpills; i++) {
+            Path spillFilename = spillFilePaths.get(i);
+            TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+            DiskSegment s =
+                new DiskSegment(rfs, spillFilename, indexRecord.getStartOffset(),
+                    indexRecord.getPartLength(), codec, ifileReadAhead,
+                    ifileReadAheadLength, ifileBufferSize, true);
+            segmentList.add(i, s);
+          }
 
-        int mergeFactor =
-            this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
-                TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
-        // sort the segments only if there are intermediate merges
-        boolean sortSegments = segmentList.size() > mergeFactor;
-        //merge
-        TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
-            keyClass, valClass, codec,
-            segmentList, mergeFactor,
-            new Path(uniqueIdentifier),
-            (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
-            progressable, sortSegments, true,
-            null, spilledRecordsCounter, additionalSpillBytesRead,
-            null); // Not using any Progress in TezMerger. Should just work.
-        //write merged output to disk
-        long segmentStart = finalOut.getPos();
-        Writer writer =
-            new Writer(conf, finalOut, keyClass, valClass, codec,
-                spilledRecordsCounter, null, merger.needsRLE());
-        if (combiner == null || numSpills < minSpillsForCombine) {
-          TezMerger.writeFile(kvIter, writer, progressable,
-              TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
-        } else {
-          runCombineProcessor(kvIter, writer);
-        }
+          int mergeFactor =
+              this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
+                  TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+          // sort the segments only if there are intermediate merges
+          boolean sortSegments = segmentList.size() > mergeFactor;
+          //merge
+          TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+              keyClass, valClass, codec,
+              segmentList, mergeFactor,
+              new Path(uniqueIdentifier),
+              (RawComparator) ConfigUtils.getIntermediateOutputKeyComparator(conf),
+              progressable, sortSegments, true,
+              null, spilledRecordsCounter, additionalSpillBytesRead,
+              null); // Not using any Progress in TezMerger. Should just work.
+          //write merged output to disk
+          long segmentStart = finalOut.getPos();
+          Writer writer =
+              new Writer(conf, finalOut, keyClass, valClass, codec,
+                  spilledRecordsCounter, null, merger.needsRLE());
+          if (combiner == null || numSpills < minSpillsForCombine) {
+            TezMerger.writeFile(kvIter, writer, progressable,
+                TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+          } else {
+            runCombineProcessor(kvIter, writer);
+          }
 
-        //close
-        writer.close();
-        outputBytesWithOverheadCounter.increment(writer.getRawLength());
+          //close
+          writer.close();
+          outputBytesWithOverheadCounter.increment(writer.getRawLength());
 
-        // record offsets
-        final TezIndexRecord rec =
-            new TezIndexRecord(
-                segmentStart,
-                writer.getRawLength(),
-                writer.getCompressedLength());
-        spillRec.putIndex(rec, parts);
-        if (reportPartitionStats()) {
-          partitionStats[parts] += writer.getCompressedLength();
+          // record offsets
+          final TezIndexRecord rec =
+              new TezIndexRecord(
+                  segmentStart,
+                  writer.getRawLength(),
+                  writer.getCompressedLength());
+          spillRec.putIndex(rec, parts);
+          if (reportPartitionStats()) {
+            partitionStats[parts] += writer.getCompressedLength();
+          }
         }
       }
 
       numShuffleChunks.setValue(1); //final merge has happened.
-      fileOutputByteCounter.increment(rfs.getFileStatus(finalOutputFile).getLen());
+      fileOutputByteCounter.increment(getOutputLength(spillRec));
 
       spillRec.writeToFile(finalIndexFile, conf);
-      finalOut.close();
+      if (finalOut != null) {
+        finalOut.close();
+      }
       for (int i = 0; i < numSpills; i++) {
         Path indexFilename = spillFileIndexPaths.get(i);
         Path spillFilename = spillFilePaths.get(i);
@@ -869,6 +995,45 @@ public class PipelinedSorter extends ExternalSorter {
       System.arraycopy(data, start, buffer, 0, length);
       super.reset(buffer, 0, length);
     }
+
+    // deep copy out of a buffer without a backing array (off-heap)
+    public void copy(ByteBuffer source, int start, int length) {
+      resize(length);
+      source.position(start);
+      source.get(buffer, 0, length);
+      super.reset(buffer, 0, length);
+    }
+  }
+
+  /**
+   * Scratch space to compare keys held in off-heap buffers, as RawComparators can only
+   * operate on byte arrays.
+   */
+  private static final class KeyScratch {
+    private final ByteBuffer source;
+    private byte[] buffer = new byte[256];
+    // The key held by the buffer. Keys are not modified once the span is sorted, so a key
+    // compared repeatedly, like the pivot of a sort or the needle of a merge, is copied once.
+    private int start = -1;
+    private int length = -1;
+
+    KeyScratch(ByteBuffer source) {
+      this.source = source.duplicate();
+    }
+
+    byte[] copy(int start, int length) {
+      if (start == this.start && length == this.length) {
+        return buffer;
+      }
+      if (length > buffer.length) {
+        buffer = new byte[Math.max(length, buffer.length << 1)];
+      }
+      source.position(start);
+      source.get(buffer, 0, length);
+      this.start = start;
+      this.length = length;
+      return buffer;
+    }
   }
 
   private final class SortSpan implements IndexedSortable {
@@ -878,7 +1043,11 @@ public class PipelinedSorter extends ExternalSorter {
     final ByteBuffer kvbuffer;
     final NonSyncDataOutputStream out;
     final RawComparator comparator;
-    final byte[] imeta = new byte[METASIZE];
+    final byte[] imeta = new byte[metaSize];
+    // off-heap spans have no backing arrays, keys are copied out for comparisons
+    final boolean offHeap;
+    final KeyScratch lhs;
+    final KeyScratch rhs;
 
     private int index = 0;
     private long eq = 0;
@@ -888,11 +1057,11 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SortSpan(ByteBuffer source, int maxItems, int perItem, RawComparator comparator) {
       capacity = source.remaining();
-      int metasize = METASIZE*maxItems;
+      int metasize = metaSize*maxItems;
       int dataSize = maxItems * perItem;
       if(capacity < (metasize+dataSize)) {
         // try to allocate less meta space, because we have sample data
-        metasize = METASIZE*(capacity/(perItem+METASIZE));
+        metasize = metaSize*(capacity/(perItem+metaSize));
       }
       ByteBuffer reserved = source.duplicate();
       reserved.mark();
@@ -903,19 +1072,24 @@ public class PipelinedSorter extends ExternalSorter {
       reserved.flip();
       reserved.limit(metasize);
       ByteBuffer kvmetabuffer = reserved.slice();
-      rawkvmeta = kvmetabuffer.array();
-      kvmetabase = kvmetabuffer.arrayOffset();
+      offHeap = !kvmetabuffer.hasArray();
+      rawkvmeta = offHeap ? null : kvmetabuffer.array();
+      kvmetabase = offHeap ? 0 : kvmetabuffer.arrayOffset();
       kvmeta = kvmetabuffer
                 .order(ByteOrder.nativeOrder())
                .asIntBuffer();
       out = new NonSyncDataOutputStream(
               new BufferStreamWrapper(kvbuffer));
       this.comparator = comparator;
+      lhs = offHeap ? new KeyScratch(kvbuffer) : null;
+      rhs = offHeap ? new KeyScratch(kvbuffer) : null;
     }
 
     public SpanIterator sort(IndexedSorter sorter) {
       long start = System.currentTimeMillis();
-      if(length() > 1) {
+      if (normalizer != null) {
+        radixSort(sorter, 0, length(), 0);
+      } else if(length() > 1) {
         sorter.sort(this, 0, length(), progressable);
       }
       LOG.info(outputContext.getDestinationVertexName() + ": " + "done sorting span=" + index + ", length=" + length() + ", "
@@ -924,18 +1098,76 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     int offsetFor(int i) {
-      return (i * NMETA);
+      return (i * nmeta);
+    }
+
+    /**
+     * In-place MSD radix sort (American flag sort) on the partition and the normalized
+     * key bytes. Buckets that are small, or whose prefixes are all equal, are finished
+     * off by the comparison sort which falls back to the key comparator.
+     */
+    private void radixSort(IndexedSorter sorter, int lo, int hi, int digit) {
+      if (hi - lo < RADIX_SORT_THRESHOLD || digit == RADIX_SORT_DIGITS) {
+        if (hi - lo > 1) {
+          sorter.sort(this, lo, hi, progressable);
+        }
+        return;
+      }
+      final int[] bucketEnd = new int[256];
+      for (int i = lo; i < hi; i++) {
+        bucketEnd[digitAt(i, digit)]++;
+      }
+      final int[] next = new int[256];
+      int offset = lo;
+      for (int b = 0; b < 256; b++) {
+        next[b] = offset;
+        offset += bucketEnd[b];
+        bucketEnd[b] = offset;
+      }
+      final int[] bucketStart = next.clone();
+      for (int b = 0; b < 256; b++) {
+        while (next[b] < bucketEnd[b]) {
+          final int d = digitAt(next[b], digit);
+          if (d == b) {
+            next[b]++;
+          } else {
+            swap(next[b], next[d]++);
+          }
+        }
+      }
+      progressable.progress();
+      for (int b = 0; b < 256; b++) {
+        if (bucketEnd[b] - bucketStart[b] > 1) {
+          radixSort(sorter, bucketStart[b], bucketEnd[b], digit + 1);
+        }
+      }
+    }
+
+    // big-endian bytes of PARTITION, PREFIX_HI, PREFIX_LO
+    private int digitAt(int i, int digit) {
+      final int field = (digit < 4) ? PARTITION : PREFIX_HI + ((digit - 4) >> 2);
+      final int v = kvmeta.get(offsetFor(i) + field);
+      return (v >>> (24 - ((digit & 3) << 3))) & 0xff;
     }
 
     public void swap(final int mi, final int mj) {
       final int kvi = offsetFor(mi);
       final int kvj = offsetFor(mj);
 
+      if (offHeap) {
+        for (int k = 0; k < nmeta; k++) {
+          final int tmp = kvmeta.get(kvi + k);
+          kvmeta.put(kvi + k, kvmeta.get(kvj + k));
+          kvmeta.put(kvj + k, tmp);
+        }
+        return;
+      }
+
       final int kvioff = kvmetabase + (kvi << 2);
       final int kvjoff = kvmetabase + (kvj << 2);
-      System.arraycopy(rawkvmeta, kvioff, imeta, 0, METASIZE);
-      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, METASIZE);
-      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, METASIZE);
+      System.arraycopy(rawkvmeta, kvioff, imeta, 0, metaSize);
+      System.arraycopy(rawkvmeta, kvjoff, rawkvmeta, kvioff, metaSize);
+      System.arraycopy(imeta, 0, rawkvmeta, kvjoff, metaSize);
     }
 
     protected int compareKeys(final int kvi, final int kvj) {
@@ -951,11 +1183,16 @@ public class PipelinedSorter extends ExternalSorter {
         return ilen - jlen;
       }
 
-      final byte[] buf = kvbuffer.array();
-      final int off = kvbuffer.arrayOffset();
-
       // sort by key
-      final int cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+      final int cmp;
+      if (offHeap) {
+        cmp = comparator.compare(lhs.copy(istart, ilen), 0, ilen,
+            rhs.copy(jstart, jlen), 0, jlen);
+      } else {
+        final byte[] buf = kvbuffer.array();
+        final int off = kvbuffer.arrayOffset();
+        cmp = comparator.compare(buf, off + istart, ilen, buf, off + jstart, jlen);
+      }
       if(cmp == 0) eq++;
       return cmp;
     }
@@ -970,10 +1207,22 @@ public class PipelinedSorter extends ExternalSorter {
       if (kvip != kvjp) {
         return kvip - kvjp;
       }
+      if (normalizer != null) {
+        // normalized keys compare as unsigned
+        int cmp = Integer.compareUnsigned(kvmeta.get(kvi + PREFIX_HI),
+            kvmeta.get(kvj + PREFIX_HI));
+        if (cmp == 0) {
+          cmp = Integer.compareUnsigned(kvmeta.get(kvi + PREFIX_LO),
+              kvmeta.get(kvj + PREFIX_LO));
+        }
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
       return compareKeys(kvi, kvj);
     }
 
-    public SortSpan next() {
+    public SortSpan next() throws IOException {
       ByteBuffer remaining = end();
       if(remaining != null) {
         SortSpan newSpan = null;
@@ -1002,10 +1251,10 @@ public class PipelinedSorter extends ExternalSorter {
     }
 
     public int length() {
-      return kvmeta.limit()/NMETA;
+      return kvmeta.limit()/nmeta;
     }
 
-    public ByteBuffer end() {
+    public ByteBuffer end() throws IOException {
       ByteBuffer remaining = kvbuffer.duplicate();
       remaining.position(kvbuffer.position());
       remaining = remaining.slice();
@@ -1017,7 +1266,7 @@ public class PipelinedSorter extends ExternalSorter {
       }
       int perItem = kvbuffer.position()/items;
       LOG.info(outputContext.getDestinationVertexName() + ": " + String.format("Span%d.length = %d, perItem = %d", index, length(), perItem));
-      if(remaining.remaining() < METASIZE+perItem) {
+      if(remaining.remaining() < metaSize+perItem) {
         //Check if we can get the next Buffer from the main buffer list
         ByteBuffer space = allocateSpace();
         if (space != null) {
@@ -1042,12 +1291,19 @@ public class PipelinedSorter extends ExternalSorter {
       } else {
         keystart = kvmeta.get(this.offsetFor(index) + KEYSTART);
         valstart = kvmeta.get(this.offsetFor(index) + VALSTART);
-        final byte[] buf = kvbuffer.array();
-        final int off = kvbuffer.arrayOffset();
-        cmp = comparator.compare(buf,
-            keystart + off , (valstart - keystart),
-            needle.getData(),
-            needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        if (offHeap) {
+          cmp = comparator.compare(lhs.copy(keystart, valstart - keystart),
+              0, (valstart - keystart),
+              needle.getData(),
+              needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        } else {
+          final byte[] buf = kvbuffer.array();
+          final int off = kvbuffer.arrayOffset();
+          cmp = comparator.compare(buf,
+              keystart + off, (valstart - keystart),
+              needle.getData(),
+              needle.getPosition(), (needle.getLength() - needle.getPosition()));
+        }
       }
       return cmp;
     }
@@ -1058,7 +1314,7 @@ public class PipelinedSorter extends ExternalSorter {
     
     @Override
     public String toString() {
-        return String.format("Span[%d,%d]", NMETA*kvmeta.capacity(), kvbuffer.limit());
+        return String.format("Span[%d,%d]", nmeta*kvmeta.capacity(), kvbuffer.limit());
     }
   }
 
@@ -1076,14 +1332,19 @@ public class PipelinedSorter extends ExternalSorter {
 
     public SpanIterator(SortSpan span) {
       this.kvmeta = span.kvmeta;
-      this.kvbuffer = span.kvbuffer;
+      // off-heap: a private view, since key/values are copied out using relative reads
+      this.kvbuffer = span.offHeap ? span.kvbuffer.duplicate() : span.kvbuffer;
       this.span = span;
-      this.maxindex = (kvmeta.limit()/NMETA) - 1;
+      this.maxindex = span.length() - 1;
     }
 
     public DataInputBuffer getKey()  {
       final int keystart = kvmeta.get(span.offsetFor(kvindex) + KEYSTART);
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
+      if (span.offHeap) {
+        key.copy(kvbuffer, keystart, valstart - keystart);
+        return key;
+      }
       final byte[] buf = kvbuffer.array();
       final int off = kvbuffer.arrayOffset();
       key.reset(buf, off + keystart, valstart - keystart);
@@ -1093,6 +1354,10 @@ public class PipelinedSorter extends ExternalSorter {
     public DataInputBuffer getValue() {
       final int valstart = kvmeta.get(span.offsetFor(kvindex) + VALSTART);
       final int vallen = kvmeta.get(span.offsetFor(kvindex) + VALLEN);
+      if (span.offHeap) {
+        value.copy(kvbuffer, valstart, vallen);
+        return value;
+      }
       final byte[] buf = kvbuffer.array();
       final int off = kvbuffer.arrayOffset();
       value.reset(buf, off + valstart, vallen);
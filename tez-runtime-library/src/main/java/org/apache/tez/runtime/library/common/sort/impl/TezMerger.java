@@ -17,7 +17,9 @@
  */
 package org.apache.tez.runtime.library.common.sort.impl;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -40,6 +42,7 @@ import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.nativeio.NativeIO;
 import org.apache.hadoop.util.PriorityQueue;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
@@ -329,6 +332,8 @@ public class TezMerger {
     boolean ifileReadAhead;
     int ifileReadAheadLength;
     int bufferSize = -1;
+    boolean memoryMapped = false;
+    MappedByteBuffer mappedSegment = null;
 
     public DiskSegment(FileSystem fs, Path file,
         CompressionCodec codec, boolean ifileReadAhead,
@@ -360,6 +365,19 @@ public class TezMerger {
         long segmentOffset, long segmentLength, CompressionCodec codec,
         boolean ifileReadAhead, int ifileReadAheadLength, int bufferSize,
         boolean preserve, TezCounter mergedMapOutputsCounter)
+    throws IOException {
+      this(fs, file, segmentOffset, segmentLength, codec, ifileReadAhead, ifileReadAheadLength,
+          bufferSize, preserve, mergedMapOutputsCounter, false);
+    }
+
+    /**
+     * @param memoryMapped read the segment through a read-only memory mapping of the (local)
+     *                     file. The checksum is then verified once when the segment is opened.
+     */
+    public DiskSegment(FileSystem fs, Path file,
+        long segmentOffset, long segmentLength, CompressionCodec codec,
+        boolean ifileReadAhead, int ifileReadAheadLength, int bufferSize,
+        boolean preserve, TezCounter mergedMapOutputsCounter, boolean memoryMapped)
     throws IOException {
       super(null, mergedMapOutputsCounter);
       this.fs = fs;
@@ -372,11 +390,19 @@ public class TezMerger {
 
       this.segmentOffset = segmentOffset;
       this.segmentLength = segmentLength;
+      this.memoryMapped = memoryMapped;
     }
 
     @Override
     void init(TezCounter readsCounter, TezCounter bytesReadCounter) throws IOException {
       super.init(readsCounter, bytesReadCounter);
+      if (memoryMapped && segmentLength <= Integer.MAX_VALUE) {
+        mappedSegment = IFile.mapSegment(new File(fs.makeQualified(file).toUri().getPath()),
+            segmentOffset, segmentLength);
+        reader = Reader.openSegment(mappedSegment, codec, readsCounter, bytesReadCounter,
+            bufferSize);
+        return;
+      }
       FSDataInputStream in = fs.open(file);
       in.seek(segmentOffset);
       reader = new Reader(in, segmentLength, codec, readsCounter, bytesReadCounter, ifileReadAhead,
@@ -394,6 +420,15 @@ public class TezMerger {
         segmentLength : reader.getLength();
     }
 
+    @Override
+    void closeReader() throws IOException {
+      super.closeReader();
+      if (mappedSegment != null) {
+        NativeIO.POSIX.munmap(mappedSegment);
+        mappedSegment = null;
+      }
+    }
+
     @Override
     void close() throws IOException {
       super.close();
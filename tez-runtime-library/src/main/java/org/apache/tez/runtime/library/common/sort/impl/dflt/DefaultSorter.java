@@ -745,7 +745,7 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       Thread.currentThread().interrupt();
     }
     if (isFinalMergeEnabled()) {
-      fileOutputByteCounter.increment(rfs.getFileStatus(finalOutputFile).getLen());
+      fileOutputByteCounter.increment(getOutputLength(new TezSpillRecord(finalIndexFile, conf)));
     }
   }
 
@@ -1297,73 +1297,80 @@ public final class DefaultSorter extends ExternalSorter implements IndexedSortab
       return;
     }
     else {
-      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
-      for (int parts = 0; parts < partitions; parts++) {
-        //create the segments to be merged
-        List<Segment> segmentList =
-          new ArrayList<Segment>(numSpills);
-        for(int i = 0; i < numSpills; i++) {
-          outputContext.notifyProgress();
-          TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-          DiskSegment s =
-            new DiskSegment(rfs, filename[i], indexRecord.getStartOffset(),
-                             indexRecord.getPartLength(), codec, ifileReadAhead,
-                             ifileReadAheadLength, ifileBufferSize, true);
-          segmentList.add(i, s);
-
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(outputContext.getDestinationVertexName() + ": "
-                + "TaskIdentifier=" + taskIdentifier + " Partition=" + parts +
-                "Spill =" + i + "(" + indexRecord.getStartOffset() + "," +
-                indexRecord.getRawLength() + ", " +
-                indexRecord.getPartLength() + ")");
+      final TezSpillRecord spillRec;
+      if (canMergePartitionsInParallel(combiner != null && numSpills >= minSpillsForCombine)) {
+        // the parallel merge writes the final output with positional writes
+        finalOut.close();
+        spillRec = mergePartitionsInParallel(indexCacheList, false);
+      } else {
+        spillRec = new TezSpillRecord(partitions);
+        for (int parts = 0; parts < partitions; parts++) {
+          //create the segments to be merged
+          List<Segment> segmentList =
+            new ArrayList<Segment>(numSpills);
+          for(int i = 0; i < numSpills; i++) {
+            outputContext.notifyProgress();
+            TezIndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+            DiskSegment s =
+              new DiskSegment(rfs, filename[i], indexRecord.getStartOffset(),
+                               indexRecord.getPartLength(), codec, ifileReadAhead,
+                               ifileReadAheadLength, ifileBufferSize, true);
+            segmentList.add(i, s);
+
+            if (LOG.isDebugEnabled()) {
+              LOG.debug(outputContext.getDestinationVertexName() + ": "
+                  + "TaskIdentifier=" + taskIdentifier + " Partition=" + parts +
+                  "Spill =" + i + "(" + indexRecord.getStartOffset() + "," +
+                  indexRecord.getRawLength() + ", " +
+                  indexRecord.getPartLength() + ")");
+            }
           }
-        }
 
-        int mergeFactor =
-            this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
-                TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
-        // sort the segments only if there are intermediate merges
-        boolean sortSegments = segmentList.size() > mergeFactor;
-        //merge
-        TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
-                       keyClass, valClass, codec,
-                       segmentList, mergeFactor,
-                       new Path(taskIdentifier),
-                       (RawComparator)ConfigUtils.getIntermediateOutputKeyComparator(conf),
-                       progressable, sortSegments, true,
-                       null, spilledRecordsCounter, additionalSpillBytesRead,
-                       null); // Not using any Progress in TezMerger. Should just work.
-
-        //write merged output to disk
-        long segmentStart = finalOut.getPos();
-        Writer writer =
-            new Writer(conf, finalOut, keyClass, valClass, codec,
-                spilledRecordsCounter, null);
-        if (combiner == null || numSpills < minSpillsForCombine) {
-          TezMerger.writeFile(kvIter, writer,
-              progressable, TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
-        } else {
-          runCombineProcessor(kvIter, writer);
-        }
-        writer.close();
-        outputBytesWithOverheadCounter.increment(writer.getRawLength());
-
-        // record offsets
-        final TezIndexRecord rec =
-            new TezIndexRecord(
-                segmentStart,
-                writer.getRawLength(),
-                writer.getCompressedLength());
-        spillRec.putIndex(rec, parts);
-        if (reportPartitionStats()) {
-          partitionStats[parts] += writer.getCompressedLength();
+          int mergeFactor =
+              this.conf.getInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR,
+                  TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_FACTOR_DEFAULT);
+          // sort the segments only if there are intermediate merges
+          boolean sortSegments = segmentList.size() > mergeFactor;
+          //merge
+          TezRawKeyValueIterator kvIter = TezMerger.merge(conf, rfs,
+                         keyClass, valClass, codec,
+                         segmentList, mergeFactor,
+                         new Path(taskIdentifier),
+                         (RawComparator)ConfigUtils.getIntermediateOutputKeyComparator(conf),
+                         progressable, sortSegments, true,
+                         null, spilledRecordsCounter, additionalSpillBytesRead,
+                         null); // Not using any Progress in TezMerger. Should just work.
+
+          //write merged output to disk
+          long segmentStart = finalOut.getPos();
+          Writer writer =
+              new Writer(conf, finalOut, keyClass, valClass, codec,
+                  spilledRecordsCounter, null);
+          if (combiner == null || numSpills < minSpillsForCombine) {
+            TezMerger.writeFile(kvIter, writer,
+                progressable, TezRuntimeConfiguration.TEZ_RUNTIME_RECORDS_BEFORE_PROGRESS_DEFAULT);
+          } else {
+            runCombineProcessor(kvIter, writer);
+          }
+          writer.close();
+          outputBytesWithOverheadCounter.increment(writer.getRawLength());
+
+          // record offsets
+          final TezIndexRecord rec =
+              new TezIndexRecord(
+                  segmentStart,
+                  writer.getRawLength(),
+                  writer.getCompressedLength());
+          spillRec.putIndex(rec, parts);
+          if (reportPartitionStats()) {
+            partitionStats[parts] += writer.getCompressedLength();
+          }
         }
+        finalOut.close();
       }
       numShuffleChunks.setValue(1); //final merge has happened
       spillRec.writeToFile(finalIndexFile, conf);
-      finalOut.close();
       for(int i = 0; i < numSpills; i++) {
         rfs.delete(filename[i],true);
       }
@@ -68,6 +68,8 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.shuffle.LocalShuffleBufferOutputStream;
+import org.apache.tez.runtime.library.common.shuffle.LocalShuffleBufferRegistry;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 import org.slf4j.Logger;
@@ -174,6 +176,11 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
   private final IFile.Writer writer;
   private final boolean skipBuffers;
 
+  // Set in local mode, where the final output can be kept in memory for consumers in this process
+  private final LocalShuffleBufferRegistry localBufferRegistry;
+  // Final output of the single partition case, when it can be kept in memory
+  private final LocalShuffleBufferOutputStream localBufferOut;
+
   private final ReentrantLock spillLock = new ReentrantLock();
   private final Condition spillInProgress = spillLock.newCondition();
 
@@ -270,22 +277,35 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
     indexFileSizeEstimate = numPartitions * Constants.MAP_OUTPUT_INDEX_RECORD_LENGTH;
 
+    LocalShuffleBufferRegistry registry = LocalShuffleBufferRegistry.getInstance();
+    localBufferRegistry = (!pipelinedShuffle && registry.isEnabled()) ? registry : null;
+
     if (numPartitions == 1 && !pipelinedShuffle) {
       //special case, where in only one partition is available.
       finalOutPath = outputFileHandler.getOutputFileForWrite();
       finalIndexPath = outputFileHandler.getOutputIndexFileForWrite(indexFileSizeEstimate);
       skipBuffers = true;
-      writer = new IFile.Writer(conf, rfs, finalOutPath, keyClass, valClass,
-          codec, outputRecordsCounter, outputRecordBytesCounter);
+      if (localBufferRegistry != null) {
+        localBufferOut = new LocalShuffleBufferOutputStream(rfs, finalOutPath,
+            localBufferRegistry.getMaxOutputBytes());
+        writer = new IFile.Writer(conf, new FSDataOutputStream(localBufferOut, null), keyClass,
+            valClass, codec, outputRecordsCounter, outputRecordBytesCounter);
+      } else {
+        localBufferOut = null;
+        writer = new IFile.Writer(conf, rfs, finalOutPath, keyClass, valClass,
+            codec, outputRecordsCounter, outputRecordBytesCounter);
+      }
     } else {
       skipBuffers = false;
       writer = null;
+      localBufferOut = null;
     }
     LOG.info(destNameTrimmed + ": "
         + "numBuffers=" + numBuffers
         + ", sizePerBuffer=" + sizePerBuffer
         + ", skipBuffers=" + skipBuffers
         + ", pipelinedShuffle=" + pipelinedShuffle
+        + ", localBuffer=" + (localBufferRegistry != null)
         + ", numPartitions=" + numPartitions
         + ", reportPartitionStats=" + reportPartitionStats);
   }
@@ -554,6 +574,8 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
     private int spillIndex;
     private SpillPathDetails spillPathDetails;
     private int spillNumber;
+    // Set when the output may be kept in memory instead of being written to the output file
+    private LocalShuffleBufferOutputStream localBufferOut;
 
     public SpillCallable(List<WrappedBuffer> filledBuffers, CompressionCodec codec,
         TezCounter numRecordsCounter, SpillPathDetails spillPathDetails) {
@@ -566,6 +588,13 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
       this.spillPathDetails = spillPathDetails;
     }
 
+    public SpillCallable(List<WrappedBuffer> filledBuffers, CompressionCodec codec,
+        TezCounter numRecordsCounter, SpillPathDetails spillPathDetails,
+        LocalShuffleBufferOutputStream localBufferOut) {
+      this(filledBuffers, codec, numRecordsCounter, spillPathDetails);
+      this.localBufferOut = localBufferOut;
+    }
+
     public SpillCallable(List<WrappedBuffer> filledBuffers, CompressionCodec codec,
         TezCounter numRecordsCounter, int spillNumber) throws IOException {
       this.filledBuffers = filledBuffers;
@@ -585,7 +614,8 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
         this.spillPathDetails = getSpillPathDetails(false, -1, spillNumber);
         this.spillIndex = spillPathDetails.spillIndex;
       }
-      FSDataOutputStream out = rfs.create(spillPathDetails.outputFilePath);
+      FSDataOutputStream out = (localBufferOut != null) ?
+          new FSDataOutputStream(localBufferOut, null) : rfs.create(spillPathDetails.outputFilePath);
       TezSpillRecord spillRecord = new TezSpillRecord(numPartitions);
       DataInputBuffer key = new DataInputBuffer();
       DataInputBuffer val = new DataInputBuffer();
@@ -632,7 +662,13 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
       spillResult = new SpillResult(compressedLength, this.filledBuffers);
 
-      handleSpillIndex(spillPathDetails, spillRecord);
+      if (localBufferOut != null) {
+        // Either registers the output, or writes it and its index to disk
+        localBufferOut.commit(localBufferRegistry, outputContext, spillRecord,
+            spillPathDetails.indexFilePath, conf);
+      } else {
+        handleSpillIndex(spillPathDetails, spillRecord);
+      }
       LOG.info(destNameTrimmed + ": " + "Finished spill " + spillIndex);
 
       if (LOG.isDebugEnabled()) {
@@ -712,7 +748,11 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
           TezIndexRecord rec = new TezIndexRecord(0, rawLen, compLen);
           TezSpillRecord sr = new TezSpillRecord(1);
           sr.putIndex(rec, 0);
-          sr.writeToFile(finalIndexPath, conf);
+          if (localBufferOut != null) {
+            localBufferOut.commit(localBufferRegistry, outputContext, sr, finalIndexPath, conf);
+          } else {
+            sr.writeToFile(finalIndexPath, conf);
+          }
 
           BitSet emptyPartitions = new BitSet();
           if (outputRecordsCounter.getValue() == 0) {
@@ -872,13 +912,22 @@ public class UnorderedPartitionedKVWriter extends BaseUnorderedPartitionedKVWrit
 
       //setup output file and index file
       SpillPathDetails spillPathDetails = getSpillPathDetails(true, -1);
-      SpillCallable spillCallable = new SpillCallable(filledBuffers, codec, null, spillPathDetails);
+      // With final merge, this is the only spill and thus the final output
+      LocalShuffleBufferOutputStream finalBufferOut =
+          (localBufferRegistry != null && isFinalMergeEnabled) ?
+              new LocalShuffleBufferOutputStream(rfs, spillPathDetails.outputFilePath,
+                  localBufferRegistry.getMaxOutputBytes()) : null;
+      SpillCallable spillCallable = new SpillCallable(filledBuffers, codec, null,
+          spillPathDetails, finalBufferOut);
       try {
         SpillResult spillResult = spillCallable.call();
 
         fileOutputBytesCounter.increment(spillResult.spillSize);
         fileOutputBytesCounter.increment(indexFileSizeEstimate);
       } catch (Exception ex) {
+        if (finalBufferOut != null) {
+          finalBufferOut.abort();
+        }
         throw (ex instanceof IOException) ? (IOException)ex : new IOException(ex);
       }
       return true;
@@ -50,6 +50,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
 import org.apache.tez.runtime.library.common.readers.UnorderedKVReader;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleEventHandler;
+import org.apache.tez.runtime.library.common.shuffle.ShuffleMemoryPool;
 import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleInputEventHandlerImpl;
 import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleManager;
 import org.apache.tez.runtime.library.common.shuffle.impl.SimpleFetchedInputAllocator;
@@ -79,6 +80,7 @@ public class UnorderedKVInput extends AbstractLogicalInput {
   private TezCounter inputRecordCounter;
 
   private SimpleFetchedInputAllocator inputManager;
+  private ShuffleMemoryPool memoryPool;
   private ShuffleEventHandler inputEventHandler;
 
   public UnorderedKVInput(InputContext inputContext, int numPhysicalInputs) {
@@ -136,12 +138,17 @@ public class UnorderedKVInput extends AbstractLogicalInput {
       ifileBufferSize = conf.getInt("io.file.buffer.size",
           TezRuntimeConfiguration.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
 
+      if (conf.getBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED,
+          TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_ENABLED_DEFAULT)) {
+        this.memoryPool = new ShuffleMemoryPool(conf, getContext().getCounters());
+      }
+
       this.inputManager = new SimpleFetchedInputAllocator(
           TezUtilsInternal.cleanVertexName(getContext().getSourceVertexName()),
           getContext().getUniqueIdentifier(),
           getContext().getDagIdentifier(), conf,
           getContext().getTotalMemoryAvailableToTask(),
-          memoryUpdateCallbackHandler.getMemoryAssigned());
+          memoryUpdateCallbackHandler.getMemoryAssigned(), memoryPool);
 
       this.shuffleManager = new ShuffleManager(getContext(), conf, getNumPhysicalInputs(), ifileBufferSize,
           ifileReadAhead, ifileReadAheadLength, codec, inputManager);
@@ -225,6 +232,9 @@ public class UnorderedKVInput extends AbstractLogicalInput {
     if (this.shuffleManager != null) {
       this.shuffleManager.shutdown();
     }
+    if (this.memoryPool != null) {
+      this.memoryPool.close();
+    }
     
     long dataSize = getContext().getCounters()
         .findCounter(TaskCounter.SHUFFLE_BYTES_DECOMPRESSED).getValue();
@@ -79,4 +79,28 @@ public class TestProxyComparator {
       }
     }
   }
+
+  @Test(timeout = 5000)
+  public void testNormalizedKey() {
+    final NormalizedKeyComparator<BytesWritable> comparator = new TezBytesComparator();
+    BytesWritable lhs = new BytesWritable();
+    BytesWritable rhs = new BytesWritable();
+    for (String l : keys) {
+      for (String r : keys) {
+        set(lhs, l);
+        set(rhs, r);
+        final long lkey = comparator.getNormalizedKey(lhs);
+        final long rkey = comparator.getNormalizedKey(rhs);
+        final int cmp = Long.compareUnsigned(lkey, rkey);
+        if (cmp < 0) {
+          assertTrue(String.format("(%s) %x < (%s) %x", l, lkey, r, rkey),
+              comparator.compare(lhs, rhs) < 0);
+        }
+        if (cmp > 0) {
+          assertTrue(String.format("(%s) %x > (%s) %x", l, lkey, r, rkey),
+              comparator.compare(lhs, rhs) > 0);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAdaptiveFetcherPool {
+
+  private static final String LOCAL_HOST = "localhost";
+  private static final long WINDOW_MS = 100;
+
+  private Configuration conf;
+  private TezCounters counters;
+
+  @Before
+  public void setup() {
+    conf = new Configuration();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_MIN_FETCHERS, 2);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_WINDOW_MS,
+        (int) WINDOW_MS);
+    counters = new TezCounters();
+  }
+
+  @Test(timeout = 5000)
+  public void testHostOrder() {
+    TestPool pool = new TestPool(4);
+    fetch(pool, "fast", 1000, 10);
+    fetch(pool, "fast", 1000, 10);
+    fetch(pool, "medium", 500, 10);
+    fetch(pool, "medium", 500, 10);
+    fetch(pool, "slow", 100, 10);
+    fetch(pool, "slow", 100, 10);
+
+    assertTrue(pool.getHostStats("slow").slow);
+    assertFalse(pool.getHostStats("medium").slow);
+    assertEquals(1, counters.findCounter(TaskCounter.SHUFFLE_SLOW_HOSTS).getValue());
+    assertEquals(60, counters.findCounter(TaskCounter.SHUFFLE_FETCH_TIME).getValue());
+
+    // local host, unknown hosts, then by throughput, slow hosts last
+    assertTrue(pool.compareHosts(LOCAL_HOST, "fast") < 0);
+    assertTrue(pool.compareHosts("unknown", "fast") < 0);
+    assertTrue(pool.compareHosts("fast", "medium") < 0);
+    assertTrue(pool.compareHosts("medium", "fast") > 0);
+    assertTrue(pool.compareHosts("medium", "slow") < 0);
+    assertEquals(0, pool.compareHosts("unknown", "other"));
+  }
+
+  @Test(timeout = 5000)
+  public void testSlowHostThrottled() {
+    TestPool pool = new TestPool(4);
+    pool.fetchStarted("failing");
+    pool.fetchFailed("failing");
+    pool.fetchCompleted("failing", TimeUnit.MILLISECONDS.toNanos(10));
+    assertTrue(pool.getHostStats("failing").slow);
+
+    // A slow host gets a single fetcher, others are not limited
+    assertTrue(pool.canFetchFrom("failing"));
+    pool.fetchStarted("failing");
+    assertFalse(pool.canFetchFrom("failing"));
+    pool.fetchStarted("other");
+    pool.fetchStarted("other");
+    assertTrue(pool.canFetchFrom("other"));
+    assertEquals(3, counters.findCounter(TaskCounter.SHUFFLE_PEAK_FETCHERS).getValue());
+
+    // Successful fetches make it recover
+    pool.bytesFetched("failing", 100);
+    pool.fetchCompleted("failing", TimeUnit.MILLISECONDS.toNanos(10));
+    fetch(pool, "failing", 100, 10);
+    assertFalse(pool.getHostStats("failing").slow);
+    assertTrue(pool.canFetchFrom("failing"));
+  }
+
+  @Test(timeout = 5000)
+  public void testPoolResize() {
+    TestPool pool = new TestPool(4);
+    assertEquals(4, pool.getTargetFetchers());
+
+    // First saturated window probes one fetcher less
+    runWindow(pool, 4, 4000);
+    assertEquals(3, pool.getTargetFetchers());
+    // Throughput improved, keep shrinking
+    runWindow(pool, 3, 5000);
+    assertEquals(2, pool.getTargetFetchers());
+    // Lower bound reached, turn around
+    runWindow(pool, 2, 5000);
+    assertEquals(3, pool.getTargetFetchers());
+    // Throughput dropped, reverse
+    runWindow(pool, 3, 3000);
+    assertEquals(2, pool.getTargetFetchers());
+
+    // A pool which is not saturated is not resized
+    runWindow(pool, 1, 100);
+    assertEquals(2, pool.getTargetFetchers());
+    assertEquals(4, counters.findCounter(TaskCounter.SHUFFLE_FETCHER_POOL_RESIZES).getValue());
+  }
+
+  private void fetch(TestPool pool, String host, long bytes, long millis) {
+    pool.fetchStarted(host);
+    pool.bytesFetched(host, bytes);
+    pool.fetchCompleted(host, TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Runs <code>fetchers</code> concurrent fetches which together move <code>bytes</code> over
+   * one window.
+   */
+  private void runWindow(TestPool pool, int fetchers, long bytes) {
+    for (int i = 0; i < fetchers; i++) {
+      pool.fetchStarted("host" + i);
+    }
+    for (int i = 0; i < fetchers; i++) {
+      pool.bytesFetched("host" + i, bytes / fetchers);
+    }
+    pool.time += TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+    for (int i = 0; i < fetchers; i++) {
+      pool.fetchCompleted("host" + i, TimeUnit.MILLISECONDS.toNanos(WINDOW_MS));
+    }
+  }
+
+  private class TestPool extends AdaptiveFetcherPool {
+    private long time;
+
+    TestPool(int maxFetchers) {
+      super(conf, "test", maxFetchers, LOCAL_HOST, counters);
+    }
+
+    @Override
+    long nanoTime() {
+      return time;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TestFetchedInputWriter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TestFetchedInputWriter.class);
+
+  private final Configuration conf = new Configuration();
+  private final InputAttemptIdentifier inputAttempt =
+      new InputAttemptIdentifier(0, 0, InputAttemptIdentifier.PATH_PREFIX + "attempt_0");
+  private File workDir;
+
+  @Before
+  public void setup() throws IOException {
+    workDir = Files.createTempDirectory("TestFetchedInputWriter").toFile();
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(workDir);
+  }
+
+  @Test(timeout = 5000)
+  public void testWriteToMemory() throws IOException {
+    verifyWriteToMemory(null, null);
+  }
+
+  @Test(timeout = 5000)
+  public void testWriteCompressedToMemory() throws IOException {
+    verifyWriteToMemory(ReflectionUtils.newInstance(DefaultCodec.class, conf), null);
+  }
+
+  @Test(timeout = 5000)
+  public void testWriteToPooledMemory() throws IOException {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP, true);
+    ShuffleMemoryPool memoryPool = new ShuffleMemoryPool(conf, new TezCounters());
+    verifyWriteToMemory(null, memoryPool);
+    verifyWriteToMemory(ReflectionUtils.newInstance(DefaultCodec.class, conf), memoryPool);
+  }
+
+  @Test(timeout = 5000)
+  public void testWriteToDisk() throws IOException {
+    IFileBytes ifile = createIFile(null);
+    for (boolean verifyChecksum : new boolean[] { true, false }) {
+      DiskFetchedInput fetchedInput = createDiskFetchedInput(ifile);
+      FetchedInputWriter writer =
+          new FetchedInputWriter(fetchedInput, ifile.bytes.length, null, verifyChecksum);
+      writeInChunks(writer, ifile.bytes, 7);
+      writer.finish();
+      fetchedInput.commit();
+      assertArrayEquals(ifile.bytes,
+          Files.readAllBytes(new File(fetchedInput.getInputPath().toUri().getPath()).toPath()));
+      fetchedInput.free();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testChecksumError() throws IOException {
+    IFileBytes ifile = createIFile(null);
+    // Corrupt the last byte of the data
+    ifile.bytes[ifile.bytes.length - IFile.CHECKSUM_SIZE - 1] ^= 1;
+
+    MemoryFetchedInput memoryInput = new MemoryFetchedInput(ifile.decompressedLength,
+        ifile.bytes.length, inputAttempt, mock(FetchedInputCallback.class));
+    verifyChecksumError(new FetchedInputWriter(memoryInput, ifile.bytes.length, null, false),
+        ifile.bytes);
+    DiskFetchedInput diskInput = createDiskFetchedInput(ifile);
+    verifyChecksumError(new FetchedInputWriter(diskInput, ifile.bytes.length, null, true),
+        ifile.bytes);
+    diskInput.abort();
+  }
+
+  @Test(timeout = 5000)
+  public void testBytesAfterMapOutput() throws IOException {
+    IFileBytes ifile = createIFile(null);
+    byte[] response = new byte[ifile.bytes.length + 10];
+    System.arraycopy(ifile.bytes, 0, response, 0, ifile.bytes.length);
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(ifile.decompressedLength,
+        ifile.bytes.length, inputAttempt, mock(FetchedInputCallback.class));
+    FetchedInputWriter writer =
+        new FetchedInputWriter(fetchedInput, ifile.bytes.length, null, false);
+
+    ByteBuffer buffer = ByteBuffer.wrap(response);
+    writer.write(buffer);
+    assertTrue(writer.isComplete());
+    // The bytes of the next map output are left
+    assertEquals(10, buffer.remaining());
+    writer.finish();
+  }
+
+  @Test(timeout = 5000)
+  public void testIncompleteWrite() throws IOException {
+    IFileBytes ifile = createIFile(null);
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(ifile.decompressedLength,
+        ifile.bytes.length, inputAttempt, mock(FetchedInputCallback.class));
+    FetchedInputWriter writer =
+        new FetchedInputWriter(fetchedInput, ifile.bytes.length, null, false);
+    writer.write(ByteBuffer.wrap(ifile.bytes, 0, ifile.bytes.length - 1));
+    assertFalse(writer.isComplete());
+    try {
+      writer.finish();
+      fail("Incomplete map output should not be accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private void verifyWriteToMemory(CompressionCodec codec, ShuffleMemoryPool memoryPool)
+      throws IOException {
+    IFileBytes ifile = createIFile(codec);
+    byte[] expected = new byte[(int) ifile.decompressedLength];
+    ShuffleUtils.shuffleToMemory(expected, new ByteArrayInputStream(ifile.bytes),
+        expected.length, ifile.bytes.length, codec, false, 0, LOG, inputAttempt);
+
+    for (int chunkSize : new int[] { 1, 3, 64, ifile.bytes.length }) {
+      MemoryFetchedInput fetchedInput = new MemoryFetchedInput(ifile.decompressedLength,
+          ifile.bytes.length, inputAttempt, mock(FetchedInputCallback.class), memoryPool);
+      FetchedInputWriter writer =
+          new FetchedInputWriter(fetchedInput, ifile.bytes.length, codec, false);
+      writeInChunks(writer, ifile.bytes, chunkSize);
+      writer.finish();
+      byte[] actual = new byte[expected.length];
+      fetchedInput.getBuffer().get(actual);
+      assertArrayEquals("chunkSize=" + chunkSize, expected, actual);
+      fetchedInput.commit();
+      fetchedInput.free();
+    }
+  }
+
+  private void verifyChecksumError(FetchedInputWriter writer, byte[] bytes) throws IOException {
+    writeInChunks(writer, bytes, 5);
+    try {
+      writer.finish();
+      fail("Corrupt map output should not be accepted");
+    } catch (ChecksumException e) {
+      // expected
+    }
+    writer.abort();
+  }
+
+  private void writeInChunks(FetchedInputWriter writer, byte[] bytes, int chunkSize)
+      throws IOException {
+    for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+      // Direct buffers are not backed by an array
+      int length = Math.min(chunkSize, bytes.length - offset);
+      ByteBuffer buffer = offset % 2 == 0 ? ByteBuffer.wrap(bytes, offset, length)
+          : (ByteBuffer) ByteBuffer.allocateDirect(length).put(bytes, offset, length).flip();
+      writer.write(buffer);
+      assertFalse(buffer.hasRemaining());
+    }
+    assertTrue(writer.isComplete());
+  }
+
+  private DiskFetchedInput createDiskFetchedInput(IFileBytes ifile) throws IOException {
+    TezTaskOutputFiles outputFiles = mock(TezTaskOutputFiles.class);
+    doReturn(new Path(workDir.getAbsolutePath(), "input")).when(outputFiles)
+        .getInputFileForWrite(anyInt(), anyInt(), anyLong());
+    return new DiskFetchedInput(ifile.decompressedLength, ifile.bytes.length, inputAttempt,
+        mock(FetchedInputCallback.class), conf, mock(LocalDirAllocator.class), outputFiles);
+  }
+
+  private IFileBytes createIFile(CompressionCodec codec) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IFile.Writer writer = new IFile.Writer(conf, new FSDataOutputStream(out, null),
+        Text.class, Text.class, codec, null, null);
+    for (int i = 0; i < 100; i++) {
+      writer.append(new Text("key" + i), new Text("value" + i));
+    }
+    writer.close();
+    return new IFileBytes(out.toByteArray(), writer.getRawLength());
+  }
+
+  private static class IFileBytes {
+    final byte[] bytes;
+    final long decompressedLength;
+
+    IFileBytes(byte[] bytes, long decompressedLength) {
+      this.bytes = bytes;
+      this.decompressedLength = decompressedLength;
+    }
+  }
+}
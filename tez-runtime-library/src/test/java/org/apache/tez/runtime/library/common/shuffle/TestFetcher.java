@@ -19,6 +19,7 @@
 package org.apache.tez.runtime.library.common.shuffle;
 
 import org.apache.tez.runtime.library.common.CompositeInputAttemptIdentifier;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
@@ -32,31 +33,54 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.security.JobTokenSecretManager;
 import org.apache.tez.dag.api.TezConfiguration;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.orderedgrouped.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class TestFetcher {
+  private static final Logger LOG = LoggerFactory.getLogger(TestFetcher.class);
   private static final String SHUFFLE_INPUT_FILE_PREFIX = "shuffle_input_file_";
   private static String HOST = "localhost";
   private static int PORT = 41;
@@ -232,6 +256,63 @@ public class TestFetcher {
         srcAttempts[SECOND_FAILED_ATTEMPT_IDX]);
   }
 
+  @Test(timeout = 3000)
+  public void testBatchedPartitionRanges() throws Exception {
+    CompositeInputAttemptIdentifier[] srcAttempts = {
+        new CompositeInputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0", 2),
+        new CompositeInputAttemptIdentifier(2, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1", 1)
+    };
+    TezConfiguration conf = new TezConfiguration();
+    FetcherCallback callback = mock(FetcherCallback.class);
+    Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback, null, null,
+        ApplicationId.newInstance(0, 1), 1, null, "fetcherTest", conf, true, HOST, PORT,
+        false, true, true);
+    List<InputHost.PartitionToInputs> ranges = Arrays.asList(
+        new InputHost.PartitionToInputs(3, 2,
+            Lists.<InputAttemptIdentifier>newArrayList(srcAttempts[0])),
+        new InputHost.PartitionToInputs(7, 1,
+            Lists.<InputAttemptIdentifier>newArrayList(srcAttempts[1])));
+    builder.assignWork(HOST, PORT, ranges);
+    Fetcher fetcher = spy(builder.build());
+
+    doReturn(new Path(SHUFFLE_INPUT_FILE_PREFIX)).when(fetcher)
+        .getShuffleInputFileName(anyString(), anyString());
+    final List<Integer> fetchedPartitions = new ArrayList<Integer>();
+    doAnswer(new Answer<TezIndexRecord>() {
+      @Override
+      public TezIndexRecord answer(InvocationOnMock invocation) throws Throwable {
+        InputAttemptIdentifier srcAttemptId = (InputAttemptIdentifier) invocation.getArguments()[0];
+        int partition = (Integer) invocation.getArguments()[1];
+        fetchedPartitions.add(partition);
+        if (srcAttemptId.getPathComponent().endsWith("1")) {
+          throw new IOException("failing the second range");
+        }
+        return new TezIndexRecord(0, 10, 10);
+      }
+    }).when(fetcher).getTezIndexRecord(any(InputAttemptIdentifier.class), anyInt());
+    doNothing().when(fetcher).shutdown();
+
+    FetchResult fetchResult = fetcher.call();
+
+    // Each input is read for its own range
+    Assert.assertEquals(Arrays.asList(3, 4, 7), fetchedPartitions);
+    Assert.assertEquals(srcAttempts[0].expand(1), fetcher.getPathToAttemptMap().get(
+        new Fetcher.PathPartition(srcAttempts[0].getPathComponent(), 4)));
+    Assert.assertEquals(srcAttempts[1].expand(0), fetcher.getPathToAttemptMap().get(
+        new Fetcher.PathPartition(srcAttempts[1].getPathComponent(), 7)));
+    verify(callback).fetchFailed(eq(HOST), eq(srcAttempts[1]), eq(false));
+
+    // Failed inputs go back with the range they were requested for
+    List<InputHost.PartitionToInputs> pending = fetchResult.getPendingPartitionRanges();
+    Assert.assertEquals(1, pending.size());
+    Assert.assertEquals(7, pending.get(0).getPartition());
+    Assert.assertEquals(1, pending.get(0).getPartitionCount());
+    Assert.assertEquals(Arrays.<InputAttemptIdentifier>asList(srcAttempts[1]),
+        pending.get(0).getInputs());
+    Assert.assertEquals(Arrays.<InputAttemptIdentifier>asList(srcAttempts[1]),
+        Lists.newArrayList(fetchResult.getPendingInputs()));
+  }
+
   protected void verifyFetchSucceeded(FetcherCallback callback, CompositeInputAttemptIdentifier srcAttempId, Configuration conf) throws IOException {
     String pathComponent = srcAttempId.getPathComponent();
     int len = pathComponent.length();
@@ -250,6 +331,9 @@ public class TestFetcher {
     Assert.assertEquals("success callback compressed size", f.getCompressedSize(), p * 100);
     Assert.assertEquals("success callback input id", f.getInputAttemptIdentifier(), srcAttempId.expand(0));
     Assert.assertEquals("success callback type", f.getType(), FetchedInput.Type.DISK_DIRECT);
+    Assert.assertEquals("success callback memory mapped", conf.getBoolean(
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED,
+        TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED_DEFAULT), f.isMemoryMapped());
   }
 
   @Test(timeout=5000)
@@ -305,4 +389,175 @@ public class TestFetcher {
       Assert.assertTrue(expectedSrcAttempts[count++].toString().compareTo(key) == 0);
     }
   }
+
+  @Test(timeout = 10000)
+  public void testNonBlockingFetch() throws Exception {
+    final InputAttemptIdentifier[] srcAttempts = {
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0"),
+        new InputAttemptIdentifier(1, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1"),
+        new InputAttemptIdentifier(2, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_2")
+    };
+    final long[] rawLengths = new long[srcAttempts.length];
+    final byte[][] ifiles = { createIFile(10, rawLengths, 0), new byte[0],
+        createIFile(1000, rawLengths, 2) };
+    final JobTokenSecretManager jobTokenSecretManager = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes(Charsets.UTF_8)));
+    HttpServer server = startShuffleServer(jobTokenSecretManager, new ShuffleResponse() {
+      @Override
+      public void write(DataOutputStream out) throws IOException {
+        for (int i = 0; i < srcAttempts.length; i++) {
+          WritableUtils.writeVInt(out, 1);
+          new ShuffleHeader(srcAttempts[i].getPathComponent(), ifiles[i].length,
+              rawLengths[i], 0).write(out);
+          out.write(ifiles[i]);
+        }
+      }
+    });
+    ExecutorService executor = createFetcherExecutor();
+    try {
+      FetcherCallback callback = mock(FetcherCallback.class);
+      FetchedInputAllocator allocator = mock(FetchedInputAllocator.class);
+      final List<String> allocatingThreads = new ArrayList<String>();
+      doAnswer(new Answer<FetchedInput>() {
+        @Override
+        public FetchedInput answer(InvocationOnMock invocation) throws Throwable {
+          allocatingThreads.add(Thread.currentThread().getName());
+          Object[] args = invocation.getArguments();
+          return new MemoryFetchedInput((Long) args[0], (Long) args[1],
+              (InputAttemptIdentifier) args[2], mock(FetchedInputCallback.class));
+        }
+      }).when(allocator).allocate(anyLong(), anyLong(), any(InputAttemptIdentifier.class));
+
+      Fetcher fetcher = createNonBlockingFetcher(server, callback, allocator,
+          jobTokenSecretManager, srcAttempts, executor);
+      Assert.assertTrue(fetcher.isNonBlocking());
+      FetchResult fetchResult = fetcher.fetchNonBlocking().get();
+
+      Assert.assertFalse(fetchResult.getPendingInputs().iterator().hasNext());
+      ArgumentCaptor<FetchedInput> fetchedInput = ArgumentCaptor.forClass(FetchedInput.class);
+      verify(callback).fetchSucceeded(eq("127.0.0.1"), eq(srcAttempts[0]),
+          fetchedInput.capture(), eq((long) ifiles[0].length), eq(rawLengths[0]), anyLong());
+      verify(callback).fetchSucceeded(eq("127.0.0.1"), eq(srcAttempts[2]),
+          fetchedInput.capture(), eq((long) ifiles[2].length), eq(rawLengths[2]), anyLong());
+      verify(callback, never()).fetchFailed(anyString(), any(InputAttemptIdentifier.class),
+          anyBoolean());
+      // The fetched inputs hold the data of the IFiles
+      for (FetchedInput input : fetchedInput.getAllValues()) {
+        int index = input.getInputAttemptIdentifier().getInputIdentifier();
+        byte[] ifile = ifiles[index];
+        byte[] expected = new byte[(int) rawLengths[index]];
+        ShuffleUtils.shuffleToMemory(expected, new ByteArrayInputStream(ifile), expected.length,
+            ifile.length, null, false, 0, LOG, input.getInputAttemptIdentifier());
+        Assert.assertArrayEquals(expected, ((MemoryFetchedInput) input).getBuffer().array());
+      }
+      // The response is processed on the executor, not on the I/O threads of the http client
+      Assert.assertFalse(allocatingThreads.isEmpty());
+      for (String threadName : allocatingThreads) {
+        Assert.assertTrue(threadName, threadName.startsWith("NonBlockingFetcher"));
+      }
+    } finally {
+      executor.shutdownNow();
+      server.stop(0);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testNonBlockingFetchInvalidMapId() throws Exception {
+    final InputAttemptIdentifier[] srcAttempts = {
+        new InputAttemptIdentifier(0, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_0"),
+        new InputAttemptIdentifier(1, 1, InputAttemptIdentifier.PATH_PREFIX + "pathComponent_1")
+    };
+    JobTokenSecretManager jobTokenSecretManager = new JobTokenSecretManager(
+        JobTokenSecretManager.createSecretKey("secret".getBytes(Charsets.UTF_8)));
+    HttpServer server = startShuffleServer(jobTokenSecretManager, new ShuffleResponse() {
+      @Override
+      public void write(DataOutputStream out) throws IOException {
+        WritableUtils.writeVInt(out, 1);
+        new ShuffleHeader("invalid", 10, 10, 0).write(out);
+      }
+    });
+    ExecutorService executor = createFetcherExecutor();
+    try {
+      FetcherCallback callback = mock(FetcherCallback.class);
+      Fetcher fetcher = createNonBlockingFetcher(server, callback,
+          mock(FetchedInputAllocator.class), jobTokenSecretManager, srcAttempts, executor);
+      FetchResult fetchResult = fetcher.fetchNonBlocking().get();
+
+      // Not knowing which one was bad, all inputs are failed
+      verify(callback).fetchFailed(eq("127.0.0.1"), eq(srcAttempts[0]), eq(false));
+      verify(callback).fetchFailed(eq("127.0.0.1"), eq(srcAttempts[1]), eq(false));
+      Assert.assertEquals(Arrays.asList(srcAttempts),
+          Lists.newArrayList(fetchResult.getPendingInputs()));
+    } finally {
+      executor.shutdownNow();
+      server.stop(0);
+    }
+  }
+
+  private interface ShuffleResponse {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Serves the response of a shuffle handler, written out in small pieces.
+   */
+  private HttpServer startShuffleServer(final JobTokenSecretManager jobTokenSecretManager,
+      final ShuffleResponse response) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String urlHash = exchange.getRequestHeaders()
+            .getFirst(SecureShuffleUtils.HTTP_HEADER_URL_HASH);
+        exchange.getResponseHeaders().add(ShuffleHeader.HTTP_HEADER_NAME,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_NAME);
+        exchange.getResponseHeaders().add(ShuffleHeader.HTTP_HEADER_VERSION,
+            ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION);
+        exchange.getResponseHeaders().add(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+            SecureShuffleUtils.hashFromString(urlHash, jobTokenSecretManager));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        response.write(new DataOutputStream(body));
+        byte[] bytes = body.toByteArray();
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+          out.write(bytes, offset, Math.min(7, bytes.length - offset));
+          out.flush();
+        }
+        out.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private Fetcher createNonBlockingFetcher(HttpServer server, FetcherCallback callback,
+      FetchedInputAllocator allocator, JobTokenSecretManager jobTokenSecretManager,
+      InputAttemptIdentifier[] srcAttempts, ExecutorService executor) {
+    TezConfiguration conf = new TezConfiguration();
+    Fetcher.FetcherBuilder builder = new Fetcher.FetcherBuilder(callback,
+        ShuffleUtils.getHttpConnectionParams(conf), allocator, ApplicationId.newInstance(0, 1), 1,
+        jobTokenSecretManager, "fetcherTest", conf, false, HOST, PORT, true, true, true);
+    builder.setNonBlocking(true, executor);
+    builder.assignWork("127.0.0.1", server.getAddress().getPort(), 0, 1,
+        Arrays.asList(srcAttempts));
+    return builder.build();
+  }
+
+  private ExecutorService createFetcherExecutor() {
+    return Executors.newFixedThreadPool(2, new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("NonBlockingFetcher #%d").build());
+  }
+
+  private byte[] createIFile(int records, long[] rawLengths, int index) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IFile.Writer writer = new IFile.Writer(new Configuration(), new FSDataOutputStream(out, null),
+        Text.class, Text.class, null, null, null);
+    for (int i = 0; i < records; i++) {
+      writer.append(new Text("key" + i), new Text("value" + i));
+    }
+    writer.close();
+    rawLengths[index] = writer.getRawLength();
+    return out.toByteArray();
+  }
 }
@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.runtime.api.OutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLocalShuffleBufferRegistry {
+
+  private static final Path TEST_ROOT_DIR = new Path(System.getProperty("test.build.data",
+      "/tmp"), TestLocalShuffleBufferRegistry.class.getSimpleName());
+  private static final ApplicationId APP_ID = ApplicationId.newInstance(1000, 1);
+
+  private Configuration conf;
+  private FileSystem localFs;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    localFs = FileSystem.getLocal(conf);
+    localFs.delete(TEST_ROOT_DIR, true);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(TEST_ROOT_DIR, true);
+  }
+
+  @Test(timeout = 5000)
+  public void testRegisterAndRelease() {
+    LocalShuffleBufferRegistry registry = new LocalShuffleBufferRegistry();
+    TezSpillRecord spillRecord = new TezSpillRecord(1);
+    assertFalse(registry.register(APP_ID, 1, "out1", new byte[10], 10, spillRecord));
+
+    registry.enable(100, 50);
+    assertEquals(50, registry.getMaxOutputBytes());
+    assertTrue(registry.register(APP_ID, 1, "out1", new byte[60], 60, spillRecord));
+    assertTrue(registry.register(APP_ID, 2, "out2", new byte[40], 40, spillRecord));
+    // Over the total budget
+    assertFalse(registry.register(APP_ID, 2, "out3", new byte[1], 1, spillRecord));
+    assertNull(registry.get("out3"));
+    assertEquals(100, registry.getUsedBytes());
+
+    registry.dagComplete(APP_ID, 1);
+    assertNull(registry.get("out1"));
+    assertNotNull(registry.get("out2"));
+    assertEquals(40, registry.getUsedBytes());
+    // Another app master with the same dag id
+    registry.dagComplete(ApplicationId.newInstance(1000, 2), 2);
+    assertNotNull(registry.get("out2"));
+
+    // Buffers are dropped once the last user disables the registry
+    registry.enable(100, 50);
+    registry.disable();
+    assertTrue(registry.isEnabled());
+    assertNotNull(registry.get("out2"));
+    registry.disable();
+    assertFalse(registry.isEnabled());
+    assertNull(registry.get("out2"));
+    assertEquals(0, registry.getUsedBytes());
+  }
+
+  @Test(timeout = 5000)
+  public void testOutputKeptInMemory() throws IOException {
+    LocalShuffleBufferRegistry registry = new LocalShuffleBufferRegistry();
+    registry.enable(1024 * 1024, 1024 * 1024);
+    Path outputPath = new Path(TEST_ROOT_DIR, "file.out");
+    Path indexPath = new Path(TEST_ROOT_DIR, "file.out.index");
+
+    LocalShuffleBufferOutputStream out = new LocalShuffleBufferOutputStream(localFs, outputPath,
+        registry.getMaxOutputBytes());
+    TezSpillRecord spillRecord = writePartitions(out, 2, 10);
+    assertTrue(out.commit(registry, createOutputContext("out1"), spillRecord, indexPath, conf));
+    assertFalse(localFs.exists(outputPath));
+    assertFalse(localFs.exists(indexPath));
+
+    LocalShuffleBufferRegistry.ShuffleBuffer buffer = registry.get("out1");
+    assertNotNull(buffer);
+    for (int partition = 0; partition < 2; partition++) {
+      verifyPartition(IFile.Reader.openSegment(buffer.getSegment(partition), null, null, null,
+          1024), partition, 10);
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testOutputMovedToDisk() throws IOException {
+    LocalShuffleBufferRegistry registry = new LocalShuffleBufferRegistry();
+    registry.enable(1024 * 1024, 100);
+    Path outputPath = new Path(TEST_ROOT_DIR, "file.out");
+    Path indexPath = new Path(TEST_ROOT_DIR, "file.out.index");
+
+    // Larger than the limit of an output
+    LocalShuffleBufferOutputStream out = new LocalShuffleBufferOutputStream(localFs, outputPath,
+        registry.getMaxOutputBytes());
+    TezSpillRecord spillRecord = writePartitions(out, 2, 100);
+    assertFalse(out.isInMemory());
+    assertFalse(out.commit(registry, createOutputContext("out1"), spillRecord, indexPath, conf));
+    assertNull(registry.get("out1"));
+    assertEquals(0, registry.getUsedBytes());
+
+    TezSpillRecord readRecord = new TezSpillRecord(indexPath, conf);
+    for (int partition = 0; partition < 2; partition++) {
+      TezIndexRecord indexRecord = readRecord.getIndex(partition);
+      FSDataInputStream in = localFs.open(outputPath);
+      in.seek(indexRecord.getStartOffset());
+      verifyPartition(new IFile.Reader(in, indexRecord.getPartLength(), null, null, null, false,
+          0, 1024), partition, 100);
+    }
+  }
+
+  private TezSpillRecord writePartitions(LocalShuffleBufferOutputStream out, int numPartitions,
+      int numRecords) throws IOException {
+    FSDataOutputStream dataOut = new FSDataOutputStream(out, null);
+    TezSpillRecord spillRecord = new TezSpillRecord(numPartitions);
+    for (int partition = 0; partition < numPartitions; partition++) {
+      long start = dataOut.getPos();
+      IFile.Writer writer = new IFile.Writer(conf, dataOut, Text.class, Text.class, null, null,
+          null);
+      for (int i = 0; i < numRecords; i++) {
+        writer.append(new Text("key" + partition), new Text("value" + i));
+      }
+      writer.close();
+      spillRecord.putIndex(new TezIndexRecord(start, writer.getRawLength(),
+          writer.getCompressedLength()), partition);
+    }
+    return spillRecord;
+  }
+
+  private void verifyPartition(IFile.Reader reader, int partition, int numRecords)
+      throws IOException {
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valIn = new DataInputBuffer();
+    Text key = new Text();
+    Text val = new Text();
+    for (int i = 0; i < numRecords; i++) {
+      assertTrue(reader.nextRawKey(keyIn));
+      reader.nextRawValue(valIn);
+      key.readFields(keyIn);
+      val.readFields(valIn);
+      assertEquals("key" + partition, key.toString());
+      assertEquals("value" + i, val.toString());
+    }
+    assertFalse(reader.nextRawKey(keyIn));
+    reader.close();
+  }
+
+  private OutputContext createOutputContext(String uniqueIdentifier) {
+    OutputContext outputContext = mock(OutputContext.class);
+    doReturn(APP_ID).when(outputContext).getApplicationId();
+    doReturn(1).when(outputContext).getDagIdentifier();
+    doReturn(uniqueIdentifier).when(outputContext).getUniqueIdentifier();
+    return outputContext;
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffleMemoryPool {
+
+  private static final int SLAB_SIZE = 64 * 1024;
+
+  private Configuration conf;
+  private TezCounters counters;
+
+  @Before
+  public void setup() {
+    conf = new Configuration();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE, SLAB_SIZE);
+    counters = new TezCounters();
+  }
+
+  @Test(timeout = 5000)
+  public void testAllocationSize() {
+    ShuffleMemoryPool pool = new ShuffleMemoryPool(conf, counters);
+    assertEquals(ShuffleMemoryPool.MIN_CHUNK_SIZE, pool.getAllocationSize(0));
+    assertEquals(ShuffleMemoryPool.MIN_CHUNK_SIZE, pool.getAllocationSize(100));
+    assertEquals(2048, pool.getAllocationSize(1025));
+    assertEquals(2048, pool.getAllocationSize(2048));
+    assertEquals(SLAB_SIZE, pool.getAllocationSize(SLAB_SIZE));
+    assertEquals(SLAB_SIZE + 1, pool.getAllocationSize(SLAB_SIZE + 1));
+
+    // Slab sizes are rounded up to a power of two
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_SLAB_SIZE, 3000);
+    pool = new ShuffleMemoryPool(conf, counters);
+    assertEquals(4096, pool.getAllocationSize(4096));
+    assertEquals(4097, pool.getAllocationSize(4097));
+  }
+
+  @Test(timeout = 5000)
+  public void testSplitAndMerge() {
+    ShuffleMemoryPool pool = new ShuffleMemoryPool(conf, counters);
+    ShuffleMemoryPool.Chunk small = pool.allocate(100);
+    assertEquals(100, small.getBuffer().remaining());
+    assertEquals(ShuffleMemoryPool.MIN_CHUNK_SIZE, small.getCapacity());
+    assertEquals(SLAB_SIZE, pool.getCapacity());
+
+    // The rest of the slab is left for these
+    ShuffleMemoryPool.Chunk half = pool.allocate(SLAB_SIZE / 2);
+    ShuffleMemoryPool.Chunk quarter = pool.allocate(SLAB_SIZE / 4);
+    assertEquals(SLAB_SIZE, pool.getCapacity());
+    // Which is no longer enough for a half
+    ShuffleMemoryPool.Chunk otherHalf = pool.allocate(SLAB_SIZE / 2);
+    assertEquals(2 * SLAB_SIZE, pool.getCapacity());
+
+    // Once merged back, the first slab can serve a half again
+    small.release();
+    quarter.release();
+    ShuffleMemoryPool.Chunk thirdHalf = pool.allocate(SLAB_SIZE / 2);
+    assertEquals(2 * SLAB_SIZE, pool.getCapacity());
+
+    // A single free slab is kept
+    half.release();
+    otherHalf.release();
+    thirdHalf.release();
+    assertEquals(SLAB_SIZE, pool.getCapacity());
+    assertEquals(0, pool.getUsed());
+    // Releasing again has no effect
+    half.release();
+    assertEquals(0, pool.getUsed());
+
+    assertEquals(2 * SLAB_SIZE,
+        counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_PEAK_CAPACITY).getValue());
+    assertEquals(3 * SLAB_SIZE / 2,
+        counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_PEAK_USED).getValue());
+  }
+
+  @Test(timeout = 5000)
+  public void testUnpooledAllocation() {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP, true);
+    ShuffleMemoryPool pool = new ShuffleMemoryPool(conf, counters);
+    ShuffleMemoryPool.Chunk large = pool.allocate(SLAB_SIZE + 1);
+    assertTrue(large.getBuffer().isDirect());
+    assertEquals(SLAB_SIZE + 1, large.getBuffer().remaining());
+    assertEquals(SLAB_SIZE + 1, pool.getCapacity());
+    large.release();
+    assertEquals(0, pool.getCapacity());
+    assertEquals(1,
+        counters.findCounter(TaskCounter.SHUFFLE_MEMORY_POOL_UNPOOLED_ALLOCATIONS).getValue());
+  }
+
+  @Test(timeout = 5000)
+  public void testChunksDoNotOverlap() {
+    for (boolean offHeap : new boolean[] { false, true }) {
+      conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP, offHeap);
+      TezCounters poolCounters = new TezCounters();
+      ShuffleMemoryPool pool = new ShuffleMemoryPool(conf, poolCounters);
+      Random random = new Random(offHeap ? 1 : 2);
+      List<ShuffleMemoryPool.Chunk> chunks = new ArrayList<ShuffleMemoryPool.Chunk>();
+      List<Byte> contents = new ArrayList<Byte>();
+      for (int i = 0; i < 1000; i++) {
+        if (!chunks.isEmpty() && random.nextInt(3) == 0) {
+          int index = random.nextInt(chunks.size());
+          verifyContent(chunks.remove(index), contents.remove(index));
+        } else {
+          ShuffleMemoryPool.Chunk chunk = pool.allocate(random.nextInt(SLAB_SIZE / 4));
+          assertEquals(offHeap, chunk.getBuffer().isDirect());
+          byte content = (byte) i;
+          ByteBuffer buffer = chunk.getBuffer();
+          while (buffer.hasRemaining()) {
+            buffer.put(content);
+          }
+          chunks.add(chunk);
+          contents.add(content);
+        }
+      }
+      for (int i = 0; i < chunks.size(); i++) {
+        verifyContent(chunks.get(i), contents.get(i));
+      }
+      assertEquals(0, pool.getUsed());
+      // Direct slabs are kept until the pool is closed
+      assertEquals(offHeap ? poolCounters.findCounter(
+          TaskCounter.SHUFFLE_MEMORY_POOL_PEAK_CAPACITY).getValue() : SLAB_SIZE,
+          pool.getCapacity());
+      pool.close();
+      assertEquals(0, pool.getCapacity());
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testDirectSlabsFreedOnClose() {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_MEMORY_POOL_OFF_HEAP, true);
+    ShuffleMemoryPool pool = new ShuffleMemoryPool(conf, counters);
+    ShuffleMemoryPool.Chunk first = pool.allocate(SLAB_SIZE);
+    ShuffleMemoryPool.Chunk second = pool.allocate(SLAB_SIZE);
+    first.release();
+    second.release();
+    assertEquals(2 * SLAB_SIZE, pool.getCapacity());
+    // Served by the slabs which were released
+    first = pool.allocate(SLAB_SIZE);
+    assertEquals(2 * SLAB_SIZE, pool.getCapacity());
+
+    // The slab in use is freed once released
+    pool.close();
+    assertEquals(SLAB_SIZE, pool.getCapacity());
+    assertEquals(SLAB_SIZE, pool.getUsed());
+    first.release();
+    assertEquals(0, pool.getCapacity());
+    assertEquals(0, pool.getUsed());
+  }
+
+  private void verifyContent(ShuffleMemoryPool.Chunk chunk, byte content) {
+    ByteBuffer buffer = chunk.getBuffer();
+    while (buffer.hasRemaining()) {
+      assertEquals(content, buffer.get());
+    }
+    chunk.release();
+  }
+}
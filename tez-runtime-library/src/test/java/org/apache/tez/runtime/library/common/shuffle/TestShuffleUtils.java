@@ -343,4 +343,23 @@ public class TestShuffleUtils {
     verify(activeLogger, times(1000)).info(anyString());
     verify(aggregateLogger, times(1)).info(anyString(), Matchers.<Object[]>anyVararg());
   }
+
+  @Test
+  public void testConstructInputURLForPartitionRanges() throws Exception {
+    List<InputAttemptIdentifier> inputs = Arrays.asList(
+        new InputAttemptIdentifier(0, 0, InputAttemptIdentifier.PATH_PREFIX + "a"),
+        new InputAttemptIdentifier(1, 0, InputAttemptIdentifier.PATH_PREFIX + "b"));
+    String single = ShuffleUtils.constructBaseURIForShuffleHandler("host", 13562, 2, 3,
+        "application_1_0001", 1, false).toString();
+    Assert.assertEquals("http://host:13562/mapOutput?job=job_1_0001&dag=1&reduce=2-4&map=",
+        single);
+
+    String batched = ShuffleUtils.constructBaseURIForShuffleHandler("host", 13562,
+        new int[] { 2, 7 }, new int[] { 3, 1 }, "application_1_0001", 1, false).toString();
+    Assert.assertEquals("http://host:13562/mapOutput?job=job_1_0001&dag=1&reduce=2-4,7&map=",
+        batched);
+    Assert.assertEquals(batched + InputAttemptIdentifier.PATH_PREFIX + "a,"
+            + InputAttemptIdentifier.PATH_PREFIX + "b&keepAlive=true",
+        ShuffleUtils.constructInputURL(batched, inputs, true).toString());
+  }
 }
@@ -47,6 +47,7 @@ import org.apache.hadoop.security.token.Token;
 import org.apache.tez.common.TezExecutors;
 import org.apache.tez.common.TezRuntimeFrameworkConfigs;
 import org.apache.tez.common.TezSharedExecutor;
+import org.apache.tez.common.counters.TaskCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
@@ -57,11 +58,13 @@ import org.apache.tez.runtime.api.ExecutionContext;
 import org.apache.tez.runtime.api.InputContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
+import org.apache.tez.runtime.library.common.CompositeInputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInput;
 import org.apache.tez.runtime.library.common.shuffle.FetchedInputAllocator;
 import org.apache.tez.runtime.library.common.shuffle.Fetcher;
 import org.apache.tez.runtime.library.common.shuffle.FetchResult;
+import org.apache.tez.runtime.library.common.shuffle.HostPort;
 import org.apache.tez.runtime.library.common.shuffle.InputHost;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
@@ -99,6 +102,20 @@ public class TestShuffleManager {
   */
   @Test(timeout = 50000)
   public void testMultiplePartitions() throws Exception {
+    runMultiplePartitions();
+  }
+
+  @Test(timeout = 50000)
+  public void testMultiplePartitionsWithAdaptiveFetchers() throws Exception {
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_ADAPTIVE_ENABLED, true);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES, 2);
+    InputContext inputContext = runMultiplePartitions();
+    long peakFetchers = inputContext.getCounters()
+        .findCounter(TaskCounter.SHUFFLE_PEAK_FETCHERS).getValue();
+    assertTrue("peakFetchers=" + peakFetchers, peakFetchers >= 1 && peakFetchers <= 2);
+  }
+
+  private InputContext runMultiplePartitions() throws Exception {
     final int numOfMappers = 3;
     final int numOfPartitions = 5;
     final int firstPart = 2;
@@ -150,6 +167,7 @@ public class TestShuffleManager {
     assertTrue(shuffleManager.isFetcherExecutorShutdown());
     assertEquals(numOfMappers * numOfPartitions,
         shuffleManager.getNumOfCompletedInputs());
+    return inputContext;
   }
 
   private InputContext createInputContext() throws IOException {
@@ -193,6 +211,27 @@ public class TestShuffleManager {
     verify(inputContext).createTezFrameworkExecutorService(anyInt(), anyString());
   }
 
+  @Test(timeout = 5000)
+  public void testBatchedPartitionRanges() throws Exception {
+    conf.set(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID, "tez_shuffle");
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES, 2);
+    InputContext inputContext = createInputContext();
+    ShuffleManagerForTest shuffleManager = createShuffleManager(inputContext, 6);
+
+    InputHost inputHost = new InputHost(new HostPort(FETCHER_HOST, PORT));
+    for (int i = 0; i < 3; i++) {
+      inputHost.addKnownInput(i * 2, 2, new CompositeInputAttemptIdentifier(i * 2, 0,
+          PATH_COMPONENT + i, 2));
+    }
+    Fetcher fetcher = shuffleManager.constructFetcherForHost(inputHost, conf);
+    // Two of the three ranges go out in one request, the third stays with the host
+    assertEquals(2, fetcher.getSrcAttempts().size());
+    assertEquals(1, inputHost.getNumPendingPartitions());
+    InputHost.PartitionToInputs remaining = inputHost.clearAndGetOnePartitionRange();
+    assertEquals(1, remaining.getInputs().size());
+    assertEquals(remaining.getPartition(), remaining.getInputs().get(0).getInputIdentifier());
+  }
+
   private ShuffleManagerForTest createShuffleManager(
       InputContext inputContext, int expectedNumOfPhysicalInputs)
           throws IOException {
@@ -139,6 +139,41 @@ public class TestFetcher {
   }
 
 
+  @Test(timeout = 5000)
+  public void testBatchedInputsReturnedToTheirHosts() throws Exception {
+    Configuration conf = new TezConfiguration();
+    ShuffleScheduler scheduler = mock(ShuffleScheduler.class);
+    MergeManager merger = mock(MergeManager.class);
+    Shuffle shuffle = mock(Shuffle.class);
+
+    // Two partition ranges of the same host, fetched in one request
+    MapHost host0 = new MapHost(HOST, PORT, 0, 1);
+    MapHost host2 = new MapHost(HOST, PORT, 2, 1);
+    InputAttemptIdentifier input0 = new InputAttemptIdentifier(0, 0, "attempt0");
+    InputAttemptIdentifier input1 = new InputAttemptIdentifier(1, 0, "attempt1");
+    doReturn(10).when(scheduler).getMaxTaskOutputAtOnce();
+    doReturn(Lists.newArrayList(input0)).when(scheduler).getMapsForHost(host0, 10);
+    // input0 is also known for the second range, it is left to a later fetch there
+    doReturn(Lists.newArrayList(input0, input1)).when(scheduler).getMapsForHost(host2, 9);
+
+    FetcherOrderedGrouped fetcher =
+        new FetcherOrderedGrouped(null, scheduler, merger, shuffle, null, false, 0,
+            null, conf, false, HOST, PORT, "src vertex", Arrays.asList(host0, host2),
+            ioErrsCounter, wrongLengthErrsCounter, badIdErrsCounter,
+            wrongMapErrsCounter, connectionErrsCounter, wrongReduceErrsCounter, APP_ID, DAG_ID,
+            false, false, true, true);
+
+    fetcher.call();
+    verify(scheduler).getMapsForHost(host0, 10);
+    verify(scheduler).getMapsForHost(host2, 9);
+    verify(scheduler).putBackKnownMapOutput(host0, input0);
+    verify(scheduler).putBackKnownMapOutput(host2, input0);
+    verify(scheduler).putBackKnownMapOutput(host2, input1);
+    verify(scheduler, never()).putBackKnownMapOutput(host0, input1);
+    verify(scheduler).freeHost(host0);
+    verify(scheduler).freeHost(host2);
+  }
+
   @Test(timeout = 5000)
   public void testLocalFetchModeSetting1() throws Exception {
     Configuration conf = new TezConfiguration();
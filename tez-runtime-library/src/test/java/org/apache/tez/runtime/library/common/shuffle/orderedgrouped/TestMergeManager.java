@@ -244,8 +244,8 @@ public class TestMergeManager {
     assertEquals(0, mergeManager.getCommitMemory());
     assertEquals(data1.length + data2.length, mergeManager.getUsedMemory());
 
-    System.arraycopy(data1, 0, firstMapOutput.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, secondMapOutput.getMemory(), 0, data2.length);
+    firstMapOutput.getMemory().put(data1);
+    secondMapOutput.getMemory().put(data2);
 
     secondMapOutput.commit();
     assertEquals(data2.length, mergeManager.getCommitMemory());
@@ -319,10 +319,10 @@ public class TestMergeManager {
         mergeManager.getUsedMemory());
 
 
-    System.arraycopy(data1, 0, mo1.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, mo2.getMemory(), 0, data2.length);
-    System.arraycopy(data3, 0, mo3.getMemory(), 0, data3.length);
-    System.arraycopy(data4, 0, mo4.getMemory(), 0, data4.length);
+    mo1.getMemory().put(data1);
+    mo2.getMemory().put(data2);
+    mo3.getMemory().put(data3);
+    mo4.getMemory().put(data4);
 
     //Committing 3 segments should trigger mem-to-mem merge
     mo1.commit();
@@ -374,10 +374,10 @@ public class TestMergeManager {
     assertEquals(data1.length + data2.length + data3.length + data4.length,
         mergeManager.getUsedMemory());
 
-    System.arraycopy(data1, 0, mo1.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, mo2.getMemory(), 0, data2.length);
-    System.arraycopy(data3, 0, mo3.getMemory(), 0, data3.length);
-    System.arraycopy(data4, 0, mo4.getMemory(), 0, data4.length);
+    mo1.getMemory().put(data1);
+    mo2.getMemory().put(data2);
+    mo3.getMemory().put(data3);
+    mo4.getMemory().put(data4);
 
     //Committing 3 segments should trigger mem-to-mem merge
     mo1.commit();
@@ -432,10 +432,10 @@ public class TestMergeManager {
     assertEquals(data1.length + data2.length + data3.length + data4.length,
         mergeManager.getUsedMemory());
 
-    System.arraycopy(data1, 0, mo1.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, mo2.getMemory(), 0, data2.length);
-    System.arraycopy(data3, 0, mo3.getMemory(), 0, data3.length);
-    System.arraycopy(data4, 0, mo4.getMemory(), 0, data4.length);
+    mo1.getMemory().put(data1);
+    mo2.getMemory().put(data2);
+    mo3.getMemory().put(data3);
+    mo4.getMemory().put(data4);
 
     //Committing 3 segments should trigger mem-to-mem merge
     mo1.commit();
@@ -490,10 +490,10 @@ public class TestMergeManager {
     assertEquals(data1.length + data2.length + data3.length + data4.length,
         mergeManager.getUsedMemory());
 
-    System.arraycopy(data1, 0, mo1.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, mo2.getMemory(), 0, data2.length);
-    System.arraycopy(data3, 0, mo3.getMemory(), 0, data3.length);
-    System.arraycopy(data4, 0, mo4.getMemory(), 0, data4.length);
+    mo1.getMemory().put(data1);
+    mo2.getMemory().put(data2);
+    mo3.getMemory().put(data3);
+    mo4.getMemory().put(data4);
 
     //Committing 4 segments should trigger mem-to-mem merge
     mo1.commit();
@@ -545,10 +545,10 @@ public class TestMergeManager {
     assertEquals(data1.length + data2.length + data3.length + data4.length,
         mergeManager.getUsedMemory());
 
-    System.arraycopy(data1, 0, mo1.getMemory(), 0, data1.length);
-    System.arraycopy(data2, 0, mo2.getMemory(), 0, data2.length);
-    System.arraycopy(data3, 0, mo3.getMemory(), 0, data3.length);
-    System.arraycopy(data4, 0, mo4.getMemory(), 0, data4.length);
+    mo1.getMemory().put(data1);
+    mo2.getMemory().put(data2);
+    mo3.getMemory().put(data3);
+    mo4.getMemory().put(data4);
 
     //Committing 4 segments should trigger mem-to-mem merge
     mo1.commit();
@@ -628,8 +628,9 @@ public class TestMergeManager {
 
   @Test(timeout = 10000)
   public void testLocalDiskMergeMultipleTasks() throws IOException, InterruptedException {
-    testLocalDiskMergeMultipleTasks(false);
-    testLocalDiskMergeMultipleTasks(true);
+    testLocalDiskMergeMultipleTasks(false, false);
+    testLocalDiskMergeMultipleTasks(true, false);
+    testLocalDiskMergeMultipleTasks(false, true);
   }
 
   @Test(timeout = 10000)
@@ -770,10 +771,11 @@ public class TestMergeManager {
   }
 
 
-  void testLocalDiskMergeMultipleTasks(final boolean interruptInMiddle)
+  void testLocalDiskMergeMultipleTasks(final boolean interruptInMiddle, boolean mmap)
       throws IOException, InterruptedException {
     Configuration conf = new TezConfiguration(defaultConf);
     conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_COMPRESS, false);
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_LOCAL_FETCH_MMAP_ENABLED, mmap);
     conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, IntWritable.class.getName());
     conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, IntWritable.class.getName());
 
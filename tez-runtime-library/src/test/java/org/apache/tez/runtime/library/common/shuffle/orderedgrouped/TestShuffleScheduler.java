@@ -30,6 +30,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -784,6 +785,39 @@ public class TestShuffleScheduler {
         TezConfiguration());
   }
 
+  @Test(timeout = 5000)
+  public void testBatchedPartitionRanges() throws IOException {
+    Configuration conf = new TezConfiguration();
+    conf.set(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID, "tez_shuffle");
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_SHUFFLE_FETCH_MAX_PARTITION_RANGES, 2);
+    Shuffle shuffle = mock(Shuffle.class);
+    ShuffleSchedulerForTest scheduler =
+        createScheduler(System.currentTimeMillis(), 4, shuffle, conf);
+    try {
+      for (int i = 0; i < 3; i++) {
+        scheduler.addKnownMapOutput("host0", 10000, i,
+            new CompositeInputAttemptIdentifier(i, 0, "attempt_" + i, 1));
+      }
+      scheduler.addKnownMapOutput("host1", 10000, 0,
+          new CompositeInputAttemptIdentifier(3, 0, "attempt_3", 1));
+      assertEquals(4, scheduler.pendingHosts.size());
+
+      MapHost host = scheduler.mapLocations.get(
+          new MapHost.HostPortPartition("host0", 10000, 0));
+      scheduler.pendingHosts.remove(host);
+      host.markBusy();
+      List<MapHost> hosts = scheduler.getHostsToBatch(host);
+      // One more partition range of host0, none of host1
+      assertEquals(2, hosts.size());
+      assertTrue(hosts.get(0) == host);
+      assertEquals("host0", hosts.get(1).getHost());
+      assertEquals(MapHost.State.BUSY, hosts.get(1).getState());
+      assertEquals(2, scheduler.pendingHosts.size());
+    } finally {
+      scheduler.close();
+    }
+  }
+
   @Test(timeout = 60000)
   public void testPenalty() throws IOException, InterruptedException {
     long startTime = System.currentTimeMillis();
@@ -20,9 +20,12 @@ package org.apache.tez.runtime.library.common.sort.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -470,6 +473,35 @@ public class TestIFile {
     reader.close();
   }
 
+  @Test(timeout = 20000)
+  public void testMappedSegment() throws IOException {
+    List<KVPair> data = KVDataGen.generateTestData(true, rnd.nextInt(100));
+    for (CompressionCodec c : new CompressionCodec[] { null, codec }) {
+      Writer writer = writeTestFile(false, true, data, c);
+      MappedByteBuffer segment = IFile.mapSegment(
+          new File(outputPath.toUri().getPath()), 0, writer.getCompressedLength());
+      Reader reader = IFile.Reader.openSegment(segment, c, null, null, 1024);
+      verifyData(reader, data);
+      reader.close();
+      // the segment can be re-read, its position is left untouched
+      assertEquals(0, segment.position());
+      reader = IFile.Reader.openSegment(segment, c, null, null, 1024);
+      verifyData(reader, data);
+      reader.close();
+    }
+
+    // a corrupt segment is detected when it is opened
+    Writer writer = writeTestFile(false, false, data, null);
+    byte[] bytes = new byte[(int) writer.getCompressedLength()];
+    IFile.mapSegment(new File(outputPath.toUri().getPath()), 0, bytes.length).get(bytes);
+    bytes[IFile.HEADER.length + 1] ^= 0xff;
+    try {
+      IFile.Reader.openSegment(ByteBuffer.wrap(bytes), null, null, null, 1024);
+      fail("Expected a checksum error for a corrupt segment");
+    } catch (ChecksumException e) {
+    }
+  }
+
   /**
    * Test different options (RLE, repeat keys, compression) on reader/writer
    *
@@ -578,6 +610,19 @@ public class TestIFile {
     InMemoryReader inMemReader = new InMemoryReader(null,
         new InputAttemptIdentifier(0, 0), bytes, 0, bytes.length);
     verifyData(inMemReader, originalData);
+
+    // Heap memory which does not start at the beginning of its array
+    ByteBuffer heap = ByteBuffer.allocate(bytes.length + 10);
+    heap.position(10);
+    heap.put(bytes).position(10);
+    verifyData(new InMemoryReader(null, new InputAttemptIdentifier(0, 0), heap, bytes.length),
+        originalData);
+
+    // Direct memory is copied out
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    verifyData(new InMemoryReader(null, new InputAttemptIdentifier(0, 0), direct, bytes.length),
+        originalData);
   }
 
   /**
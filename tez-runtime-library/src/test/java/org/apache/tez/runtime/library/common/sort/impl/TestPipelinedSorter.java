@@ -22,7 +22,9 @@ import com.google.common.collect.Maps;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
@@ -42,6 +44,8 @@ import org.apache.tez.runtime.api.OutputStatisticsReporter;
 import org.apache.tez.runtime.api.impl.ExecutionContextImpl;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.api.TezRuntimeConfiguration.ReportPartitionStats;
+import org.apache.tez.runtime.library.common.comparator.TezBytesComparator;
+import org.apache.tez.runtime.library.common.serializer.TezBytesWritableSerialization;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
 import org.apache.tez.runtime.library.partitioner.HashPartitioner;
@@ -52,12 +56,18 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.atLeastOnce;
@@ -103,6 +113,7 @@ public class TestPipelinedSorter {
     String auxiliaryService = getConf().get(TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID,
         TezConfiguration.TEZ_AM_SHUFFLE_AUXILIARY_SERVICE_ID_DEFAULT);
     this.outputContext = createMockOutputContext(counters, appId, uniqueId, auxiliaryService);
+    localFs.mkdirs(workDir);
   }
 
   public static Configuration getConf() {
@@ -352,6 +363,143 @@ public class TestPipelinedSorter {
     verify(outputContext, times(1)).sendEvents(anyListOf(Event.class));
   }
 
+  @Test
+  public void testWithDirectBuffers() throws IOException {
+    Configuration conf = getConf();
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE,
+        PipelinedSorter.SortBufferType.DIRECT.name());
+    // Off-heap buffers are sized by io.sort.mb, not by the memory assigned to the output
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 10);
+    //# partition, # of keys, size per key, InitialMem, blockSize
+    basicTest(1, 10000, 100, 0, 1 << 20, conf);
+  }
+
+  @Test
+  public void testWithMappedBuffers() throws IOException {
+    Configuration conf = getConf();
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE,
+        PipelinedSorter.SortBufferType.MAPPED.name());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 10);
+    //# partition, # of keys, size per key, InitialMem, blockSize
+    basicTest(1, 10000, 100, 0, 1 << 20, conf);
+  }
+
+  @Test
+  public void testDirectBuffersWithLargeKeyValue() throws IOException {
+    Configuration conf = getConf();
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE,
+        PipelinedSorter.SortBufferType.DIRECT.name());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 10);
+    //3 MB key & 3 MB value, whereas block size is just 3 MB
+    basicTest(1, 5, (3 << 20), 0, 3 << 20, conf);
+  }
+
+  @Test
+  public void testWithNormalizedKeys() throws IOException {
+    Configuration conf = getConf();
+    conf.setBoolean(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_NORMALIZED_KEY_ENABLED,
+        true);
+    verifyNormalizedKeySort(conf);
+
+    // off-heap spans compare the normalized keys through the IntBuffer
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE,
+        PipelinedSorter.SortBufferType.DIRECT.name());
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 4);
+    verifyNormalizedKeySort(conf);
+  }
+
+  private void verifyNormalizedKeySort(Configuration conf) throws IOException {
+    this.numOutputs = 1;
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_VALUE_CLASS, BytesWritable.class.getName());
+    conf.set(TezRuntimeConfiguration.TEZ_RUNTIME_KEY_COMPARATOR_CLASS,
+        TezBytesComparator.class.getName());
+    conf.set(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY,
+        TezBytesWritableSerialization.class.getName() + ","
+            + conf.get(CommonConfigurationKeys.IO_SERIALIZATIONS_KEY));
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        (4 * 1024l * 1024l));
+
+    // few distinct 8 byte prefixes (some with the sign bit set), so that plenty of keys
+    // need the full comparison
+    Random random = new Random(0);
+    byte[][] prefixes = new byte[16][];
+    for (int i = 0; i < prefixes.length; i++) {
+      prefixes[i] = new byte[random.nextInt(10)];
+      random.nextBytes(prefixes[i]);
+    }
+    int numKeys = 50000;
+    for (int i = 0; i < numKeys; i++) {
+      byte[] prefix = prefixes[random.nextInt(prefixes.length)];
+      byte[] key = Arrays.copyOf(prefix, prefix.length + random.nextInt(4));
+      for (int j = prefix.length; j < key.length; j++) {
+        key[j] = (byte) random.nextInt(256);
+      }
+      sorter.write(new BytesWritable(key), new BytesWritable(key));
+    }
+    closeSorter(sorter);
+
+    IFile.Reader reader = new IFile.Reader(localFs, sorter.finalOutputFile, null, null, null,
+        false, -1, 4096);
+    TezBytesComparator comparator = new TezBytesComparator();
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valIn = new DataInputBuffer();
+    byte[] previous = null;
+    int numRecordsRead = 0;
+    while (reader.nextRawKey(keyIn)) {
+      byte[] current = Arrays.copyOfRange(keyIn.getData(), keyIn.getPosition(),
+          keyIn.getLength());
+      if (previous != null) {
+        assertTrue(comparator.compare(previous, 0, previous.length,
+            current, 0, current.length) <= 0);
+      }
+      previous = current;
+      reader.nextRawValue(valIn);
+      numRecordsRead++;
+    }
+    reader.close();
+    assertEquals(numKeys, numRecordsRead);
+  }
+
+  @Test
+  public void testParallelFinalMerge() throws IOException {
+    byte[][] serial = writeAndReadFinalOutput(1);
+    byte[][] parallel = writeAndReadFinalOutput(4);
+    // same partitions, irrespective of where they got written in the final output
+    assertArrayEquals(serial, parallel);
+  }
+
+  private byte[][] writeAndReadFinalOutput(int finalMergeThreads) throws IOException {
+    Configuration conf = getConf();
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_FINAL_MERGE_THREADS, finalMergeThreads);
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, 1);
+    this.numOutputs = 10;
+    setup();
+    PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
+        (2 * 1024l * 1024l));
+
+    Random random = new Random(0);
+    for (int i = 0; i < 20000; i++) {
+      sorter.write(new Text(RandomStringUtils.random(100, 0, 0, true, true, null, random)),
+          new Text(RandomStringUtils.random(100, 0, 0, true, true, null, random)));
+    }
+    closeSorter(sorter);
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, outputContext);
+
+    byte[] data = Files.readAllBytes(new File(sorter.finalOutputFile.toUri().getPath()).toPath());
+    TezSpillRecord spillRecord = new TezSpillRecord(sorter.finalIndexFile, conf);
+    byte[][] output = new byte[spillRecord.size()][];
+    for (int i = 0; i < spillRecord.size(); i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      output[i] = Arrays.copyOfRange(data, (int) indexRecord.getStartOffset(),
+          (int) (indexRecord.getStartOffset() + indexRecord.getPartLength()));
+    }
+    reset();
+    return output;
+  }
+
   @Test
   public void testCountersWithMultiplePartitions() throws IOException {
     Configuration conf = getConf();
@@ -398,8 +546,12 @@ public class TestPipelinedSorter {
 
   public void basicTest(int partitions, int numKeys, int keySize,
       long initialAvailableMem, int minBlockSize) throws IOException {
+    basicTest(partitions, numKeys, keySize, initialAvailableMem, minBlockSize, getConf());
+  }
+
+  public void basicTest(int partitions, int numKeys, int keySize,
+      long initialAvailableMem, int minBlockSize, Configuration conf) throws IOException {
     this.numOutputs = partitions; // single output
-    Configuration conf = getConf();
     conf.setInt(TezRuntimeConfiguration
         .TEZ_RUNTIME_PIPELINED_SORTER_MIN_BLOCK_SIZE_IN_MB, minBlockSize >> 20);
     PipelinedSorter sorter = new PipelinedSorter(this.outputContext, conf, numOutputs,
@@ -471,6 +623,17 @@ public class TestPipelinedSorter {
     long size = ExternalSorter.getInitialMemoryRequirement(conf, 4096 * 1024 * 1024l);
     Assert.assertTrue(size == (3076l << 20));
 
+    //Off-heap sort buffers are not requested from the heap
+    Configuration offHeapConf = new Configuration(conf);
+    offHeapConf.set(TezRuntimeConfiguration.TEZ_RUNTIME_PIPELINED_SORTER_BUFFER_TYPE,
+        PipelinedSorter.SortBufferType.DIRECT.name());
+    Assert.assertEquals(0,
+        ExternalSorter.getInitialMemoryRequirement(offHeapConf, 4096 * 1024 * 1024l));
+    Assert.assertEquals(3076l << 20, PipelinedSorter.getOffHeapBufferBytes(offHeapConf));
+    //Nor checked against the heap available to the task
+    Assert.assertEquals(0,
+        ExternalSorter.getInitialMemoryRequirement(offHeapConf, 1024 * 1024 * 1024l));
+
     //Verify number of block buffers allocated
     this.initialAvailableMem = 10 * 1024 * 1024;
     conf.setInt(TezRuntimeConfiguration
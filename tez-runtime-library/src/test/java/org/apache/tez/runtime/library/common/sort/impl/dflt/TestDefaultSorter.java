@@ -18,6 +18,7 @@
 
 package org.apache.tez.runtime.library.common.sort.impl.dflt;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
@@ -29,9 +30,13 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 import com.google.protobuf.ByteString;
@@ -62,6 +67,8 @@ import org.apache.tez.runtime.library.api.TezRuntimeConfiguration;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
 import org.apache.tez.runtime.library.common.shuffle.ShuffleUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.conf.OrderedPartitionedKVOutputConfig.SorterImpl;
 import org.apache.tez.runtime.library.partitioner.HashPartitioner;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads;
@@ -334,6 +341,46 @@ public class TestDefaultSorter {
     }
   }
 
+  @Test(timeout = 60000)
+  public void testParallelFinalMerge() throws IOException {
+    conf.setLong(TezRuntimeConfiguration.TEZ_RUNTIME_IO_SORT_MB, 1);
+    byte[][] serial = writeAndReadFinalOutput(1);
+    byte[][] parallel = writeAndReadFinalOutput(4);
+    // same partitions, irrespective of where they got written in the final output
+    assertArrayEquals(serial, parallel);
+  }
+
+  private byte[][] writeAndReadFinalOutput(int finalMergeThreads) throws IOException {
+    conf.setInt(TezRuntimeConfiguration.TEZ_RUNTIME_FINAL_MERGE_THREADS, finalMergeThreads);
+    OutputContext context = createTezOutputContext();
+    MemoryUpdateCallbackHandler handler = new MemoryUpdateCallbackHandler();
+    context.requestInitialMemory(ExternalSorter.getInitialMemoryRequirement(conf,
+        context.getTotalMemoryAvailableToTask()), handler);
+    DefaultSorter sorter = new DefaultSorter(context, conf, 10, handler.getMemoryAssigned());
+
+    Random random = new Random(0);
+    for (int i = 0; i < 5000; i++) {
+      sorter.write(new Text(RandomStringUtils.random(100, 0, 0, true, true, null, random)),
+          new Text(RandomStringUtils.random(100, 0, 0, true, true, null, random)));
+    }
+    sorter.flush();
+    sorter.close();
+    assertTrue(sorter.getNumSpills() > 1);
+    verifyCounters(sorter, context);
+
+    byte[] data =
+        Files.readAllBytes(new File(sorter.getFinalOutputFile().toUri().getPath()).toPath());
+    TezSpillRecord spillRecord = new TezSpillRecord(sorter.getFinalIndexFile(), conf);
+    byte[][] output = new byte[spillRecord.size()][];
+    for (int i = 0; i < spillRecord.size(); i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      output[i] = Arrays.copyOfRange(data, (int) indexRecord.getStartOffset(),
+          (int) (indexRecord.getStartOffset() + indexRecord.getPartLength()));
+    }
+    reset();
+    return output;
+  }
+
   @Test(timeout = 60000)
   public void testWithPartitionStats() throws IOException {
     testPartitionStats(true);